@@ -0,0 +1,327 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+/**
+ * Generates the plugin header file and its build manifest from a profile as
+ * part of a build, with the same pipeline as the wizard: the config file and
+ * the size tables are read, the source directory is analyzed, the profile is
+ * parsed and the header is saved.
+ *
+ * <p>
+ * The inputs are the profile, the config file, the rules file, all size
+ * tables and the plugin files of the source directory. Their names, sizes and
+ * modification times are hashed together with the parameters into a stamp
+ * file; if the stamp matches and the outputs exist the goal does nothing.
+ * The header is only written if its content changes, so unchanged headers do
+ * not trigger a rebuild of the firmware.
+ *
+ * <p>
+ * The build fails if the selection exceeds one of the given boards, each
+ * measured with its own size table.
+ */
+@Mojo(name = "generate-header", defaultPhase = LifecyclePhase.GENERATE_SOURCES,
+		threadSafe = true)
+public class GenerateHeaderMojo extends AbstractMojo {
+
+	/**
+	 * The profile: a profile definition (".profile", see the watch command)
+	 * or a header file in the format of the save button.
+	 */
+	@Parameter(property = "epw.profile", required = true)
+	private File profile;
+
+	/**
+	 * The config file of the wizard. Relative file names in it are resolved
+	 * against its directory.
+	 */
+	@Parameter(property = "epw.configFile",
+			defaultValue = "${project.basedir}/epwconfig.yaml")
+	private File configFile;
+
+	/**
+	 * The size table, overrides pluginData of the config file.
+	 */
+	@Parameter(property = "epw.pluginData")
+	private File pluginData;
+
+	/**
+	 * The source directory, overrides srcDirectory of the config file.
+	 */
+	@Parameter(property = "epw.srcDirectory")
+	private File srcDirectory;
+
+	/**
+	 * The cache of the analyzed source files, overrides scanCache of the
+	 * config file, so a build never writes into the home directory.
+	 */
+	@Parameter(property = "epw.scanCache",
+			defaultValue = "${project.build.directory}/espeasypluginwizard"
+					+ "/scancache")
+	private File scanCache;
+
+	/**
+	 * The header file to generate, the manifest is written next to it.
+	 */
+	@Parameter(property = "epw.outputFile", required = true)
+	private File outputFile;
+
+	/**
+	 * The names of the memory limits the selection has to fit.
+	 */
+	@Parameter(property = "epw.boards")
+	private List<String> boards = new ArrayList<>();
+
+	/**
+	 * The file remembering the inputs of the last successful run.
+	 */
+	@Parameter(defaultValue = "${project.build.directory}/espeasypluginwizard"
+			+ "/generate-header.stamp")
+	private File stampFile;
+
+	/**
+	 * Skip the generation.
+	 */
+	@Parameter(property = "epw.skip", defaultValue = "false")
+	private boolean skip;
+
+	@Override
+	public void execute() throws MojoExecutionException, MojoFailureException {
+		if (skip) {
+			getLog().info("Skipping the generation of " + outputFile);
+			return;
+		}
+		final ConfigurationData config = readConfiguration();
+		final File manifestFile = ManifestExporter.manifestFile(outputFile);
+
+		final String stamp = inputStamp(config);
+		if (outputFile.exists() && manifestFile.exists()
+				&& stamp.equals(readStamp())) {
+			getLog().info(outputFile + " is up to date");
+			return;
+		}
+
+		final Model model;
+		try {
+			model = App.createModel(config, getLog()::warn);
+		} catch (final IOException e) {
+			throw new MojoExecutionException(
+					"Couldn't read the size tables of " + configFile, e);
+		}
+		final BitSet enabled = readProfile(model);
+		checkBoards(model, enabled);
+		for (final String violation : model.checkRules(enabled)) {
+			getLog().warn(profile.getName() + ": " + violation);
+		}
+
+		// the header is written with the size table given by pluginData
+		model.setActiveTarget(0);
+		final String name = outputFile.getName();
+		if (!ProfileWatcher.writeIfChanged(name, outputFile.toPath(),
+				new HeaderExporter(model), enabled, getLog()::info)
+				|| !ProfileWatcher.writeIfChanged(name, manifestFile.toPath(),
+						new ManifestExporter(model), enabled,
+						getLog()::info)) {
+			throw new MojoExecutionException("Couldn't write " + outputFile);
+		}
+		writeStamp(stamp);
+	}
+
+	/**
+	 * Read the config file and resolve all file names against its directory.
+	 *
+	 * @return the configuration data
+	 */
+	private ConfigurationData readConfiguration() {
+		final File base = configFile.getAbsoluteFile().getParentFile();
+		final ConfigurationData config = new ConfigurationData(new String[] {
+				"--" + ConfigurationData.CONFIG_FILE + "="
+						+ configFile.getAbsolutePath() });
+		if (pluginData != null) {
+			config.setConfig(ConfigurationData.PLUGIN_DATA,
+					pluginData.getAbsolutePath());
+		}
+		if (srcDirectory != null) {
+			config.setConfig(ConfigurationData.SRC_DIRECTORY,
+					srcDirectory.getAbsolutePath());
+		}
+		config.setConfig(ConfigurationData.SCAN_CACHE,
+				scanCache.getAbsolutePath());
+		for (final String key : Arrays.asList(ConfigurationData.PLUGIN_DATA,
+				ConfigurationData.SRC_DIRECTORY,
+				ConfigurationData.PLUGIN_RULES)) {
+			config.setConfig(key, resolve(base, config.getConfig(key)));
+		}
+		@SuppressWarnings("unchecked")
+		final List<Map<String, Object>> limits =
+				(List<Map<String, Object>>) config
+						.getConfig(ConfigurationData.MEM_LIMITS);
+		for (final Map<String, Object> limit : limits) {
+			final Object table = limit.get(ConfigurationData.PLUGIN_DATA);
+			if (table != null) {
+				limit.put(ConfigurationData.PLUGIN_DATA, resolve(base, table));
+			}
+		}
+		return config;
+	}
+
+	/**
+	 * @param base
+	 *            the directory of the config file
+	 * @param name
+	 *            a file name from the config file
+	 * @return the absolute file name
+	 */
+	private static String resolve(final File base, final Object name) {
+		final File file = new File(name.toString());
+		if (file.isAbsolute()) {
+			return file.getPath();
+		}
+		return new File(base, file.getPath()).getAbsolutePath();
+	}
+
+	/**
+	 * Hash everything the generated files depend on. Only the names, sizes
+	 * and modification times of the files are read, not their content.
+	 *
+	 * @param config
+	 *            the configuration with resolved file names
+	 * @return the hash of the inputs
+	 */
+	private String inputStamp(final ConfigurationData config) {
+		final ManifestExporter.Hasher hasher = new ManifestExporter.Hasher();
+		hasher.line("outputFile " + outputFile.getAbsolutePath());
+		hasher.line("boards " + boards);
+		final List<File> inputs = new ArrayList<>();
+		inputs.add(profile);
+		inputs.add(configFile);
+		inputs.add(new File(
+				config.getConfig(ConfigurationData.PLUGIN_RULES).toString()));
+		for (final String table : App.sizeTables(config)) {
+			inputs.add(new File(table));
+		}
+		final String suffix =
+				config.getConfig(ConfigurationData.PLUGIN_SUFFIX).toString();
+		final File[] sources = new File(
+				config.getConfig(ConfigurationData.SRC_DIRECTORY).toString())
+						.listFiles(file -> file.getName().endsWith(suffix)
+								&& file.getName().startsWith("_"));
+		if (sources != null) {
+			Arrays.sort(sources);
+			inputs.addAll(Arrays.asList(sources));
+		}
+		for (final File input : inputs) {
+			hasher.line(input.getAbsolutePath() + "|" + input.length() + "|"
+					+ input.lastModified());
+		}
+		return hasher.hex();
+	}
+
+	/**
+	 * @return the stamp of the last successful run or null
+	 */
+	private String readStamp() {
+		try {
+			return new String(Files.readAllBytes(stampFile.toPath()),
+					StandardCharsets.UTF_8);
+		} catch (final IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param stamp
+	 *            the stamp of the inputs of this run
+	 * @throws MojoExecutionException
+	 *             if the stamp cannot be written
+	 */
+	private void writeStamp(final String stamp) throws MojoExecutionException {
+		final Path path = stampFile.toPath();
+		try {
+			Files.createDirectories(path.getParent());
+			AtomicFile.write(path, stamp.getBytes(StandardCharsets.UTF_8));
+		} catch (final IOException e) {
+			throw new MojoExecutionException("Couldn't write " + stampFile, e);
+		}
+	}
+
+	/**
+	 * @param model
+	 *            the model
+	 * @return the plugins enabled by the profile
+	 * @throws MojoExecutionException
+	 *             if the profile cannot be read
+	 */
+	private BitSet readProfile(final Model model)
+			throws MojoExecutionException {
+		final List<String> unknown = new ArrayList<>();
+		final BitSet enabled;
+		try {
+			if (profile.getName().endsWith(ProfileWatcher.PROFILE_SUFFIX)) {
+				enabled = ProfileWatcher.parseProfile(model, profile.toPath(),
+						unknown);
+			} else {
+				enabled = model.parseHeader(profile.toPath(), unknown);
+			}
+		} catch (final IOException e) {
+			throw new MojoExecutionException("Couldn't read " + profile, e);
+		}
+		for (final String plugin : unknown) {
+			getLog().warn(profile.getName() + ": unknown plugin " + plugin);
+		}
+		return enabled;
+	}
+
+	/**
+	 * Check the selection against the boards, each with its own size table.
+	 *
+	 * @param model
+	 *            the model
+	 * @param enabled
+	 *            the enabled plugins
+	 * @throws MojoFailureException
+	 *             if a board is unknown or exceeded
+	 */
+	private void checkBoards(final Model model, final BitSet enabled)
+			throws MojoFailureException {
+		final List<String> problems = new ArrayList<>();
+		for (final String boardName : boards) {
+			final MemoryData board = model.findMemLimit(boardName);
+			if (board == null) {
+				problems.add("Unknown board: " + boardName);
+				continue;
+			}
+			model.setActiveTarget(model.getBoardTarget(
+					model.getMemLimits().indexOf(board)));
+			final MemoryData usage = model.getMemData(profile.getName(),
+					enabled);
+			if (model.exceedsMemReference(usage, board)) {
+				problems.add(profile.getName() + " exceeds " + boardName
+						+ ": " + usage.formatContents());
+			}
+		}
+		if (!problems.isEmpty()) {
+			for (final String problem : problems) {
+				getLog().error(problem);
+			}
+			throw new MojoFailureException(String.join(", ", problems));
+		}
+	}
+
+}
@@ -2,25 +2,54 @@ package de.xinaris.espeasypluginwizard;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import javafx.application.Application;
 import javafx.beans.property.SimpleObjectProperty;
+import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.value.ChangeListener;
+import javafx.collections.transformation.FilteredList;
 import javafx.collections.transformation.SortedList;
+import javafx.concurrent.Task;
 import javafx.event.Event;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
+import javafx.scene.Node;
 import javafx.scene.Scene;
+import javafx.scene.control.Alert;
+import javafx.scene.control.Alert.AlertType;
 import javafx.scene.control.Button;
+import javafx.scene.control.ButtonType;
 import javafx.scene.control.CheckBox;
+import javafx.scene.control.ComboBox;
+import javafx.scene.control.DialogPane;
 import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.control.TableCell;
 import javafx.scene.control.TableColumn;
 import javafx.scene.control.TableRow;
 import javafx.scene.control.TableView;
+import javafx.scene.control.TextArea;
+import javafx.scene.control.TextField;
 import javafx.scene.control.cell.PropertyValueFactory;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyCodeCombination;
+import javafx.scene.input.KeyCombination;
 import javafx.scene.layout.ColumnConstraints;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.HBox;
@@ -30,6 +59,7 @@ import javafx.scene.text.TextAlignment;
 import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.FileChooser.ExtensionFilter;
+import javafx.stage.Modality;
 import javafx.stage.Stage;
 
 /**
@@ -39,21 +69,82 @@ public class App extends Application {
 
 	private static final Color UNMODIFIED_TEXT_COLOR = Color.BLACK;
 	private static final Color MODIFIED_TEXT_COLOR = Color.RED;
+	private static final Color OTHER_TARGET_TEXT_COLOR = Color.GRAY;
 
 	private static ConfigurationData config;
 	private static Model model;
 
+	/**
+	 * The messages of analyzing the source directory while the model is
+	 * created, shown when the user interface starts.
+	 */
+	private static List<String> startupMessages = new ArrayList<>();
+
+	private static final int MEM_LIMIT_ROWS = 6;
+	private static final int MESSAGE_LINES = 10;
+	private static final double MEM_LIMIT_ROW_HEIGHT = 24;
+	private static final int REPAIR_UNKNOWN = -2;
+
 	private Label currentMemLabel = null;
-	private final List<Label> memLabels = new ArrayList<>();
+	private Label fitLabel = null;
+	private final ListView<MemoryData> memLimitList = new ListView<>();
+	private BitSet fittingBoards = new BitSet();
+	private BitSet targetBoards = new BitSet();
+	private SelectionRepair repair;
+	private MemoryMap memoryMap;
+
+	/**
+	 * The number of plugins to disable to fit each board, calculated with the
+	 * greedy repair when the board is shown; -1 if the board cannot be
+	 * fitted, REPAIR_UNKNOWN if not calculated yet for the current selection.
+	 */
+	private int[] repairCounts = new int[0];
 
 	private Stage stage; // needed for dialogs
 	private TableView<PluginData> tv = new TableView<>(); // needed after save
-	private int modifiedCount = 1; // we start with an unsaved config
+	private final TextField searchField = new TextField();
+	private FilteredList<PluginData> filteredPlugins;
 	private Label srcDirectory;
+	private Button undoButton;
+	private Button redoButton;
+	private SymbolStore symbolStore = null; // opened on first drill-down
+
+	/**
+	 * Reads and writes files in the background, one task after the other.
+	 */
+	private final ExecutorService executor =
+			Executors.newSingleThreadExecutor(runnable -> {
+				final Thread thread = new Thread(runnable, "file-io");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	/**
+	 * The task running in the background, or null. While a task runs the
+	 * controls are disabled, so the model does not change.
+	 */
+	private Task<?> runningTask = null;
+	private GridPane root;
+	private HBox statusBox;
+	private final ProgressBar progressBar = new ProgressBar();
+	private final Label statusLabel = new Label();
+
+	/**
+	 * The alert showing the messages of the last operation, or null.
+	 */
+	private Alert messageAlert = null;
+	private Supplier<String> messageDetails = () -> "";
+
+	/**
+	 * Called with the application once the user interface has been shown,
+	 * e.g. by tests driving the user interface.
+	 */
+	private static volatile Consumer<App> startListener = null;
 
 	/**
 	 * The main method first tries to read the config file, then the plugin file
-	 * and then starts the user interface.
+	 * and then starts the user interface. If a command is given, the command
+	 * is run instead of the user interface.
 	 *
 	 * @param args
 	 *            command line arguments
@@ -61,43 +152,151 @@ public class App extends Application {
 	public static void main(final String[] args) {
 		config = new ConfigurationData(args);
 
+		// the user interface shows the messages once it is up
+		Consumer<String> messageHandler = startupMessages::add;
+		if (config.getArguments().isEmpty()) {
+			ScanCache.setDefault(config);
+		} else {
+			messageHandler = System.out::println;
+		}
 		try {
-			final String pluginData =
-					config.getConfig(ConfigurationData.PLUGIN_DATA).toString();
-			final String prefixPattern =
-					config.getConfig(ConfigurationData.PLUGIN_PREFIX_PATTERN)
-							.toString();
-			final String suffix = config
-					.getConfig(ConfigurationData.PLUGIN_SUFFIX).toString();
-			model = new Model(pluginData, prefixPattern, suffix);
-
-			// Important, the plugin data has to be read first
-			final String dirName = config
-					.getConfig(ConfigurationData.SRC_DIRECTORY).toString();
-			File df = new File(dirName);
-			if (df.exists()) {
-				model.setSrcDir(df.getCanonicalPath());
-			} else {
-				df = new File(".");
-				model.setSrcDir(df.getCanonicalPath());
-			}
-
-			model.setFileName(
-					config.getConfig(ConfigurationData.PLUGIN_HEADER_FILE)
-							.toString());
-			@SuppressWarnings("unchecked")
-			final List<Map<String, Object>> limits =
-					(List<Map<String, Object>>) config
-							.getConfig(ConfigurationData.MEM_LIMITS);
-			model.initMemLimits(limits);
-
+			model = createModel(config, messageHandler);
 		} catch (final IOException e) {
 			System.exit(0);
 		}
 
+		if (!config.getArguments().isEmpty()) {
+			System.exit(Batch.run(config, model, config.getArguments()));
+		}
 		launch(args);
 	}
 
+	/**
+	 * Set the configuration and the model used by the user interface instead
+	 * of those created by main, e.g. for tests launching the application
+	 * without main.
+	 *
+	 * @param configuration
+	 *            the configuration data
+	 * @param newModel
+	 *            the model
+	 * @param listener
+	 *            called on the JavaFX thread once the user interface has been
+	 *            shown, or null
+	 */
+	static void setUp(final ConfigurationData configuration,
+			final Model newModel, final Consumer<App> listener) {
+		config = configuration;
+		model = newModel;
+		startListener = listener;
+	}
+
+	/**
+	 * Create the model from the configuration: read the plugin file, analyze
+	 * the source directory and initialize memory limits and rules. The
+	 * messages of analyzing the source directory are printed.
+	 *
+	 * @param configuration
+	 *            the configuration data
+	 * @return the initialized model
+	 * @throws IOException
+	 *             if the plugin file cannot be read
+	 */
+	static Model createModel(final ConfigurationData configuration)
+			throws IOException {
+		return createModel(configuration, System.out::println);
+	}
+
+	/**
+	 * Create the model from the configuration as above.
+	 *
+	 * @param configuration
+	 *            the configuration data
+	 * @param messageHandler
+	 *            receives the messages of reading the plugin files and of
+	 *            analyzing the source directory
+	 * @return the initialized model
+	 * @throws IOException
+	 *             if the plugin file cannot be read
+	 */
+	static Model createModel(final ConfigurationData configuration,
+			final Consumer<String> messageHandler) throws IOException {
+		final String suffix = configuration
+				.getConfig(ConfigurationData.PLUGIN_SUFFIX).toString();
+		final Model newModel = new Model(sizeTables(configuration),
+				PluginClassifier.create(configuration), suffix,
+				messageHandler);
+
+		newModel.setScanCache(ScanCache.create(configuration));
+		// Important, the plugin data has to be read first
+		final String dirName = configuration
+				.getConfig(ConfigurationData.SRC_DIRECTORY).toString();
+		File df = new File(dirName);
+		if (df.exists()) {
+			newModel.setSrcDir(df.getCanonicalPath());
+		} else {
+			df = new File(".");
+			newModel.setSrcDir(df.getCanonicalPath());
+		}
+
+		newModel.setFileName(configuration
+				.getConfig(ConfigurationData.PLUGIN_HEADER_FILE).toString());
+		@SuppressWarnings("unchecked")
+		final List<Map<String, Object>> limits =
+				(List<Map<String, Object>>) configuration
+						.getConfig(ConfigurationData.MEM_LIMITS);
+		newModel.initMemLimits(limits);
+		newModel.initRules(configuration.readRules());
+		return newModel;
+	}
+
+	/**
+	 * All size tables are read up front: pluginData first, then the size
+	 * tables named by the memory limits.
+	 *
+	 * @param configuration
+	 *            the configuration data
+	 * @return the names of the size tables without duplicates
+	 */
+	static List<String> sizeTables(final ConfigurationData configuration) {
+		final Set<String> tables = new LinkedHashSet<>();
+		tables.add(configuration.getConfig(ConfigurationData.PLUGIN_DATA)
+				.toString());
+		@SuppressWarnings("unchecked")
+		final List<Map<String, Object>> limits =
+				(List<Map<String, Object>>) configuration
+						.getConfig(ConfigurationData.MEM_LIMITS);
+		for (final Map<String, Object> limit : limits) {
+			final Object table = limit.get(ConfigurationData.PLUGIN_DATA);
+			if (table != null) {
+				tables.add(table.toString());
+			}
+		}
+		return new ArrayList<>(tables);
+	}
+
+	/**
+	 * Create the repair for selections exceeding a board, with the plugin
+	 * priorities from the configuration.
+	 *
+	 * @param configuration
+	 *            the configuration data
+	 * @param forModel
+	 *            the model
+	 * @return the repair
+	 */
+	@SuppressWarnings("unchecked")
+	static SelectionRepair createRepair(final ConfigurationData configuration,
+			final Model forModel) {
+		final Object priorities =
+				configuration.getConfig(ConfigurationData.PLUGIN_PRIORITIES);
+		if (priorities != null && !(priorities instanceof Map)) {
+			System.out.println("pluginPriorities has to be a map");
+			return new SelectionRepair(forModel, null);
+		}
+		return new SelectionRepair(forModel, (Map<String, Object>) priorities);
+	}
+
 	/**
 	 * This method defines the graphical interface for the Wizard.
 	 */
@@ -105,8 +304,16 @@ public class App extends Application {
 	@Override
 	public void start(final Stage primaryStage) throws Exception {
 		stage = primaryStage;
+		repair = createRepair(config, model);
 		createUI();
 		stage.show();
+		showMessages("Analyzing " + model.getSrcDir(),
+				new ArrayList<>(startupMessages));
+		startupMessages.clear();
+		final Consumer<App> listener = startListener;
+		if (listener != null) {
+			listener.accept(this);
+		}
 	}
 
 	/**
@@ -115,7 +322,7 @@ public class App extends Application {
 	private void createUI() {
 		final int gap = 10;
 		// final int paneWidth = 7 * 100; // number of columns
-		final GridPane root = new GridPane();
+		root = new GridPane();
 		root.setAlignment(Pos.CENTER);
 		root.setHgap(gap);
 		root.setVgap(gap);
@@ -162,25 +369,45 @@ public class App extends Application {
 		root.add(hb, 2, row);
 		row++;
 
+		// The search box
+		root.add(new Label("Search:"), 0, row);
+		searchField.setPromptText("name, macro or description");
+		searchField.textProperty().addListener(
+				(observable, oldVal, newVal) -> applyFilter());
+		root.add(searchField, 1, row++, numColumns - 1, 1);
+
 		// The table view
 		tv = createTableView();
 		root.add(tv, 0, row++, numColumns, 1);
 
-		// The list of memory limit labels
-		final MemoryData currentMem = getCurrentMemData();
+		// The current memory usage and the list of memory limits
+		final MemoryData currentMem = model.getCurrentMemData();
 		root.add(new Label(currentMem.getName()), 0, row);
 		currentMemLabel = new Label(currentMem.formatContents());
-		root.add(currentMemLabel, 1, row++);
+		root.add(currentMemLabel, 1, row);
+		fitLabel = new Label();
+		root.add(fitLabel, 2, row++);
+
+		root.add(createMemLimitList(), 0, row++, numColumns, 1);
+
+		// where the memory goes, scaled to the selected memory limit
+		memoryMap = new MemoryMap(model);
+		memLimitList.getSelectionModel().selectedItemProperty().addListener(
+				(observable, oldVal, newVal) -> memoryMap.setBoard(newVal));
+		root.add(memoryMap, 0, row++, numColumns, 1);
 
-		for (final MemoryData md : model.getMemLimits()) {
-			final Label memLimitLabel = new Label(md.formatContents());
-			memLimitLabel.setTextFill(UNMODIFIED_TEXT_COLOR);
-			memLabels.add(memLimitLabel);
-			root.add(new Label(md.getName()), 0, row);
-			root.add(memLimitLabel, 1, row);
-			row++;
+		// the size table used for the memory values, if there are several
+		if (model.getTargets().size() > 1) {
+			root.add(new Label("Size table:"), 0, row);
+			final ComboBox<String> targets = new ComboBox<>();
+			targets.getItems().addAll(model.getTargets());
+			targets.getSelectionModel().select(model.getActiveTarget());
+			targets.getSelectionModel().selectedIndexProperty().addListener(
+					(observable, oldVal, newVal) -> targetSelected(
+							newVal.intValue()));
+			root.add(targets, 1, row++, numColumns - 1, 1);
 		}
-		recalcValues(null);
+
 		// the load file button
 		final Button loadFile = new Button("Load");
 		loadFile.setOnAction(e -> loadButtonPressed(e));
@@ -189,15 +416,47 @@ public class App extends Application {
 		hb.setAlignment(Pos.CENTER_LEFT);
 		root.add(hb, 0, row);
 
+		// the undo and redo buttons
+		undoButton = new Button("Undo");
+		undoButton.setOnAction(e -> undoButtonPressed(e));
+		redoButton = new Button("Redo");
+		redoButton.setOnAction(e -> redoButtonPressed(e));
+		final Button fitButton = new Button("Fit");
+		fitButton.setOnAction(e -> fitButtonPressed(e));
+		hb = new HBox(gap, undoButton, redoButton, fitButton);
+		HBox.setHgrow(hb, Priority.ALWAYS);
+		hb.setAlignment(Pos.CENTER);
+		root.add(hb, 1, row);
+
 		// the save file button
 		final Button saveFile = new Button("Save");
 		saveFile.setOnAction(e -> saveButtonPressed(e));
 		hb = new HBox(saveFile);
 		HBox.setHgrow(hb, Priority.ALWAYS);
 		hb.setAlignment(Pos.CENTER);
-		root.add(hb, numColumns - 1, row);
-		stage.setScene(new Scene(root));
-		stage.setTitle(generateTitle());
+		root.add(hb, numColumns - 1, row++);
+
+		// the state of the task running in the background
+		final Button cancelButton = new Button("Cancel");
+		cancelButton.setOnAction(e -> {
+			if (runningTask != null) {
+				runningTask.cancel();
+			}
+		});
+		statusBox = new HBox(gap, progressBar, statusLabel, cancelButton);
+		statusBox.setAlignment(Pos.CENTER_LEFT);
+		statusBox.managedProperty().bind(statusBox.visibleProperty());
+		statusBox.setVisible(false);
+		root.add(statusBox, 0, row, numColumns, 1);
+		final Scene scene = new Scene(root);
+		scene.getAccelerators().put(
+				new KeyCodeCombination(KeyCode.Z, KeyCombination.SHORTCUT_DOWN),
+				() -> undoButtonPressed(null));
+		scene.getAccelerators().put(
+				new KeyCodeCombination(KeyCode.Y, KeyCombination.SHORTCUT_DOWN),
+				() -> redoButtonPressed(null));
+		stage.setScene(scene);
+		recalcValues(null);
 		// Turn off the arbitrary selection of button
 		root.requestFocus();
 		// root.setGridLinesVisible(true);
@@ -217,15 +476,218 @@ public class App extends Application {
 		dc.setInitialDirectory(new File(model.getSrcDir()));
 		final File dir = dc.showDialog(stage);
 		if (dir != null) {
-			final String newDir = dir.getAbsolutePath();
-			model.setSrcDir(newDir);
-			srcDirectory.setText(newDir);
-			tv.refresh();
+			changeDirectory(dir);
 			return dir;
 		}
 		return null;
 	}
 
+	/**
+	 * Analyze a new source directory in the background and show the plugins
+	 * found.
+	 *
+	 * @param dir
+	 *            the new source directory
+	 * @return the task analyzing the directory
+	 */
+	Task<Model.Update> changeDirectory(final File dir) {
+		final String newDir = dir.getAbsolutePath();
+		final String description = "Analyzing " + newDir;
+		return runInBackground(description,
+				progress -> model.scanSrcDir(newDir, progress), update -> {
+					if (applyUpdate(description, update)) {
+						srcDirectory.setText(newDir);
+						applyFilter();
+						memoryMap.invalidate();
+						tv.refresh();
+					}
+				});
+	}
+
+	/**
+	 * A file operation running in the background.
+	 *
+	 * @param <T>
+	 *            the type of the result
+	 */
+	@FunctionalInterface
+	private interface BackgroundWork<T> {
+		/**
+		 * @param progress
+		 *            receives the progress shown in the progress bar
+		 * @return the result
+		 * @throws Exception
+		 *             if the operation fails or is interrupted
+		 */
+		T call(ProgressListener progress) throws Exception;
+	}
+
+	/**
+	 * Run file operations in the background. The controls are disabled and
+	 * the progress is shown until the task has finished or is cancelled.
+	 * The result is applied on the JavaFX thread, errors are shown in an
+	 * alert. A cancelled operation changes neither the model nor any file.
+	 *
+	 * @param description
+	 *            the description of the task, e.g. "Loading Custom.h"
+	 * @param work
+	 *            the work done in the background, it must not change the
+	 *            model
+	 * @param done
+	 *            called on the JavaFX thread with the result of the work
+	 * @param <T>
+	 *            the type of the result
+	 * @return the task
+	 */
+	private <T> Task<T> runInBackground(final String description,
+			final BackgroundWork<T> work, final Consumer<T> done) {
+		final Task<T> task = new Task<T>() {
+			private final AtomicLong shownPercent = new AtomicLong(-1);
+
+			@Override
+			protected T call() throws Exception {
+				// the bar only shows whole percents, more updates would only
+				// keep the JavaFX thread busy
+				return work.call((done, total) -> {
+					final long percent = done * 100 / Math.max(1, total);
+					if (shownPercent.getAndSet(percent) != percent) {
+						updateProgress(done, total);
+					}
+				});
+			}
+		};
+		task.setOnSucceeded(e -> {
+			setRunningTask(null, null);
+			done.accept(task.getValue());
+		});
+		task.setOnFailed(e -> {
+			setRunningTask(null, null);
+			showError(description, task.getException());
+		});
+		task.setOnCancelled(e -> {
+			setRunningTask(null, null);
+			final List<String> messages = new ArrayList<>();
+			messages.add("Nothing has been changed.");
+			showMessages(description + " cancelled", messages);
+		});
+		setRunningTask(task, description);
+		executor.execute(task);
+		return task;
+	}
+
+	/**
+	 * Show the state of a task and disable the controls while it runs.
+	 *
+	 * @param task
+	 *            the running task or null
+	 * @param description
+	 *            the description of the task or null
+	 */
+	private void setRunningTask(final Task<?> task, final String description) {
+		runningTask = task;
+		final boolean running = task != null;
+		for (final Node node : root.getChildren()) {
+			if (node != statusBox) {
+				node.setDisable(running);
+			}
+		}
+		progressBar.progressProperty().unbind();
+		if (running) {
+			progressBar.progressProperty().bind(task.progressProperty());
+		}
+		statusLabel.setText(description);
+		statusBox.setVisible(running);
+	}
+
+	/**
+	 * Apply the result of a background task to the model and show its
+	 * messages.
+	 *
+	 * @param description
+	 *            the description of the task
+	 * @param update
+	 *            the result read in the background
+	 * @return true if the update has been applied
+	 */
+	private boolean applyUpdate(final String description,
+			final Model.Update update) {
+		showMessages(description, update.getMessages());
+		if (!model.apply(update)) {
+			new Alert(AlertType.WARNING,
+					"The plugins changed meanwhile, please try again.")
+							.showAndWait();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Show messages for the user, e.g. about new plugins found, in an alert
+	 * that does not block the user interface. The alert is reused while it
+	 * is open. It shows the first messages, all of them are in its
+	 * expandable details, as a header file can cause one per plugin.
+	 *
+	 * @param header
+	 *            the header of the alert, e.g. the operation
+	 * @param messages
+	 *            the messages, nothing is shown if there are none
+	 */
+	private void showMessages(final String header,
+			final List<String> messages) {
+		if (messages.isEmpty()) {
+			return;
+		}
+		if (messageAlert == null) {
+			messageAlert = new Alert(AlertType.INFORMATION);
+			messageAlert.initOwner(stage);
+			messageAlert.initModality(Modality.NONE);
+			messageAlert.setResizable(true);
+			final TextArea details = new TextArea();
+			details.setEditable(false);
+			final DialogPane pane = messageAlert.getDialogPane();
+			pane.setExpandableContent(details);
+			// the details are only filled when they are shown
+			pane.expandedProperty().addListener((observable, oldVal,
+					newVal) -> details.setText(messageDetails.get()));
+		}
+		String summary = String.join("\n", messages.subList(0,
+				Math.min(messages.size(), MESSAGE_LINES)));
+		if (messages.size() > MESSAGE_LINES) {
+			summary += "\n... and " + (messages.size() - MESSAGE_LINES)
+					+ " more, see the details";
+		}
+		messageAlert.setHeaderText(header);
+		messageAlert.setContentText(summary);
+		final List<String> all = new ArrayList<>(messages);
+		messageDetails = () -> String.join("\n", all);
+		final DialogPane pane = messageAlert.getDialogPane();
+		if (pane.isExpanded()) {
+			((TextArea) pane.getExpandableContent())
+					.setText(messageDetails.get());
+		}
+		if (!messageAlert.isShowing()) {
+			messageAlert.show();
+		}
+	}
+
+	/**
+	 * Report a failed file operation.
+	 *
+	 * @param description
+	 *            the description of the operation
+	 * @param error
+	 *            the error
+	 */
+	private void showError(final String description, final Throwable error) {
+		String message = error.getMessage();
+		if (message == null) {
+			message = error.toString();
+		}
+		final Alert alert = new Alert(AlertType.ERROR, message);
+		alert.setHeaderText(description + " failed");
+		alert.showAndWait();
+	}
+
 	/**
 	 * Generate the Title for the Window.
 	 *
@@ -233,31 +695,89 @@ public class App extends Application {
 	 */
 	private String generateTitle() {
 		@SuppressWarnings("checkstyle:avoidinlineconditionals")
-		final String modifiedString = modifiedCount == 0 ? "   " : " * ";
+		final String modifiedString = model.isModified() ? " * " : "   ";
 		return "ESPEasy Plugin Wizard - " + model.getFileName()
 				+ modifiedString;
 	}
 
 	/**
-	 * Calculate current memory usage.
+	 * Create the list of memory limits. The list is virtualized, only the
+	 * visible rows are rendered, and limits exceeded by the current selection
+	 * are colored.
 	 *
-	 * @return MemoryData object containing the current memory usage
-	 */
-	private MemoryData getCurrentMemData() {
-		int cacheIRam = 0, initRam = 0, roRam = 0, uninitRam = 0, flashRom = 0;
-
-		for (final PluginData p : model.getPluginData()) {
-			if (p.isEnabled()) {
-				cacheIRam += p.getCacheIRam();
-				initRam += p.getInitRam();
-				roRam = p.getRoRam();
-				uninitRam += p.getUninitRam();
-				flashRom += p.getFlashRom();
+	 * @return ListView object
+	 */
+	private ListView<MemoryData> createMemLimitList() {
+		memLimitList.setItems(model.getMemLimits());
+		memLimitList.setCellFactory(list -> new ListCell<MemoryData>() {
+			@Override
+			protected void updateItem(final MemoryData md,
+					final boolean empty) {
+				super.updateItem(md, empty);
+				if (empty || md == null) {
+					setText(null);
+					return;
+				}
+				if (!targetBoards.get(getIndex())) {
+					setText(md.getName() + ":\t" + md.formatContents()
+							+ "\t(other size table)");
+					setTextFill(OTHER_TARGET_TEXT_COLOR);
+				} else if (fittingBoards.get(getIndex())) {
+					setText(md.getName() + ":\t" + md.formatContents());
+					setTextFill(UNMODIFIED_TEXT_COLOR);
+				} else {
+					setText(md.getName() + ":\t" + md.formatContents() + "\t"
+							+ repairHint(getIndex()));
+					setTextFill(MODIFIED_TEXT_COLOR);
+				}
 			}
+		});
+		final int rows = Math.max(1,
+				Math.min(MEM_LIMIT_ROWS, model.getMemLimits().size()));
+		memLimitList.setPrefHeight(rows * MEM_LIMIT_ROW_HEIGHT + 2);
+		return memLimitList;
+	}
+
+	/**
+	 * Switch to another size table. Only the memory values change, so the
+	 * table is refreshed and sorted again.
+	 *
+	 * @param target
+	 *            the index of the selected target
+	 */
+	private void targetSelected(final int target) {
+		if (target < 0) {
+			return;
 		}
+		model.setActiveTarget(target);
+		recalcValues(null);
+		tv.sort();
+		tv.refresh();
+	}
 
-		return new MemoryData("Current", cacheIRam, initRam, roRam, uninitRam,
-				flashRom);
+	/**
+	 * @param board
+	 *            the index of a board the selection does not fit
+	 * @return the hint how many plugins have to be disabled to fit it
+	 */
+	private String repairHint(final int board) {
+		if (board >= repairCounts.length) {
+			return "";
+		}
+		if (repairCounts[board] == REPAIR_UNKNOWN) {
+			// the greedy result is good enough for the hint
+			final SelectionRepair.Result result = repair.repair(
+					model.getSelection(), model.getMemLimits().get(board), 0);
+			if (result.isFeasible()) {
+				repairCounts[board] = result.getRemoved().cardinality();
+			} else {
+				repairCounts[board] = -1;
+			}
+		}
+		if (repairCounts[board] < 0) {
+			return "(cannot fit)";
+		}
+		return "(disable " + repairCounts[board] + ")";
 	}
 
 	/**
@@ -290,6 +810,47 @@ public class App extends Application {
 		final TableColumn<PluginData, String> flashRomCol =
 				new TableColumn<>("Flash ROM");
 		flashRomCol.setCellValueFactory(new PropertyValueFactory<>("flashRom"));
+		final TableColumn<PluginData, String> descriptionCol =
+				new TableColumn<>("Description");
+		descriptionCol
+				.setCellValueFactory(new PropertyValueFactory<>("description"));
+		final TableColumn<PluginData, String> rulesCol =
+				new TableColumn<>("Rules");
+		rulesCol.setCellValueFactory(wrapper -> new SimpleStringProperty(String
+				.join("; ", model.getRuleViolations(wrapper.getValue()))));
+		rulesCol.setSortable(false);
+		// the bytes by which enabling the plugin exceeds a fitting board
+		final TableColumn<PluginData, Number> headroomCol =
+				new TableColumn<>("Headroom");
+		headroomCol.setCellValueFactory(wrapper -> model.getHeadroom()
+				.overflowProperty(wrapper.getValue().getIndex()));
+		headroomCol.setCellFactory(c -> new TableCell<PluginData, Number>() {
+			@Override
+			protected void updateItem(final Number overflow,
+					final boolean empty) {
+				super.updateItem(overflow, empty);
+				PluginData plugin = null;
+				// the cell can be updated before it is part of a row
+				if (getTableRow() != null) {
+					plugin = (PluginData) getTableRow().getItem();
+				}
+				if (empty || overflow == null || plugin == null
+						|| plugin.isEnabled()) {
+					setText(null);
+				} else if (overflow.intValue()
+						== HeadroomTracker.NO_FITTING_BOARD) {
+					setText("no fitting board");
+					setTextFill(MODIFIED_TEXT_COLOR);
+				} else if (overflow.intValue() > 0) {
+					setText("+" + overflow + " " + model.getHeadroom()
+							.getOverflowType(plugin.getIndex()));
+					setTextFill(MODIFIED_TEXT_COLOR);
+				} else {
+					setText("ok");
+					setTextFill(UNMODIFIED_TEXT_COLOR);
+				}
+			}
+		});
 		// the checkbox
 		final TableColumn<PluginData, String> enabledCol = new TableColumn<>();
 		enabledCol.setCellValueFactory(wrapper -> {
@@ -297,16 +858,8 @@ public class App extends Application {
 			final CheckBox checkBox = new CheckBox();
 			checkBox.selectedProperty().setValue(plugin.isEnabled());
 			checkBox.selectedProperty().addListener(
-					(ChangeListener<Boolean>) (observable, oldVal, newVal) -> {
-						plugin.setEnabled(newVal);
-						if (plugin.isModified()) {
-							modifiedCount++;
-						} else {
-							modifiedCount--;
-						}
-						recalcValues(checkBox);
-						tv.refresh();
-					});
+					(ChangeListener<Boolean>) (observable, oldVal,
+							newVal) -> togglePlugin(plugin, newVal));
 			if (plugin.isReadOnly()) {
 				checkBox.setDisable(true);
 			}
@@ -314,22 +867,32 @@ public class App extends Application {
 		});
 
 		// Coloring the table rows when modified
-		tv.setRowFactory(tableRow -> new TableRow<PluginData>() {
-			@Override
-			public void updateItem(final PluginData plugin,
-					final boolean empty) {
-				super.updateItem(plugin, empty);
-				if (plugin == null) {
-					setStyle("");
-				} else if (plugin.isModified()) {
-					setStyle(config.getConfig(ConfigurationData.MODIFIED_STYLE)
-							.toString());
-				} else {
-					setStyle(
-							config.getConfig(ConfigurationData.UNMODIFIED_STYLE)
-									.toString());
+		tv.setRowFactory(tableView -> {
+			final TableRow<PluginData> tableRow = new TableRow<PluginData>() {
+				@Override
+				public void updateItem(final PluginData plugin,
+						final boolean empty) {
+					super.updateItem(plugin, empty);
+					if (plugin == null) {
+						setStyle("");
+					} else if (plugin.isModified()) {
+						setStyle(config
+								.getConfig(ConfigurationData.MODIFIED_STYLE)
+								.toString());
+					} else {
+						setStyle(config
+								.getConfig(ConfigurationData.UNMODIFIED_STYLE)
+								.toString());
+					}
 				}
-			}
+			};
+			// a double click opens the symbols of the plugin
+			tableRow.setOnMouseClicked(e -> {
+				if (e.getClickCount() == 2 && !tableRow.isEmpty()) {
+					showSymbols(tableRow.getItem());
+				}
+			});
+			return tableRow;
 		});
 		// set name column to grow as much as possible
 		final double width = enabledCol.widthProperty().get()
@@ -337,24 +900,102 @@ public class App extends Application {
 				+ initRamCol.widthProperty().get()
 				+ roRamCol.widthProperty().get()
 				+ uninitRamCol.widthProperty().get()
-				+ flashRomCol.widthProperty().get() + 10;
+				+ flashRomCol.widthProperty().get()
+				+ descriptionCol.widthProperty().get()
+				+ rulesCol.widthProperty().get()
+				+ headroomCol.widthProperty().get() + 10;
 
 		nameCol.prefWidthProperty().bind(tv.widthProperty().subtract(width));
 
 		// plugin |cache IRAM |init RAM |r.o. RAM |uninit RAM |Flash ROM
 		tv.getColumns().addAll(enabledCol, nameCol, cacheIRamCol, initRamCol,
-				roRamCol, uninitRamCol, flashRomCol);
+				roRamCol, uninitRamCol, flashRomCol, headroomCol,
+				descriptionCol, rulesCol);
 
 		tv.minWidthProperty().bind(tv.prefWidthProperty());
 
-		final SortedList<PluginData> sl =
-				new SortedList<>(model.getPluginData());
+		filteredPlugins = new FilteredList<>(model.getPluginData());
+		final SortedList<PluginData> sl = new SortedList<>(filteredPlugins);
 		// tv.setPrefWidth(600);
 		tv.setItems(sl);
 		sl.comparatorProperty().bind(tv.comparatorProperty());
 		return tv;
 	}
 
+	/**
+	 * Enable or disable a plugin as its checkbox does.
+	 *
+	 * @param plugin
+	 *            the plugin
+	 * @param enabled
+	 *            the new enabled state
+	 */
+	void togglePlugin(final PluginData plugin, final boolean enabled) {
+		model.setEnabled(plugin, enabled);
+		recalcValues(null);
+		tv.refresh();
+	}
+
+	/**
+	 * @return the table of plugins
+	 */
+	TableView<PluginData> getTableView() {
+		return tv;
+	}
+
+	/**
+	 * @return the map of the memory usage
+	 */
+	MemoryMap getMemoryMap() {
+		return memoryMap;
+	}
+
+	/**
+	 * Show only the plugins matching the text of the search box.
+	 */
+	private void applyFilter() {
+		final String query = searchField.getText();
+		if (query == null || query.trim().isEmpty()) {
+			filteredPlugins.setPredicate(null);
+			return;
+		}
+		final BitSet matches = model.search(query);
+		filteredPlugins.setPredicate(plugin -> matches.get(plugin.getIndex()));
+	}
+
+	/**
+	 * Open the drill-down window with the symbols of a plugin. The symbol
+	 * store is opened on first use, only the symbols of this plugin are read.
+	 *
+	 * @param plugin
+	 *            the plugin
+	 */
+	private void showSymbols(final PluginData plugin) {
+		final Object symbolData =
+				config.getConfig(ConfigurationData.SYMBOL_DATA);
+		if (symbolData == null) {
+			final Alert alert = new Alert(AlertType.INFORMATION,
+					"Set symbolData in the config file to the output of "
+							+ "\"nm -A -S -C\" for the object files.");
+			alert.setHeaderText("No symbol data configured");
+			alert.showAndWait();
+			return;
+		}
+		try {
+			if (symbolStore == null) {
+				symbolStore =
+						SymbolStore.open(Paths.get(symbolData.toString()));
+			}
+			SymbolWindow.show(stage, plugin,
+					symbolStore.getSymbols(plugin.getName()));
+		} catch (final IOException e) {
+			System.out.println("Couldn't read symbol data " + symbolData);
+			final Alert alert = new Alert(AlertType.ERROR,
+					"Couldn't read symbol data " + symbolData);
+			alert.showAndWait();
+		}
+	}
+
 	/**
 	 * This method is called when the Save Button is pressed.
 	 *
@@ -362,6 +1003,18 @@ public class App extends Application {
 	 *            The event
 	 */
 	private void saveButtonPressed(final Event e) {
+		final List<String> violations = model.getRuleViolations();
+		if (!violations.isEmpty()) {
+			final Alert alert = new Alert(AlertType.CONFIRMATION,
+					String.join(System.lineSeparator(), violations),
+					ButtonType.YES, ButtonType.NO);
+			alert.setHeaderText(
+					"The selection violates plugin rules. Save anyway?");
+			final Optional<ButtonType> answer = alert.showAndWait();
+			if (!answer.isPresent() || answer.get() != ButtonType.YES) {
+				return;
+			}
+		}
 
 		final FileChooser fc = new FileChooser();
 		fc.setTitle("Save Plugin Configuration");
@@ -371,19 +1024,31 @@ public class App extends Application {
 		final File saveFile = fc.showSaveDialog(stage);
 		// saveFile is null when Cancel is pressed
 		if (saveFile != null && !saveFile.getName().equals("")) {
-			model.setFileName(saveFile.getName());
-			final boolean success = model.save(saveFile);
-			if (success) {
-				modifiedCount = 0;
-				for (final PluginData pl : model.getPluginData()) {
-					pl.setModified(false);
-				}
-				stage.setTitle(generateTitle());
-				tv.refresh();
-			}
+			saveFile(saveFile);
 		}
 	}
 
+	/**
+	 * Save the current selection into a header file in the background.
+	 *
+	 * @param saveFile
+	 *            the header file
+	 * @return the task writing the file
+	 */
+	Task<File> saveFile(final File saveFile) {
+		final BitSet enabled = model.getSelection();
+		return runInBackground("Saving " + saveFile.getName(), progress -> {
+			model.writeHeader(saveFile, enabled, progress);
+			return saveFile;
+		}, file -> {
+			model.setFileName(file.getName());
+			// the controls were disabled, so the selection is unchanged
+			model.markSaved();
+			stage.setTitle(generateTitle());
+			tv.refresh();
+		});
+	}
+
 	/**
 	 * This method is called when the Load Button is pressed.
 	 *
@@ -400,15 +1065,109 @@ public class App extends Application {
 		final File loadFile = fc.showOpenDialog(stage);
 		// saveFile is null when Cancel is pressed
 		if (loadFile != null && !loadFile.getName().equals("")) {
-			model.setFileName(loadFile.getName());
-			final boolean success = model.load(loadFile,
-					config.getConfig(ConfigurationData.PLUGIN_PREFIX_PATTERN)
-							.toString());
-			if (success) {
-				modifiedCount = 0;
-				stage.setTitle(generateTitle());
-				tv.refresh();
-			}
+			loadFile(loadFile);
+		}
+	}
+
+	/**
+	 * Load a header file in the background and show its selection.
+	 *
+	 * @param loadFile
+	 *            the header file
+	 * @return the task reading the file
+	 */
+	Task<Model.Update> loadFile(final File loadFile) {
+		final PluginClassifier classifier = PluginClassifier.create(config);
+		final String description = "Loading " + loadFile.getName();
+		return runInBackground(description,
+				progress -> model.readHeader(loadFile, classifier, progress),
+				update -> {
+					if (applyUpdate(description, update)) {
+						model.setFileName(loadFile.getName());
+						applyFilter();
+						recalcValues(null);
+						tv.refresh();
+					}
+				});
+	}
+
+	/**
+	 * This method is called when the Undo Button is pressed.
+	 *
+	 * @param e
+	 *            The event
+	 */
+	private void undoButtonPressed(final Event e) {
+		// the accelerator also works while the controls are disabled
+		if (runningTask == null && model.canUndo()) {
+			model.undo();
+			recalcValues(null);
+			tv.refresh();
+		}
+	}
+
+	/**
+	 * This method is called when the Redo Button is pressed.
+	 *
+	 * @param e
+	 *            The event
+	 */
+	private void redoButtonPressed(final Event e) {
+		if (runningTask == null && model.canRedo()) {
+			model.redo();
+			recalcValues(null);
+			tv.refresh();
+		}
+	}
+
+	/**
+	 * This method is called when the Fit Button is pressed. The plugins to
+	 * disable for the board selected in the list of memory limits are shown
+	 * and disabled after confirmation.
+	 *
+	 * @param e
+	 *            The event
+	 */
+	private void fitButtonPressed(final Event e) {
+		final MemoryData board =
+				memLimitList.getSelectionModel().getSelectedItem();
+		if (board == null) {
+			new Alert(AlertType.INFORMATION,
+					"Select the board to fit in the list of memory limits.")
+							.showAndWait();
+			return;
+		}
+		if (!targetBoards.get(memLimitList.getSelectionModel()
+				.getSelectedIndex())) {
+			new Alert(AlertType.INFORMATION, board.getName()
+					+ " is measured with another size table, select it first.")
+							.showAndWait();
+			return;
+		}
+		final SelectionRepair.Result result =
+				repair.repair(model.getSelection(), board);
+		if (!result.isFeasible()) {
+			new Alert(AlertType.WARNING, "The selection does not fit "
+					+ board.getName() + " even without all optional plugins.")
+							.showAndWait();
+			return;
+		}
+		if (result.getRemoved().isEmpty()) {
+			new Alert(AlertType.INFORMATION,
+					"The selection already fits " + board.getName() + ".")
+							.showAndWait();
+			return;
+		}
+		final Alert alert = new Alert(AlertType.CONFIRMATION,
+				String.join(System.lineSeparator(), repair.describe(result)),
+				ButtonType.YES, ButtonType.NO);
+		alert.setHeaderText("Disable " + result.getRemoved().cardinality()
+				+ " plugins to fit " + board.getName() + "?");
+		final Optional<ButtonType> answer = alert.showAndWait();
+		if (answer.isPresent() && answer.get() == ButtonType.YES) {
+			model.setSelection(result.getSelection());
+			recalcValues(null);
+			tv.refresh();
 		}
 	}
 
@@ -420,19 +1179,23 @@ public class App extends Application {
 	 */
 	private void recalcValues(final CheckBox source) {
 		stage.setTitle(generateTitle());
+		undoButton.setDisable(!model.canUndo());
+		redoButton.setDisable(!model.canRedo());
 
-		// Memory Limit Labels
-		final MemoryData currentMem = getCurrentMemData();
+		// Memory Limits
+		final MemoryData currentMem = model.getCurrentMemData();
 		currentMemLabel.setText(currentMem.formatContents());
-		for (int i = 0; i < model.getMemLimits().size(); i++) {
-			if (model.exceedsMemReference(currentMem,
-					model.getMemLimits().get(i))) {
-				memLabels.get(i).setTextFill(MODIFIED_TEXT_COLOR);
-			} else {
-				memLabels.get(i).setTextFill(UNMODIFIED_TEXT_COLOR);
-			}
-
+		fittingBoards = model.getFittingBoards();
+		targetBoards = model.getTargetBoards();
+		// the hints are calculated again for the visible boards only
+		if (repairCounts.length != model.getMemLimits().size()) {
+			repairCounts = new int[model.getMemLimits().size()];
 		}
+		Arrays.fill(repairCounts, REPAIR_UNKNOWN);
+		fitLabel.setText("fits " + fittingBoards.cardinality() + " of "
+				+ targetBoards.cardinality());
+		memLimitList.refresh();
+		memoryMap.invalidate();
 	}
 
 }
@@ -0,0 +1,87 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Replaces files in one step. The new content is written to a temporary
+ * file with a unique name in the directory of the target and then moved
+ * over the target, so readers and concurrent writers never see a partly
+ * written file, and a write that fails or is cancelled leaves the old
+ * content in place.
+ */
+final class AtomicFile {
+
+	/**
+	 * Utility class, no instances.
+	 */
+	private AtomicFile() {
+	}
+
+	/**
+	 * Create an empty temporary file next to the given file.
+	 *
+	 * @param file
+	 *            the file to be replaced
+	 * @return the temporary file
+	 * @throws IOException
+	 *             if the file cannot be created
+	 */
+	static Path createTemp(final Path file) throws IOException {
+		final Path dir = file.toAbsolutePath().getParent();
+		Files.createDirectories(dir);
+		return Files.createTempFile(dir, "." + file.getFileName() + ".",
+				".tmp");
+	}
+
+	/**
+	 * Move a temporary file over the given file. If the file system cannot
+	 * move atomically, the file is replaced as far as it can.
+	 *
+	 * @param temp
+	 *            the temporary file created by createTemp
+	 * @param file
+	 *            the file to be replaced
+	 * @throws IOException
+	 *             if the file cannot be moved, the temporary file is
+	 *             deleted then
+	 */
+	static void replace(final Path temp, final Path file) throws IOException {
+		try {
+			try {
+				Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (final AtomicMoveNotSupportedException e) {
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (final IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+	}
+
+	/**
+	 * Write the given content into the file in one step.
+	 *
+	 * @param file
+	 *            the file
+	 * @param content
+	 *            the new content
+	 * @throws IOException
+	 *             if the file cannot be written, it is unchanged then
+	 */
+	static void write(final Path file, final byte[] content)
+			throws IOException {
+		final Path temp = createTemp(file);
+		try {
+			Files.write(temp, content);
+		} catch (final IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		replace(temp, file);
+	}
+}
@@ -0,0 +1,447 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Runs the commands of the wizard that need no user interface. The command is
+ * the first command line argument that is not an option.
+ */
+public final class Batch {
+
+	/**
+	 * Utility class, no instances.
+	 */
+	private Batch() {
+	}
+
+	/**
+	 * Run the command given in the arguments.
+	 *
+	 * @param config
+	 *            the configuration data
+	 * @param model
+	 *            the model initialized from the configuration
+	 * @param args
+	 *            the command and its arguments
+	 * @return the exit code, 0 if the command was successful
+	 */
+	public static int run(final ConfigurationData config, final Model model,
+			final List<String> args) {
+		final String command = args.get(0);
+		switch (command) {
+		case "plan":
+			if (args.size() != 3) {
+				break;
+			}
+			return plan(model, args.get(1), args.get(2));
+		case "analyze":
+			if (args.size() != 3) {
+				break;
+			}
+			return analyze(model, args.get(1), args.get(2));
+		case "export":
+			if (args.size() != 4) {
+				break;
+			}
+			return export(model, args.get(1), args.get(2), args.get(3));
+		case "fit":
+			if (args.size() != 4) {
+				break;
+			}
+			return fit(config, model, args.get(1), args.get(2), args.get(3));
+		case "watch":
+			if (args.size() != 3) {
+				break;
+			}
+			return watch(config, model, args.get(1), args.get(2));
+		case "devices":
+			if (args.size() < 4) {
+				break;
+			}
+			return devices(model, args.subList(1, args.size()));
+		default:
+			System.out.println("Unknown command: " + command);
+		}
+		printUsage();
+		return 1;
+	}
+
+	/**
+	 * Print the possible commands.
+	 */
+	private static void printUsage() {
+		System.out.println("Usage: [--option=value ...] [command]");
+		System.out.println("Without a command the user interface is started.");
+		System.out.println("Commands:");
+		System.out.println("  plan <inventory.csv> <outputDir>");
+		System.out.println("      plan the firmware builds for a fleet");
+		System.out.println("  analyze <headerDir> <report>");
+		System.out.println("      analyze a directory of saved header files");
+		System.out.println("  export <format> <headerDir|header.h> <output|->");
+		System.out.println("      export header files as "
+				+ String.join(", ", SelectionExporter.FORMATS));
+		System.out.println("  fit <board> <header.h> <output|->");
+		System.out.println("      disable the fewest plugins to fit a board");
+		System.out.println("  watch <profileDir> <outputDir>");
+		System.out.println("      regenerate headers when profiles change");
+		System.out.println("  devices import <inventory.csv> <registry>");
+		System.out.println("  devices users <registry> <plugin>");
+		System.out.println("  devices same <registry> <deviceId>");
+		System.out.println(
+				"  devices grow <registry> <plugin> <memoryType> <bytes>");
+		System.out.println("      import and query the devices of a fleet");
+	}
+
+	/**
+	 * Plan the firmware builds for the devices in the inventory and write one
+	 * header file per build.
+	 *
+	 * @param model
+	 *            the model
+	 * @param inventory
+	 *            the name of the inventory file
+	 * @param outputDir
+	 *            the name of the output directory
+	 * @return the exit code
+	 */
+	private static int plan(final Model model, final String inventory,
+			final String outputDir) {
+		final BuildPlanner planner = new BuildPlanner(model);
+		final List<BuildPlanner.Device> devices;
+		try {
+			devices = planner.readInventory(Paths.get(inventory));
+		} catch (final IOException e) {
+			System.out.println("Couldn't read inventory: " + inventory);
+			return 1;
+		}
+		final List<BuildPlanner.Build> builds = planner.plan(devices);
+		final boolean written =
+				planner.writeBuilds(builds, new File(outputDir));
+		for (final String problem : planner.getProblems()) {
+			System.out.println(problem);
+		}
+		if (!written) {
+			return 1;
+		}
+		System.out.println(devices.size() + " devices, " + builds.size()
+				+ " builds");
+		if (planner.getProblems().isEmpty()) {
+			return 0;
+		}
+		return 2;
+	}
+
+	/**
+	 * Analyze all header files in a directory and write the report.
+	 *
+	 * @param model
+	 *            the model
+	 * @param headerDir
+	 *            the name of the directory containing the header files
+	 * @param report
+	 *            the name of the report file
+	 * @return the exit code
+	 */
+	private static int analyze(final Model model, final String headerDir,
+			final String report) {
+		final ProfileAnalyzer analyzer = new ProfileAnalyzer(model);
+		try {
+			analyzer.analyze(Paths.get(headerDir), ".h");
+		} catch (final IOException e) {
+			System.out.println("Couldn't read directory: " + headerDir);
+			return 1;
+		}
+		if (!analyzer.writeReport(new File(report))) {
+			return 1;
+		}
+		for (final String problem : analyzer.getProblems()) {
+			System.out.println(problem);
+		}
+		System.out.println(analyzer.getProfiles().size() + " profiles, "
+				+ analyzer.getDuplicates().size()
+				+ " groups of identical profiles");
+		if (analyzer.getProblems().isEmpty()) {
+			return 0;
+		}
+		return 2;
+	}
+
+	/**
+	 * Export one or more header files in another format.
+	 *
+	 * @param model
+	 *            the model
+	 * @param format
+	 *            the name of the format
+	 * @param headers
+	 *            a header file or a directory containing header files
+	 * @param output
+	 *            the name of the output file, "-" for standard output
+	 * @return the exit code
+	 */
+	private static int export(final Model model, final String format,
+			final String headers, final String output) {
+		final SelectionExporter exporter =
+				SelectionExporter.forFormat(format, model);
+		if (exporter == null) {
+			System.out.println("Unknown format: " + format);
+			return 1;
+		}
+		final ProfileAnalyzer analyzer = new ProfileAnalyzer(model);
+		try {
+			analyzer.analyze(Paths.get(headers), ".h");
+		} catch (final IOException e) {
+			System.out.println("Couldn't read directory: " + headers);
+			return 1;
+		}
+		for (final String problem : analyzer.getProblems()) {
+			System.out.println(problem);
+		}
+		try (WritableByteChannel channel = openOutput(output);
+				ChannelWriter writer = new ChannelWriter(channel)) {
+			exporter.begin(writer);
+			for (final ProfileAnalyzer.Profile profile : analyzer
+					.getProfiles()) {
+				exporter.export(writer, profile.getName(),
+						profile.getEnabled());
+			}
+			exporter.end(writer);
+		} catch (final IOException e) {
+			System.out.println("Something went wrong writing " + output);
+			return 1;
+		}
+		if (analyzer.getProblems().isEmpty()) {
+			return 0;
+		}
+		return 2;
+	}
+
+	/**
+	 * Disable the plugins of a header file needed to fit a board and write
+	 * the repaired header file.
+	 *
+	 * @param config
+	 *            the configuration data containing the plugin priorities
+	 * @param model
+	 *            the model
+	 * @param boardName
+	 *            the name of the memory limit
+	 * @param header
+	 *            the name of the header file
+	 * @param output
+	 *            the name of the output file, "-" for standard output
+	 * @return the exit code, 2 if the board cannot be fitted
+	 */
+	private static int fit(final ConfigurationData config, final Model model,
+			final String boardName, final String header, final String output) {
+		final MemoryData board = model.findMemLimit(boardName);
+		if (board == null) {
+			System.out.println("Unknown board: " + boardName);
+			return 1;
+		}
+		// the board is measured with its own size table
+		model.setActiveTarget(
+				model.getBoardTarget(model.getMemLimits().indexOf(board)));
+		final List<String> unknownMacros = new ArrayList<>();
+		final BitSet enabled;
+		try {
+			enabled = model.parseHeader(Paths.get(header), unknownMacros);
+		} catch (final IOException e) {
+			System.out.println("Couldn't read header file: " + header);
+			return 1;
+		}
+		for (final String macro : unknownMacros) {
+			System.out.println("Unknown plugin: " + macro);
+		}
+		final SelectionRepair repair = App.createRepair(config, model);
+		final SelectionRepair.Result result = repair.repair(enabled, board);
+		for (final String macro : repair.describe(result)) {
+			System.out.println("Disabled: " + macro);
+		}
+		if (output.equals("-")) {
+			final SelectionExporter exporter = new HeaderExporter(model);
+			try (WritableByteChannel channel = openOutput(output);
+					ChannelWriter writer = new ChannelWriter(channel)) {
+				exporter.begin(writer);
+				exporter.export(writer, board.getName(), result.getSelection());
+				exporter.end(writer);
+			} catch (final IOException e) {
+				System.out.println("Something went wrong writing " + output);
+				return 1;
+			}
+		} else if (!model.save(new File(output), result.getSelection())) {
+			// the header file and its manifest
+			return 1;
+		}
+		if (!result.isFeasible()) {
+			System.out.println("The selection does not fit " + boardName
+					+ " even without all optional plugins");
+			return 2;
+		}
+		return 0;
+	}
+
+	/**
+	 * Watch a directory of profile definitions and regenerate their header
+	 * files until the process is stopped.
+	 *
+	 * @param config
+	 *            the configuration data
+	 * @param model
+	 *            the model
+	 * @param profileDir
+	 *            the name of the directory containing the profiles
+	 * @param outputDir
+	 *            the name of the output directory
+	 * @return the exit code
+	 */
+	private static int watch(final ConfigurationData config, final Model model,
+			final String profileDir, final String outputDir) {
+		final ProfileWatcher watcher = new ProfileWatcher(config, model,
+				Paths.get(profileDir), Paths.get(outputDir));
+		try {
+			watcher.run();
+		} catch (final IOException e) {
+			System.out.println("Couldn't watch directory: " + profileDir);
+			return 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Import the device registry from an inventory or query it and list the
+	 * matching devices.
+	 *
+	 * @param model
+	 *            the model
+	 * @param args
+	 *            the subcommand, the registry file and its arguments
+	 * @return the exit code
+	 */
+	private static int devices(final Model model, final List<String> args) {
+		final String command = args.get(0);
+		if (command.equals("import") && args.size() == 3) {
+			final DeviceRegistry registry = new DeviceRegistry(model);
+			try {
+				registry.importInventory(Paths.get(args.get(1)));
+			} catch (final IOException e) {
+				System.out.println("Couldn't read inventory: " + args.get(1));
+				return 1;
+			}
+			try {
+				registry.save(Paths.get(args.get(2)));
+			} catch (final IOException e) {
+				System.out.println("Couldn't write registry: " + args.get(2));
+				return 1;
+			}
+			for (final String problem : registry.getProblems()) {
+				System.out.println(problem);
+			}
+			System.out.println(registry.size() + " devices, "
+					+ registry.getConfigurationCount() + " configurations");
+			if (registry.getProblems().isEmpty()) {
+				return 0;
+			}
+			return 2;
+		}
+
+		final DeviceRegistry registry;
+		try {
+			registry = DeviceRegistry.load(model, Paths.get(args.get(1)));
+		} catch (final IOException e) {
+			System.out.println("Couldn't read registry: " + args.get(1));
+			return 1;
+		}
+		for (final String problem : registry.getProblems()) {
+			System.out.println(problem);
+		}
+		final DeviceBitmap devices;
+		if (command.equals("same") && args.size() == 3) {
+			final int device = registry.findDevice(args.get(2));
+			if (device < 0) {
+				System.out.println("Unknown device: " + args.get(2));
+				return 1;
+			}
+			devices = registry.getSameConfiguration(device);
+		} else if ((command.equals("users") && args.size() == 3)
+				|| (command.equals("grow") && args.size() == 5)) {
+			final int plugin = model.getCatalog().findPlugin(args.get(2));
+			if (plugin < 0) {
+				System.out.println("Unknown plugin: " + args.get(2));
+				return 1;
+			}
+			if (command.equals("users")) {
+				devices = registry.getUsers(plugin);
+			} else {
+				final int type = MemoryValues.TYPE_NAMES.indexOf(args.get(3));
+				if (type < 0) {
+					System.out.println("Unknown memory type: " + args.get(3)
+							+ ", use one of " + MemoryValues.TYPE_NAMES);
+					return 1;
+				}
+				try {
+					devices = registry.getOverflowing(plugin, type,
+							Integer.parseInt(args.get(4)));
+				} catch (final NumberFormatException e) {
+					System.out.println("Invalid number of bytes: "
+							+ args.get(4));
+					return 1;
+				}
+			}
+		} else {
+			printUsage();
+			return 1;
+		}
+		final StringBuilder output = new StringBuilder();
+		devices.forEach(device -> output.append(registry.getDeviceId(device))
+				.append(',').append(registry.getBoard(device)).append('\n'));
+		System.out.print(output);
+		System.out.println(devices.cardinality() + " of " + registry.size()
+				+ " devices");
+		return 0;
+	}
+
+	/**
+	 * @param output
+	 *            the name of the output file, "-" for standard output
+	 * @return the channel for the output
+	 * @throws IOException
+	 *             if the file cannot be created
+	 */
+	private static WritableByteChannel openOutput(final String output)
+			throws IOException {
+		if (output.equals("-")) {
+			// the standard output must stay open
+			final WritableByteChannel stdout = Channels.newChannel(System.out);
+			return new WritableByteChannel() {
+				@Override
+				public int write(final ByteBuffer src) throws IOException {
+					return stdout.write(src);
+				}
+
+				@Override
+				public boolean isOpen() {
+					return true;
+				}
+
+				@Override
+				public void close() {
+					System.out.flush();
+				}
+			};
+		}
+		return FileChannel.open(Paths.get(output), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+}
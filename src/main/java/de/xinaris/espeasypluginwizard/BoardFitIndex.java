@@ -0,0 +1,156 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * An index over the memory limits answering which boards a given memory
+ * usage still fits. For each of the five memory types the boards are sorted
+ * by their limit. A binary search per memory type gives the range of boards
+ * whose limit is large enough for this type, and only the boards in the
+ * smallest of these ranges have to be checked against the other types.
+ */
+public class BoardFitIndex {
+
+	private static final int MEM_TYPES = SizeTableParser.VALUES;
+
+	private final int numBoards;
+
+	/**
+	 * The limits for each memory type in ascending order.
+	 */
+	private final int[][] sortedLimits = new int[MEM_TYPES][];
+
+	/**
+	 * The boards for each memory type in the order of their limits.
+	 */
+	private final int[][] boardsByRank = new int[MEM_TYPES][];
+
+	/**
+	 * The rank of each board for each memory type.
+	 */
+	private final int[][] rankOfBoard = new int[MEM_TYPES][];
+
+	/**
+	 * Build the index for the given memory limits.
+	 *
+	 * @param limits
+	 *            the memory limits, their position is used as board number
+	 */
+	public BoardFitIndex(final List<MemoryData> limits) {
+		numBoards = limits.size();
+		for (int m = 0; m < MEM_TYPES; m++) {
+			final int type = m;
+			final Integer[] order = new Integer[numBoards];
+			for (int b = 0; b < numBoards; b++) {
+				order[b] = b;
+			}
+			Arrays.sort(order, (b1, b2) -> Integer.compare(
+					value(limits.get(b1), type), value(limits.get(b2), type)));
+			sortedLimits[m] = new int[numBoards];
+			boardsByRank[m] = new int[numBoards];
+			rankOfBoard[m] = new int[numBoards];
+			for (int r = 0; r < numBoards; r++) {
+				sortedLimits[m][r] = value(limits.get(order[r]), m);
+				boardsByRank[m][r] = order[r];
+				rankOfBoard[m][order[r]] = r;
+			}
+		}
+	}
+
+	/**
+	 * @param md
+	 *            the memory data
+	 * @param type
+	 *            the memory type, 0 to 4
+	 * @return the value of the given memory type
+	 */
+	static int value(final MemoryData md, final int type) {
+		switch (type) {
+		case 0:
+			return md.getCacheIRam();
+		case 1:
+			return md.getInitRam();
+		case 2:
+			return md.getRoRam();
+		case 3:
+			return md.getUninitRam();
+		default:
+			return md.getFlashRom();
+		}
+	}
+
+	/**
+	 * @param m
+	 *            the memory type
+	 * @param usage
+	 *            the memory usage
+	 * @return the first rank whose limit is at least the usage
+	 */
+	private int firstFittingRank(final int m, final int usage) {
+		int low = 0;
+		int high = numBoards;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (sortedLimits[m][mid] < usage) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Determine all boards the memory usage fits.
+	 *
+	 * @param usage
+	 *            the memory usage
+	 * @return the numbers of the boards that are not exceeded
+	 */
+	public BitSet fittingBoards(final MemoryData usage) {
+		final BitSet result = new BitSet(numBoards);
+		fittingBoards(usage, result);
+		return result;
+	}
+
+	/**
+	 * Determine all boards the memory usage fits, reusing a set.
+	 *
+	 * @param usage
+	 *            the memory usage
+	 * @param result
+	 *            the set receiving the numbers of the boards that are not
+	 *            exceeded, cleared first
+	 */
+	public void fittingBoards(final MemoryData usage, final BitSet result) {
+		result.clear();
+		final int[] first = new int[MEM_TYPES];
+		int smallest = 0;
+		for (int m = 0; m < MEM_TYPES; m++) {
+			first[m] = firstFittingRank(m, value(usage, m));
+			if (first[m] > first[smallest]) {
+				smallest = m;
+			}
+		}
+		for (int r = first[smallest]; r < numBoards; r++) {
+			final int board = boardsByRank[smallest][r];
+			boolean fits = true;
+			for (int m = 0; m < MEM_TYPES && fits; m++) {
+				fits = rankOfBoard[m][board] >= first[m];
+			}
+			if (fits) {
+				result.set(board);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of boards in the index
+	 */
+	public int size() {
+		return numBoards;
+	}
+
+}
@@ -0,0 +1,37 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * Writes a profile as PlatformIO environment: a build_flags entry with a -D
+ * flag for every enabled plugin.
+ */
+public class BuildFlagsExporter implements SelectionExporter {
+
+	private final PluginCatalog catalog;
+	private final int[] sorted;
+
+	/**
+	 * @param model
+	 *            the model containing the plugins
+	 */
+	public BuildFlagsExporter(final Model model) {
+		catalog = model.getCatalog();
+		sorted = catalog.getIndexesByName();
+	}
+
+	@Override
+	public void export(final ChannelWriter out, final String profile,
+			final BitSet enabled) throws IOException {
+		out.write("[env:").write(profile).write(']').newLine();
+		out.write("build_flags =").newLine();
+		for (final int p : sorted) {
+			if (enabled.get(p)) {
+				out.write("    -D").write(catalog.getMacroName(p)).newLine();
+			}
+		}
+		out.newLine();
+	}
+
+}
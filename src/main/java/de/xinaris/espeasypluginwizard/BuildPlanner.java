@@ -0,0 +1,632 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Plans a small set of firmware builds for a fleet of devices. Each device
+ * needs a board and a set of plugins. Every device is assigned to a build for
+ * its board that contains all its plugins and still fits the memory limits of
+ * the board.
+ *
+ * <p>
+ * Devices with identical requirements are grouped first. The groups are then
+ * placed greedily, largest first, into the build that grows least by taking
+ * them. A new build is only started if no existing build can take the group
+ * without exceeding the board limits or violating a plugin rule. Every
+ * board is measured with the size table of its own target. The boards are
+ * planned in parallel.
+ */
+public class BuildPlanner {
+
+	private static final int MEM_TYPES = SizeTableParser.VALUES;
+	private static final int PARALLEL_THRESHOLD = 64;
+
+	/**
+	 * A device of the inventory.
+	 */
+	public static final class Device {
+		private final String id;
+		private final String board;
+		private final BitSet required;
+
+		/**
+		 * @param id
+		 *            the device id
+		 * @param board
+		 *            the name of the memory limit of the device
+		 * @param required
+		 *            the plugins the device needs
+		 */
+		public Device(final String id, final String board,
+				final BitSet required) {
+			this.id = id;
+			this.board = board;
+			this.required = required;
+		}
+
+		/**
+		 * @return the device id
+		 */
+		public String getId() {
+			return id;
+		}
+
+		/**
+		 * @return the name of the memory limit of the device
+		 */
+		public String getBoard() {
+			return board;
+		}
+
+		/**
+		 * @return the plugins the device needs
+		 */
+		public BitSet getRequired() {
+			return required;
+		}
+	}
+
+	/**
+	 * A planned firmware build.
+	 */
+	public static final class Build {
+		private final String board;
+		private final BitSet enabled;
+		private final int[] totals;
+		private final List<String> devices = new ArrayList<>();
+		private String fileName;
+
+		/**
+		 * @param board
+		 *            the name of the memory limit
+		 * @param enabled
+		 *            the enabled plugins
+		 * @param totals
+		 *            the memory requirements of the enabled plugins
+		 */
+		Build(final String board, final BitSet enabled, final int[] totals) {
+			this.board = board;
+			this.enabled = enabled;
+			this.totals = totals;
+		}
+
+		/**
+		 * @return the name of the memory limit
+		 */
+		public String getBoard() {
+			return board;
+		}
+
+		/**
+		 * @return the enabled plugins
+		 */
+		public BitSet getEnabled() {
+			return enabled;
+		}
+
+		/**
+		 * @return the ids of the devices using this build
+		 */
+		public List<String> getDevices() {
+			return devices;
+		}
+
+		/**
+		 * @return the file name of the header, null before it is written
+		 */
+		public String getFileName() {
+			return fileName;
+		}
+	}
+
+	private final Model model;
+	private final BitSet base;
+	/**
+	 * The memory requirements of the plugins for every target, indexed by
+	 * the target, the memory type and the plugin.
+	 */
+	private final int[][][] sizes;
+	private final List<String> problems =
+			Collections.synchronizedList(new ArrayList<>());
+
+	/**
+	 * Create a planner for the plugins and memory limits of the model.
+	 *
+	 * @param model
+	 *            the model containing the plugins and memory limits
+	 */
+	public BuildPlanner(final Model model) {
+		this.model = model;
+		this.base = model.getReadOnlyPlugins();
+		final PluginCatalog catalog = model.getCatalog();
+		final int count = catalog.size();
+		sizes = new int[catalog.getTargets().size()][MEM_TYPES][count];
+		for (int t = 0; t < sizes.length; t++) {
+			final PluginCatalog target = catalog.forTarget(t);
+			for (int i = 0; i < count; i++) {
+				for (int m = 0; m < MEM_TYPES; m++) {
+					sizes[t][m][i] = target.getValue(i, m);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param md
+	 *            the memory data
+	 * @return the five memory values as an array
+	 */
+	private static int[] toArray(final MemoryData md) {
+		return new int[] { md.getCacheIRam(), md.getInitRam(), md.getRoRam(),
+				md.getUninitRam(), md.getFlashRom() };
+	}
+
+	/**
+	 * @return the problems found while reading the inventory and planning
+	 */
+	public List<String> getProblems() {
+		return problems;
+	}
+
+	/**
+	 * Read the device inventory. Each line contains the device id, the name
+	 * of the memory limit and the plugins needed, separated by commas. A
+	 * field containing commas or quotes is enclosed in double quotes, a quote
+	 * inside is doubled. The plugins can also be separated by blanks or
+	 * semicolons and are given by their macro name or its unique prefix, e.g.
+	 * P036. Empty lines, comments starting with # and a header line starting
+	 * with "device" are ignored. Devices needing an unknown plugin are
+	 * reported and left out, their firmware could not be planned.
+	 *
+	 * @param inventory
+	 *            the inventory file
+	 * @return the devices found in the inventory
+	 * @throws IOException
+	 *             if the inventory cannot be read
+	 */
+	public List<Device> readInventory(final Path inventory)
+			throws IOException {
+		final List<String> lines = Files.readAllLines(inventory);
+		return lines.parallelStream().map(this::parseDevice)
+				.filter(Objects::nonNull).collect(Collectors.toList());
+	}
+
+	/**
+	 * @param line
+	 *            a line of the inventory
+	 * @return the device or null if the line does not describe a device
+	 */
+	private Device parseDevice(final String line) {
+		final String trimmed = line.trim();
+		if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+			return null;
+		}
+		final List<String> fields = splitFields(trimmed);
+		if (fields == null) {
+			problems.add("Line with unterminated quote: " + line);
+			return null;
+		}
+		if (fields.get(0).equalsIgnoreCase("device")) {
+			return null;
+		}
+		if (fields.size() < 2) {
+			problems.add("Line without board: " + line);
+			return null;
+		}
+		final String id = fields.get(0);
+		final BitSet required = new BitSet();
+		final List<String> unknown = new ArrayList<>();
+		for (int f = 2; f < fields.size(); f++) {
+			for (final String name : fields.get(f).split("[,;\\s]+")) {
+				if (name.isEmpty()) {
+					continue;
+				}
+				final int index = model.getCatalog().findPlugin(name);
+				if (index < 0) {
+					unknown.add(name);
+				} else {
+					required.set(index);
+				}
+			}
+		}
+		if (!unknown.isEmpty()) {
+			problems.add("Device " + id + " skipped, unknown plugin(s) "
+					+ String.join(" ", unknown));
+			return null;
+		}
+		return new Device(id, fields.get(1), required);
+	}
+
+	/**
+	 * Split a line into its comma separated fields. A field can be enclosed
+	 * in double quotes to contain commas, two quotes inside stand for one.
+	 * Blanks around the fields are removed.
+	 *
+	 * @param line
+	 *            the line
+	 * @return the fields or null if a quote is not closed
+	 */
+	static List<String> splitFields(final String line) {
+		final List<String> fields = new ArrayList<>();
+		final StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		boolean wasQuoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			final char c = line.charAt(i);
+			if (quoted) {
+				if (c != '"') {
+					field.append(c);
+				} else if (i + 1 < line.length()
+						&& line.charAt(i + 1) == '"') {
+					field.append(c);
+					i++;
+				} else {
+					quoted = false;
+				}
+			} else if (c == '"' && field.toString().trim().isEmpty()) {
+				field.setLength(0);
+				quoted = true;
+				wasQuoted = true;
+			} else if (c == ',') {
+				fields.add(fieldValue(field, wasQuoted));
+				field.setLength(0);
+				wasQuoted = false;
+			} else {
+				field.append(c);
+			}
+		}
+		if (quoted) {
+			return null;
+		}
+		fields.add(fieldValue(field, wasQuoted));
+		return fields;
+	}
+
+	/**
+	 * @param field
+	 *            the characters of a field
+	 * @param wasQuoted
+	 *            true if the field was enclosed in quotes, its blanks are
+	 *            kept then
+	 * @return the value of the field
+	 */
+	private static String fieldValue(final StringBuilder field,
+			final boolean wasQuoted) {
+		if (wasQuoted) {
+			return field.toString();
+		}
+		return field.toString().trim();
+	}
+
+	/**
+	 * @param field
+	 *            a text
+	 * @return the text as a field of plan.csv, quoted if it contains a
+	 *         comma, a quote or a line break
+	 */
+	static String quoteField(final String field) {
+		boolean quote = false;
+		for (int i = 0; i < field.length() && !quote; i++) {
+			final char c = field.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if (!quote) {
+			return field;
+		}
+		return '"' + field.replace("\"", "\"\"") + '"';
+	}
+
+	/**
+	 * Plan the builds for all devices.
+	 *
+	 * @param devices
+	 *            the devices of the fleet
+	 * @return the builds, grouped by board in the order of the inventory
+	 */
+	public List<Build> plan(final List<Device> devices) {
+		final Map<String, List<Device>> byBoard = devices.stream()
+				.collect(Collectors.groupingBy(Device::getBoard,
+						LinkedHashMap::new, Collectors.toList()));
+		final List<String> boards = new ArrayList<>(byBoard.keySet());
+		final List<List<Build>> perBoard = boards.parallelStream()
+				.map(board -> planBoard(board, byBoard.get(board)))
+				.collect(Collectors.toList());
+		final List<Build> result = new ArrayList<>();
+		for (final List<Build> builds : perBoard) {
+			result.addAll(builds);
+		}
+		return result;
+	}
+
+	/**
+	 * Plan the builds for the devices of a single board.
+	 *
+	 * @param board
+	 *            the name of the memory limit
+	 * @param devices
+	 *            the devices using this board
+	 * @return the builds for this board
+	 */
+	private List<Build> planBoard(final String board,
+			final List<Device> devices) {
+		final List<Build> builds = new ArrayList<>();
+		final MemoryData limitData = model.findMemLimit(board);
+		if (limitData == null) {
+			problems.add("Unknown board '" + board + "' used by "
+					+ devices.size() + " device(s)");
+			return builds;
+		}
+		final int[] limit = toArray(limitData);
+		final int[][] boardSizes = sizes[model
+				.getBoardTarget(model.getMemLimits().indexOf(limitData))];
+
+		// group the devices with identical requirements
+		final Map<BitSet, List<String>> groups = new LinkedHashMap<>();
+		for (final Device device : devices) {
+			final BitSet enabled = (BitSet) device.getRequired().clone();
+			enabled.or(base);
+			groups.computeIfAbsent(enabled, k -> new ArrayList<>())
+					.add(device.getId());
+		}
+		final List<BitSet> order = new ArrayList<>(groups.keySet());
+		order.sort(Comparator.comparingInt(BitSet::cardinality).reversed()
+				.thenComparing(Comparator
+						.comparingLong((BitSet bs) -> total(boardSizes, bs))
+						.reversed()));
+
+		for (final BitSet required : order) {
+			final List<String> ids = groups.get(required);
+			final int[] totals =
+					add(boardSizes, new int[MEM_TYPES], required);
+			if (!fits(totals, limit)) {
+				problems.add("Device(s) " + ids + " do not fit " + board);
+				continue;
+			}
+			final List<String> violations = model.checkRules(required);
+			if (!violations.isEmpty()) {
+				problems.add("Device(s) " + ids + " violate rules: "
+						+ violations);
+				continue;
+			}
+			final Build build =
+					findBestBuild(builds, required, boardSizes, limit);
+			if (build == null) {
+				final Build newBuild =
+						new Build(board, (BitSet) required.clone(), totals);
+				newBuild.devices.addAll(ids);
+				builds.add(newBuild);
+			} else {
+				final BitSet extra = (BitSet) required.clone();
+				extra.andNot(build.enabled);
+				add(boardSizes, build.totals, extra);
+				build.enabled.or(extra);
+				build.devices.addAll(ids);
+			}
+		}
+		return builds;
+	}
+
+	/**
+	 * Find the build that grows least when the required plugins are added.
+	 *
+	 * @param builds
+	 *            the existing builds of the board
+	 * @param required
+	 *            the plugins needed
+	 * @param boardSizes
+	 *            the memory requirements of the plugins for the board
+	 * @param limit
+	 *            the memory limit of the board
+	 * @return the best build or null if no build can take the plugins
+	 */
+	private Build findBestBuild(final List<Build> builds,
+			final BitSet required, final int[][] boardSizes,
+			final int[] limit) {
+		IntStream candidates = IntStream.range(0, builds.size());
+		if (builds.size() > PARALLEL_THRESHOLD) {
+			candidates = candidates.parallel();
+		}
+		final long[] costs = candidates.mapToLong(b -> {
+			final Build build = builds.get(b);
+			final BitSet extra = (BitSet) required.clone();
+			extra.andNot(build.enabled);
+			if (extra.isEmpty()) {
+				return 0;
+			}
+			final int[] totals =
+					add(boardSizes, build.totals.clone(), extra);
+			if (!fits(totals, limit)) {
+				return Long.MAX_VALUE;
+			}
+			return total(boardSizes, extra);
+		}).toArray();
+
+		// take the cheapest candidate, the rules are only checked for the
+		// candidate that would be taken
+		while (true) {
+			int best = -1;
+			for (int b = 0; b < costs.length; b++) {
+				if (costs[b] != Long.MAX_VALUE
+						&& (best < 0 || costs[b] < costs[best])) {
+					best = b;
+				}
+			}
+			if (best < 0) {
+				break;
+			}
+			final Build build = builds.get(best);
+			if (costs[best] == 0) {
+				return build;
+			}
+			final BitSet union = (BitSet) build.enabled.clone();
+			union.or(required);
+			if (model.checkRules(union).isEmpty()) {
+				return build;
+			}
+			costs[best] = Long.MAX_VALUE;
+		}
+		return null;
+	}
+
+	/**
+	 * Add the memory requirements of the given plugins to the totals.
+	 *
+	 * @param boardSizes
+	 *            the memory requirements of the plugins for the board
+	 * @param totals
+	 *            the totals to add to
+	 * @param plugins
+	 *            the plugins to add
+	 * @return the totals
+	 */
+	private static int[] add(final int[][] boardSizes, final int[] totals,
+			final BitSet plugins) {
+		for (int i = plugins.nextSetBit(0); i >= 0; i =
+				plugins.nextSetBit(i + 1)) {
+			for (int m = 0; m < MEM_TYPES; m++) {
+				totals[m] += boardSizes[m][i];
+			}
+		}
+		return totals;
+	}
+
+	/**
+	 * @param boardSizes
+	 *            the memory requirements of the plugins for the board
+	 * @param plugins
+	 *            the plugins
+	 * @return the sum of all memory requirements of the plugins
+	 */
+	private static long total(final int[][] boardSizes,
+			final BitSet plugins) {
+		long sum = 0;
+		for (final int value : add(boardSizes, new int[MEM_TYPES], plugins)) {
+			sum += value;
+		}
+		return sum;
+	}
+
+	/**
+	 * @param totals
+	 *            the memory requirements
+	 * @param limit
+	 *            the memory limit
+	 * @return true if no memory type exceeds the limit
+	 */
+	private static boolean fits(final int[] totals, final int[] limit) {
+		for (int m = 0; m < MEM_TYPES; m++) {
+			if (totals[m] > limit[m]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The file names of the headers of a board start with the board name,
+	 * reduced to letters, digits and underscores. Boards that differ only in
+	 * other characters or in case would get the same names, e.g. "ESP 1MB"
+	 * and "ESP-1MB", so the later board gets a number appended.
+	 *
+	 * @param board
+	 *            the name of the memory limit
+	 * @param used
+	 *            the base names used so far in lower case, updated
+	 * @return the base name of the header files of the board
+	 */
+	private static String uniqueBaseName(final String board,
+			final Set<String> used) {
+		final String name = board.replaceAll("[^A-Za-z0-9]+", "_");
+		String candidate = name;
+		int suffix = 2;
+		// lower case, since file systems may ignore the case
+		while (!used.add(candidate.toLowerCase(Locale.ROOT))) {
+			candidate = name + "_" + suffix++;
+		}
+		return candidate;
+	}
+
+	/**
+	 * Write one header file per build and a file plan.csv that assigns each
+	 * device to its header file. All builds are written, each one that fails
+	 * is added to the problems; plan.csv is only written if all builds have
+	 * been written.
+	 *
+	 * @param builds
+	 *            the planned builds
+	 * @param outputDir
+	 *            the directory for the header files
+	 * @return true if all files have been written
+	 */
+	public boolean writeBuilds(final List<Build> builds,
+			final File outputDir) {
+		if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+			problems.add("Couldn't create directory " + outputDir);
+			return false;
+		}
+		final Map<String, Integer> numbers = new LinkedHashMap<>();
+		final Map<String, String> baseNames = new HashMap<>();
+		final Set<String> usedBaseNames = new HashSet<>();
+		for (final Build build : builds) {
+			final int number = numbers.merge(build.board, 1, Integer::sum);
+			String baseName = baseNames.get(build.board);
+			if (baseName == null) {
+				baseName = uniqueBaseName(build.board, usedBaseNames);
+				baseNames.put(build.board, baseName);
+			}
+			build.fileName = String.format("%s_%03d.h", baseName, number);
+		}
+		final long failed = builds.parallelStream().filter(build -> {
+			try {
+				model.writeHeader(new File(outputDir, build.fileName),
+						build.enabled);
+				return false;
+			} catch (final IOException e) {
+				problems.add("Build " + build.fileName + " of " + build.board
+						+ " not written: " + e.getMessage());
+				return true;
+			}
+		}).count();
+		if (failed > 0) {
+			problems.add(failed + " of " + builds.size()
+					+ " builds not written, no plan.csv written");
+			return false;
+		}
+		final File planFile = new File(outputDir, "plan.csv");
+		try (BufferedWriter writer =
+				Files.newBufferedWriter(planFile.toPath())) {
+			writer.write("device,board,header" + System.lineSeparator());
+			for (final Build build : builds) {
+				for (final String device : build.devices) {
+					writer.write(quoteField(device) + ","
+							+ quoteField(build.board) + "," + build.fileName
+							+ System.lineSeparator());
+				}
+			}
+		} catch (final IOException e) {
+			problems.add(
+					"Something went wrong writing file " + planFile.getPath());
+			return false;
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,159 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes text as UTF-8 directly into a channel. The characters and numbers
+ * are encoded into a single reused buffer that is written to the channel
+ * whenever it is full, so no intermediate strings or byte arrays are
+ * created.
+ */
+public class ChannelWriter implements Closeable {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final byte[] digits = new byte[20];
+
+	/**
+	 * @param channel
+	 *            the channel to write to
+	 */
+	public ChannelWriter(final WritableByteChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Make sure the buffer has room for the given number of bytes.
+	 *
+	 * @param bytes
+	 *            the number of bytes
+	 * @throws IOException
+	 *             if the channel cannot be written
+	 */
+	private void ensure(final int bytes) throws IOException {
+		if (buffer.remaining() < bytes) {
+			flush();
+		}
+	}
+
+	/**
+	 * @param c
+	 *            the character to write
+	 * @return this writer
+	 * @throws IOException
+	 *             if the channel cannot be written
+	 */
+	public ChannelWriter write(final char c) throws IOException {
+		ensure(3);
+		if (c < 0x80) {
+			buffer.put((byte) c);
+		} else if (c < 0x800) {
+			buffer.put((byte) (0xc0 | c >> 6));
+			buffer.put((byte) (0x80 | c & 0x3f));
+		} else {
+			buffer.put((byte) (0xe0 | c >> 12));
+			buffer.put((byte) (0x80 | c >> 6 & 0x3f));
+			buffer.put((byte) (0x80 | c & 0x3f));
+		}
+		return this;
+	}
+
+	/**
+	 * @param s
+	 *            the text to write
+	 * @return this writer
+	 * @throws IOException
+	 *             if the channel cannot be written
+	 */
+	public ChannelWriter write(final CharSequence s) throws IOException {
+		for (int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			if (Character.isHighSurrogate(c) && i + 1 < s.length()) {
+				writeCodePoint(Character.toCodePoint(c, s.charAt(++i)));
+			} else {
+				write(c);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * @param cp
+	 *            a code point outside of the basic multilingual plane
+	 * @throws IOException
+	 *             if the channel cannot be written
+	 */
+	private void writeCodePoint(final int cp) throws IOException {
+		ensure(4);
+		buffer.put((byte) (0xf0 | cp >> 18));
+		buffer.put((byte) (0x80 | cp >> 12 & 0x3f));
+		buffer.put((byte) (0x80 | cp >> 6 & 0x3f));
+		buffer.put((byte) (0x80 | cp & 0x3f));
+	}
+
+	/**
+	 * @param value
+	 *            the number to write in decimal
+	 * @return this writer
+	 * @throws IOException
+	 *             if the channel cannot be written
+	 */
+	public ChannelWriter write(final long value) throws IOException {
+		if (value == Long.MIN_VALUE) {
+			return write(Long.toString(value));
+		}
+		ensure(digits.length + 1);
+		if (value < 0) {
+			buffer.put((byte) '-');
+		}
+		long rest = Math.abs(value);
+		int count = 0;
+		do {
+			digits[count++] = (byte) ('0' + rest % 10);
+			rest /= 10;
+		} while (rest > 0);
+		while (count > 0) {
+			buffer.put(digits[--count]);
+		}
+		return this;
+	}
+
+	/**
+	 * Write the line separator of the platform.
+	 *
+	 * @return this writer
+	 * @throws IOException
+	 *             if the channel cannot be written
+	 */
+	public ChannelWriter newLine() throws IOException {
+		return write(System.lineSeparator());
+	}
+
+	/**
+	 * Write the buffered bytes to the channel.
+	 *
+	 * @throws IOException
+	 *             if the channel cannot be written
+	 */
+	public void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Flush the buffer, the channel is not closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+
+}
@@ -3,12 +3,16 @@ package de.xinaris.espeasypluginwizard;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.Reader;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.error.YAMLException;
 
 /**
  * This class holds all the configuration data needed for the main app.
@@ -25,6 +29,11 @@ public class ConfigurationData {
 	public static final String UNMODIFIED_STYLE = "unmodifiedStyle";
 	public static final String PLUGIN_SUFFIX = "suffix";
 	public static final String MEM_LIMITS = "memLimits";
+	public static final String PLUGIN_RULES = "pluginRules";
+	public static final String SYMBOL_DATA = "symbolData";
+	public static final String PLUGIN_PRIORITIES = "pluginPriorities";
+	public static final String PLUGIN_CLASSIFIER = "pluginClassifier";
+	public static final String SCAN_CACHE = "scanCache";
 
 	/**
 	 * The constructor initializes all the config information.
@@ -34,16 +43,49 @@ public class ConfigurationData {
 	 */
 	public ConfigurationData(final String[] args) {
 		setupDefaultConfiguration();
-		parseCmdline();
-		readConfigFile();
+		parseCmdline(args);
+		try {
+			readConfigFile();
+		} catch (final YAMLException e) {
+			// continue with the default configuration
+			System.out.println(e.getMessage());
+		}
 	}
 
 	/**
-	 * Parse the command line data.
+	 * The cmdlineConfig contains the options given on the command line as
+	 * --key=value. They take precedence over the config file.
+	 */
+	private final Map<String, Object> cmdlineConfig = new HashMap<>();
+
+	/**
+	 * The command line arguments that are not options.
 	 */
-	private void parseCmdline() {
-		// Later
+	private final List<String> arguments = new ArrayList<>();
 
+	/**
+	 * Parse the command line data. Options have the form --key=value, all
+	 * other arguments are kept in the order given.
+	 *
+	 * @param args
+	 *            the command line arguments
+	 */
+	private void parseCmdline(final String[] args) {
+		for (final String arg : args) {
+			final int eq = arg.indexOf('=');
+			if (arg.startsWith("--") && eq > 2) {
+				cmdlineConfig.put(arg.substring(2, eq), arg.substring(eq + 1));
+			} else {
+				arguments.add(arg);
+			}
+		}
+	}
+
+	/**
+	 * @return the command line arguments that are not options
+	 */
+	public List<String> getArguments() {
+		return arguments;
 	}
 
 	/**
@@ -61,6 +103,14 @@ public class ConfigurationData {
 					+ "pluginPrefixPattern: \"_P\"\n"
 					+ "modifiedStyle: \"-fx-background-color: mistyrose\"\n"
 					+ "unmodifiedStyle: \"\"\n" + "suffix: .ino\n"
+					+ "pluginRules: epwrules.yaml\n"
+					+ "# symbolData: symbols.txt\n"
+					+ "# scanCache: .epwscancache\n"
+					+ "# pluginPriorities:\n" + "#   \"_C\": 10\n"
+					+ "# pluginClassifier:\n"
+					+ "#   include: [ \"_C005\" ]\n"
+					+ "#   exclude: [ \"_P000\" ]\n"
+					+ "#   idRanges: [ \"1-199\" ]\n"
 					+ "memLimits:\n" + "  - name:      \"ESP-8266: 1 MB\"\n"
 					+ "    cacheIRam: 9999\n" + "    initRam:   9999\n"
 					+ "    roRam:     9999\n" + "    uninitRam: 1000\n"
@@ -72,7 +122,12 @@ public class ConfigurationData {
 					+ "  - name:      \"ESP-8285: 1 MB\"\n"
 					+ "    cacheIRam: 3\n" + "    initRam:   2\n"
 					+ "    roRam:     3\n" + "    uninitRam: 4\n"
-					+ "    flashRom:  5\n";
+					+ "    flashRom:  5\n"
+					+ "  # - name:      \"ESP32: 4 MB\"\n"
+					+ "  #   pluginData: Plugin_sizes_esp32.txt\n"
+					+ "  #   cacheIRam: 3\n" + "  #   initRam:   2\n"
+					+ "  #   roRam:     3\n" + "  #   uninitRam: 4\n"
+					+ "  #   flashRom:  5\n";
 
 	/**
 	 * Setup the default configuration.
@@ -95,22 +150,70 @@ public class ConfigurationData {
 	/**
 	 * This method tries to read a YAML file and stores it in the static
 	 * variable fileConfig if successful. Error handling is only rudimentary.
+	 *
+	 * @throws YAMLException
+	 *             if the file is no YAML map, e.g. because it is empty or
+	 *             only partly written; the previous configuration is kept
 	 */
 	public void readConfigFile() {
 		final Yaml yaml = new Yaml();
-		Reader input;
-		try {
-			input = new FileReader(new File(getConfig(CONFIG_FILE).toString()));
+		final File file = new File(getConfig(CONFIG_FILE).toString());
+		try (Reader input = new FileReader(file)) {
+			final Object data = yaml.load(input);
+			if (!(data instanceof Map)) {
+				throw new YAMLException(
+						"Config file " + file + " contains no map");
+			}
 			@SuppressWarnings("unchecked")
-			final Map<String, Object> data =
-					(Map<String, Object>) yaml.load(input);
-			fileConfig = data;
+			final Map<String, Object> map = (Map<String, Object>) data;
+			fileConfig = map;
 		} catch (final FileNotFoundException e) {
 			// no real problem, there is no config file
 			System.out.println("Info: No Config File");
+		} catch (final IOException e) {
+			throw new YAMLException("Couldn't read config file " + file, e);
 		}
 	}
 
+	/**
+	 * This method reads the rules file containing the dependencies and
+	 * conflicts between plugins. If no rules file exists, an empty map is
+	 * returned.
+	 *
+	 * @return the content of the rules file
+	 */
+	public Map<String, Object> readRules() {
+		final Yaml yaml = new Yaml();
+		try (Reader input = new FileReader(
+				new File(getConfig(PLUGIN_RULES).toString()))) {
+			@SuppressWarnings("unchecked")
+			final Map<String, Object> data =
+					(Map<String, Object>) yaml.load(input);
+			if (data != null) {
+				return data;
+			}
+		} catch (final FileNotFoundException e) {
+			// no real problem, there are no rules
+			System.out.println("Info: No Rules File");
+		} catch (final IOException e) {
+			System.out.println("Couldn't read Rules File");
+		}
+		return new HashMap<>();
+	}
+
+	/**
+	 * Set an option as if it had been given on the command line, so it takes
+	 * precedence over the config file.
+	 *
+	 * @param key
+	 *            the key for the config value
+	 * @param value
+	 *            the config value
+	 */
+	public void setConfig(final String key, final Object value) {
+		cmdlineConfig.put(key, value);
+	}
+
 	/**
 	 * This method returns a config value associated with the key. It first
 	 * checks the file configuration and if no value is set then the default
@@ -124,7 +227,11 @@ public class ConfigurationData {
 	 */
 	public Object getConfig(final String key) {
 		// the values in the file config can have an arbitrary type
-		Object option = fileConfig.get(key);
+		Object option = cmdlineConfig.get(key);
+
+		if (option == null) {
+			option = fileConfig.get(key);
+		}
 
 		if (option == null) {
 			option = defaultConfig.get(key);
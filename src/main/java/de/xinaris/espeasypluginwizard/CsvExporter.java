@@ -0,0 +1,86 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Writes one line per profile with the number of enabled plugins, the memory
+ * requirements and whether the profile fits each of the memory limits.
+ */
+public class CsvExporter implements SelectionExporter {
+
+	private static final List<String> TYPES = MemoryValues.TYPE_NAMES;
+
+	private final Model model;
+
+	/**
+	 * @param model
+	 *            the model containing plugins and memory limits
+	 */
+	public CsvExporter(final Model model) {
+		this.model = model;
+	}
+
+	@Override
+	public void begin(final ChannelWriter out) throws IOException {
+		out.write("profile,plugins");
+		for (final String type : TYPES) {
+			out.write(',').write(type);
+		}
+		for (final MemoryData limit : model.getMemLimits()) {
+			out.write(',');
+			writeField(out, limit.getName());
+		}
+		out.newLine();
+	}
+
+	@Override
+	public void export(final ChannelWriter out, final String profile,
+			final BitSet enabled) throws IOException {
+		final MemoryData totals = model.getMemData(profile, enabled);
+		// every board is checked with the size table of its target
+		final BitSet fitting = model.getFittingBoards(
+				model.getMemDataPerTarget(profile, enabled));
+		writeField(out, profile);
+		out.write(',').write(enabled.cardinality());
+		for (int m = 0; m < TYPES.size(); m++) {
+			out.write(',').write(BoardFitIndex.value(totals, m));
+		}
+		final List<MemoryData> limits = model.getMemLimits();
+		for (int b = 0; b < limits.size(); b++) {
+			if (fitting.get(b)) {
+				out.write(",fits");
+			} else {
+				out.write(",exceeds");
+			}
+		}
+		out.newLine();
+	}
+
+	/**
+	 * Write a text field, quoted if it contains a comma, a quote or a line
+	 * break.
+	 *
+	 * @param out
+	 *            the writer
+	 * @param field
+	 *            the text
+	 * @throws IOException
+	 *             if the output cannot be written
+	 */
+	private static void writeField(final ChannelWriter out,
+			final String field) throws IOException {
+		boolean quote = false;
+		for (int i = 0; i < field.length() && !quote; i++) {
+			final char c = field.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if (!quote) {
+			out.write(field);
+			return;
+		}
+		out.write('"').write(field.replace("\"", "\"\"")).write('"');
+	}
+
+}
@@ -0,0 +1,380 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed set of device numbers. The numbers are split into blocks of
+ * 65536 by their upper 16 bits. A block with few members stores their lower
+ * 16 bits as a sorted array, a block with more than ARRAY_LIMIT members as a
+ * bitmap of 65536 bits; either way a block needs at most 8 KB. Sparse and
+ * dense sets are both small, and union and intersection work block by block
+ * without looking at the single numbers of dense blocks.
+ *
+ * <p>
+ * A set is only changed while a DeviceRegistry is built. The public methods
+ * do not change it, union and intersection return new sets.
+ */
+public final class DeviceBitmap {
+
+	private static final int ARRAY_LIMIT = 4096;
+	private static final int WORDS = 1 << 16 >>> 6;
+
+	/**
+	 * The upper 16 bits of the numbers in each block, ascending.
+	 */
+	private int[] keys = new int[0];
+	private Block[] blocks = new Block[0];
+	private int count = 0;
+
+	/**
+	 * The members of a block: the lower 16 bits of the numbers, either as
+	 * a sorted array or as a bitmap.
+	 */
+	private static final class Block {
+		private char[] values;
+		private long[] words;
+		private int cardinality;
+
+		/**
+		 * @param values
+		 *            the sorted values or null
+		 * @param words
+		 *            the bitmap or null
+		 * @param cardinality
+		 *            the number of values
+		 */
+		private Block(final char[] values, final long[] words,
+				final int cardinality) {
+			this.values = values;
+			this.words = words;
+			this.cardinality = cardinality;
+		}
+
+		/**
+		 * @param value
+		 *            the lower 16 bits of a number
+		 * @return true if the value is a member
+		 */
+		private boolean contains(final char value) {
+			if (words != null) {
+				return (words[value >>> 6] & 1L << value) != 0;
+			}
+			return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+		}
+
+		/**
+		 * Add a value, usually larger than all others.
+		 *
+		 * @param value
+		 *            the lower 16 bits of a number
+		 */
+		private void add(final char value) {
+			if (words != null) {
+				if ((words[value >>> 6] & 1L << value) == 0) {
+					words[value >>> 6] |= 1L << value;
+					cardinality++;
+				}
+				return;
+			}
+			int position = cardinality;
+			if (cardinality > 0 && values[cardinality - 1] >= value) {
+				position = Arrays.binarySearch(values, 0, cardinality, value);
+				if (position >= 0) {
+					return;
+				}
+				position = -position - 1;
+			}
+			if (cardinality == ARRAY_LIMIT) {
+				toWords();
+				add(value);
+				return;
+			}
+			if (cardinality == values.length) {
+				values = Arrays.copyOf(values,
+						Math.min(ARRAY_LIMIT, Math.max(4, cardinality * 2)));
+			}
+			System.arraycopy(values, position, values, position + 1,
+					cardinality - position);
+			values[position] = value;
+			cardinality++;
+		}
+
+		/**
+		 * Convert the sorted array into a bitmap.
+		 */
+		private void toWords() {
+			words = new long[WORDS];
+			for (int v = 0; v < cardinality; v++) {
+				words[values[v] >>> 6] |= 1L << values[v];
+			}
+			values = null;
+		}
+
+		/**
+		 * Convert the bitmap into a sorted array if that is smaller.
+		 */
+		private void compact() {
+			if (words == null || cardinality > ARRAY_LIMIT) {
+				return;
+			}
+			values = new char[cardinality];
+			int v = 0;
+			for (int w = 0; w < WORDS; w++) {
+				long word = words[w];
+				while (word != 0) {
+					values[v++] = (char) (w << 6
+							| Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			words = null;
+		}
+
+		/**
+		 * @param other
+		 *            the other block
+		 * @return the members of both blocks or null if there are none
+		 */
+		private Block and(final Block other) {
+			if (words != null && other.words != null) {
+				final long[] result = new long[WORDS];
+				int n = 0;
+				for (int w = 0; w < WORDS; w++) {
+					result[w] = words[w] & other.words[w];
+					n += Long.bitCount(result[w]);
+				}
+				if (n == 0) {
+					return null;
+				}
+				final Block block = new Block(null, result, n);
+				block.compact();
+				return block;
+			}
+			Block array = this;
+			Block test = other;
+			if (words != null) {
+				array = other;
+				test = this;
+			}
+			final char[] result = new char[array.cardinality];
+			int n = 0;
+			for (int v = 0; v < array.cardinality; v++) {
+				if (test.contains(array.values[v])) {
+					result[n++] = array.values[v];
+				}
+			}
+			if (n == 0) {
+				return null;
+			}
+			return new Block(result, null, n);
+		}
+
+		/**
+		 * @param high
+		 *            the upper bits of the numbers of this block
+		 * @param consumer
+		 *            called with every number in ascending order
+		 */
+		private void forEach(final int high, final IntConsumer consumer) {
+			if (words == null) {
+				for (int v = 0; v < cardinality; v++) {
+					consumer.accept(high | values[v]);
+				}
+				return;
+			}
+			for (int w = 0; w < WORDS; w++) {
+				long word = words[w];
+				while (word != 0) {
+					consumer.accept(
+							high | w << 6 | Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add a number. Adding the numbers in ascending order is fastest.
+	 *
+	 * @param number
+	 *            a device number, not negative
+	 */
+	void add(final int number) {
+		final int key = number >>> 16;
+		int b = count - 1;
+		if (count == 0 || keys[b] < key) {
+			b = insertBlock(count, key, new Block(new char[4], null, 0));
+		} else if (keys[b] != key) {
+			b = Arrays.binarySearch(keys, 0, count, key);
+			if (b < 0) {
+				b = insertBlock(-b - 1, key, new Block(new char[4], null, 0));
+			}
+		}
+		blocks[b].add((char) number);
+	}
+
+	/**
+	 * @param position
+	 *            the position of the new block
+	 * @param key
+	 *            the upper 16 bits of its numbers
+	 * @param block
+	 *            the block
+	 * @return the position
+	 */
+	private int insertBlock(final int position, final int key,
+			final Block block) {
+		if (count == keys.length) {
+			final int capacity = Math.max(4, count * 2);
+			keys = Arrays.copyOf(keys, capacity);
+			blocks = Arrays.copyOf(blocks, capacity);
+		}
+		System.arraycopy(keys, position, keys, position + 1, count - position);
+		System.arraycopy(blocks, position, blocks, position + 1,
+				count - position);
+		keys[position] = key;
+		blocks[position] = block;
+		count++;
+		return position;
+	}
+
+	/**
+	 * @param number
+	 *            a device number
+	 * @return true if the number is in the set
+	 */
+	public boolean contains(final int number) {
+		if (number < 0) {
+			return false;
+		}
+		final int b = Arrays.binarySearch(keys, 0, count, number >>> 16);
+		return b >= 0 && blocks[b].contains((char) number);
+	}
+
+	/**
+	 * @return the number of numbers in the set
+	 */
+	public int cardinality() {
+		int result = 0;
+		for (int b = 0; b < count; b++) {
+			result += blocks[b].cardinality;
+		}
+		return result;
+	}
+
+	/**
+	 * @return true if the set contains no numbers
+	 */
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * @param other
+	 *            another set
+	 * @return a new set containing the numbers of both sets
+	 */
+	public DeviceBitmap or(final DeviceBitmap other) {
+		return union(Arrays.asList(this, other));
+	}
+
+	/**
+	 * Unite any number of sets. Every block of the result is collected in a
+	 * bitmap first, so each member of the sets is visited once, however many
+	 * sets there are.
+	 *
+	 * @param sets
+	 *            the sets to unite
+	 * @return a new set containing the numbers of all sets
+	 */
+	public static DeviceBitmap union(final Collection<DeviceBitmap> sets) {
+		int keyCount = 0;
+		for (final DeviceBitmap set : sets) {
+			if (set.count > 0) {
+				keyCount = Math.max(keyCount, set.keys[set.count - 1] + 1);
+			}
+		}
+		final long[][] words = new long[keyCount][];
+		for (final DeviceBitmap set : sets) {
+			for (int b = 0; b < set.count; b++) {
+				final int key = set.keys[b];
+				if (words[key] == null) {
+					words[key] = new long[WORDS];
+				}
+				final Block block = set.blocks[b];
+				if (block.words != null) {
+					for (int w = 0; w < WORDS; w++) {
+						words[key][w] |= block.words[w];
+					}
+				} else {
+					for (int v = 0; v < block.cardinality; v++) {
+						words[key][block.values[v] >>> 6] |=
+								1L << block.values[v];
+					}
+				}
+			}
+		}
+		final DeviceBitmap result = new DeviceBitmap();
+		for (int key = 0; key < keyCount; key++) {
+			if (words[key] != null) {
+				int n = 0;
+				for (int w = 0; w < WORDS; w++) {
+					n += Long.bitCount(words[key][w]);
+				}
+				final Block block = new Block(null, words[key], n);
+				block.compact();
+				result.insertBlock(result.count, key, block);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param other
+	 *            another set
+	 * @return a new set containing the numbers that are in both sets
+	 */
+	public DeviceBitmap and(final DeviceBitmap other) {
+		final DeviceBitmap result = new DeviceBitmap();
+		int i = 0;
+		int j = 0;
+		while (i < count && j < other.count) {
+			if (keys[i] < other.keys[j]) {
+				i++;
+			} else if (keys[i] > other.keys[j]) {
+				j++;
+			} else {
+				final Block block = blocks[i].and(other.blocks[j]);
+				if (block != null) {
+					result.insertBlock(result.count, keys[i], block);
+				}
+				i++;
+				j++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param consumer
+	 *            called with every number in ascending order
+	 */
+	public void forEach(final IntConsumer consumer) {
+		for (int b = 0; b < count; b++) {
+			blocks[b].forEach(keys[b] << 16, consumer);
+		}
+	}
+
+	/**
+	 * @return the numbers in ascending order
+	 */
+	public int[] toArray() {
+		final int[] result = new int[cardinality()];
+		final int[] n = { 0 };
+		forEach(number -> result[n[0]++] = number);
+		return result;
+	}
+
+}
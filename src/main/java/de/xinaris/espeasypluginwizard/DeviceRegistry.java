@@ -0,0 +1,541 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The devices of a fleet with the board and the plugins each of them runs.
+ * It answers which devices use a plugin, which devices would exceed their
+ * board if a plugin grows and which devices share a configuration, in
+ * milliseconds even for a million devices.
+ *
+ * <p>
+ * Devices are numbered in the order they are added. Devices with the same
+ * board and the same plugins share a configuration, whose plugins are kept
+ * once as a BitSet over the plugin index of the model, so a device itself
+ * only costs its id and the number of its configuration. The devices of
+ * every configuration are kept in a DeviceBitmap, a compressed set of device
+ * numbers. Queries unite these sets instead of visiting devices: the users
+ * of a plugin are united from the configurations enabling it once and then
+ * kept, a memory query checks every configuration once and unites the sets
+ * of those affected.
+ *
+ * <p>
+ * The registry is imported from an inventory in the format of the plan
+ * command and saved into a binary file. The file contains the plugins by
+ * their macro names, so it stays valid if the size table changes.
+ */
+public class DeviceRegistry {
+
+	private static final int MAGIC = 0x45505744; // "EPWD"
+	private static final int VERSION = 1;
+	private static final int MEM_TYPES = SizeTableParser.VALUES;
+
+	/**
+	 * A board together with the plugins enabled on it, shared by all devices
+	 * running exactly this firmware.
+	 */
+	private static final class Configuration {
+		private final String board;
+		private final BitSet plugins;
+		private final DeviceBitmap devices = new DeviceBitmap();
+
+		/**
+		 * The memory requirements with the size table of the board,
+		 * calculated on first use.
+		 */
+		private int[] totals = null;
+
+		/**
+		 * @param board
+		 *            the name of the memory limit
+		 * @param plugins
+		 *            the enabled plugins
+		 */
+		private Configuration(final String board, final BitSet plugins) {
+			this.board = board;
+			this.plugins = plugins;
+		}
+	}
+
+	private final Model model;
+	private final PluginCatalog catalog;
+	private final BitSet base;
+	private final List<Configuration> configurations = new ArrayList<>();
+	private final Map<String, Map<BitSet, Integer>> configurationIndex =
+			new HashMap<>();
+
+	/**
+	 * The devices of each plugin, united from the configurations on first
+	 * use, and the number of devices when they were calculated.
+	 */
+	private final DeviceBitmap[] users;
+	private int usersSize = 0;
+	private final DeviceBitmap all = new DeviceBitmap();
+	private final List<String> problems = new ArrayList<>();
+
+	private String[] ids = new String[16];
+	private int[] deviceConfigurations = new int[16];
+	private int size = 0;
+
+	/**
+	 * The device numbers sorted by their ids, calculated on first use.
+	 */
+	private int[] byId = null;
+
+	/**
+	 * Create an empty registry for the plugins and memory limits of the
+	 * model.
+	 *
+	 * @param model
+	 *            the model containing the plugins and memory limits
+	 */
+	public DeviceRegistry(final Model model) {
+		this.model = model;
+		catalog = model.getCatalog();
+		base = model.getReadOnlyPlugins();
+		users = new DeviceBitmap[catalog.size()];
+	}
+
+	/**
+	 * @return the problems found while importing or loading
+	 */
+	public List<String> getProblems() {
+		return problems;
+	}
+
+	/**
+	 * Add a device.
+	 *
+	 * @param id
+	 *            the device id
+	 * @param board
+	 *            the name of the memory limit of the device
+	 * @param plugins
+	 *            the plugins enabled on the device, read-only plugins need
+	 *            not be included
+	 * @return the number of the device
+	 */
+	public int addDevice(final String id, final String board,
+			final BitSet plugins) {
+		final Map<BitSet, Integer> ofBoard =
+				configurationIndex.computeIfAbsent(board, k -> new HashMap<>());
+		Integer c = ofBoard.get(plugins);
+		if (c == null) {
+			c = addConfiguration(board, plugins);
+		}
+		return addDevice(id, c);
+	}
+
+	/**
+	 * @param board
+	 *            the name of the memory limit
+	 * @param plugins
+	 *            the enabled plugins, copied
+	 * @return the number of the new configuration
+	 */
+	private int addConfiguration(final String board, final BitSet plugins) {
+		final BitSet copy = (BitSet) plugins.clone();
+		final int c = configurations.size();
+		configurations.add(new Configuration(board, copy));
+		configurationIndex.computeIfAbsent(board, k -> new HashMap<>())
+				.put(copy, c);
+		return c;
+	}
+
+	/**
+	 * @param id
+	 *            the device id
+	 * @param c
+	 *            the number of the configuration of the device
+	 * @return the number of the device
+	 */
+	private int addDevice(final String id, final int c) {
+		if (size == ids.length) {
+			ids = Arrays.copyOf(ids, size * 2);
+			deviceConfigurations =
+					Arrays.copyOf(deviceConfigurations, size * 2);
+		}
+		final int device = size;
+		ids[device] = id;
+		deviceConfigurations[device] = c;
+		configurations.get(c).devices.add(device);
+		all.add(device);
+		size++;
+		byId = null;
+		return device;
+	}
+
+	/**
+	 * Add the devices of an inventory in the format of the plan command: the
+	 * device id, the name of the memory limit and the enabled plugins,
+	 * separated by commas. Devices whose id is already known and devices
+	 * running a plugin unknown to the model are reported and skipped; the
+	 * memory of the latter cannot be calculated, so they would be missing
+	 * from the answers of the memory queries.
+	 *
+	 * @param inventory
+	 *            the inventory file
+	 * @return the number of devices added
+	 * @throws IOException
+	 *             if the inventory cannot be read
+	 */
+	public int importInventory(final Path inventory) throws IOException {
+		final BuildPlanner planner = new BuildPlanner(model);
+		final List<BuildPlanner.Device> devices =
+				planner.readInventory(inventory);
+		problems.addAll(planner.getProblems());
+		final Set<String> known =
+				new HashSet<>(Arrays.asList(ids).subList(0, size));
+		int added = 0;
+		for (final BuildPlanner.Device device : devices) {
+			if (!known.add(device.getId())) {
+				problems.add("Duplicate device: " + device.getId());
+				continue;
+			}
+			addDevice(device.getId(), device.getBoard(), device.getRequired());
+			added++;
+		}
+		return added;
+	}
+
+	/**
+	 * @return the number of devices
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of different configurations
+	 */
+	public int getConfigurationCount() {
+		return configurations.size();
+	}
+
+	/**
+	 * @param device
+	 *            the number of a device
+	 * @return the device id
+	 */
+	public String getDeviceId(final int device) {
+		return ids[device];
+	}
+
+	/**
+	 * @param device
+	 *            the number of a device
+	 * @return the name of the memory limit of the device
+	 */
+	public String getBoard(final int device) {
+		return configurations.get(deviceConfigurations[device]).board;
+	}
+
+	/**
+	 * @param device
+	 *            the number of a device
+	 * @return a copy of the plugins enabled on the device
+	 */
+	public BitSet getPlugins(final int device) {
+		return (BitSet) configurations
+				.get(deviceConfigurations[device]).plugins.clone();
+	}
+
+	/**
+	 * @param id
+	 *            a device id
+	 * @return the number of the device or -1 if the id is unknown
+	 */
+	public int findDevice(final String id) {
+		int[] sorted = byId;
+		if (sorted == null) {
+			sorted = new int[size];
+			final Integer[] order = new Integer[size];
+			for (int d = 0; d < size; d++) {
+				order[d] = d;
+			}
+			Arrays.parallelSort(order, (d1, d2) -> ids[d1].compareTo(ids[d2]));
+			for (int d = 0; d < size; d++) {
+				sorted[d] = order[d];
+			}
+			byId = sorted;
+		}
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			final int cmp = ids[sorted[mid]].compareTo(id);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return sorted[mid];
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param plugin
+	 *            the plugin index
+	 * @return the devices running the plugin, all devices for a read-only
+	 *         plugin
+	 */
+	public DeviceBitmap getUsers(final int plugin) {
+		if (plugin < 0 || plugin >= users.length) {
+			return new DeviceBitmap();
+		}
+		if (base.get(plugin)) {
+			return all;
+		}
+		if (usersSize != size) {
+			Arrays.fill(users, null);
+			usersSize = size;
+		}
+		if (users[plugin] == null) {
+			final List<DeviceBitmap> sets = new ArrayList<>();
+			for (final Configuration configuration : configurations) {
+				if (configuration.plugins.get(plugin)) {
+					sets.add(configuration.devices);
+				}
+			}
+			users[plugin] = DeviceBitmap.union(sets);
+		}
+		return users[plugin];
+	}
+
+	/**
+	 * @param device
+	 *            the number of a device
+	 * @return the devices with the same board and the same plugins, including
+	 *         the device itself
+	 */
+	public DeviceBitmap getSameConfiguration(final int device) {
+		return configurations.get(deviceConfigurations[device]).devices;
+	}
+
+	/**
+	 * Determine the devices that fit their board now but would exceed it if
+	 * a plugin grows. Devices with an unknown board are ignored.
+	 *
+	 * @param plugin
+	 *            the plugin index
+	 * @param type
+	 *            the memory type that grows, 0 to 4
+	 * @param bytes
+	 *            the number of bytes the plugin grows
+	 * @return the devices running the plugin that would no longer fit
+	 */
+	public DeviceBitmap getOverflowing(final int plugin, final int type,
+			final int bytes) {
+		final List<DeviceBitmap> sets = new ArrayList<>();
+		final boolean readOnly = base.get(plugin);
+		for (final Configuration configuration : configurations) {
+			if (!readOnly && !configuration.plugins.get(plugin)) {
+				continue;
+			}
+			final MemoryData limit = model.findMemLimit(configuration.board);
+			if (limit == null) {
+				continue;
+			}
+			if (configuration.totals == null) {
+				configuration.totals = totals(configuration, limit);
+			}
+			final int[] totals = configuration.totals.clone();
+			if (fits(totals, limit)) {
+				totals[type] += bytes;
+				if (!fits(totals, limit)) {
+					sets.add(configuration.devices);
+				}
+			}
+		}
+		return DeviceBitmap.union(sets);
+	}
+
+	/**
+	 * @param configuration
+	 *            a configuration
+	 * @param limit
+	 *            its memory limit, whose size table is used
+	 * @return the memory requirements of the configuration
+	 */
+	private int[] totals(final Configuration configuration,
+			final MemoryData limit) {
+		final PluginCatalog sizes = catalog.forTarget(model.getBoardTarget(
+				model.getMemLimits().indexOf(limit)));
+		final BitSet enabled = (BitSet) configuration.plugins.clone();
+		enabled.or(base);
+		final int[] totals = new int[MEM_TYPES];
+		for (int p = enabled.nextSetBit(0); p >= 0 && p < sizes.size();
+				p = enabled.nextSetBit(p + 1)) {
+			for (int m = 0; m < MEM_TYPES; m++) {
+				totals[m] += sizes.getValue(p, m);
+			}
+		}
+		return totals;
+	}
+
+	/**
+	 * @param totals
+	 *            the memory requirements
+	 * @param limit
+	 *            the memory limit
+	 * @return true if no memory type exceeds the limit
+	 */
+	private static boolean fits(final int[] totals, final MemoryData limit) {
+		for (int m = 0; m < MEM_TYPES; m++) {
+			if (totals[m] > BoardFitIndex.value(limit, m)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Save the registry into a file. It is written to a temporary file with
+	 * a unique name that atomically replaces the old one, so a failed save
+	 * or a concurrent one never leaves a mixed or truncated registry.
+	 *
+	 * @param file
+	 *            the registry file
+	 * @throws IOException
+	 *             if the file cannot be written, the old file is unchanged
+	 *             then
+	 */
+	public void save(final Path file) throws IOException {
+		final Path temp = AtomicFile.createTemp(file);
+		try {
+			write(temp);
+		} catch (final IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		AtomicFile.replace(temp, file);
+	}
+
+	/**
+	 * @param file
+	 *            the file to write the registry into
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	private void write(final Path file) throws IOException {
+		try (OutputStream output = Files.newOutputStream(file);
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(output))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(configurations.size());
+			for (final Configuration configuration : configurations) {
+				out.writeUTF(configuration.board);
+				out.writeInt(configuration.plugins.cardinality());
+				final BitSet plugins = configuration.plugins;
+				for (int p = plugins.nextSetBit(0); p >= 0;
+						p = plugins.nextSetBit(p + 1)) {
+					out.writeUTF(catalog.getMacroName(p));
+				}
+			}
+			out.writeInt(size);
+			for (int d = 0; d < size; d++) {
+				out.writeUTF(ids[d]);
+				out.writeInt(deviceConfigurations[d]);
+			}
+		}
+	}
+
+	/**
+	 * Load a registry saved by save. Plugins unknown to the model are
+	 * reported in the problems, the devices running them are left out since
+	 * their memory cannot be calculated.
+	 *
+	 * @param model
+	 *            the model containing the plugins and memory limits
+	 * @param file
+	 *            the registry file
+	 * @return the registry
+	 * @throws IOException
+	 *             if the file cannot be read or is not a registry
+	 */
+	public static DeviceRegistry load(final Model model, final Path file)
+			throws IOException {
+		final DeviceRegistry registry = new DeviceRegistry(model);
+		try (InputStream input = Files.newInputStream(file);
+				DataInputStream in =
+						new DataInputStream(new BufferedInputStream(input))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a device registry: " + file);
+			}
+			final Set<String> unknown = new HashSet<>();
+			final int configurationCount = in.readInt();
+			final int[] numbers = new int[configurationCount];
+			for (int c = 0; c < configurationCount; c++) {
+				final String board = in.readUTF();
+				final BitSet plugins = new BitSet();
+				boolean complete = true;
+				final int pluginCount = in.readInt();
+				for (int p = 0; p < pluginCount; p++) {
+					final String name = in.readUTF();
+					final int index = registry.catalog.findPlugin(name);
+					if (index >= 0) {
+						plugins.set(index);
+					} else {
+						if (unknown.add(name)) {
+							registry.problems.add("Unknown plugin: " + name);
+						}
+						complete = false;
+					}
+				}
+				final Integer known = registry.configurationIndex
+						.getOrDefault(board, Collections.emptyMap())
+						.get(plugins);
+				if (!complete) {
+					numbers[c] = -1;
+				} else if (known == null) {
+					numbers[c] = registry.addConfiguration(board, plugins);
+				} else {
+					numbers[c] = known;
+				}
+			}
+			final int deviceCount = in.readInt();
+			registry.ids = new String[Math.max(16, deviceCount)];
+			registry.deviceConfigurations = new int[registry.ids.length];
+			int skipped = 0;
+			for (int d = 0; d < deviceCount; d++) {
+				final String id = in.readUTF();
+				final int c = in.readInt();
+				if (c < 0 || c >= configurationCount) {
+					throw new IOException("Invalid configuration of device "
+							+ id + " in " + file);
+				}
+				if (numbers[c] < 0) {
+					skipped++;
+				} else {
+					registry.addDevice(id, numbers[c]);
+				}
+			}
+			if (skipped > 0) {
+				registry.problems.add(skipped
+						+ " device(s) with unknown plugins skipped");
+			}
+		}
+		return registry;
+	}
+
+}
@@ -0,0 +1,35 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * Writes a profile as header file: a #define line for every plugin, commented
+ * out if the plugin is disabled. This is the format read by Model.load.
+ */
+public class HeaderExporter implements SelectionExporter {
+
+	private final PluginCatalog catalog;
+	private final int[] sorted;
+
+	/**
+	 * @param model
+	 *            the model containing the plugins
+	 */
+	public HeaderExporter(final Model model) {
+		catalog = model.getCatalog();
+		sorted = catalog.getIndexesByName();
+	}
+
+	@Override
+	public void export(final ChannelWriter out, final String profile,
+			final BitSet enabled) throws IOException {
+		for (final int p : sorted) {
+			if (!enabled.get(p)) {
+				out.write("// ");
+			}
+			out.write("#define ").write(catalog.getMacroName(p)).newLine();
+		}
+	}
+
+}
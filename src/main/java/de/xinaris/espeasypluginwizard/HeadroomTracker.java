@@ -0,0 +1,290 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
+
+/**
+ * Tracks for every disabled plugin whether enabling it would exceed one of
+ * the memory limits the current selection still fits, and by how much.
+ *
+ * <p>
+ * For each memory type the smallest slack over all fitting boards is kept.
+ * A plugin overflows if one of its values is larger than the slack of its
+ * type. When the slack of a type changes, only the plugins whose value lies
+ * above the smaller of the old and the new slack can change their result.
+ * The plugins are sorted by their value for each type, so these plugins are
+ * found with a binary search and only their rows are updated.
+ */
+public class HeadroomTracker {
+
+	private static final int MEM_TYPES = SizeTableParser.VALUES;
+
+	/**
+	 * The overflow of a disabled plugin if the current selection fits no
+	 * board at all.
+	 */
+	public static final int NO_FITTING_BOARD = -1;
+
+	private final Model model;
+
+	/**
+	 * The smallest slack for each memory type over all fitting boards,
+	 * Integer.MAX_VALUE if no board fits.
+	 */
+	private final int[] minSlack = new int[MEM_TYPES];
+	private final int[] oldSlack = new int[MEM_TYPES];
+
+	/**
+	 * The smallest limit for each memory type over the fitting boards, and
+	 * a copy of the fitting boards they have been searched for.
+	 */
+	private final int[] minLimit = new int[MEM_TYPES];
+	private BitSet fitting = null;
+
+	/**
+	 * The plugins sorted by their value for each memory type, rebuilt if new
+	 * plugins have been added.
+	 */
+	private final int[][] sortedPlugins = new int[MEM_TYPES][];
+	private final int[][] sortedValues = new int[MEM_TYPES][];
+	private boolean sortedValid = false;
+
+	private int[] overflow = new int[0];
+	private int[] overflowType = new int[0];
+	private final List<ReadOnlyIntegerWrapper> properties = new ArrayList<>();
+
+	/**
+	 * @param model
+	 *            the model containing plugins and memory limits
+	 */
+	public HeadroomTracker(final Model model) {
+		this.model = model;
+		Arrays.fill(minSlack, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Recalculate everything, e.g. after the memory limits have changed.
+	 */
+	public void reset() {
+		fitting = null;
+		sortPlugins();
+		updateSlack();
+		for (int i = 0; i < model.getCatalog().size(); i++) {
+			recalc(i);
+		}
+	}
+
+	/**
+	 * Update the results after a plugin has been enabled or disabled. The
+	 * totals of the model have to be updated already. After new plugins have
+	 * been added nothing is done until the next reset.
+	 *
+	 * @param index
+	 *            the index of the changed plugin
+	 */
+	public void pluginChanged(final int index) {
+		if (!sortedValid) {
+			return;
+		}
+		final boolean fitted = hasFittingBoard();
+		System.arraycopy(minSlack, 0, oldSlack, 0, MEM_TYPES);
+		updateSlack();
+		if (fitted != hasFittingBoard()) {
+			// every disabled plugin changes between a number and no fitting
+			// board, which only happens when crossing the last limit
+			for (int i = 0; i < model.getCatalog().size(); i++) {
+				recalc(i);
+			}
+			return;
+		}
+		recalc(index);
+		// a plugin affected for several types is recalculated more than
+		// once, which is cheaper than collecting the plugins in a set of the
+		// size of the catalog for every change
+		for (int m = 0; m < MEM_TYPES; m++) {
+			if (oldSlack[m] != minSlack[m]) {
+				final int bound = Math.min(oldSlack[m], minSlack[m]);
+				final int[] values = sortedValues[m];
+				for (int r = firstAbove(values, bound); r < values.length;
+						r++) {
+					recalc(sortedPlugins[m][r]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Mark the sorted plugins as outdated after a plugin has been added. The
+	 * results are recalculated with the next reset.
+	 */
+	public void pluginAdded() {
+		sortedValid = false;
+	}
+
+	/**
+	 * @param values
+	 *            sorted values
+	 * @param bound
+	 *            the bound
+	 * @return the first position with a value larger than the bound
+	 */
+	private static int firstAbove(final int[] values, final int bound) {
+		int low = 0;
+		int high = values.length;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (values[mid] <= bound) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Sort the plugins by their value for each memory type.
+	 */
+	private void sortPlugins() {
+		final PluginCatalog catalog = model.getCatalog();
+		final int count = catalog.size();
+		for (int m = 0; m < MEM_TYPES; m++) {
+			final int type = m;
+			final Integer[] order = new Integer[count];
+			for (int i = 0; i < count; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order,
+					(p1, p2) -> Integer.compare(catalog.getValue(p1, type),
+							catalog.getValue(p2, type)));
+			sortedPlugins[m] = new int[count];
+			sortedValues[m] = new int[count];
+			for (int r = 0; r < count; r++) {
+				sortedPlugins[m][r] = order[r];
+				sortedValues[m][r] = catalog.getValue(order[r], m);
+			}
+		}
+		if (overflow.length < count) {
+			overflow = Arrays.copyOf(overflow, count);
+			overflowType = Arrays.copyOf(overflowType, count);
+		}
+		sortedValid = true;
+	}
+
+	/**
+	 * Update the smallest slack for each memory type. The smallest limits
+	 * only have to be searched again if the set of fitting boards changed.
+	 */
+	private void updateSlack() {
+		final BitSet nowFitting = model.getFittingBoards();
+		if (!nowFitting.equals(fitting)) {
+			// the model keeps updating its set
+			fitting = (BitSet) nowFitting.clone();
+			Arrays.fill(minLimit, Integer.MAX_VALUE);
+			for (int b = fitting.nextSetBit(0); b >= 0; b =
+					fitting.nextSetBit(b + 1)) {
+				final MemoryData limit = model.getMemLimits().get(b);
+				for (int m = 0; m < MEM_TYPES; m++) {
+					minLimit[m] = Math.min(minLimit[m],
+							BoardFitIndex.value(limit, m));
+				}
+			}
+		}
+		final MemoryData current = model.getCurrentMemData();
+		for (int m = 0; m < MEM_TYPES; m++) {
+			if (minLimit[m] == Integer.MAX_VALUE) {
+				minSlack[m] = Integer.MAX_VALUE;
+			} else {
+				minSlack[m] = minLimit[m] - BoardFitIndex.value(current, m);
+			}
+		}
+	}
+
+	/**
+	 * @return whether the current selection fits at least one board
+	 */
+	private boolean hasFittingBoard() {
+		return fitting != null && !fitting.isEmpty();
+	}
+
+	/**
+	 * Recalculate the result for a single plugin.
+	 *
+	 * @param index
+	 *            the plugin index
+	 */
+	private void recalc(final int index) {
+		final PluginCatalog catalog = model.getCatalog();
+		int worst = 0;
+		int worstType = -1;
+		if (!model.isEnabled(index) && !hasFittingBoard()) {
+			worst = NO_FITTING_BOARD;
+		} else if (!model.isEnabled(index)) {
+			for (int m = 0; m < MEM_TYPES; m++) {
+				final long over =
+						(long) catalog.getValue(index, m) - minSlack[m];
+				if (over > worst) {
+					worst = (int) over;
+					worstType = m;
+				}
+			}
+		}
+		overflow[index] = worst;
+		overflowType[index] = worstType;
+		if (index < properties.size() && properties.get(index) != null) {
+			properties.get(index).set(worst);
+		}
+	}
+
+	/**
+	 * @param index
+	 *            the plugin index
+	 * @return the number of bytes the plugin would exceed a fitting board if
+	 *         enabled, 0 if it fits or is enabled, NO_FITTING_BOARD if it is
+	 *         disabled and the current selection fits no board
+	 */
+	public int getOverflow(final int index) {
+		if (index < overflow.length) {
+			return overflow[index];
+		}
+		return 0;
+	}
+
+	/**
+	 * @param index
+	 *            the plugin index
+	 * @return the name of the memory type exceeded most or null
+	 */
+	public String getOverflowType(final int index) {
+		if (index < overflowType.length && overflowType[index] >= 0) {
+			return MemoryValues.TYPE_NAMES.get(overflowType[index]);
+		}
+		return null;
+	}
+
+	/**
+	 * An observable version of the overflow for table cells. Only the
+	 * properties of affected plugins are updated after a change.
+	 *
+	 * @param index
+	 *            the plugin index
+	 * @return the property
+	 */
+	public ReadOnlyIntegerProperty overflowProperty(final int index) {
+		while (properties.size() <= index) {
+			properties.add(null);
+		}
+		ReadOnlyIntegerWrapper property = properties.get(index);
+		if (property == null) {
+			property = new ReadOnlyIntegerWrapper(getOverflow(index));
+			properties.set(index, property);
+		}
+		return property.getReadOnlyProperty();
+	}
+
+}
@@ -0,0 +1,147 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Writes the profiles as JSON array. Each profile contains the enabled
+ * plugins, the memory requirements and for every memory limit whether the
+ * profile fits and the remaining bytes of each memory type.
+ */
+public class JsonExporter implements SelectionExporter {
+
+	private static final List<String> TYPES = MemoryValues.TYPE_NAMES;
+	private static final String HEX = "0123456789abcdef";
+
+	private final Model model;
+	private final PluginCatalog catalog;
+	private final int[] sorted;
+	private boolean first = true;
+
+	/**
+	 * @param model
+	 *            the model containing plugins and memory limits
+	 */
+	public JsonExporter(final Model model) {
+		this.model = model;
+		catalog = model.getCatalog();
+		sorted = catalog.getIndexesByName();
+	}
+
+	@Override
+	public void begin(final ChannelWriter out) throws IOException {
+		out.write('[');
+		first = true;
+	}
+
+	@Override
+	public void export(final ChannelWriter out, final String profile,
+			final BitSet enabled) throws IOException {
+		final MemoryData totals = model.getMemData(profile, enabled);
+		// every board is checked with the size table of its target
+		final MemoryData[] usages =
+				model.getMemDataPerTarget(profile, enabled);
+		final BitSet fitting = model.getFittingBoards(usages);
+		if (!first) {
+			out.write(',');
+		}
+		first = false;
+		out.newLine().write("{\"profile\":");
+		writeString(out, profile);
+		out.write(",\"plugins\":[");
+		boolean firstPlugin = true;
+		for (final int p : sorted) {
+			if (enabled.get(p)) {
+				if (!firstPlugin) {
+					out.write(',');
+				}
+				firstPlugin = false;
+				writeString(out, catalog.getMacroName(p));
+			}
+		}
+		out.write("],\"totals\":");
+		writeMemory(out, totals, null);
+		out.write(",\"boards\":[");
+		final List<MemoryData> limits = model.getMemLimits();
+		for (int b = 0; b < limits.size(); b++) {
+			if (b > 0) {
+				out.write(',');
+			}
+			out.write("{\"name\":");
+			writeString(out, limits.get(b).getName());
+			out.write(",\"fits\":").write(Boolean.toString(fitting.get(b)));
+			out.write(",\"free\":");
+			writeMemory(out, limits.get(b),
+					usages[model.getBoardTarget(b)]);
+			out.write('}');
+		}
+		out.write("]}");
+	}
+
+	@Override
+	public void end(final ChannelWriter out) throws IOException {
+		out.newLine().write(']').newLine();
+	}
+
+	/**
+	 * Write the memory values as object.
+	 *
+	 * @param out
+	 *            the writer
+	 * @param md
+	 *            the memory values
+	 * @param subtract
+	 *            the values to subtract or null
+	 * @throws IOException
+	 *             if the output cannot be written
+	 */
+	static void writeMemory(final ChannelWriter out,
+			final MemoryData md, final MemoryData subtract)
+			throws IOException {
+		out.write('{');
+		for (int m = 0; m < TYPES.size(); m++) {
+			if (m > 0) {
+				out.write(',');
+			}
+			long value = BoardFitIndex.value(md, m);
+			if (subtract != null) {
+				value -= BoardFitIndex.value(subtract, m);
+			}
+			out.write('"').write(TYPES.get(m)).write("\":").write(value);
+		}
+		out.write('}');
+	}
+
+	/**
+	 * Write a string literal with escapes for quotes, backslashes and control
+	 * characters.
+	 *
+	 * @param out
+	 *            the writer
+	 * @param s
+	 *            the string
+	 * @throws IOException
+	 *             if the output cannot be written
+	 */
+	static void writeString(final ChannelWriter out, final String s)
+			throws IOException {
+		out.write('"');
+		for (int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			if (Character.isHighSurrogate(c) && i + 1 < s.length()) {
+				out.write(s.subSequence(i, i + 2));
+				i++;
+			} else if (c == '"' || c == '\\') {
+				out.write('\\').write(c);
+			} else if (c < ' ') {
+				out.write("\\u00").write(HEX.charAt(c >> 4))
+						.write(HEX.charAt(c & 0xf));
+			} else {
+				out.write(c);
+			}
+		}
+		out.write('"');
+	}
+
+}
@@ -0,0 +1,179 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Writes the build manifest of a profile as a single line of JSON: the
+ * fingerprint, the version of the size table, the enabled macros, the memory
+ * requirements and for every memory limit whether the profile fits and the
+ * remaining bytes.
+ *
+ * <p>
+ * The fingerprint is a SHA-256 hash of the canonical list of enabled macros
+ * (sorted by name) and the hash of the size table. It only changes if the
+ * firmware built from the header can change, so it can be used as key for a
+ * cache of firmware builds. Nothing in the manifest depends on the order of
+ * the size table or of the plugin table of the user interface.
+ */
+public class ManifestExporter implements SelectionExporter {
+
+	/**
+	 * The suffix of manifest files, replacing the suffix of the header.
+	 */
+	public static final String MANIFEST_SUFFIX = ".manifest.json";
+
+	private static final String VERSION = "epw-manifest 1";
+
+	private final Model model;
+	private final PluginCatalog catalog;
+
+	/**
+	 * @param model
+	 *            the model containing plugins and memory limits
+	 */
+	public ManifestExporter(final Model model) {
+		this.model = model;
+		catalog = model.getCatalog();
+	}
+
+	@Override
+	public void export(final ChannelWriter out, final String profile,
+			final BitSet enabled) throws IOException {
+		final MemoryData totals = model.getMemData(profile, enabled);
+		// every board is checked with the size table of its target
+		final MemoryData[] usages =
+				model.getMemDataPerTarget(profile, enabled);
+		final BitSet fitting = model.getFittingBoards(usages);
+
+		out.write("{\"profile\":");
+		JsonExporter.writeString(out, profile);
+		out.write(",\"fingerprint\":");
+		JsonExporter.writeString(out, fingerprint(catalog, enabled));
+		out.write(",\"sizeTable\":");
+		JsonExporter.writeString(out, catalog.getContentHash());
+		out.write(",\"plugins\":[");
+		boolean first = true;
+		for (final int i : catalog.indexesByMacroName()) {
+			if (enabled.get(i)) {
+				if (!first) {
+					out.write(',');
+				}
+				JsonExporter.writeString(out, catalog.getMacroName(i));
+				first = false;
+			}
+		}
+		out.write("],\"totals\":");
+		JsonExporter.writeMemory(out, totals, null);
+		out.write(",\"boards\":[");
+		final List<MemoryData> limits = model.getMemLimits();
+		for (int b = 0; b < limits.size(); b++) {
+			if (b > 0) {
+				out.write(',');
+			}
+			out.write("{\"name\":");
+			JsonExporter.writeString(out, limits.get(b).getName());
+			out.write(",\"fits\":").write(Boolean.toString(fitting.get(b)));
+			out.write(",\"free\":");
+			JsonExporter.writeMemory(out, limits.get(b),
+					usages[model.getBoardTarget(b)]);
+			out.write('}');
+		}
+		out.write("]}").newLine();
+	}
+
+	/**
+	 * The fingerprint of a profile: the hash of the size table and of the
+	 * macro names of the enabled plugins in the order of the macro names.
+	 *
+	 * @param catalog
+	 *            the catalog
+	 * @param enabled
+	 *            the enabled plugins
+	 * @return the fingerprint of the profile
+	 */
+	public static String fingerprint(final PluginCatalog catalog,
+			final BitSet enabled) {
+		final Hasher hasher = new Hasher();
+		hasher.line(VERSION);
+		hasher.line(catalog.getContentHash());
+		for (final int i : catalog.indexesByMacroName()) {
+			if (enabled.get(i)) {
+				hasher.line(catalog.getMacroName(i));
+			}
+		}
+		return hasher.hex();
+	}
+
+	/**
+	 * @param header
+	 *            the header file
+	 * @return the manifest file belonging to the header file
+	 */
+	public static File manifestFile(final File header) {
+		String name = header.getName();
+		final int dot = name.lastIndexOf('.');
+		if (dot > 0) {
+			name = name.substring(0, dot);
+		}
+		return new File(header.getParentFile(), name + MANIFEST_SUFFIX);
+	}
+
+	/**
+	 * Hashes lines of text with SHA-256.
+	 */
+	static final class Hasher {
+		private static final String HEX = "0123456789abcdef";
+
+		private final MessageDigest digest;
+
+		/**
+		 * Create a hasher.
+		 */
+		Hasher() {
+			try {
+				digest = MessageDigest.getInstance("SHA-256");
+			} catch (final NoSuchAlgorithmException e) {
+				// every Java platform has to support SHA-256
+				throw new IllegalStateException(e);
+			}
+		}
+
+		/**
+		 * @param line
+		 *            the line to add in UTF-8, a line break is appended
+		 */
+		void line(final CharSequence line) {
+			for (int i = 0; i < line.length(); i++) {
+				final char c = line.charAt(i);
+				if (c < 0x80) {
+					digest.update((byte) c);
+				} else {
+					digest.update(line.subSequence(i, line.length()).toString()
+							.getBytes(StandardCharsets.UTF_8));
+					break;
+				}
+			}
+			digest.update((byte) '\n');
+		}
+
+		/**
+		 * @return the hash as hex string
+		 */
+		String hex() {
+			final byte[] hash = digest.digest();
+			final StringBuilder result = new StringBuilder(hash.length * 2);
+			for (final byte b : hash) {
+				result.append(HEX.charAt(b >> 4 & 0xf))
+						.append(HEX.charAt(b & 0xf));
+			}
+			return result.toString();
+		}
+	}
+
+}
@@ -5,7 +5,7 @@ package de.xinaris.espeasypluginwizard;
  *
  * @author jbaumann
  */
-public class MemoryData {
+public class MemoryData implements MemoryValues {
 
 	private String name;
 
@@ -20,6 +20,7 @@ public class MemoryData {
 	/**
 	 * @return the name
 	 */
+	@Override
 	public String getName() {
 		return name;
 	}
@@ -27,6 +28,7 @@ public class MemoryData {
 	/**
 	 * @return the cacheIRam
 	 */
+	@Override
 	public int getCacheIRam() {
 		return cacheIRam;
 	}
@@ -34,6 +36,7 @@ public class MemoryData {
 	/**
 	 * @return the initRam
 	 */
+	@Override
 	public int getInitRam() {
 		return initRam;
 	}
@@ -41,6 +44,7 @@ public class MemoryData {
 	/**
 	 * @return the roRam
 	 */
+	@Override
 	public int getRoRam() {
 		return roRam;
 	}
@@ -48,6 +52,7 @@ public class MemoryData {
 	/**
 	 * @return the uninitRam
 	 */
+	@Override
 	public int getUninitRam() {
 		return uninitRam;
 	}
@@ -55,6 +60,7 @@ public class MemoryData {
 	/**
 	 * @return the flashRom
 	 */
+	@Override
 	public int getFlashRom() {
 		return flashRom;
 	}
@@ -93,9 +99,9 @@ public class MemoryData {
 
 	@Override
 	public String toString() {
-		return name + ": cacheIRam=" + cacheIRam + ", initRam=" + initRam
-				+ ", roRam=" + roRam + ", uninitRam=" + uninitRam
-				+ ", flashRom=" + flashRom;
+		return getName() + ": cacheIRam=" + getCacheIRam() + ", initRam="
+				+ getInitRam() + ", roRam=" + getRoRam() + ", uninitRam="
+				+ getUninitRam() + ", flashRom=" + getFlashRom();
 	}
 
 	/**
@@ -107,8 +113,8 @@ public class MemoryData {
 	public String formatContents() {
 		final String format =
 				"cacheIRam=%1$04d  \tinitRam=%2$04d  \tr/o-Ram=%3$04d  \tuninitRam=%4$04d  \tflashRom=%5$06d";
-		return String.format(format, cacheIRam, initRam, roRam, uninitRam,
-				flashRom);
+		return String.format(format, getCacheIRam(), getInitRam(), getRoRam(),
+				getUninitRam(), getFlashRom());
 	}
 
 }
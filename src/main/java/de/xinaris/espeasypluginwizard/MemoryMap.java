@@ -0,0 +1,359 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.util.Arrays;
+
+import javafx.animation.AnimationTimer;
+import javafx.geometry.VPos;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+import javafx.scene.text.TextAlignment;
+
+/**
+ * Shows where the memory goes: one stacked bar per memory type, split into
+ * the enabled plugins, largest first. The bars are scaled to the selected
+ * board, whose limits are drawn as markers.
+ *
+ * <p>
+ * Everything is drawn on a single canvas, so the number of plugins does not
+ * add nodes to the scene graph. The plugins of each memory type are sorted
+ * once per catalog; a change of the selection only marks the map as dirty,
+ * and an AnimationTimer redraws it at most once per frame. Plugins narrower
+ * than a pixel are drawn as one segment "others", so a redraw stops at the
+ * first of them instead of visiting every plugin of the catalog.
+ */
+public class MemoryMap extends Pane {
+
+	private static final int MEM_TYPES = SizeTableParser.VALUES;
+	private static final String[] TYPE_NAMES = { "Cache IRAM", "Init. RAM",
+			"R/O RAM", "Uninit. RAM", "Flash ROM" };
+
+	private static final double LABEL_WIDTH = 90;
+	private static final double ROW_HEIGHT = 18;
+	private static final double ROW_GAP = 4;
+	private static final double MIN_SEGMENT_WIDTH = 1;
+	private static final double CHAR_WIDTH = 7;
+	private static final double GOLDEN_ANGLE = 137.508;
+
+	private static final Color BACKGROUND = Color.WHITE;
+	private static final Color TEXT = Color.BLACK;
+	private static final Color OTHERS = Color.LIGHTGRAY;
+	private static final Color LIMIT = Color.RED;
+
+	private final Model model;
+	private final Canvas canvas = new Canvas();
+	private final Font font = Font.font(11);
+
+	/**
+	 * The catalog the orders and colors belong to.
+	 */
+	private PluginCatalog catalog = null;
+
+	/**
+	 * The plugins for each memory type by descending value.
+	 */
+	private final int[][] order = new int[MEM_TYPES][];
+
+	/**
+	 * The color of each plugin, the same in all bars.
+	 */
+	private Color[] colors = new Color[0];
+
+	/**
+	 * The left edges of the drawn segments and their plugins for each
+	 * memory type, -1 for the segment "others".
+	 */
+	private final double[][] segmentStarts = new double[MEM_TYPES][];
+	private final int[][] segmentPlugins = new int[MEM_TYPES][];
+	private final int[] segmentCounts = new int[MEM_TYPES];
+	private final double[] barEnds = new double[MEM_TYPES];
+	private final int[] othersBytes = new int[MEM_TYPES];
+
+	private MemoryData board = null;
+	private int hoveredType = -1;
+	private int hoveredPlugin = -1;
+	private boolean dirty = true;
+
+	/**
+	 * Create the map and start redrawing it when it is dirty.
+	 *
+	 * @param model
+	 *            the model containing plugins and selection
+	 */
+	public MemoryMap(final Model model) {
+		this.model = model;
+		getChildren().add(canvas);
+		canvas.setHeight(MEM_TYPES * (ROW_HEIGHT + ROW_GAP) + ROW_HEIGHT);
+		setPrefHeight(canvas.getHeight());
+		setMinHeight(canvas.getHeight());
+		canvas.widthProperty().bind(widthProperty());
+		canvas.widthProperty().addListener((observable, oldVal, newVal) -> {
+			dirty = true;
+		});
+		canvas.setOnMouseMoved(e -> hover(e.getX(), e.getY()));
+		canvas.setOnMouseExited(e -> hover(-1, -1));
+		for (int t = 0; t < MEM_TYPES; t++) {
+			segmentStarts[t] = new double[0];
+			segmentPlugins[t] = new int[0];
+		}
+		new AnimationTimer() {
+			@Override
+			public void handle(final long now) {
+				if (dirty) {
+					draw();
+				}
+			}
+		}.start();
+	}
+
+	/**
+	 * Mark the map for a redraw with the next frame, e.g. after the
+	 * selection, the catalog or the size table has changed.
+	 */
+	public void invalidate() {
+		dirty = true;
+	}
+
+	/**
+	 * @param newBoard
+	 *            the board whose limits are shown, or null to scale the bars
+	 *            to the current usage
+	 */
+	public void setBoard(final MemoryData newBoard) {
+		board = newBoard;
+		dirty = true;
+	}
+
+	/**
+	 * Sort the plugins of each memory type and assign the colors. Only
+	 * needed if the catalog has changed.
+	 */
+	private void updateOrders() {
+		catalog = model.getCatalog();
+		final int count = catalog.size();
+		final Integer[] sorted = new Integer[count];
+		for (int t = 0; t < MEM_TYPES; t++) {
+			final int type = t;
+			for (int i = 0; i < count; i++) {
+				sorted[i] = i;
+			}
+			Arrays.sort(sorted, (i1, i2) -> Integer.compare(
+					catalog.getValue(i2, type), catalog.getValue(i1, type)));
+			order[t] = new int[count];
+			for (int i = 0; i < count; i++) {
+				order[t][i] = sorted[i];
+			}
+		}
+		if (colors.length != count) {
+			colors = new Color[count];
+			for (int i = 0; i < count; i++) {
+				colors[i] = Color.hsb(i * GOLDEN_ANGLE % 360, 0.45, 0.9);
+			}
+		}
+	}
+
+	/**
+	 * Redraw the map. Called by the timer, but also usable directly.
+	 */
+	void draw() {
+		dirty = false;
+		if (catalog != model.getCatalog()) {
+			updateOrders();
+		}
+		final GraphicsContext gc = canvas.getGraphicsContext2D();
+		final double width = canvas.getWidth();
+		gc.setFill(BACKGROUND);
+		gc.fillRect(0, 0, width, canvas.getHeight());
+		gc.setFont(font);
+		gc.setTextBaseline(VPos.CENTER);
+
+		final MemoryData usage = model.getCurrentMemData();
+		final double barWidth = width - LABEL_WIDTH;
+		for (int t = 0; t < MEM_TYPES; t++) {
+			final double y = t * (ROW_HEIGHT + ROW_GAP);
+			gc.setFill(TEXT);
+			gc.setTextAlign(TextAlignment.LEFT);
+			gc.fillText(TYPE_NAMES[t], 0, y + ROW_HEIGHT / 2);
+			if (barWidth > 0) {
+				drawBar(gc, t, y, barWidth, BoardFitIndex.value(usage, t));
+			}
+		}
+		drawCaption(gc, MEM_TYPES * (ROW_HEIGHT + ROW_GAP), usage);
+	}
+
+	/**
+	 * Draw the bar of one memory type.
+	 *
+	 * @param gc
+	 *            the graphics context
+	 * @param type
+	 *            the memory type
+	 * @param y
+	 *            the top of the bar
+	 * @param barWidth
+	 *            the width available for the bar
+	 * @param total
+	 *            the memory required by all enabled plugins
+	 */
+	private void drawBar(final GraphicsContext gc, final int type,
+			final double y, final double barWidth, final int total) {
+		int limit = 0;
+		if (board != null) {
+			limit = BoardFitIndex.value(board, type);
+		}
+		final int scale = Math.max(total, limit);
+		segmentCounts[type] = 0;
+		barEnds[type] = LABEL_WIDTH;
+		othersBytes[type] = 0;
+		if (scale <= 0) {
+			return;
+		}
+		final double pixelsPerByte = barWidth / scale;
+		double x = LABEL_WIDTH;
+		int drawn = 0;
+		for (final int plugin : order[type]) {
+			final int value = catalog.getValue(plugin, type);
+			final double w = value * pixelsPerByte;
+			if (w < MIN_SEGMENT_WIDTH) {
+				// all remaining plugins are smaller
+				break;
+			}
+			if (!model.isEnabled(plugin)) {
+				continue;
+			}
+			drawSegment(gc, type, x, y, w, plugin);
+			x += w;
+			drawn += value;
+		}
+		othersBytes[type] = total - drawn;
+		final double others = othersBytes[type] * pixelsPerByte;
+		if (others > 0) {
+			drawSegment(gc, type, x, y, others, -1);
+			x += others;
+		}
+		barEnds[type] = x;
+		if (limit > 0) {
+			final double limitX = LABEL_WIDTH + limit * pixelsPerByte;
+			gc.setStroke(LIMIT);
+			gc.setLineWidth(2);
+			gc.strokeLine(limitX - 1, y - 1, limitX - 1, y + ROW_HEIGHT + 1);
+		}
+	}
+
+	/**
+	 * Draw a segment and remember it for the hit test.
+	 *
+	 * @param gc
+	 *            the graphics context
+	 * @param type
+	 *            the memory type
+	 * @param x
+	 *            the left edge
+	 * @param y
+	 *            the top edge
+	 * @param w
+	 *            the width
+	 * @param plugin
+	 *            the plugin, -1 for the segment "others"
+	 */
+	private void drawSegment(final GraphicsContext gc, final int type,
+			final double x, final double y, final double w, final int plugin) {
+		final int n = segmentCounts[type];
+		if (n == segmentStarts[type].length) {
+			final int capacity = Math.max(16, n * 2);
+			segmentStarts[type] = Arrays.copyOf(segmentStarts[type], capacity);
+			segmentPlugins[type] =
+					Arrays.copyOf(segmentPlugins[type], capacity);
+		}
+		segmentStarts[type][n] = x;
+		segmentPlugins[type][n] = plugin;
+		segmentCounts[type] = n + 1;
+
+		String name = "others";
+		if (plugin < 0) {
+			gc.setFill(OTHERS);
+		} else {
+			gc.setFill(colors[plugin]);
+			name = catalog.getMacroName(plugin);
+		}
+		gc.fillRect(x, y, w, ROW_HEIGHT);
+		if (type == hoveredType && plugin == hoveredPlugin) {
+			gc.setStroke(TEXT);
+			gc.setLineWidth(1);
+			gc.strokeRect(x + 0.5, y + 0.5, w - 1, ROW_HEIGHT - 1);
+		}
+		// estimated, measuring every label would cost more than drawing
+		if (w > (name.length() + 1) * CHAR_WIDTH) {
+			gc.setFill(TEXT);
+			gc.setTextAlign(TextAlignment.CENTER);
+			gc.fillText(name, x + w / 2, y + ROW_HEIGHT / 2);
+		}
+	}
+
+	/**
+	 * Draw the line describing the segment under the mouse, or the board.
+	 *
+	 * @param gc
+	 *            the graphics context
+	 * @param y
+	 *            the top of the line
+	 * @param usage
+	 *            the memory required by all enabled plugins
+	 */
+	private void drawCaption(final GraphicsContext gc, final double y,
+			final MemoryData usage) {
+		String caption = "";
+		if (hoveredType >= 0) {
+			final int total = BoardFitIndex.value(usage, hoveredType);
+			if (hoveredPlugin >= 0) {
+				final int value = catalog.getValue(hoveredPlugin, hoveredType);
+				caption = catalog.getName(hoveredPlugin) + ": "
+						+ TYPE_NAMES[hoveredType] + " " + value + " of "
+						+ total;
+			} else {
+				caption = "Plugins too small to show: "
+						+ TYPE_NAMES[hoveredType] + " "
+						+ othersBytes[hoveredType] + " of " + total;
+			}
+		} else if (board != null) {
+			caption = "Limits of " + board.getName();
+		}
+		gc.setFill(TEXT);
+		gc.setTextAlign(TextAlignment.LEFT);
+		gc.fillText(caption, 0, y + ROW_HEIGHT / 2);
+	}
+
+	/**
+	 * Find the segment under the mouse and redraw if it has changed.
+	 *
+	 * @param x
+	 *            the horizontal mouse position
+	 * @param y
+	 *            the vertical mouse position
+	 */
+	private void hover(final double x, final double y) {
+		int type = -1;
+		int plugin = -1;
+		final int row = (int) Math.floor(y / (ROW_HEIGHT + ROW_GAP));
+		if (y >= 0 && row < MEM_TYPES && x >= LABEL_WIDTH
+				&& x < barEnds[row]) {
+			final int n = segmentCounts[row];
+			int s = Arrays.binarySearch(segmentStarts[row], 0, n, x);
+			if (s < 0) {
+				s = -s - 2;
+			}
+			if (s >= 0) {
+				type = row;
+				plugin = segmentPlugins[row][s];
+			}
+		}
+		if (type != hoveredType || plugin != hoveredPlugin) {
+			hoveredType = type;
+			hoveredPlugin = plugin;
+			dirty = true;
+		}
+	}
+
+}
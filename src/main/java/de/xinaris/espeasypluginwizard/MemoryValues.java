@@ -0,0 +1,49 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The memory a named entry needs, read only: the sizes of a plugin, the
+ * sum over a selection or the limits of a board.
+ */
+public interface MemoryValues {
+
+	/**
+	 * The names of the memory types in the order of the values of the size
+	 * table, as in the memory limits of the config file.
+	 */
+	List<String> TYPE_NAMES = Collections.unmodifiableList(Arrays.asList(
+			"cacheIRam", "initRam", "roRam", "uninitRam", "flashRom"));
+
+	/**
+	 * @return the name
+	 */
+	String getName();
+
+	/**
+	 * @return the cacheIRam
+	 */
+	int getCacheIRam();
+
+	/**
+	 * @return the initRam
+	 */
+	int getInitRam();
+
+	/**
+	 * @return the roRam
+	 */
+	int getRoRam();
+
+	/**
+	 * @return the uninitRam
+	 */
+	int getUninitRam();
+
+	/**
+	 * @return the flashRom
+	 */
+	int getFlashRom();
+}
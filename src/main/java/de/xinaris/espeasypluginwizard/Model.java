@@ -1,18 +1,27 @@
 package de.xinaris.espeasypluginwizard;
 
-import java.io.BufferedWriter;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Stream;
 
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -21,6 +30,13 @@ import javafx.collections.ObservableList;
  * @author jbaumann
  */
 public class Model {
+	/**
+	 * A line of a header file, a plugin macro that is defined or commented
+	 * out.
+	 */
+	private static final Pattern DEFINE_PATTERN =
+			Pattern.compile("(//)? *#define +(\\S+).*");
+
 	/**
 	 * The pluginDataMap contains all entries in the plugin data file. The key
 	 * is the plugin name.
@@ -29,11 +45,91 @@ public class Model {
 	private final ObservableList<PluginData> pluginDataList =
 			FXCollections.observableArrayList();
 
+	/**
+	 * True as soon as the pluginDataList has been requested, from then on it
+	 * contains a view for every plugin.
+	 */
+	private boolean pluginDataShown = false;
+
+	/**
+	 * The immutable catalog of all plugins. It may be shared with other
+	 * models and is replaced when plugins are added or changed.
+	 */
+	private volatile PluginCatalog catalog;
+
+	/**
+	 * The views of the plugins by their dense index, created on first use.
+	 */
+	private final List<PluginData> views = new ArrayList<>();
+
+	/**
+	 * The enabled state of all plugins, indexed by the dense plugin index.
+	 */
+	private final PluginSelection selection = new PluginSelection();
+
+	/**
+	 * The undo/redo history of the selection.
+	 */
+	private final SelectionHistory history =
+			new SelectionHistory(new BitSet(), SelectionHistory.DEFAULT_LIMIT);
+
+	/**
+	 * The dependency and conflict rules between plugins.
+	 */
+	private RuleEngine rules = new RuleEngine(Collections.emptyMap());
+
+	/**
+	 * The memory requirements of the enabled plugins, maintained with every
+	 * change of the selection.
+	 */
+	private final int[] totals = new int[SizeTableParser.VALUES];
+
+	/**
+	 * The index over the memory limits.
+	 */
+	private BoardFitIndex fitIndex = new BoardFitIndex(Collections.emptyList());
+
+	/**
+	 * The target (size table) of every memory limit, and the memory limits
+	 * belonging to the active target.
+	 */
+	private int[] boardTargets = new int[0];
+	private BitSet targetBoards = new BitSet();
+
+	/**
+	 * The memory limits the current selection fits, recalculated in place on
+	 * the first request after the selection or the memory limits changed.
+	 */
+	private final BitSet fittingBoards = new BitSet();
+	private boolean fittingValid = false;
+
+	/**
+	 * Whether enabling a plugin would exceed one of the fitting boards.
+	 */
+	private final HeadroomTracker headroom = new HeadroomTracker(this);
+
+	/**
+	 * The search index over the plugins, built with the first search and
+	 * rebuilt after the source directory has been analyzed.
+	 */
+	private SearchIndex searchIndex = null;
+
+	/**
+	 * The cache of the source file metadata, or null to analyze all files.
+	 */
+	private volatile ScanCache scanCache = null;
+
+	/**
+	 * We start with an unsaved configuration until it is saved or loaded.
+	 */
+	private boolean unsaved = true;
+
 	private final ObservableList<MemoryData> memLimits =
 			FXCollections.observableArrayList();
 
 	private String fileName;
 	private String srcDir;
+	private Consumer<String> messageHandler = System.out::println;
 	private final String suffix;
 	private final int prefixLength = 5; // "_P040"
 
@@ -49,8 +145,32 @@ public class Model {
 	 *            the srcDir to set
 	 */
 	public void setSrcDir(final String srcDir) {
-		this.srcDir = srcDir;
-		analyzeSrcDir();
+		try {
+			final Update update = scanSrcDir(srcDir);
+			update.getMessages().forEach(messageHandler);
+			apply(update);
+		} catch (final IOException e) {
+			this.srcDir = srcDir;
+			messageHandler.accept(e.getMessage());
+		}
+	}
+
+	/**
+	 * @param handler
+	 *            receives the messages for the user of setSrcDir and load,
+	 *            e.g. about new plugins; they are printed by default
+	 */
+	public void setMessageHandler(final Consumer<String> handler) {
+		messageHandler = handler;
+	}
+
+	/**
+	 * @param cache
+	 *            the cache of the source file metadata used when analyzing
+	 *            source directories, or null
+	 */
+	public void setScanCache(final ScanCache cache) {
+		scanCache = cache;
 	}
 
 	/**
@@ -82,23 +202,248 @@ public class Model {
 	 */
 	public Model(final String pluginDataName, final String prefixPattern,
 			final String suffix) throws IOException {
-		this.suffix = suffix;
+		this(readCatalog(pluginDataName, prefixPattern, suffix));
+	}
+
+	/**
+	 * Constructor for a model with several size tables, e.g. one for each
+	 * architecture. The first size table is the active target.
+	 *
+	 * @param pluginDataNames
+	 *            the names of the files containing the plugin data
+	 * @param prefixPattern
+	 *            the prefix pattern identifying the relevant plugin lines
+	 * @param suffix
+	 *            The file suffix used to determine whether a file is a plugin
+	 * @throws IOException
+	 *             if a file cannot be found or read
+	 */
+	public Model(final List<String> pluginDataNames,
+			final String prefixPattern, final String suffix)
+			throws IOException {
+		this(pluginDataNames, new PluginClassifier(prefixPattern), suffix);
+	}
+
+	/**
+	 * Constructor for a model with several size tables and the given
+	 * classification of read-only plugins.
+	 *
+	 * @param pluginDataNames
+	 *            the names of the files containing the plugin data
+	 * @param classifier
+	 *            decides which plugins are read-only
+	 * @param suffix
+	 *            The file suffix used to determine whether a file is a plugin
+	 * @throws IOException
+	 *             if a file cannot be found or read
+	 */
+	public Model(final List<String> pluginDataNames,
+			final PluginClassifier classifier, final String suffix)
+			throws IOException {
+		this(pluginDataNames, classifier, suffix, System.out::println);
+	}
+
+	/**
+	 * Constructor as above, with the receiver of the messages for the user.
+	 *
+	 * @param pluginDataNames
+	 *            the names of the files containing the plugin data
+	 * @param classifier
+	 *            decides which plugins are read-only
+	 * @param suffix
+	 *            The file suffix used to determine whether a file is a plugin
+	 * @param handler
+	 *            receives the messages about the plugin data files and later
+	 *            those of setSrcDir and load
+	 * @throws IOException
+	 *             if a file cannot be found or read
+	 */
+	public Model(final List<String> pluginDataNames,
+			final PluginClassifier classifier, final String suffix,
+			final Consumer<String> handler) throws IOException {
+		this(readCatalog(pluginDataNames, classifier, suffix, handler));
+		messageHandler = handler;
+	}
+
+	/**
+	 * Create a model (a session) sharing the given catalog. Only the
+	 * selection and the data derived from it belong to the model.
+	 *
+	 * @param catalog
+	 *            the catalog of all plugins
+	 */
+	public Model(final PluginCatalog catalog) {
+		this.suffix = catalog.getSuffix();
+		this.catalog = catalog;
+		selection.addListener(rules);
+		selection.addListener((index, value) -> updateTotals(index, value));
+		selection.addListener((index, value) -> headroom.pluginChanged(index));
+		pluginsAdded(0);
+		history.reset(getSelection());
+		headroom.reset();
+	}
 
+	/**
+	 * Read the plugin data file into a new catalog.
+	 *
+	 * @param pluginDataName
+	 *            the name of the file containing the plugin data
+	 * @param prefixPattern
+	 *            the prefix pattern identifying the relevant plugin lines
+	 * @param suffix
+	 *            The file suffix used to determine whether a file is a plugin
+	 * @return the catalog
+	 * @throws IOException
+	 *             if the file cannot be found or read
+	 */
+	public static PluginCatalog readCatalog(final String pluginDataName,
+			final String prefixPattern, final String suffix)
+			throws IOException {
+		return readCatalog(Collections.singletonList(pluginDataName),
+				prefixPattern, suffix);
+	}
+
+	/**
+	 * Read several plugin data files into a new catalog, one target for each
+	 * file. The first file defines the plugins; the rows of the other files
+	 * are matched by their name or unique prefix, plugins only found there
+	 * are added. Plugins missing in a file have the values 0 for its target.
+	 *
+	 * @param pluginDataNames
+	 *            the names of the files containing the plugin data, without
+	 *            duplicates
+	 * @param prefixPattern
+	 *            the prefix pattern identifying the relevant plugin lines
+	 * @param suffix
+	 *            The file suffix used to determine whether a file is a plugin
+	 * @return the catalog
+	 * @throws IOException
+	 *             if a file cannot be found or read
+	 */
+	public static PluginCatalog readCatalog(final List<String> pluginDataNames,
+			final String prefixPattern, final String suffix)
+			throws IOException {
+		return readCatalog(pluginDataNames, new PluginClassifier(prefixPattern),
+				suffix);
+	}
+
+	/**
+	 * Read several plugin data files into a new catalog, see above.
+	 *
+	 * @param pluginDataNames
+	 *            the names of the files containing the plugin data, without
+	 *            duplicates
+	 * @param classifier
+	 *            decides which plugins are read-only
+	 * @param suffix
+	 *            The file suffix used to determine whether a file is a plugin
+	 * @return the catalog
+	 * @throws IOException
+	 *             if a file cannot be found or read
+	 */
+	public static PluginCatalog readCatalog(final List<String> pluginDataNames,
+			final PluginClassifier classifier, final String suffix)
+			throws IOException {
+		return readCatalog(pluginDataNames, classifier, suffix,
+				System.out::println);
+	}
+
+	/**
+	 * Read several plugin data files into a new catalog, see above.
+	 *
+	 * @param pluginDataNames
+	 *            the names of the files containing the plugin data, without
+	 *            duplicates
+	 * @param classifier
+	 *            decides which plugins are read-only
+	 * @param suffix
+	 *            The file suffix used to determine whether a file is a plugin
+	 * @param reporter
+	 *            receives the messages about missing files and rows that
+	 *            cannot be parsed
+	 * @return the catalog
+	 * @throws IOException
+	 *             if a file cannot be found or read
+	 */
+	public static PluginCatalog readCatalog(final List<String> pluginDataNames,
+			final PluginClassifier classifier, final String suffix,
+			final Consumer<String> reporter) throws IOException {
+		final PluginCatalog.Builder builder =
+				PluginCatalog.builder(suffix, pluginDataNames.get(0));
+		final Map<String, Integer> byName = new HashMap<>();
+		for (int t = 0; t < pluginDataNames.size(); t++) {
+			int target = 0;
+			if (t > 0) {
+				target = builder.addTarget(pluginDataNames.get(t));
+			}
+			final int current = target;
+			// every plugin gets its values only once from each file
+			final BitSet seen = new BitSet();
+			final int[] duplicates = new int[1];
+			readSizeTable(pluginDataNames.get(t), reporter, (name, values) -> {
+				Integer index = byName.get(name);
+				if (index == null && current > 0) {
+					final int byPrefix = builder.findPlugin(name);
+					if (byPrefix >= 0) {
+						index = byPrefix;
+					}
+				}
+				if (index == null) {
+					index = addSizeRow(builder, name,
+							new int[SizeTableParser.VALUES], classifier);
+					byName.put(name, index);
+				} else if (seen.get(index)) {
+					duplicates[0]++;
+					return;
+				}
+				seen.set(index);
+				builder.setValues(current, index, values);
+			});
+			if (duplicates[0] > 0) {
+				reporter.accept("Plugin Data File: " + duplicates[0]
+						+ " duplicate rows ignored");
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Parse a plugin data file and report the rows that cannot be parsed.
+	 *
+	 * @param pluginDataName
+	 *            the name of the file containing the plugin data
+	 * @param reporter
+	 *            receives the messages about the file
+	 * @param rows
+	 *            receives the name and the five memory values of every row
+	 * @throws IOException
+	 *             if the file cannot be found or read
+	 */
+	private static void readSizeTable(final String pluginDataName,
+			final Consumer<String> reporter,
+			final SizeTableParser.RowHandler rows) throws IOException {
 		final Path path = Paths.get(pluginDataName);
 		if (!Files.exists(path)) {
-			System.out.println(
+			reporter.accept(
 					"Plugin Data File does not exist: " + pluginDataName);
 			throw new IOException();
 		}
 
-		try {
-			Files.lines(path).forEach(line -> parseLine(line, prefixPattern));
+		final SizeTableParser parser = new SizeTableParser();
+		try (BufferedReader reader = Files.newBufferedReader(path)) {
+			parser.parse(reader, rows);
 		} catch (final IOException e) {
-			System.out.println(
+			reporter.accept(
 					"Couldn't read Plugin Data File: " + pluginDataName);
 			throw e;
 		}
-
+		for (final String error : parser.getErrors()) {
+			reporter.accept("Plugin Data File: " + error);
+		}
+		if (parser.getErrorCount() > parser.getErrors().size()) {
+			reporter.accept("Plugin Data File: " + parser.getErrorCount()
+					+ " rows could not be parsed");
+		}
 	}
 
 	/**
@@ -146,16 +491,529 @@ public class Model {
 	 * @return an observable list of plugin data objects
 	 */
 	public ObservableList<PluginData> getPluginData() {
+		if (!pluginDataShown) {
+			pluginDataShown = true;
+			syncPluginData();
+		}
 		return pluginDataList;
 	}
 
 	/**
-	 * Initialize the memory limits.
+	 * Add the views of new plugins to the pluginDataList.
+	 */
+	private void syncPluginData() {
+		final List<PluginData> added = new ArrayList<>();
+		for (int i = pluginDataList.size(); i < catalog.size(); i++) {
+			added.add(getPlugin(i));
+		}
+		pluginDataList.addAll(added);
+	}
+
+	/**
+	 * @return the catalog of all plugins
+	 */
+	public PluginCatalog getCatalog() {
+		return catalog;
+	}
+
+	/**
+	 * Replace the catalog by a new version containing the same plugins and
+	 * maybe additional ones.
+	 *
+	 * @param newCatalog
+	 *            the new catalog built from the current one
+	 */
+	private void updateCatalog(final PluginCatalog newCatalog) {
+		final int from = catalog.size();
+		catalog = newCatalog;
+		pluginsAdded(from);
+	}
+
+	/**
+	 * Initialize the state of plugins added to the catalog: read-only plugins
+	 * are enabled, all others disabled.
+	 *
+	 * @param from
+	 *            the index of the first new plugin
+	 */
+	private void pluginsAdded(final int from) {
+		final PluginCatalog current = catalog;
+		// enabling a read-only plugin notifies the tracker, which only knows
+		// the old plugins until its next reset
+		headroom.pluginAdded();
+		for (int index = from; index < current.size(); index++) {
+			rules.addPlugin(index, current.getName(index));
+			selection.setEnabled(index, current.isReadOnly(index));
+			selection.setModified(index, false);
+			if (searchIndex != null) {
+				searchIndex.add(index, SearchIndex.searchText(current, index));
+			}
+		}
+		if (pluginDataShown) {
+			syncPluginData();
+		}
+	}
+
+	/**
+	 * @param index
+	 *            the dense plugin index
+	 * @return the plugin with the given index
+	 */
+	public PluginData getPlugin(final int index) {
+		if (index < 0 || index >= catalog.size()) {
+			throw new IndexOutOfBoundsException("Plugin index: " + index);
+		}
+		synchronized (views) {
+			while (views.size() <= index) {
+				views.add(null);
+			}
+			PluginData view = views.get(index);
+			if (view == null) {
+				view = new PluginData(this, selection, index);
+				views.set(index, view);
+			}
+			return view;
+		}
+	}
+
+	/**
+	 * @return the number of plugins in the model
+	 */
+	public int getPluginCount() {
+		return catalog.size();
+	}
+
+	/**
+	 * @param index
+	 *            the dense plugin index
+	 * @return true if the plugin is enabled
+	 */
+	public boolean isEnabled(final int index) {
+		return selection.isEnabled(index);
+	}
+
+	/**
+	 * Find a plugin by its macro name, its file name or the unique prefix of
+	 * either, e.g. "P036", "P036_FrameOLED" or "_P036_FrameOLED.ino".
+	 *
+	 * @param name
+	 *            the name to look for
+	 * @return the plugin or null if no plugin with this prefix exists
+	 */
+	public PluginData findPlugin(final String name) {
+		final int index = catalog.findPlugin(name);
+		if (index < 0) {
+			return null;
+		}
+		return getPlugin(index);
+	}
+
+	/**
+	 * Calculate the memory requirements of the given selection.
+	 *
+	 * @param name
+	 *            the name of the resulting memory data
+	 * @param enabled
+	 *            the enabled plugins, indexed by the dense plugin index
+	 * @return the sum of the memory requirements of all enabled plugins
+	 */
+	public MemoryData getMemData(final String name, final BitSet enabled) {
+		final PluginCatalog current = catalog;
+		final int[] sums = new int[SizeTableParser.VALUES];
+		for (int i = enabled.nextSetBit(0); i >= 0 && i < current.size();
+				i = enabled.nextSetBit(i + 1)) {
+			for (int m = 0; m < sums.length; m++) {
+				sums[m] += current.getValue(i, m);
+			}
+		}
+		return new MemoryData(name, sums[0], sums[1], sums[2], sums[3],
+				sums[4]);
+	}
+
+	/**
+	 * Add or subtract the memory requirements of a changed plugin.
+	 *
+	 * @param index
+	 *            the plugin index
+	 * @param enabled
+	 *            the new enabled state
+	 */
+	private void updateTotals(final int index, final boolean enabled) {
+		int sign = -1;
+		if (enabled) {
+			sign = 1;
+		}
+		for (int m = 0; m < totals.length; m++) {
+			totals[m] += sign * catalog.getValue(index, m);
+		}
+		fittingValid = false;
+	}
+
+	/**
+	 * @return the memory requirements of the currently enabled plugins
+	 */
+	public MemoryData getCurrentMemData() {
+		return new MemoryData("Current", totals[0], totals[1], totals[2],
+				totals[3], totals[4]);
+	}
+
+	/**
+	 * @return the numbers of the memory limits the current selection fits,
+	 *         in the order of getMemLimits(); the set is kept and updated
+	 *         with the selection, so it must not be modified
+	 */
+	public BitSet getFittingBoards() {
+		if (!fittingValid) {
+			fitIndex.fittingBoards(getCurrentMemData(), fittingBoards);
+			// boards of other targets are measured with other size tables
+			fittingBoards.and(targetBoards);
+			fittingValid = true;
+		}
+		return fittingBoards;
+	}
+
+	/**
+	 * @param usage
+	 *            the memory requirements with the size table of the active
+	 *            target
+	 * @return the numbers of the memory limits of the active target the
+	 *         memory requirements fit, in the order of getMemLimits()
+	 */
+	public BitSet getFittingBoards(final MemoryData usage) {
+		final BitSet fitting = fitIndex.fittingBoards(usage);
+		// boards of other targets are measured with other size tables
+		fitting.and(targetBoards);
+		return fitting;
+	}
+
+	/**
+	 * Determine the memory limits a selection fits, each measured with the
+	 * size table of its own target.
+	 *
+	 * @param usages
+	 *            the memory requirements of the selection for each target,
+	 *            see getMemDataPerTarget
+	 * @return the numbers of the memory limits the selection fits, in the
+	 *         order of getMemLimits()
+	 */
+	public BitSet getFittingBoards(final MemoryData[] usages) {
+		final BitSet result = new BitSet();
+		for (int t = 0; t < usages.length; t++) {
+			final BitSet fitting = fitIndex.fittingBoards(usages[t]);
+			for (int b = fitting.nextSetBit(0); b >= 0;
+					b = fitting.nextSetBit(b + 1)) {
+				if (boardTargets[b] == t) {
+					result.set(b);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Calculate the memory requirements of a selection with the size table
+	 * of every target, so that each memory limit can be checked against the
+	 * size table it belongs to.
+	 *
+	 * @param name
+	 *            the name of the resulting memory data
+	 * @param enabled
+	 *            the enabled plugins, indexed by the dense plugin index
+	 * @return the memory requirements indexed by the target
+	 */
+	public MemoryData[] getMemDataPerTarget(final String name,
+			final BitSet enabled) {
+		final MemoryData[] result = new MemoryData[catalog.getTargets().size()];
+		for (int t = 0; t < result.length; t++) {
+			final PluginCatalog sizes = catalog.forTarget(t);
+			final int[] sums = new int[SizeTableParser.VALUES];
+			for (int i = enabled.nextSetBit(0); i >= 0 && i < sizes.size();
+					i = enabled.nextSetBit(i + 1)) {
+				for (int m = 0; m < sums.length; m++) {
+					sums[m] += sizes.getValue(i, m);
+				}
+			}
+			result[t] = new MemoryData(name, sums[0], sums[1], sums[2],
+					sums[3], sums[4]);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the names of the targets, the size tables of the catalog
+	 */
+	public List<String> getTargets() {
+		return catalog.getTargets();
+	}
+
+	/**
+	 * @return the index of the active target
+	 */
+	public int getActiveTarget() {
+		return catalog.getTarget();
+	}
+
+	/**
+	 * Switch the active target. The plugins, their views and the selection
+	 * are kept, only the memory values change: the totals are summed up again
+	 * and the fitting boards are those of the new target.
+	 *
+	 * @param target
+	 *            the index of the target
+	 */
+	public void setActiveTarget(final int target) {
+		catalog = catalog.forTarget(target);
+		Arrays.fill(totals, 0);
+		final BitSet enabled = getSelection();
+		for (int i = enabled.nextSetBit(0); i >= 0; i =
+				enabled.nextSetBit(i + 1)) {
+			updateTotals(i, true);
+		}
+		updateTargetBoards();
+		headroom.reset();
+	}
+
+	/**
+	 * @param board
+	 *            the number of a memory limit, in the order of getMemLimits()
+	 * @return the index of the target the memory limit belongs to
+	 */
+	public int getBoardTarget(final int board) {
+		return boardTargets[board];
+	}
+
+	/**
+	 * @return the memory limits belonging to the active target, in the order
+	 *         of getMemLimits()
+	 */
+	public BitSet getTargetBoards() {
+		return (BitSet) targetBoards.clone();
+	}
+
+	/**
+	 * Determine the memory limits belonging to the active target.
+	 */
+	private void updateTargetBoards() {
+		final BitSet boards = new BitSet();
+		for (int b = 0; b < boardTargets.length; b++) {
+			if (boardTargets[b] == catalog.getTarget()) {
+				boards.set(b);
+			}
+		}
+		targetBoards = boards;
+		fittingValid = false;
+	}
+
+	/**
+	 * @return the tracker telling whether enabling a plugin would exceed one
+	 *         of the fitting boards
+	 */
+	public HeadroomTracker getHeadroom() {
+		return headroom;
+	}
+
+	/**
+	 * Search for plugins whose file name, macro name or metadata contain all
+	 * words of the query, ignoring case.
+	 *
+	 * @param query
+	 *            the words to search for, separated by blanks
+	 * @return the matching plugins, indexed by the dense plugin index
+	 */
+	public BitSet search(final String query) {
+		if (searchIndex == null) {
+			searchIndex = SearchIndex.of(this);
+		}
+		return searchIndex.search(query);
+	}
+
+	/**
+	 * @return a copy of all plugins sorted by their name
+	 */
+	public List<PluginData> getPluginsByName() {
+		final List<PluginData> sorted = new ArrayList<>();
+		for (final int index : catalog.getIndexesByName()) {
+			sorted.add(getPlugin(index));
+		}
+		return sorted;
+	}
+
+	/**
+	 * @return the plugins that are always enabled
+	 */
+	public BitSet getReadOnlyPlugins() {
+		return catalog.getReadOnly();
+	}
+
+	/**
+	 * @param name
+	 *            the name of a memory limit
+	 * @return the memory limit or null if there is none with this name
+	 */
+	public MemoryData findMemLimit(final String name) {
+		for (final MemoryData md : memLimits) {
+			if (md.getName().equals(name)) {
+				return md;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return a copy of the current selection of enabled plugins
+	 */
+	public BitSet getSelection() {
+		return selection.snapshot();
+	}
+
+	/**
+	 * Set the enabled plugins in one bulk operation. Read-only plugins stay
+	 * enabled regardless of the given selection.
+	 *
+	 * @param enabled
+	 *            the plugins to enable, indexed by the dense plugin index
+	 */
+	public void setSelection(final BitSet enabled) {
+		final BitSet newSelection = validSelection(enabled);
+		selection.restore(newSelection);
+		history.record(newSelection);
+	}
+
+	/**
+	 * @param enabled
+	 *            a selection, e.g. from the history of an older catalog
+	 * @return a copy with all read-only plugins enabled and without indexes
+	 *         outside of the catalog
+	 */
+	private BitSet validSelection(final BitSet enabled) {
+		final BitSet result = (BitSet) enabled.clone();
+		result.or(catalog.getReadOnly());
+		final int count = catalog.size();
+		if (result.length() > count) {
+			result.clear(count, result.length());
+		}
+		return result;
+	}
+
+	/**
+	 * Enable or disable a single plugin and record the change in the history.
+	 *
+	 * @param plugin
+	 *            the plugin to change
+	 * @param enabled
+	 *            the new enabled state
+	 */
+	public void setEnabled(final PluginData plugin, final boolean enabled) {
+		plugin.setEnabled(enabled);
+		history.record(getSelection());
+	}
+
+	/**
+	 * @return true if there is a change that can be undone
+	 */
+	public boolean canUndo() {
+		return history.canUndo();
+	}
+
+	/**
+	 * @return true if there is an undone change that can be redone
+	 */
+	public boolean canRedo() {
+		return history.canRedo();
+	}
+
+	/**
+	 * Undo the last change of the selection.
+	 */
+	public void undo() {
+		final BitSet previous = history.undo();
+		if (previous != null) {
+			selection.restore(validSelection(previous));
+		}
+	}
+
+	/**
+	 * Redo the last undone change of the selection.
+	 */
+	public void redo() {
+		final BitSet next = history.redo();
+		if (next != null) {
+			selection.restore(validSelection(next));
+		}
+	}
+
+	/**
+	 * @return true if the configuration has not been saved or differs from the
+	 *         state saved last
+	 */
+	public boolean isModified() {
+		return unsaved || selection.isModified();
+	}
+
+	/**
+	 * Take the current selection as the saved state.
+	 */
+	public void markSaved() {
+		selection.markSaved();
+		unsaved = false;
+	}
+
+	/**
+	 * Initialize the dependency and conflict rules and check the current
+	 * selection against them.
+	 *
+	 * @param ruleData
+	 *            the content of the rules file
+	 */
+	public void initRules(final Map<String, Object> ruleData) {
+		selection.removeListener(rules);
+		rules = new RuleEngine(ruleData);
+		for (int index = 0; index < catalog.size(); index++) {
+			rules.addPlugin(index, catalog.getName(index));
+			if (selection.isEnabled(index)) {
+				rules.enabledChanged(index, true);
+			}
+		}
+		selection.addListener(rules);
+	}
+
+	/**
+	 * @return the messages of all rules violated by the current selection
+	 */
+	public List<String> getRuleViolations() {
+		return rules.getViolations();
+	}
+
+	/**
+	 * @param plugin
+	 *            the plugin to check
+	 * @return the messages of the violated rules caused by the plugin
+	 */
+	public List<String> getRuleViolations(final PluginData plugin) {
+		return rules.getViolations(plugin.getIndex(), plugin.isEnabled());
+	}
+
+	/**
+	 * Check a selection that is not the current one against the rules.
+	 *
+	 * @param enabled
+	 *            the selection to check
+	 * @return the messages of the violated rules
+	 */
+	public List<String> checkRules(final BitSet enabled) {
+		return rules.check(enabled);
+	}
+
+	/**
+	 * Initialize the memory limits. A limit can name the size table it is
+	 * measured with in the key "pluginData", otherwise it belongs to the
+	 * first size table.
 	 *
 	 * @param limits
 	 *            a list of Maps containing the limit information
 	 */
 	public void initMemLimits(final List<Map<String, Object>> limits) {
+		final List<Integer> targets = new ArrayList<>();
 
 		for (final Map<String, Object> limit : limits) {
 			// @TODO Check type and null values
@@ -179,61 +1037,66 @@ public class Model {
 						(Integer) cacheIRam, (Integer) initRam, (Integer) roRam,
 						(Integer) uninitRam, (Integer) flashRom);
 				memLimits.add(md);
+				targets.add(boardTarget(md, limit.get(
+						ConfigurationData.PLUGIN_DATA)));
 			} else {
 				System.out.println("Memlimit definition '" + name
 						+ "': a value has a wrong type");
 			}
 		}
+		fitIndex = new BoardFitIndex(memLimits);
+		// the new limits have been appended
+		final int first = boardTargets.length;
+		boardTargets = Arrays.copyOf(boardTargets, memLimits.size());
+		for (int b = first; b < boardTargets.length; b++) {
+			boardTargets[b] = targets.get(b - first);
+		}
+		updateTargetBoards();
+		headroom.reset();
 	}
 
 	/**
-	 * Parse each line of the plugin data file and add its information to the
-	 * internal structures. If a line is not parseable it is ignored.
-	 *
-	 * @param line
-	 *            contains the current line from the plugin data file
-	 * @param prefixPattern
-	 *            the prefix pattern describes the part that allows to recognize
-	 *            a relevant line
+	 * @param md
+	 *            the memory limit
+	 * @param sizeTable
+	 *            the name of its size table or null
+	 * @return the index of the target the memory limit belongs to
 	 */
-	private void parseLine(final String line, final String prefixPattern) {
-		if (!line.startsWith("src/")) {
-			return;
+	private int boardTarget(final MemoryData md, final Object sizeTable) {
+		if (sizeTable == null) {
+			return 0;
 		}
-		final String[] fields = line.split("\\|");
-		final int srcOffset = 4;
-		fields[0] = fields[0].substring(srcOffset, fields[0].length());
-		for (int i = 0; i < fields.length; i++) {
-			fields[i] = fields[i].trim();
+		final int target = catalog.getTargets().indexOf(sizeTable.toString());
+		if (target < 0) {
+			System.out.println("Memlimit definition '" + md.getName()
+					+ "': size table " + sizeTable + " not loaded");
+			return 0;
 		}
-
-		// determine whether filename is incomplete
-		boolean incomplete = true;
-		if (fields[0].endsWith(".ino")) {
-			incomplete = false;
-		}
-
-		// determine whether readonly
-		final PluginData pd = new PluginData(fields,
-				nameIsReadOnly(fields[0], prefixPattern), incomplete);
-		pd.calcMacroName(suffix);
-		pluginDataList.add(pd);
+		return target;
 	}
 
 	/**
-	 * Check whether a plugin name is a plugin that can be enabled/disabled or
-	 * if it is a system plugin/file.
+	 * Add a row of the plugin data file to the catalog.
 	 *
+	 * @param builder
+	 *            the builder of the catalog
 	 * @param name
-	 *            the file name to check
-	 * @param prefixPattern
-	 *            the current prefix pattern
-	 * @return true if the plugin name denotes a read-only plugin
+	 *            the plugin name, maybe truncated
+	 * @param values
+	 *            the five memory values
+	 * @param classifier
+	 *            decides which plugins are read-only
+	 * @return the index of the new plugin
 	 */
-	protected boolean nameIsReadOnly(final String name,
-			final String prefixPattern) {
+	private static int addSizeRow(final PluginCatalog.Builder builder,
+			final String name, final int[] values,
+			final PluginClassifier classifier) {
+		// determine whether filename is incomplete
+		final boolean incomplete = !name.endsWith(builder.getSuffix());
 
-		return !(name.matches("^(" + prefixPattern + ").*"));
+		// determine whether readonly
+		return builder.add(name, values, classifier.isReadOnly(name),
+				incomplete);
 	}
 
 	/**
@@ -244,36 +1107,149 @@ public class Model {
 	 * @return true if saving the data was successful
 	 */
 	public boolean save(final File saveFile) {
-		try (BufferedWriter writer =
-				Files.newBufferedWriter(saveFile.toPath())) {
-
-			// sort the plugins by name
-			pluginDataList
-					.sort((pl1, pl2) -> pl1.getName().compareTo(pl2.getName()));
-			for (final PluginData p : pluginDataList) {
-				final String name = p.getMacroName();
-				if (!p.isEnabled()) {
-					writer.write("// ");
-				}
-				writer.write("#define " + name + System.lineSeparator());
-
-			}
-			writer.flush();
+		final boolean success = save(saveFile, getSelection());
+		if (success) {
 			// be conservative, only set to unmodified after everything is
 			// written
-			for (final PluginData pl : pluginDataList) {
-				pl.setModified(false);
-			}
+			markSaved();
+		}
+		return success;
+	}
 
+	/**
+	 * Save the given selection into the given file using the header format.
+	 * The build manifest is written next to it, see ManifestExporter. The
+	 * current selection of the model is not changed.
+	 *
+	 * @param saveFile
+	 *            the File object denoting the file in which to save the data
+	 * @param enabled
+	 *            the plugins to enable, indexed by the dense plugin index
+	 * @return true if saving the data was successful
+	 */
+	public boolean save(final File saveFile, final BitSet enabled) {
+		try {
+			writeHeader(saveFile, enabled);
 			return true;
-
-		} catch (final IOException e1) {
-			System.out.println(
-					"Something went wrong writing file " + saveFile.getPath());
+		} catch (final IOException e) {
+			System.out.println(e.getMessage());
 		}
 		return false;
 	}
 
+	/**
+	 * Write the given selection into the given file using the header format,
+	 * and the build manifest next to it. The model is only read, so the files
+	 * can be written in the background as long as the catalog and the memory
+	 * limits do not change meanwhile.
+	 *
+	 * @param saveFile
+	 *            the File object denoting the file in which to save the data
+	 * @param enabled
+	 *            the plugins to enable, indexed by the dense plugin index
+	 * @throws IOException
+	 *             if a file cannot be written, the message names the file
+	 */
+	public void writeHeader(final File saveFile, final BitSet enabled)
+			throws IOException {
+		writeHeader(saveFile, enabled, ProgressListener.NONE);
+	}
+
+	/**
+	 * Write the header and the manifest as above and report the progress.
+	 * Both files are written to temporary files first, which replace the
+	 * old files only after both have been written completely. If writing
+	 * fails or the thread is interrupted, e.g. because the user cancelled
+	 * the operation, the old files are unchanged.
+	 *
+	 * @param saveFile
+	 *            the File object denoting the file in which to save the data
+	 * @param enabled
+	 *            the plugins to enable, indexed by the dense plugin index
+	 * @param progress
+	 *            receives the number of files written so far
+	 * @throws IOException
+	 *             if a file cannot be written or the thread is interrupted,
+	 *             the message names the file
+	 */
+	public void writeHeader(final File saveFile, final BitSet enabled,
+			final ProgressListener progress) throws IOException {
+		final String profile = saveFile.getName();
+		final Path header = saveFile.toPath();
+		final Path manifest = ManifestExporter.manifestFile(saveFile).toPath();
+		final Path headerTemp = write(header, new HeaderExporter(this),
+				profile, enabled);
+		progress.progress(1, 3);
+		final Path manifestTemp;
+		try {
+			manifestTemp = write(manifest, new ManifestExporter(this), profile,
+					enabled);
+		} catch (final IOException e) {
+			Files.deleteIfExists(headerTemp);
+			throw e;
+		}
+		progress.progress(2, 3);
+		if (Thread.currentThread().isInterrupted()) {
+			Files.deleteIfExists(headerTemp);
+			Files.deleteIfExists(manifestTemp);
+			throw new InterruptedIOException("Cancelled writing " + header);
+		}
+		// moving is not interruptible, once started both files are replaced
+		try {
+			AtomicFile.replace(headerTemp, header);
+		} catch (final IOException e) {
+			Files.deleteIfExists(manifestTemp);
+			throw new IOException(
+					"Something went wrong writing file " + header, e);
+		}
+		try {
+			AtomicFile.replace(manifestTemp, manifest);
+		} catch (final IOException e) {
+			throw new IOException(
+					"Something went wrong writing file " + manifest, e);
+		}
+		progress.progress(3, 3);
+	}
+
+	/**
+	 * Write a selection into a temporary file next to the given file.
+	 *
+	 * @param file
+	 *            the file
+	 * @param exporter
+	 *            the exporter for the format of the file
+	 * @param profile
+	 *            the name of the profile
+	 * @param enabled
+	 *            the plugins to enable, indexed by the dense plugin index
+	 * @return the temporary file
+	 * @throws IOException
+	 *             if the file cannot be written or the thread is
+	 *             interrupted, the temporary file is deleted then
+	 */
+	private Path write(final Path file, final SelectionExporter exporter,
+			final String profile, final BitSet enabled) throws IOException {
+		final Path temp = AtomicFile.createTemp(file);
+		try (FileChannel channel =
+				FileChannel.open(temp, StandardOpenOption.WRITE);
+				ChannelWriter writer = new ChannelWriter(channel)) {
+			exporter.begin(writer);
+			exporter.export(writer, profile, enabled);
+			exporter.end(writer);
+			if (Thread.currentThread().isInterrupted()) {
+				throw new InterruptedIOException("Cancelled writing " + file);
+			}
+		} catch (final IOException e) {
+			Files.deleteIfExists(temp);
+			if (e instanceof InterruptedIOException) {
+				throw e;
+			}
+			throw new IOException(
+					"Something went wrong writing file " + file, e);
+		}
+		return temp;
+	}
+
 	/**
 	 * Load the given file, adjust the plugin status and add new plugins if they
 	 * are not found in the plugin data list.
@@ -286,78 +1262,261 @@ public class Model {
 	 * @return true if the load was successful
 	 */
 	public boolean load(final File loadFile, final String prefixPattern) {
+		try {
+			final Update update = readHeader(loadFile, prefixPattern);
+			update.getMessages().forEach(messageHandler);
+			return apply(update);
+		} catch (final IOException e) {
+			messageHandler.accept("Something went wrong loading the file");
+			return false;
+		}
+	}
 
-		final HashMap<String, PluginData> map = new HashMap<>();
-		for (final PluginData pl : pluginDataList) {
-			final String shortenedMacro =
-					pl.getMacroName().substring(0, prefixLength - 1); // no
-																		// underscore
-			map.put(shortenedMacro, pl);
-		}
-		try (Stream<String> stream = Files.lines(loadFile.toPath())) {
-			stream.forEach(line -> {
-				final Matcher m = Pattern.compile("(//)? *#define +(\\S+).*")
-						.matcher(line);
+	/**
+	 * Read a header file without changing the model. Plugins that are not in
+	 * the catalog are added to a copy of it. The model is only read, so the
+	 * file can be read in the background and the result applied later.
+	 *
+	 * @param loadFile
+	 *            the File object denoting the file to load
+	 * @param prefixPattern
+	 *            the pattern that denotes the prefix of plugins that can be
+	 *            enabled
+	 * @return the selection of the file and the extended catalog
+	 * @throws IOException
+	 *             if the file cannot be read or the thread is interrupted
+	 */
+	public Update readHeader(final File loadFile, final String prefixPattern)
+			throws IOException {
+		return readHeader(loadFile, new PluginClassifier(prefixPattern));
+	}
+
+	/**
+	 * Read a header file without changing the model, see above.
+	 *
+	 * @param loadFile
+	 *            the File object denoting the file to load
+	 * @param classifier
+	 *            decides which new plugins are read-only
+	 * @return the selection of the file and the extended catalog
+	 * @throws IOException
+	 *             if the file cannot be read or the thread is interrupted
+	 */
+	public Update readHeader(final File loadFile,
+			final PluginClassifier classifier) throws IOException {
+		return readHeader(loadFile, classifier, ProgressListener.NONE);
+	}
+
+	/**
+	 * Read a header file as above and report the progress.
+	 *
+	 * @param loadFile
+	 *            the File object denoting the file to load
+	 * @param classifier
+	 *            decides which new plugins are read-only
+	 * @param progress
+	 *            receives the number of characters read so far
+	 * @return the selection of the file and the extended catalog
+	 * @throws IOException
+	 *             if the file cannot be read or the thread is interrupted
+	 */
+	public Update readHeader(final File loadFile,
+			final PluginClassifier classifier,
+			final ProgressListener progress) throws IOException {
+		final PluginCatalog base = catalog;
+		final List<String> messages = new ArrayList<>();
+		final BitSet loaded = getSelection();
+		// new plugins are collected in a copy of the catalog
+		final PluginCatalog.Builder builder = base.toBuilder();
+		final long size = loadFile.length();
+		long read = 0;
+		try (BufferedReader reader =
+				Files.newBufferedReader(loadFile.toPath())) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				checkInterrupted(loadFile);
+				read += line.length() + 1;
+				progress.progress(Math.min(read, size), size);
+				final Matcher m = DEFINE_PATTERN.matcher(line);
 				if (m.matches()) {
 					final boolean enabled = m.group(1) == null;
 					final String macroName = m.group(2);
-					final String shortenedMacro =
-							macroName.substring(0, prefixLength - 1); // no
-																		// underscore
-					final PluginData pl = map.get(shortenedMacro);
-					if (pl != null) {
-						pl.setEnabled(enabled);
-						pl.setModified(false);
-						if (!pl.getMacroName().equals(macroName)) {
-							System.out.println(
-									"Warning: : Prefix " + shortenedMacro
-											+ ": actual values differ");
-							System.out.println("Keeping " + pl.getMacroName()
-									+ " instead of " + macroName);
+					final int index = builder.findPlugin(macroName);
+					if (index >= 0) {
+						loaded.set(index, enabled);
+						final String known = builder.getMacroName(index);
+						if (!known.equals(macroName)) {
+							messages.add("Warning: : Prefix "
+									+ PluginCatalog.prefix(macroName)
+									+ ": actual values differ");
+							messages.add("Keeping " + known + " instead of "
+									+ macroName);
 						}
 					} else {
 						// Create new Plugin Data
 						final String name = "_" + macroName;
-						final boolean readOnly =
-								nameIsReadOnly(name, prefixPattern);
-						final PluginData newData = new PluginData(name, 0, 0, 0,
-								0, 0, readOnly, false);
-						newData.setEnabled(enabled);
-						newData.setModified(false);
-						newData.calcMacroName(suffix);
-						pluginDataList.add(newData);
-						System.out.println("Found new entry: " + name);
+						final boolean readOnly = classifier.isReadOnly(name);
+						final int newIndex = builder.add(name,
+								new int[SizeTableParser.VALUES], readOnly,
+								false);
+						loaded.set(newIndex, enabled);
+						messages.add("Found new entry: " + name);
 					}
 				} else {
-					System.out.println(
+					messages.add(
 							"Line did not match macro definition: " + line);
 				}
-			});
-		} catch (final IOException e) {
-			System.out.println("Something went wrong loading the file");
+			}
+		}
+		PluginCatalog newCatalog = base;
+		if (builder.size() > base.size()) {
+			newCatalog = builder.build();
+		}
+		return new Update(base, newCatalog, loaded, null, messages);
+	}
+
+	/**
+	 * Apply the result of readHeader or scanSrcDir in one step. An update
+	 * read from another catalog than the current one is rejected, e.g. after
+	 * the size table has been switched meanwhile.
+	 *
+	 * @param update
+	 *            the update
+	 * @return true if the update has been applied
+	 */
+	public boolean apply(final Update update) {
+		if (update.base != catalog) {
 			return false;
 		}
+		if (update.catalog != catalog) {
+			updateCatalog(update.catalog);
+		}
+		if (update.srcDir != null) {
+			srcDir = update.srcDir;
+			searchIndex = null;
+		}
+		if (update.selection != null) {
+			setSelection(update.selection);
+			markSaved();
+		}
+		headroom.reset();
 		return true;
 	}
 
 	/**
-	 * This method analyzes the source directory and adds incomplete information
-	 * (e.g. filenames) and additional plugin names.
+	 * @param file
+	 *            the file being read
+	 * @throws InterruptedIOException
+	 *             if the reading thread has been interrupted, e.g. because
+	 *             the user cancelled the operation
+	 */
+	private static void checkInterrupted(final File file)
+			throws InterruptedIOException {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new InterruptedIOException("Cancelled reading " + file);
+		}
+	}
+
+	/**
+	 * Parse a header file in the format written by save without changing the
+	 * model. Read-only plugins are always enabled. Macros of plugins that are
+	 * not in the model are collected. The model is only read, so several
+	 * files can be parsed in parallel.
+	 *
+	 * @param file
+	 *            the header file
+	 * @param unknownMacros
+	 *            receives the macros that denote no known plugin
+	 * @return the enabled plugins, indexed by the dense plugin index
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	public BitSet parseHeader(final Path file, final List<String> unknownMacros)
+			throws IOException {
+		final PluginCatalog current = catalog;
+		final BitSet enabled = current.getReadOnly();
+		try (BufferedReader reader = Files.newBufferedReader(file)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final Matcher m = DEFINE_PATTERN.matcher(line);
+				if (m.matches()) {
+					final int index = current.findPlugin(m.group(2));
+					if (index < 0) {
+						unknownMacros.add(m.group(2));
+					} else if (m.group(1) == null) {
+						enabled.set(index);
+					}
+				}
+			}
+		}
+		return enabled;
+	}
+
+	/**
+	 * This method analyzes a source directory and adds incomplete information
+	 * (e.g. filenames) and additional plugin names to a copy of the catalog.
+	 * The metadata of all source files is extracted in parallel and attached
+	 * to the plugins; with a scan cache only changed files are analyzed.
+	 * The model is only read, so the directory can be analyzed in the
+	 * background and the result applied later.
+	 *
+	 * @param dirName
+	 *            the source directory
+	 * @return the extended catalog and the source directory
+	 * @throws IOException
+	 *             if the directory cannot be read or the thread is
+	 *             interrupted
 	 */
-	private void analyzeSrcDir() {
-		final File dir = new File(srcDir);
+	public Update scanSrcDir(final String dirName) throws IOException {
+		return scanSrcDir(dirName, ProgressListener.NONE);
+	}
+
+	/**
+	 * Analyze a source directory as above and report the progress.
+	 *
+	 * @param dirName
+	 *            the source directory
+	 * @param progress
+	 *            receives the number of source files analyzed so far
+	 * @return the extended catalog and the source directory
+	 * @throws IOException
+	 *             if the directory cannot be read or the thread is
+	 *             interrupted
+	 */
+	public Update scanSrcDir(final String dirName,
+			final ProgressListener progress) throws IOException {
+		final PluginCatalog base = catalog;
+		final List<String> messages = new ArrayList<>();
+		final File dir = new File(dirName);
 
 		final File[] files = dir.listFiles((FileFilter) file -> {
 			final String name = file.getName();
 			return file.isFile() && name.endsWith(suffix)
 					&& name.startsWith("_") && !name.startsWith("__");
 		});
+		if (files == null) {
+			throw new IOException("Couldn't read source directory " + dirName);
+		}
+		checkInterrupted(dir);
+		final ScanCache cache = scanCache;
+		final Map<String, SourceInfo> infos;
+		if (cache == null) {
+			infos = SourceAnalyzer.analyze(Arrays.asList(files), progress);
+		} else {
+			infos = cache.analyze(dir, Arrays.asList(files), progress);
+		}
+		checkInterrupted(dir);
+
+		final PluginCatalog.Builder builder = base.toBuilder();
+		final Map<String, Integer> byName = new HashMap<>();
+		for (int index = 0; index < builder.size(); index++) {
+			byName.put(builder.getName(index), index);
+		}
 		for (final File file : files) {
-			// we could use a non-trivial implementation sorting the files
-			// first, but with the low number of entries it simply is not worth
-			// it.
-			checkAndAddFile(file);
+			final int index = checkAndAddFile(file, byName, builder, messages);
+			builder.setSourceInfo(index, infos.get(file.getName()));
 		}
+		return new Update(base, builder.build(), null, dirName, messages);
 	}
 
 	/**
@@ -366,33 +1525,87 @@ public class Model {
 	 *
 	 * @param file
 	 *            the plugin filename
+	 * @param byName
+	 *            the plugin indexes by their name, updated for new plugins
+	 * @param builder
+	 *            the builder of the new catalog
+	 * @param messages
+	 *            receives the messages for the user
+	 * @return the index of the plugin for this file
 	 */
-	private void checkAndAddFile(final File file) {
+	private int checkAndAddFile(final File file,
+			final Map<String, Integer> byName,
+			final PluginCatalog.Builder builder, final List<String> messages) {
 		final String name = file.getName();
-		for (final PluginData pl : pluginDataList) {
-			final String pluginName = pl.getName();
-			if (pluginName.equals(name)) {
-				return;
-			}
+		final Integer existing = byName.get(name);
+		if (existing != null) {
+			return existing;
+		}
+		final int pl = builder.findPlugin(name);
+		if (pl >= 0 && builder.hasIncompleteFileName(pl)) {
+			final String pluginName = builder.getName(pl);
 			final String uniquePrefix = pluginName.substring(0, prefixLength);
-			if (name.startsWith(uniquePrefix) && pl.hasIncompleteFileName()) {
-				pl.setName(name, suffix);
-				pl.setIncompleteFileName(false);
+			if (name.startsWith(uniquePrefix)) {
+				builder.rename(pl, name);
+				builder.setIncompleteFileName(pl, false);
+				byName.put(name, pl);
 				if (!name.startsWith(pluginName)) {
-					System.out.println("Warning: Prefix " + uniquePrefix
+					messages.add("Warning: Prefix " + uniquePrefix
 							+ ": actual values differ");
-					System.out.println("Setting to " + name);
+					messages.add("Setting to " + name);
 				}
-				return;
+				return pl;
 			}
 		}
 		// ok, the name is not in the list. We create a new pluginData entry and
 		// add it.
-		final PluginData newData =
-				new PluginData(name, 0, 0, 0, 0, 0, false, false);
-		newData.calcMacroName(suffix);
-		pluginDataList.add(newData);
-		System.out.println("Found new entry: " + name);
+		final int newIndex = builder.add(name,
+				new int[SizeTableParser.VALUES], false, false);
+		byName.put(name, newIndex);
+		messages.add("Found new entry: " + name);
+		return newIndex;
+	}
+
+	/**
+	 * The result of reading a header file or analyzing a source directory
+	 * without changing the model, applied later with Model.apply, e.g. on the
+	 * JavaFX thread after the files have been read in the background.
+	 */
+	public static final class Update {
+		private final PluginCatalog base;
+		private final PluginCatalog catalog;
+		private final BitSet selection;
+		private final String srcDir;
+		private final List<String> messages;
+
+		/**
+		 * @param base
+		 *            the catalog the update has been read with
+		 * @param catalog
+		 *            the catalog extended by new plugins
+		 * @param selection
+		 *            the selection read from a header file, or null
+		 * @param srcDir
+		 *            the analyzed source directory, or null
+		 * @param messages
+		 *            the messages for the user
+		 */
+		private Update(final PluginCatalog base, final PluginCatalog catalog,
+				final BitSet selection, final String srcDir,
+				final List<String> messages) {
+			this.base = base;
+			this.catalog = catalog;
+			this.selection = selection;
+			this.srcDir = srcDir;
+			this.messages = messages;
+		}
+
+		/**
+		 * @return the messages for the user, e.g. about new plugins
+		 */
+		public List<String> getMessages() {
+			return Collections.unmodifiableList(messages);
+		}
 	}
 
 }
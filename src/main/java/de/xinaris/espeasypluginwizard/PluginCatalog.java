@@ -0,0 +1,627 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The immutable catalog of all plugins: file names, macro names, the five
+ * memory values, the read-only and incomplete file name flags and the
+ * metadata from the sources. A plugin is identified by its dense index.
+ *
+ * <p>
+ * A catalog never changes after it has been built, so it can be shared
+ * between any number of models (sessions) and threads. The state of a
+ * session, the enabled and modified bits, is held in a PluginSelection. To
+ * add or change plugins a builder is created from the catalog, and the new
+ * catalog built from it replaces the old one in the session making the
+ * change (copy on write).
+ *
+ * <p>
+ * A catalog can contain several size tables (targets), e.g. one for each
+ * architecture, all indexed by the same dense plugin index. The memory values
+ * are those of the active target; forTarget returns a view of the same
+ * plugins with another active target, sharing all data.
+ */
+public final class PluginCatalog {
+
+	private static final int MEM_TYPES = SizeTableParser.VALUES;
+
+	/**
+	 * The length of the unique prefix of a macro name, e.g. "P040".
+	 */
+	static final int PREFIX_LENGTH = 4;
+
+	private final String suffix;
+	private final int size;
+	private final String[] names;
+	private final String[] macroNames;
+	private final String[] targets;
+	private final int[][] tables;
+	private final int target;
+	private final int[] values;
+	private final BitSet readOnly;
+	private final BitSet incomplete;
+	private final SourceInfo[] sourceInfos;
+	private final Map<String, Integer> byPrefix;
+
+	/**
+	 * The indexes sorted by the plugin names, calculated on first use.
+	 */
+	private volatile int[] byName = null;
+
+	/**
+	 * The indexes sorted by the macro names, calculated on first use.
+	 */
+	private volatile int[] byMacroName = null;
+
+	/**
+	 * The hash of the content, calculated on first use.
+	 */
+	private volatile String contentHash = null;
+
+	/**
+	 * @param builder
+	 *            the builder containing the data, the arrays are copied
+	 */
+	private PluginCatalog(final Builder builder) {
+		suffix = builder.suffix;
+		size = builder.size;
+		names = Arrays.copyOf(builder.names, size);
+		macroNames = Arrays.copyOf(builder.macroNames, size);
+		targets = builder.targets.toArray(new String[0]);
+		tables = new int[targets.length][];
+		for (int t = 0; t < tables.length; t++) {
+			tables[t] = Arrays.copyOf(builder.tables[t], size * MEM_TYPES);
+		}
+		target = builder.target;
+		values = tables[target];
+		readOnly = (BitSet) builder.readOnly.clone();
+		incomplete = (BitSet) builder.incomplete.clone();
+		sourceInfos = Arrays.copyOf(builder.sourceInfos, size);
+		byPrefix = Collections.unmodifiableMap(new HashMap<>(builder.byPrefix));
+	}
+
+	/**
+	 * @param other
+	 *            the catalog whose data is shared
+	 * @param target
+	 *            the active target of the new view
+	 */
+	private PluginCatalog(final PluginCatalog other, final int target) {
+		suffix = other.suffix;
+		size = other.size;
+		names = other.names;
+		macroNames = other.macroNames;
+		targets = other.targets;
+		tables = other.tables;
+		this.target = target;
+		values = tables[target];
+		readOnly = other.readOnly;
+		incomplete = other.incomplete;
+		sourceInfos = other.sourceInfos;
+		byPrefix = other.byPrefix;
+		byName = other.byName;
+		byMacroName = other.byMacroName;
+		contentHash = other.contentHash;
+	}
+
+	/**
+	 * Create a builder for a new, empty catalog with a single unnamed target.
+	 *
+	 * @param suffix
+	 *            the suffix of the plugin files, stripped from the macro names
+	 * @return the builder
+	 */
+	public static Builder builder(final String suffix) {
+		return new Builder(suffix, "");
+	}
+
+	/**
+	 * Create a builder for a new, empty catalog.
+	 *
+	 * @param suffix
+	 *            the suffix of the plugin files, stripped from the macro names
+	 * @param target
+	 *            the name of the first target, the size table read first
+	 * @return the builder
+	 */
+	public static Builder builder(final String suffix, final String target) {
+		return new Builder(suffix, target);
+	}
+
+	/**
+	 * Create a builder containing all plugins of this catalog.
+	 *
+	 * @return the builder
+	 */
+	public Builder toBuilder() {
+		return new Builder(this);
+	}
+
+	/**
+	 * @return the suffix of the plugin files
+	 */
+	public String getSuffix() {
+		return suffix;
+	}
+
+	/**
+	 * @return the number of plugins
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the names of the targets, the size tables
+	 */
+	public List<String> getTargets() {
+		return Collections.unmodifiableList(Arrays.asList(targets));
+	}
+
+	/**
+	 * @return the index of the active target
+	 */
+	public int getTarget() {
+		return target;
+	}
+
+	/**
+	 * A view of this catalog with another active target. Nothing is copied,
+	 * so switching between targets is cheap.
+	 *
+	 * @param newTarget
+	 *            the index of the target
+	 * @return the catalog with the given active target
+	 */
+	public PluginCatalog forTarget(final int newTarget) {
+		if (newTarget < 0 || newTarget >= targets.length) {
+			throw new IndexOutOfBoundsException("Target: " + newTarget);
+		}
+		if (newTarget == target) {
+			return this;
+		}
+		return new PluginCatalog(this, newTarget);
+	}
+
+	/**
+	 * @param index
+	 *            the plugin index
+	 * @return the file name of the plugin
+	 */
+	public String getName(final int index) {
+		return names[index];
+	}
+
+	/**
+	 * @param index
+	 *            the plugin index
+	 * @return the macro name of the plugin
+	 */
+	public String getMacroName(final int index) {
+		return macroNames[index];
+	}
+
+	/**
+	 * @param index
+	 *            the plugin index
+	 * @param type
+	 *            the memory type, 0 to 4 in the order of the size table
+	 * @return the memory requirement of the plugin for the active target
+	 */
+	public int getValue(final int index, final int type) {
+		return values[index * MEM_TYPES + type];
+	}
+
+	/**
+	 * @param index
+	 *            the plugin index
+	 * @return true if the plugin cannot be disabled
+	 */
+	public boolean isReadOnly(final int index) {
+		return readOnly.get(index);
+	}
+
+	/**
+	 * @return a copy of the read-only plugins
+	 */
+	public BitSet getReadOnly() {
+		return (BitSet) readOnly.clone();
+	}
+
+	/**
+	 * @param index
+	 *            the plugin index
+	 * @return true if the file name in the size table has been truncated
+	 */
+	public boolean hasIncompleteFileName(final int index) {
+		return incomplete.get(index);
+	}
+
+	/**
+	 * @param index
+	 *            the plugin index
+	 * @return the metadata from the source file or null
+	 */
+	public SourceInfo getSourceInfo(final int index) {
+		return sourceInfos[index];
+	}
+
+	/**
+	 * Find a plugin by its macro name, its file name or the unique prefix of
+	 * either, e.g. "P036", "P036_FrameOLED" or "_P036_FrameOLED.ino".
+	 *
+	 * @param name
+	 *            the name to look for
+	 * @return the plugin index or -1 if no plugin with this prefix exists
+	 */
+	public int findPlugin(final String name) {
+		final String prefix = prefix(name);
+		if (prefix == null) {
+			return -1;
+		}
+		final Integer index = byPrefix.get(prefix);
+		if (index == null) {
+			return -1;
+		}
+		return index;
+	}
+
+	/**
+	 * @return the plugin indexes sorted by the file names of the plugins
+	 */
+	public int[] getIndexesByName() {
+		int[] result = byName;
+		if (result == null) {
+			result = sortedIndexes(names);
+			byName = result;
+		}
+		return result.clone();
+	}
+
+	/**
+	 * The canonical order of the plugins, independent of the order in which
+	 * they were added. The array is shared and must not be changed.
+	 *
+	 * @return the plugin indexes sorted by the macro names of the plugins
+	 */
+	int[] indexesByMacroName() {
+		int[] result = byMacroName;
+		if (result == null) {
+			result = sortedIndexes(macroNames);
+			byMacroName = result;
+		}
+		return result;
+	}
+
+	/**
+	 * @param keys
+	 *            the keys of the plugins
+	 * @return the plugin indexes sorted by their keys
+	 */
+	private int[] sortedIndexes(final String[] keys) {
+		final Integer[] order = new Integer[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (i1, i2) -> keys[i1].compareTo(keys[i2]));
+		final int[] result = new int[size];
+		for (int i = 0; i < size; i++) {
+			result[i] = order[i];
+		}
+		return result;
+	}
+
+	/**
+	 * A stable hash of the plugins and their memory values for every target,
+	 * the version of the size tables. Each table is hashed with the file name
+	 * of its target, so the hash does not depend on the active target or on
+	 * the directory the tables are read from. The plugins are hashed in the
+	 * order of their macro names, so the hash does not depend on the order of
+	 * the tables.
+	 *
+	 * @return the SHA-256 hash as hex string
+	 */
+	public String getContentHash() {
+		String result = contentHash;
+		if (result == null) {
+			final ManifestExporter.Hasher hasher =
+					new ManifestExporter.Hasher();
+			final StringBuilder line = new StringBuilder();
+			for (int t = 0; t < targets.length; t++) {
+				hasher.line("target|" + fileName(targets[t]));
+				for (final int i : indexesByMacroName()) {
+					line.setLength(0);
+					line.append(macroNames[i]);
+					for (int m = 0; m < MEM_TYPES; m++) {
+						line.append('|')
+								.append(tables[t][i * MEM_TYPES + m]);
+					}
+					if (readOnly.get(i)) {
+						line.append("|ro");
+					}
+					hasher.line(line);
+				}
+			}
+			result = hasher.hex();
+			contentHash = result;
+		}
+		return result;
+	}
+
+	/**
+	 * @param target
+	 *            the name of a target, the path of its size table
+	 * @return the name without the directories
+	 */
+	private static String fileName(final String target) {
+		return target.substring(Math.max(target.lastIndexOf('/'),
+				target.lastIndexOf('\\')) + 1);
+	}
+
+	/**
+	 * @param name
+	 *            a macro name or file name
+	 * @return the unique prefix or null if the name is too short
+	 */
+	static String prefix(final String name) {
+		String macro = name.trim();
+		if (macro.startsWith("_")) {
+			macro = macro.substring(1);
+		}
+		if (macro.length() < PREFIX_LENGTH) {
+			return null;
+		}
+		return macro.substring(0, PREFIX_LENGTH);
+	}
+
+	/**
+	 * Calculate the macro name from the file name: the leading underscore and
+	 * the suffix are removed.
+	 *
+	 * @param name
+	 *            the file name
+	 * @param suffix
+	 *            the suffix to be stripped
+	 * @return the macro name
+	 */
+	static String macroName(final String name, final String suffix) {
+		String macro = name;
+		if (macro.startsWith("_")) {
+			macro = macro.substring(1); // remove underscore
+		}
+		if (macro.endsWith(suffix)) {
+			macro = macro.substring(0, macro.length() - suffix.length());
+		}
+		return macro;
+	}
+
+	/**
+	 * Collects plugins and changes for a new catalog. A builder is used by a
+	 * single thread only.
+	 */
+	public static final class Builder {
+		private static final int INITIAL_CAPACITY = 64;
+
+		private final String suffix;
+		private int size;
+		private String[] names;
+		private String[] macroNames;
+		private final List<String> targets;
+		private int[][] tables;
+		private final int target;
+		private final BitSet readOnly;
+		private final BitSet incomplete;
+		private SourceInfo[] sourceInfos;
+		private final Map<String, Integer> byPrefix;
+
+		/**
+		 * @param suffix
+		 *            the suffix of the plugin files
+		 * @param firstTarget
+		 *            the name of the first target
+		 */
+		private Builder(final String suffix, final String firstTarget) {
+			this.suffix = suffix;
+			size = 0;
+			names = new String[INITIAL_CAPACITY];
+			macroNames = new String[INITIAL_CAPACITY];
+			targets = new ArrayList<>();
+			targets.add(firstTarget);
+			tables = new int[][] { new int[INITIAL_CAPACITY * MEM_TYPES] };
+			target = 0;
+			readOnly = new BitSet();
+			incomplete = new BitSet();
+			sourceInfos = new SourceInfo[INITIAL_CAPACITY];
+			byPrefix = new HashMap<>();
+		}
+
+		/**
+		 * @param catalog
+		 *            the catalog to start with
+		 */
+		private Builder(final PluginCatalog catalog) {
+			suffix = catalog.suffix;
+			size = catalog.size;
+			final int capacity = Math.max(INITIAL_CAPACITY, size * 2);
+			names = Arrays.copyOf(catalog.names, capacity);
+			macroNames = Arrays.copyOf(catalog.macroNames, capacity);
+			targets = new ArrayList<>(Arrays.asList(catalog.targets));
+			tables = new int[catalog.tables.length][];
+			for (int t = 0; t < tables.length; t++) {
+				tables[t] = Arrays.copyOf(catalog.tables[t],
+						capacity * MEM_TYPES);
+			}
+			target = catalog.target;
+			readOnly = (BitSet) catalog.readOnly.clone();
+			incomplete = (BitSet) catalog.incomplete.clone();
+			sourceInfos = Arrays.copyOf(catalog.sourceInfos, capacity);
+			byPrefix = new HashMap<>(catalog.byPrefix);
+		}
+
+		/**
+		 * Add a plugin. Its memory values for the other targets are 0.
+		 *
+		 * @param name
+		 *            the file name of the plugin
+		 * @param memValues
+		 *            the five memory values for the active target
+		 * @param isReadOnly
+		 *            true if the plugin cannot be disabled
+		 * @param incompleteName
+		 *            true if the file name has been truncated
+		 * @return the index of the new plugin
+		 */
+		public int add(final String name, final int[] memValues,
+				final boolean isReadOnly, final boolean incompleteName) {
+			if (size == names.length) {
+				final int capacity = names.length * 2;
+				names = Arrays.copyOf(names, capacity);
+				macroNames = Arrays.copyOf(macroNames, capacity);
+				for (int t = 0; t < tables.length; t++) {
+					tables[t] = Arrays.copyOf(tables[t], capacity * MEM_TYPES);
+				}
+				sourceInfos = Arrays.copyOf(sourceInfos, capacity);
+			}
+			final int index = size++;
+			setValues(target, index, memValues);
+			readOnly.set(index, isReadOnly);
+			incomplete.set(index, incompleteName);
+			rename(index, name);
+			return index;
+		}
+
+		/**
+		 * Add a target, a size table with the values 0 for all plugins.
+		 *
+		 * @param name
+		 *            the name of the target
+		 * @return the index of the new target
+		 */
+		public int addTarget(final String name) {
+			targets.add(name);
+			tables = Arrays.copyOf(tables, tables.length + 1);
+			tables[tables.length - 1] = new int[names.length * MEM_TYPES];
+			return tables.length - 1;
+		}
+
+		/**
+		 * @param targetIndex
+		 *            the index of the target
+		 * @param index
+		 *            the plugin index
+		 * @param memValues
+		 *            the five memory values of the plugin for the target
+		 */
+		public void setValues(final int targetIndex, final int index,
+				final int[] memValues) {
+			System.arraycopy(memValues, 0, tables[targetIndex],
+					index * MEM_TYPES, MEM_TYPES);
+		}
+
+		/**
+		 * Change the file name and with it the macro name of a plugin.
+		 *
+		 * @param index
+		 *            the plugin index
+		 * @param name
+		 *            the new file name
+		 */
+		public void rename(final int index, final String name) {
+			names[index] = name;
+			macroNames[index] = macroName(name, suffix);
+			final String prefix = prefix(macroNames[index]);
+			if (prefix != null) {
+				byPrefix.put(prefix, index);
+			}
+		}
+
+		/**
+		 * @param index
+		 *            the plugin index
+		 * @param incompleteName
+		 *            true if the file name has been truncated
+		 */
+		public void setIncompleteFileName(final int index,
+				final boolean incompleteName) {
+			incomplete.set(index, incompleteName);
+		}
+
+		/**
+		 * @param index
+		 *            the plugin index
+		 * @param info
+		 *            the metadata from the source file
+		 */
+		public void setSourceInfo(final int index, final SourceInfo info) {
+			sourceInfos[index] = info;
+		}
+
+		/**
+		 * @param index
+		 *            the plugin index
+		 * @return the file name of the plugin
+		 */
+		public String getName(final int index) {
+			return names[index];
+		}
+
+		/**
+		 * @param index
+		 *            the plugin index
+		 * @return the macro name of the plugin
+		 */
+		public String getMacroName(final int index) {
+			return macroNames[index];
+		}
+
+		/**
+		 * @param index
+		 *            the plugin index
+		 * @return true if the file name has been truncated
+		 */
+		public boolean hasIncompleteFileName(final int index) {
+			return incomplete.get(index);
+		}
+
+		/**
+		 * @param name
+		 *            the name to look for
+		 * @return the plugin index or -1, see PluginCatalog.findPlugin
+		 */
+		public int findPlugin(final String name) {
+			final String prefix = prefix(name);
+			if (prefix == null || !byPrefix.containsKey(prefix)) {
+				return -1;
+			}
+			return byPrefix.get(prefix);
+		}
+
+		/**
+		 * @return the number of plugins
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * @return the suffix of the plugin files
+		 */
+		public String getSuffix() {
+			return suffix;
+		}
+
+		/**
+		 * @return the new catalog
+		 */
+		public PluginCatalog build() {
+			return new PluginCatalog(this);
+		}
+	}
+
+}
@@ -0,0 +1,380 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Decides whether a plugin can be enabled and disabled or whether it is a
+ * read-only system file, by its file name.
+ *
+ * <p>
+ * A name is selectable if it starts with a match of the prefix pattern
+ * (pluginPrefixPattern of the config file). The pattern is split into its
+ * alternatives once: literal alternatives like "_P" are put into a prefix
+ * trie, only the others are compiled into a single regular expression. For
+ * the usual patterns no regular expression is involved at all.
+ *
+ * <p>
+ * The optional rules (pluginClassifier of the config file) refine this:
+ * names starting with an entry of "exclude" are always read-only, names
+ * starting with an entry of "include" are always selectable, and with
+ * "idRanges" a name matching the prefix pattern is only selectable if its
+ * plugin number (e.g. 36 for "_P036_FrameOLED.ino") is in one of the
+ * ranges. Exclude takes precedence over include.
+ */
+public final class PluginClassifier {
+
+	/**
+	 * The key of the prefixes of names that are always selectable.
+	 */
+	public static final String INCLUDE = "include";
+
+	/**
+	 * The key of the prefixes of names that are always read-only.
+	 */
+	public static final String EXCLUDE = "exclude";
+
+	/**
+	 * The key of the ranges of plugin numbers, e.g. "1-99" or "150".
+	 */
+	public static final String ID_RANGES = "idRanges";
+
+	private static final String REGEX_CHARS = ".[]{}()*+?^$\\|";
+
+	private final Trie prefixes = new Trie();
+	private final Pattern regex;
+	private final Trie included = new Trie();
+	private final Trie excluded = new Trie();
+
+	/**
+	 * The sorted and merged ranges of plugin numbers, or null if the numbers
+	 * are not restricted.
+	 */
+	private int[] rangeStarts = null;
+	private int[] rangeEnds = null;
+
+	/**
+	 * Create a classifier with the prefix pattern only.
+	 *
+	 * @param prefixPattern
+	 *            the prefix pattern, alternatives separated by "|"
+	 */
+	public PluginClassifier(final String prefixPattern) {
+		this(prefixPattern, null);
+	}
+
+	/**
+	 * Create a classifier with the prefix pattern and additional rules.
+	 *
+	 * @param prefixPattern
+	 *            the prefix pattern, alternatives separated by "|"
+	 * @param rules
+	 *            the rules with the keys include, exclude and idRanges, or
+	 *            null
+	 */
+	public PluginClassifier(final String prefixPattern,
+			final Map<String, Object> rules) {
+		final List<String> others = new ArrayList<>();
+		// inline flags like "(?i)" can apply to the following alternatives
+		final boolean flags = prefixPattern.contains("(?");
+		for (final String alternative : alternatives(prefixPattern)) {
+			if (!flags && isLiteral(alternative)) {
+				prefixes.add(alternative);
+			} else {
+				others.add(alternative);
+			}
+		}
+		if (others.isEmpty()) {
+			regex = null;
+		} else {
+			regex = Pattern.compile("(?:" + String.join("|", others) + ")");
+		}
+		if (rules != null) {
+			for (final String prefix : list(rules, INCLUDE)) {
+				included.add(prefix);
+			}
+			for (final String prefix : list(rules, EXCLUDE)) {
+				excluded.add(prefix);
+			}
+			if (rules.containsKey(ID_RANGES)) {
+				initRanges(list(rules, ID_RANGES));
+			}
+		}
+	}
+
+	/**
+	 * Create the classifier configured by pluginPrefixPattern and
+	 * pluginClassifier.
+	 *
+	 * @param configuration
+	 *            the configuration data
+	 * @return the classifier
+	 */
+	@SuppressWarnings("unchecked")
+	public static PluginClassifier create(
+			final ConfigurationData configuration) {
+		final String prefixPattern = configuration
+				.getConfig(ConfigurationData.PLUGIN_PREFIX_PATTERN).toString();
+		final Object rules =
+				configuration.getConfig(ConfigurationData.PLUGIN_CLASSIFIER);
+		if (rules != null && !(rules instanceof Map)) {
+			System.out.println("pluginClassifier has to be a map");
+			return new PluginClassifier(prefixPattern);
+		}
+		return new PluginClassifier(prefixPattern,
+				(Map<String, Object>) rules);
+	}
+
+	/**
+	 * @param name
+	 *            the file name of a plugin
+	 * @return true if the plugin can be enabled and disabled
+	 */
+	public boolean isSelectable(final String name) {
+		if (excluded.matchesPrefixOf(name)) {
+			return false;
+		}
+		if (included.matchesPrefixOf(name)) {
+			return true;
+		}
+		if (!prefixes.matchesPrefixOf(name)
+				&& (regex == null || !regex.matcher(name).lookingAt())) {
+			return false;
+		}
+		return rangeStarts == null || inRanges(pluginNumber(name));
+	}
+
+	/**
+	 * @param name
+	 *            the file name of a plugin
+	 * @return true if the plugin is a system file that cannot be disabled
+	 */
+	public boolean isReadOnly(final String name) {
+		return !isSelectable(name);
+	}
+
+	/**
+	 * The plugin number of a name: the digits following the underscore and
+	 * the letters at its start, e.g. 36 for "_P036_FrameOLED.ino".
+	 *
+	 * @param name
+	 *            the file name of a plugin
+	 * @return the plugin number or -1 if the name contains none
+	 */
+	static int pluginNumber(final String name) {
+		int i = 0;
+		while (i < name.length() && name.charAt(i) == '_') {
+			i++;
+		}
+		while (i < name.length() && Character.isLetter(name.charAt(i))) {
+			i++;
+		}
+		int number = -1;
+		while (i < name.length() && name.charAt(i) >= '0'
+				&& name.charAt(i) <= '9' && number < Integer.MAX_VALUE / 10) {
+			number = Math.max(number, 0) * 10 + name.charAt(i) - '0';
+			i++;
+		}
+		return number;
+	}
+
+	/**
+	 * @param number
+	 *            a plugin number or -1
+	 * @return true if the number is in one of the ranges
+	 */
+	private boolean inRanges(final int number) {
+		if (number < 0) {
+			return false;
+		}
+		final int r = Arrays.binarySearch(rangeStarts, number);
+		if (r >= 0) {
+			return true;
+		}
+		final int before = -r - 2;
+		return before >= 0 && number <= rangeEnds[before];
+	}
+
+	/**
+	 * Parse, sort and merge the ranges of plugin numbers.
+	 *
+	 * @param ranges
+	 *            the ranges, e.g. "1-99" or "150"
+	 */
+	private void initRanges(final List<String> ranges) {
+		final List<int[]> parsed = new ArrayList<>();
+		for (final String range : ranges) {
+			final String[] bounds = range.trim().split("\\s*-\\s*", 2);
+			try {
+				final int start = Integer.parseInt(bounds[0]);
+				int end = start;
+				if (bounds.length > 1) {
+					end = Integer.parseInt(bounds[1]);
+				}
+				if (start <= end) {
+					parsed.add(new int[] { start, end });
+				} else {
+					System.out.println(
+							"pluginClassifier: empty range " + range);
+				}
+			} catch (final NumberFormatException e) {
+				System.out.println("pluginClassifier: invalid range " + range);
+			}
+		}
+		parsed.sort((r1, r2) -> Integer.compare(r1[0], r2[0]));
+		final List<int[]> merged = new ArrayList<>();
+		for (final int[] range : parsed) {
+			final int last = merged.size() - 1;
+			if (last >= 0 && range[0] <= merged.get(last)[1] + 1) {
+				merged.get(last)[1] = Math.max(merged.get(last)[1], range[1]);
+			} else {
+				merged.add(range);
+			}
+		}
+		rangeStarts = new int[merged.size()];
+		rangeEnds = new int[merged.size()];
+		for (int r = 0; r < merged.size(); r++) {
+			rangeStarts[r] = merged.get(r)[0];
+			rangeEnds[r] = merged.get(r)[1];
+		}
+	}
+
+	/**
+	 * @param rules
+	 *            the rules
+	 * @param key
+	 *            the key of a list
+	 * @return the entries of the list as strings, empty if there is none
+	 */
+	private static List<String> list(final Map<String, Object> rules,
+			final String key) {
+		final List<String> result = new ArrayList<>();
+		final Object value = rules.get(key);
+		if (value instanceof List) {
+			for (final Object entry : (List<?>) value) {
+				result.add(entry.toString());
+			}
+		} else if (value != null) {
+			result.add(value.toString());
+		}
+		return result;
+	}
+
+	/**
+	 * Split a regular expression into its top-level alternatives.
+	 *
+	 * @param pattern
+	 *            the regular expression
+	 * @return the alternatives
+	 */
+	static List<String> alternatives(final String pattern) {
+		final List<String> result = new ArrayList<>();
+		int depth = 0;
+		boolean inClass = false;
+		int start = 0;
+		for (int i = 0; i < pattern.length(); i++) {
+			final char c = pattern.charAt(i);
+			if (c == '\\') {
+				i++;
+			} else if (inClass) {
+				inClass = c != ']';
+			} else if (c == '[') {
+				inClass = true;
+			} else if (c == '(') {
+				depth++;
+			} else if (c == ')') {
+				depth--;
+			} else if (c == '|' && depth == 0) {
+				result.add(pattern.substring(start, i));
+				start = i + 1;
+			}
+		}
+		result.add(pattern.substring(start));
+		return result;
+	}
+
+	/**
+	 * @param alternative
+	 *            an alternative of the prefix pattern
+	 * @return true if it contains no characters special in regular
+	 *         expressions
+	 */
+	private static boolean isLiteral(final String alternative) {
+		for (int i = 0; i < alternative.length(); i++) {
+			if (REGEX_CHARS.indexOf(alternative.charAt(i)) >= 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A set of prefixes, each node holds the children for the next
+	 * character in sorted arrays.
+	 */
+	private static final class Trie {
+		private char[] keys = new char[0];
+		private Trie[] children = new Trie[0];
+		private boolean terminal = false;
+
+		/**
+		 * @param prefix
+		 *            the prefix to add
+		 */
+		void add(final String prefix) {
+			Trie node = this;
+			for (int i = 0; i < prefix.length(); i++) {
+				node = node.child(prefix.charAt(i));
+			}
+			node.terminal = true;
+		}
+
+		/**
+		 * @param c
+		 *            the next character
+		 * @return the child for the character, created if missing
+		 */
+		private Trie child(final char c) {
+			int k = Arrays.binarySearch(keys, c);
+			if (k < 0) {
+				k = -k - 1;
+				final char[] newKeys = new char[keys.length + 1];
+				final Trie[] newChildren = new Trie[keys.length + 1];
+				System.arraycopy(keys, 0, newKeys, 0, k);
+				System.arraycopy(children, 0, newChildren, 0, k);
+				newKeys[k] = c;
+				newChildren[k] = new Trie();
+				System.arraycopy(keys, k, newKeys, k + 1, keys.length - k);
+				System.arraycopy(children, k, newChildren, k + 1,
+						keys.length - k);
+				keys = newKeys;
+				children = newChildren;
+			}
+			return children[k];
+		}
+
+		/**
+		 * @param name
+		 *            a name
+		 * @return true if one of the prefixes is a prefix of the name
+		 */
+		boolean matchesPrefixOf(final String name) {
+			Trie node = this;
+			for (int i = 0; !node.terminal; i++) {
+				if (i == name.length()) {
+					return false;
+				}
+				final int k = Arrays.binarySearch(node.keys, name.charAt(i));
+				if (k < 0) {
+					return false;
+				}
+				node = node.children[k];
+			}
+			return true;
+		}
+	}
+
+}
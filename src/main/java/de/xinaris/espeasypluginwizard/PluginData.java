@@ -1,45 +1,77 @@
 package de.xinaris.espeasypluginwizard;
 
 /**
- * Encapsulates the plugin details.
+ * Encapsulates the plugin details. A plugin data object is a view of a
+ * single plugin: the details are read from the current catalog of the model
+ * and the enabled state from the selection of the model.
  *
  * @author jbaumann
  */
-public class PluginData extends MemoryData {
+public class PluginData implements MemoryValues {
 
-	private final boolean readOnly;
-	private boolean enabled = false;
-	private boolean modified = false;
-	private boolean incompleteFileName;
+	private final Model model;
+	private final PluginSelection selection;
+	private final int index;
 
 	/**
-	 * @param incompleteFileName
-	 *            the incompleteFileName to set
+	 * Create the view of a plugin, only called by the model.
+	 *
+	 * @param model
+	 *            the model holding the catalog
+	 * @param selection
+	 *            the selection of the model
+	 * @param index
+	 *            the dense index of the plugin
 	 */
-	public void setIncompleteFileName(final boolean incompleteFileName) {
-		this.incompleteFileName = incompleteFileName;
+	PluginData(final Model model, final PluginSelection selection,
+			final int index) {
+		this.model = model;
+		this.selection = selection;
+		this.index = index;
 	}
 
-	private String macroName;
-
 	/**
-	 * Set the name and calculate the macro name.
-	 *
-	 * @param name
-	 *            the name to set
-	 * @param suffix
-	 *            the suffix to be stripped
+	 * @return the catalog the details are read from
 	 */
-	public void setName(final String name, final String suffix) {
-		super.setName(name);
-		calcMacroName(suffix);
+	private PluginCatalog catalog() {
+		return model.getCatalog();
+	}
+
+	@Override
+	public String getName() {
+		return catalog().getName(index);
+	}
+
+	@Override
+	public int getCacheIRam() {
+		return catalog().getValue(index, 0);
+	}
+
+	@Override
+	public int getInitRam() {
+		return catalog().getValue(index, 1);
+	}
+
+	@Override
+	public int getRoRam() {
+		return catalog().getValue(index, 2);
+	}
+
+	@Override
+	public int getUninitRam() {
+		return catalog().getValue(index, 3);
+	}
+
+	@Override
+	public int getFlashRom() {
+		return catalog().getValue(index, 4);
 	}
 
 	/**
 	 * @return the incompleteFileName
 	 */
 	public boolean hasIncompleteFileName() {
-		return incompleteFileName;
+		return catalog().hasIncompleteFileName(index);
 	}
 
 	/**
@@ -47,98 +79,72 @@ public class PluginData extends MemoryData {
 	 *            the changed to set
 	 */
 	public void setModified(final boolean changed) {
-		this.modified = changed;
+		selection.setModified(index, changed);
 	}
 
 	/**
 	 * @return the changed
 	 */
 	public boolean isModified() {
-		return modified;
+		return selection.isModified(index);
 	}
 
 	/**
 	 * @return the enabled
 	 */
 	public boolean isEnabled() {
-		return enabled;
+		return selection.isEnabled(index);
 	}
 
 	/**
-	 * @return the readOnly
+	 * @return the dense index of this plugin in its model
 	 */
-	public boolean isReadOnly() {
-		return readOnly;
+	public int getIndex() {
+		return index;
 	}
 
 	/**
-	 * @param enabled
-	 *            the enabled to set
+	 * @return the metadata from the source file or null if there is none
 	 */
-	public void setEnabled(final boolean enabled) {
-		if (this.enabled != enabled) {
-			modified = !modified; // toggle changed flag
-		}
-		this.enabled = enabled;
+	public SourceInfo getSourceInfo() {
+		return catalog().getSourceInfo(index);
 	}
 
 	/**
-	 * String field constructor.
-	 *
-	 * @param fields
-	 *            the single entries of the plugin data file as strings
-	 * @param readonly
-	 *            true if this entry cannot be disabled
-	 * @param incompletename
-	 *            marks whether the name has had the needed suffix
+	 * @return the plugin name defined in the source or an empty string
 	 */
-	@SuppressWarnings("magicnumber")
-	public PluginData(final String[] fields, final boolean readonly,
-			final boolean incompletename) {
-		this(fields[0], Integer.parseInt(fields[1]),
-				Integer.parseInt(fields[2]), Integer.parseInt(fields[3]),
-				Integer.parseInt(fields[4]), Integer.parseInt(fields[5]),
-				readonly, incompletename);
+	public String getDescription() {
+		final SourceInfo sourceInfo = getSourceInfo();
+		if (sourceInfo == null || sourceInfo.getPluginName() == null) {
+			return "";
+		}
+		return sourceInfo.getPluginName();
 	}
 
 	/**
-	 * This is the normal constructor.
-	 *
-	 * @param name
-	 *            contains the name of this entry
-	 * @param cacheIRam
-	 *            the cacheIRAM size
-	 * @param initRam
-	 *            the initialized RAM size
-	 * @param roRam
-	 *            the r/o RAM size
-	 * @param uninitRam
-	 *            the uninitialized RAM size
-	 * @param flashRom
-	 *            the flash ROM size
-	 * @param incompleteName
-	 *            marks whether the name has had the needed suffix
-	 * @param readonly
-	 *            decides whether this entry can be disabled
+	 * @return the readOnly
 	 */
-	@SuppressWarnings("checkstyle:parameternumber")
-	public PluginData(final String name, final int cacheIRam, final int initRam,
-			final int roRam, final int uninitRam, final int flashRom,
-			final boolean readonly, final boolean incompleteName) {
-		super(name, cacheIRam, initRam, roRam, uninitRam, flashRom);
-		this.readOnly = readonly;
-		this.incompleteFileName = incompleteName;
-		if (readonly) {
-			this.enabled = true;
-		}
+	public boolean isReadOnly() {
+		return catalog().isReadOnly(index);
+	}
 
+	/**
+	 * @param enabled
+	 *            the enabled to set
+	 */
+	public void setEnabled(final boolean enabled) {
+		// the modified state is derived from the saved selection
+		selection.setEnabled(index, enabled);
 	}
 
 	@Override
 	public String toString() {
-		return "PluginData [readOnly=" + readOnly + ", enabled=" + enabled
-				+ ", modified=" + modified + ", incompleteName="
-				+ incompleteFileName + "], " + super.toString();
+		return "PluginData [readOnly=" + isReadOnly() + ", enabled="
+				+ isEnabled() + ", modified=" + isModified()
+				+ ", incompleteName=" + hasIncompleteFileName() + "], "
+				+ getName() + ": cacheIRam=" + getCacheIRam() + ", initRam="
+				+ getInitRam() + ", roRam=" + getRoRam() + ", uninitRam="
+				+ getUninitRam() + ", flashRom=" + getFlashRom();
 	}
 
 	/**
@@ -147,27 +153,7 @@ public class PluginData extends MemoryData {
 	 * @return the macro name
 	 */
 	public String getMacroName() {
-		return macroName;
-	}
-
-	/**
-	 * Calculate the macro name from plugin name and removes suffix. Removes the
-	 * leading underscore.
-	 *
-	 * @param suffix
-	 *            the suffix to be stripped
-	 */
-	public void calcMacroName(final String suffix) {
-
-		final String extension = suffix;
-		String name = getName();
-		if (name.startsWith("_")) {
-			name = name.substring(1); // remove underscore
-		}
-		if (name.endsWith(extension)) {
-			name = name.substring(0, name.length() - extension.length());
-		}
-		macroName = name;
+		return catalog().getMacroName(index);
 	}
 
 }
@@ -0,0 +1,212 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Holds the enabled state of a set of plugins as a bit set over the dense
+ * plugin index of the model, together with the state that has been saved
+ * last. Snapshots are simple copies of the bit set, differences are computed
+ * with an XOR. The number of plugins differing from the saved state is
+ * maintained with every change, so checking for modifications is constant.
+ */
+public class PluginSelection {
+
+	private final BitSet enabled = new BitSet();
+	private final BitSet saved = new BitSet();
+	private int modifiedCount = 0;
+	private final List<Listener> listeners = new ArrayList<>();
+
+	/**
+	 * A listener that is informed about every plugin whose enabled state
+	 * changes.
+	 */
+	@FunctionalInterface
+	public interface Listener {
+		/**
+		 * @param index
+		 *            the index of the plugin that changed
+		 * @param value
+		 *            the new enabled state
+		 */
+		void enabledChanged(int index, boolean value);
+	}
+
+	/**
+	 * @param listener
+	 *            the listener to add
+	 */
+	public void addListener(final Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * @param listener
+	 *            the listener to remove
+	 */
+	public void removeListener(final Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Inform all listeners about a changed plugin.
+	 *
+	 * @param index
+	 *            the plugin index
+	 * @param value
+	 *            the new enabled state
+	 */
+	private void fireEnabledChanged(final int index, final boolean value) {
+		for (final Listener listener : listeners) {
+			listener.enabledChanged(index, value);
+		}
+	}
+
+	/**
+	 * @param index
+	 *            the plugin index
+	 * @return true if the plugin is enabled
+	 */
+	public boolean isEnabled(final int index) {
+		return enabled.get(index);
+	}
+
+	/**
+	 * @param index
+	 *            the plugin index
+	 * @param value
+	 *            the new enabled state
+	 */
+	public void setEnabled(final int index, final boolean value) {
+		if (enabled.get(index) == value) {
+			return;
+		}
+		enabled.set(index, value);
+		updateModifiedCount(index);
+		fireEnabledChanged(index, value);
+	}
+
+	/**
+	 * Adjust the modified count after the plugin with the given index changed
+	 * either in the current or in the saved selection.
+	 *
+	 * @param index
+	 *            the plugin index
+	 */
+	private void updateModifiedCount(final int index) {
+		if (isModified(index)) {
+			modifiedCount++;
+		} else {
+			modifiedCount--;
+		}
+	}
+
+	/**
+	 * @param index
+	 *            the plugin index
+	 * @return true if the plugin differs from the saved state
+	 */
+	public boolean isModified(final int index) {
+		return enabled.get(index) != saved.get(index);
+	}
+
+	/**
+	 * Mark a single plugin as modified or unmodified by adjusting the saved
+	 * state for this plugin.
+	 *
+	 * @param index
+	 *            the plugin index
+	 * @param modified
+	 *            true if the plugin should count as modified
+	 */
+	public void setModified(final int index, final boolean modified) {
+		if (isModified(index) == modified) {
+			return;
+		}
+		saved.flip(index);
+		updateModifiedCount(index);
+	}
+
+	/**
+	 * @return true if the current selection differs from the saved one
+	 */
+	public boolean isModified() {
+		return modifiedCount != 0;
+	}
+
+	/**
+	 * @return the number of plugins that differ from the saved state
+	 */
+	public int getModifiedCount() {
+		return modifiedCount;
+	}
+
+	/**
+	 * Take the current selection as the saved state.
+	 */
+	public void markSaved() {
+		saved.clear();
+		saved.or(enabled);
+		modifiedCount = 0;
+	}
+
+	/**
+	 * @return a copy of the current selection
+	 */
+	public BitSet snapshot() {
+		return (BitSet) enabled.clone();
+	}
+
+	/**
+	 * @return a copy of the saved selection
+	 */
+	public BitSet savedSnapshot() {
+		return (BitSet) saved.clone();
+	}
+
+	/**
+	 * Replace the current selection with the given one.
+	 *
+	 * @param selection
+	 *            the new selection
+	 */
+	public void restore(final BitSet selection) {
+		final BitSet changed = diff(selection);
+		enabled.clear();
+		enabled.or(selection);
+		modifiedCount = diff(saved).cardinality();
+		for (int i = changed.nextSetBit(0); i >= 0; i =
+				changed.nextSetBit(i + 1)) {
+			fireEnabledChanged(i, enabled.get(i));
+		}
+	}
+
+	/**
+	 * @param other
+	 *            the selection to compare with
+	 * @return the plugins whose state differs between both selections
+	 */
+	public BitSet diff(final BitSet other) {
+		final BitSet result = snapshot();
+		result.xor(other);
+		return result;
+	}
+
+	@Override
+	public int hashCode() {
+		return enabled.hashCode();
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof PluginSelection)) {
+			return false;
+		}
+		return enabled.equals(((PluginSelection) obj).enabled);
+	}
+
+}
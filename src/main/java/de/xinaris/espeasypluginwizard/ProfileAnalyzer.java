@@ -0,0 +1,289 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Analyzes a directory of saved header files (profiles): how often each
+ * plugin is enabled, the memory requirements of each profile and the boards
+ * it fits, and which profiles enable exactly the same plugins. The files are
+ * parsed in parallel, all further calculations work on the bit sets of the
+ * profiles.
+ */
+public class ProfileAnalyzer {
+
+	/**
+	 * A single parsed header file.
+	 */
+	public static final class Profile {
+		private final String name;
+		private final BitSet enabled;
+		private final MemoryData totals;
+		private final BitSet fitting;
+		private final List<String> unknownMacros;
+
+		/**
+		 * @param name
+		 *            the file name
+		 * @param enabled
+		 *            the enabled plugins
+		 * @param totals
+		 *            the memory requirements
+		 * @param fitting
+		 *            the boards the profile fits
+		 * @param unknownMacros
+		 *            the macros not known to the model
+		 */
+		Profile(final String name, final BitSet enabled,
+				final MemoryData totals, final BitSet fitting,
+				final List<String> unknownMacros) {
+			this.name = name;
+			this.enabled = enabled;
+			this.totals = totals;
+			this.fitting = fitting;
+			this.unknownMacros = unknownMacros;
+		}
+
+		/**
+		 * @return the file name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the enabled plugins
+		 */
+		public BitSet getEnabled() {
+			return enabled;
+		}
+
+		/**
+		 * @return the memory requirements
+		 */
+		public MemoryData getTotals() {
+			return totals;
+		}
+
+		/**
+		 * @return the boards the profile fits, in the order of the memory
+		 *         limits
+		 */
+		public BitSet getFitting() {
+			return fitting;
+		}
+
+		/**
+		 * @return the macros not known to the model
+		 */
+		public List<String> getUnknownMacros() {
+			return unknownMacros;
+		}
+	}
+
+	private final Model model;
+	private final List<Profile> profiles = new ArrayList<>();
+	private final List<String> problems =
+			Collections.synchronizedList(new ArrayList<>());
+
+	/**
+	 * @param model
+	 *            the model containing plugins and memory limits
+	 */
+	public ProfileAnalyzer(final Model model) {
+		this.model = model;
+	}
+
+	/**
+	 * @return the files that could not be read
+	 */
+	public List<String> getProblems() {
+		return problems;
+	}
+
+	/**
+	 * @return the profiles analyzed, ordered by file name
+	 */
+	public List<Profile> getProfiles() {
+		return profiles;
+	}
+
+	/**
+	 * Parse all header files of the directory in parallel.
+	 *
+	 * @param dir
+	 *            the directory, or a single header file
+	 * @param suffix
+	 *            the suffix of the header files, e.g. ".h"
+	 * @throws IOException
+	 *             if the directory cannot be read
+	 */
+	public void analyze(final Path dir, final String suffix)
+			throws IOException {
+		List<Path> files = Collections.singletonList(dir);
+		if (Files.isDirectory(dir)) {
+			try (Stream<Path> stream = Files.list(dir)) {
+				files = stream.filter(p -> Files.isRegularFile(p)
+						&& p.getFileName().toString().endsWith(suffix))
+						.sorted().collect(Collectors.toList());
+			}
+		}
+		final List<Profile> parsed = files.parallelStream().map(file -> {
+			final List<String> unknown = new ArrayList<>();
+			try {
+				final BitSet enabled = model.parseHeader(file, unknown);
+				final String name = file.getFileName().toString();
+				final MemoryData totals = model.getMemData(name, enabled);
+				return new Profile(name, enabled, totals,
+						model.getFittingBoards(
+								model.getMemDataPerTarget(name, enabled)),
+						unknown);
+			} catch (final IOException e) {
+				problems.add("Couldn't read " + file);
+				return null;
+			}
+		}).filter(p -> p != null).collect(Collectors.toList());
+		profiles.addAll(parsed);
+	}
+
+	/**
+	 * @return the number of profiles enabling each plugin, indexed by the
+	 *         dense plugin index
+	 */
+	public int[] getUsageCounts() {
+		final int[] counts = new int[model.getPluginCount()];
+		for (final Profile p : profiles) {
+			final BitSet enabled = p.getEnabled();
+			for (int i = enabled.nextSetBit(0); i >= 0; i =
+					enabled.nextSetBit(i + 1)) {
+				counts[i]++;
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * @return the groups of at least two profiles enabling the same plugins,
+	 *         in the order of their first profile
+	 */
+	public List<List<Profile>> getDuplicates() {
+		final Map<BitSet, List<Profile>> groups = new LinkedHashMap<>();
+		for (final Profile p : profiles) {
+			groups.computeIfAbsent(p.getEnabled(), k -> new ArrayList<>())
+					.add(p);
+		}
+		return groups.values().stream().filter(g -> g.size() > 1)
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * Write the report with the plugin usage, the profile matrix and the
+	 * duplicate profiles. The tables are separated by semicolons.
+	 *
+	 * @param report
+	 *            the report file
+	 * @return true if the report was written
+	 */
+	public boolean writeReport(final File report) {
+		try (PrintWriter out = new PrintWriter(
+				new BufferedWriter(Files.newBufferedWriter(report.toPath())))) {
+			writeUsage(out);
+			out.println();
+			writeMatrix(out);
+			out.println();
+			writeDuplicates(out);
+			return !out.checkError();
+		} catch (final IOException e) {
+			System.out.println(
+					"Something went wrong writing file " + report.getPath());
+		}
+		return false;
+	}
+
+	/**
+	 * @param out
+	 *            the report
+	 */
+	private void writeUsage(final PrintWriter out) {
+		out.println("# Plugin usage in " + profiles.size() + " profiles");
+		out.println("plugin;profiles;percent");
+		final int[] counts = getUsageCounts();
+		final List<Integer> order = new ArrayList<>();
+		for (int i = 0; i < counts.length; i++) {
+			order.add(i);
+		}
+		final PluginCatalog catalog = model.getCatalog();
+		order.sort(Comparator.comparing((Integer i) -> -counts[i])
+				.thenComparing(i -> catalog.getName(i)));
+		for (final int i : order) {
+			long percent = 0;
+			if (!profiles.isEmpty()) {
+				percent = Math.round(100.0 * counts[i] / profiles.size());
+			}
+			out.println(catalog.getName(i) + ";" + counts[i] + ";"
+					+ percent);
+		}
+	}
+
+	/**
+	 * @param out
+	 *            the report
+	 */
+	private void writeMatrix(final PrintWriter out) {
+		final List<MemoryData> limits = model.getMemLimits();
+		out.println("# Profiles");
+		final StringBuilder header = new StringBuilder(
+				"profile;plugins;cacheIRam;initRam;roRam;uninitRam;flashRom");
+		for (final MemoryData limit : limits) {
+			header.append(';').append(limit.getName());
+		}
+		header.append(";unknown");
+		out.println(header);
+		for (final Profile p : profiles) {
+			final MemoryData t = p.getTotals();
+			final StringBuilder line = new StringBuilder(p.getName());
+			line.append(';').append(p.getEnabled().cardinality());
+			line.append(';').append(t.getCacheIRam());
+			line.append(';').append(t.getInitRam());
+			line.append(';').append(t.getRoRam());
+			line.append(';').append(t.getUninitRam());
+			line.append(';').append(t.getFlashRom());
+			for (int b = 0; b < limits.size(); b++) {
+				if (p.getFitting().get(b)) {
+					line.append(";fits");
+				} else {
+					line.append(";exceeds");
+				}
+			}
+			line.append(';').append(String.join(" ", p.getUnknownMacros()));
+			out.println(line);
+		}
+	}
+
+	/**
+	 * @param out
+	 *            the report
+	 */
+	private void writeDuplicates(final PrintWriter out) {
+		final List<List<Profile>> duplicates = getDuplicates();
+		out.println("# Identical profiles: " + duplicates.size() + " groups");
+		for (final List<Profile> group : duplicates) {
+			out.println(group.stream().map(Profile::getName)
+					.collect(Collectors.joining(";")));
+		}
+	}
+
+}
@@ -0,0 +1,470 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.yaml.snakeyaml.error.YAMLException;
+
+/**
+ * Watches a directory of profile definitions together with the size tables
+ * and the config file, and regenerates the header file of every
+ * affected profile. A profile definition is a file with the suffix
+ * ".profile" listing the plugins to enable by their macro name or unique
+ * prefix, separated by blanks, commas or line breaks; "#" starts a comment.
+ * The header of profile "name" is written to "outputDir/name/" using the
+ * file name of pluginHeaderFile, in the format of Model.save and together
+ * with its build manifest.
+ *
+ * <p>
+ * File events are debounced: after the first event all events are collected
+ * until the directories have been quiet for a moment, then all changes are
+ * handled in one pass. A changed profile only regenerates its own header. A
+ * changed size table or config file rebuilds the model and validates
+ * all profiles against the memory limits and rules again. If the rebuild
+ * fails, e.g. because a file is only partly written, the changed profiles
+ * are kept and handled after the next successful rebuild, which is tried
+ * again with every following change. A header file is only written if its
+ * content changes, so unaffected outputs keep their modification time and
+ * do not trigger rebuilds.
+ */
+public class ProfileWatcher {
+
+	/**
+	 * The suffix of profile definitions.
+	 */
+	public static final String PROFILE_SUFFIX = ".profile";
+
+	/**
+	 * The time without events after which the collected changes are handled.
+	 */
+	public static final long DEBOUNCE_MILLIS = 500;
+
+	private final ConfigurationData config;
+	private Model model;
+	private final Path profileDir;
+	private final Path outputDir;
+	private Set<Path> sizeTables;
+	private final Path configFile;
+	private final Consumer<String> reporter;
+
+	/**
+	 * The changes not handled yet because the model could not be rebuilt:
+	 * the changed profiles, and whether the config file or a size table
+	 * changed.
+	 */
+	private final Set<Path> pendingProfiles = new TreeSet<>();
+	private boolean configChanged = false;
+	private boolean tablesChanged = false;
+
+	/**
+	 * @param config
+	 *            the configuration data
+	 * @param model
+	 *            the model initialized from the configuration
+	 * @param profileDir
+	 *            the directory containing the profile definitions
+	 * @param outputDir
+	 *            the directory receiving the header files
+	 */
+	public ProfileWatcher(final ConfigurationData config, final Model model,
+			final Path profileDir, final Path outputDir) {
+		this(config, model, profileDir, outputDir, System.out::println);
+	}
+
+	/**
+	 * @param config
+	 *            the configuration data
+	 * @param model
+	 *            the model initialized from the configuration
+	 * @param profileDir
+	 *            the directory containing the profile definitions
+	 * @param outputDir
+	 *            the directory receiving the header files
+	 * @param reporter
+	 *            receives the written files and the problems found
+	 */
+	public ProfileWatcher(final ConfigurationData config, final Model model,
+			final Path profileDir, final Path outputDir,
+			final Consumer<String> reporter) {
+		this.config = config;
+		this.reporter = reporter;
+		this.model = model;
+		this.profileDir = profileDir.toAbsolutePath().normalize();
+		this.outputDir = outputDir.toAbsolutePath().normalize();
+		this.sizeTables = sizeTablePaths(config);
+		this.configFile = Paths
+				.get(config.getConfig(ConfigurationData.CONFIG_FILE).toString())
+				.toAbsolutePath().normalize();
+	}
+
+	/**
+	 * @param configuration
+	 *            the configuration data
+	 * @return the absolute paths of the size tables
+	 */
+	private static Set<Path> sizeTablePaths(
+			final ConfigurationData configuration) {
+		final Set<Path> paths = new LinkedHashSet<>();
+		for (final String table : App.sizeTables(configuration)) {
+			paths.add(Paths.get(table).toAbsolutePath().normalize());
+		}
+		return paths;
+	}
+
+	/**
+	 * Generate all headers and then handle changes until the thread is
+	 * interrupted.
+	 *
+	 * @throws IOException
+	 *             if the directories cannot be watched
+	 */
+	public void run() throws IOException {
+		regenerateAll();
+		try (WatchService watcher =
+				FileSystems.getDefault().newWatchService()) {
+			final Map<WatchKey, Path> dirs = new HashMap<>();
+			final Set<Path> watched = new LinkedHashSet<>();
+			watched.add(profileDir);
+			for (final Path table : sizeTables) {
+				watched.add(table.getParent());
+			}
+			watched.add(configFile.getParent());
+			for (final Path dir : watched) {
+				dirs.put(dir.register(watcher,
+						StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY,
+						StandardWatchEventKinds.ENTRY_DELETE), dir);
+			}
+			reporter.accept("Watching " + profileDir);
+			while (!Thread.currentThread().isInterrupted()) {
+				final Set<Path> changed = new LinkedHashSet<>();
+				// block for the first event, then collect until quiet
+				WatchKey key = watcher.take();
+				while (key != null) {
+					collect(key, dirs.get(key), changed);
+					key = watcher.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+				}
+				process(changed);
+			}
+		} catch (final InterruptedException | ClosedWatchServiceException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @param key
+	 *            the signalled key
+	 * @param dir
+	 *            the directory of the key
+	 * @param changed
+	 *            receives the changed files
+	 */
+	private static void collect(final WatchKey key, final Path dir,
+			final Set<Path> changed) {
+		for (final WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() != StandardWatchEventKinds.OVERFLOW) {
+				changed.add(dir.resolve((Path) event.context()));
+			}
+		}
+		key.reset();
+	}
+
+	/**
+	 * Handle the changes collected in one debounce period, together with the
+	 * changes left over from a failed rebuild.
+	 *
+	 * @param changed
+	 *            the changed files
+	 */
+	void process(final Set<Path> changed) {
+		for (final Path file : changed) {
+			if (isProfile(file)) {
+				pendingProfiles.add(file);
+			}
+		}
+		if (changed.contains(configFile)) {
+			configChanged = true;
+		}
+		if (!Collections.disjoint(changed, sizeTables)) {
+			tablesChanged = true;
+		}
+		final boolean rebuild = configChanged || tablesChanged;
+		if (rebuild) {
+			try {
+				rebuildModel();
+			} catch (final IOException | YAMLException
+					| ClassCastException e) {
+				// e.g. an empty config file or one with values of a wrong type
+				reporter.accept("Couldn't rebuild the model, the changes are"
+						+ " handled after the next successful rebuild");
+				return;
+			}
+			regenerateAll();
+		}
+		for (final Path file : pendingProfiles) {
+			if (!Files.exists(file)) {
+				remove(file);
+			} else if (!rebuild) {
+				regenerate(file);
+			}
+		}
+		pendingProfiles.clear();
+	}
+
+	/**
+	 * Read the config file again if it has changed and rebuild the model.
+	 *
+	 * @throws IOException
+	 *             if the size tables cannot be read
+	 * @throws YAMLException
+	 *             if the config file is no YAML map, the previous
+	 *             configuration is kept then
+	 * @throws ClassCastException
+	 *             if a value of the config file has a wrong type
+	 */
+	private void rebuildModel() throws IOException {
+		if (configChanged) {
+			config.readConfigFile();
+			// tables added later are watched after a restart
+			sizeTables = sizeTablePaths(config);
+			configChanged = false;
+		}
+		model = App.createModel(config, reporter);
+		tablesChanged = false;
+	}
+
+	/**
+	 * Regenerate the headers of all profiles.
+	 */
+	void regenerateAll() {
+		final List<Path> profiles = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+				profileDir, "*" + PROFILE_SUFFIX)) {
+			for (final Path file : stream) {
+				profiles.add(file);
+			}
+		} catch (final IOException e) {
+			reporter.accept("Couldn't read directory: " + profileDir);
+			return;
+		}
+		profiles.sort(null);
+		for (final Path profile : profiles) {
+			regenerate(profile);
+		}
+	}
+
+	/**
+	 * @param file
+	 *            a changed file
+	 * @return true if the file is a profile definition in the profile
+	 *         directory
+	 */
+	private boolean isProfile(final Path file) {
+		return profileDir.equals(file.getParent())
+				&& file.getFileName().toString().endsWith(PROFILE_SUFFIX);
+	}
+
+	/**
+	 * @param profile
+	 *            the profile definition
+	 * @return the name of the profile
+	 */
+	private static String profileName(final Path profile) {
+		final String name = profile.getFileName().toString();
+		return name.substring(0, name.length() - PROFILE_SUFFIX.length());
+	}
+
+	/**
+	 * @param profile
+	 *            the profile definition
+	 * @return the header file of the profile
+	 */
+	private Path headerFile(final Path profile) {
+		return outputDir.resolve(profileName(profile)).resolve(config
+				.getConfig(ConfigurationData.PLUGIN_HEADER_FILE).toString());
+	}
+
+	/**
+	 * Parse a profile, validate it and write its header if it has changed.
+	 *
+	 * @param profile
+	 *            the profile definition
+	 */
+	private void regenerate(final Path profile) {
+		final String name = profileName(profile);
+		final List<String> unknown = new ArrayList<>();
+		final BitSet enabled;
+		try {
+			enabled = parseProfile(model, profile, unknown);
+		} catch (final IOException e) {
+			reporter.accept(name + ": couldn't read " + profile);
+			return;
+		}
+		for (final String plugin : unknown) {
+			reporter.accept(name + ": unknown plugin " + plugin);
+		}
+		validate(name, enabled).forEach(reporter);
+
+		final Path header = headerFile(profile);
+		final Path manifest =
+				ManifestExporter.manifestFile(header.toFile()).toPath();
+		writeIfChanged(name, header, new HeaderExporter(model), enabled,
+				reporter);
+		writeIfChanged(name, manifest, new ManifestExporter(model), enabled,
+				reporter);
+	}
+
+	/**
+	 * Write a profile into a file if the content differs from the file.
+	 *
+	 * @param name
+	 *            the name of the profile
+	 * @param file
+	 *            the file
+	 * @param exporter
+	 *            the exporter for the format of the file
+	 * @param enabled
+	 *            the enabled plugins
+	 * @param reporter
+	 *            receives the written file or the problem
+	 * @return true if the file is up to date
+	 */
+	static boolean writeIfChanged(final String name, final Path file,
+			final SelectionExporter exporter, final BitSet enabled,
+			final Consumer<String> reporter) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (WritableByteChannel channel = Channels.newChannel(bytes);
+				ChannelWriter writer = new ChannelWriter(channel)) {
+			exporter.begin(writer);
+			exporter.export(writer, name, enabled);
+			exporter.end(writer);
+		} catch (final IOException e) {
+			reporter.accept(name + ": couldn't create " + file);
+			return false;
+		}
+		try {
+			final byte[] content = bytes.toByteArray();
+			if (Files.exists(file)
+					&& Arrays.equals(content, Files.readAllBytes(file))) {
+				return true;
+			}
+			Files.createDirectories(file.getParent());
+			AtomicFile.write(file, content);
+			reporter.accept(name + ": wrote " + file);
+			return true;
+		} catch (final IOException e) {
+			reporter.accept(name + ": couldn't write " + file);
+		}
+		return false;
+	}
+
+	/**
+	 * Remove the header and the manifest of a deleted profile.
+	 *
+	 * @param profile
+	 *            the deleted profile definition
+	 */
+	private void remove(final Path profile) {
+		final Path header = headerFile(profile);
+		final Path manifest =
+				ManifestExporter.manifestFile(header.toFile()).toPath();
+		for (final Path file : Arrays.asList(header, manifest)) {
+			try {
+				if (Files.deleteIfExists(file)) {
+					reporter.accept(profileName(profile) + ": removed " + file);
+				}
+			} catch (final IOException e) {
+				reporter.accept("Couldn't remove " + file);
+			}
+		}
+	}
+
+	/**
+	 * Check a profile against the memory limits and the plugin rules.
+	 *
+	 * @param name
+	 *            the name of the profile
+	 * @param enabled
+	 *            the enabled plugins
+	 * @return the problems found
+	 */
+	private List<String> validate(final String name, final BitSet enabled) {
+		final List<String> problems = new ArrayList<>();
+		// every board is checked with the size table of its target
+		final BitSet fitting = model.getFittingBoards(
+				model.getMemDataPerTarget(name, enabled));
+		final List<MemoryData> limits = model.getMemLimits();
+		for (int b = 0; b < limits.size(); b++) {
+			if (!fitting.get(b)) {
+				problems.add(name + ": exceeds " + limits.get(b).getName());
+			}
+		}
+		for (final String violation : model.checkRules(enabled)) {
+			problems.add(name + ": " + violation);
+		}
+		return problems;
+	}
+
+	/**
+	 * Parse a profile definition. Read-only plugins are always enabled.
+	 *
+	 * @param model
+	 *            the model containing the plugins
+	 * @param profile
+	 *            the profile definition
+	 * @param unknown
+	 *            receives the names that denote no known plugin
+	 * @return the enabled plugins, indexed by the dense plugin index
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	static BitSet parseProfile(final Model model, final Path profile,
+			final List<String> unknown) throws IOException {
+		final PluginCatalog catalog = model.getCatalog();
+		final BitSet enabled = catalog.getReadOnly();
+		for (final String line : Files.readAllLines(profile)) {
+			String text = line;
+			final int comment = text.indexOf('#');
+			if (comment >= 0) {
+				text = text.substring(0, comment);
+			}
+			for (final String name : text.trim().split("[,;\\s]+")) {
+				if (name.isEmpty()) {
+					continue;
+				}
+				final int index = catalog.findPlugin(name);
+				if (index >= 0) {
+					enabled.set(index);
+				} else {
+					unknown.add(name);
+				}
+			}
+		}
+		return enabled;
+	}
+
+}
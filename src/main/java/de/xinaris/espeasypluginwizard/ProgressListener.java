@@ -0,0 +1,23 @@
+package de.xinaris.espeasypluginwizard;
+
+/**
+ * Receives the progress of a long running operation, e.g. to update a
+ * progress bar. It may be called from several threads at once.
+ */
+@FunctionalInterface
+public interface ProgressListener {
+
+	/**
+	 * A listener ignoring the progress.
+	 */
+	ProgressListener NONE = (done, total) -> {
+	};
+
+	/**
+	 * @param done
+	 *            the amount of work done so far
+	 * @param total
+	 *            the total amount of work
+	 */
+	void progress(long done, long total);
+}
@@ -0,0 +1,344 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks the dependency and conflict rules between plugins. Plugins are
+ * matched by the prefix of their name (e.g. "_N" or "_P036").
+ *
+ * <p>
+ * A "requires" rule is violated if at least one of its plugins is enabled
+ * but none of the required plugins. A "conflicts" rule is violated if more
+ * than one of its plugins is enabled.
+ *
+ * <p>
+ * For each rule the engine counts the enabled plugins on both sides. A
+ * change of a single plugin only updates the rules this plugin takes part in,
+ * so the current violations are always known without re-checking all rules.
+ */
+public class RuleEngine implements PluginSelection.Listener {
+
+	public static final String REQUIRES = "requires";
+	public static final String CONFLICTS = "conflicts";
+
+	private static final int[] NO_RULES = new int[0];
+
+	private final List<Rule> rules = new ArrayList<>();
+
+	/**
+	 * The rules each plugin takes part in, indexed by the plugin index.
+	 */
+	private final List<int[]> rulesByPlugin = new ArrayList<>();
+	private final BitSet violated = new BitSet();
+
+	/**
+	 * A single rule together with the counters of its enabled plugins.
+	 */
+	private static final class Rule {
+		private final boolean conflict;
+		private final String[] plugins;
+		private final String[] required;
+		private final String message;
+		private final BitSet pluginSet = new BitSet();
+		private final BitSet requiredSet = new BitSet();
+		private int pluginCount = 0;
+		private int requiredCount = 0;
+
+		/**
+		 * @param conflict
+		 *            true for a conflict, false for a dependency
+		 * @param plugins
+		 *            the prefixes of the plugins the rule applies to
+		 * @param required
+		 *            the prefixes of the required plugins
+		 * @param message
+		 *            the message shown when the rule is violated
+		 */
+		Rule(final boolean conflict, final String[] plugins,
+				final String[] required, final String message) {
+			this.conflict = conflict;
+			this.plugins = plugins;
+			this.required = required;
+			this.message = message;
+		}
+
+		/**
+		 * @return true if the rule is violated by the enabled plugins
+		 */
+		boolean isViolated() {
+			if (conflict) {
+				return pluginCount > 1;
+			}
+			return pluginCount > 0 && requiredCount == 0;
+		}
+
+		/**
+		 * @param selection
+		 *            the selection to check
+		 * @return true if the rule is violated by the given selection
+		 */
+		boolean isViolatedBy(final BitSet selection) {
+			final BitSet enabled = (BitSet) pluginSet.clone();
+			enabled.and(selection);
+			if (conflict) {
+				return enabled.cardinality() > 1;
+			}
+			return !enabled.isEmpty() && !requiredSet.intersects(selection);
+		}
+	}
+
+	/**
+	 * Create the rule engine from the content of the rules file.
+	 *
+	 * @param ruleData
+	 *            the map read from the rules file, may be empty
+	 */
+	public RuleEngine(final Map<String, Object> ruleData) {
+		parseRules(ruleData.get(REQUIRES), false);
+		parseRules(ruleData.get(CONFLICTS), true);
+	}
+
+	/**
+	 * Parse a list of rule definitions. Definitions with missing values are
+	 * reported and ignored.
+	 *
+	 * @param data
+	 *            the list of rule definitions
+	 * @param conflict
+	 *            true if the list contains conflicts
+	 */
+	private void parseRules(final Object data, final boolean conflict) {
+		if (data == null) {
+			return;
+		}
+		if (!(data instanceof List)) {
+			System.out.println("Rules: '" + conflictName(conflict)
+					+ "' has to be a list");
+			return;
+		}
+		for (final Object entry : (List<?>) data) {
+			if (!(entry instanceof Map)) {
+				System.out.println("Rules: ignoring entry " + entry);
+				continue;
+			}
+			final Map<?, ?> map = (Map<?, ?>) entry;
+			final String[] plugins = toPrefixes(map.get("plugins"));
+			final String[] required = toPrefixes(map.get(REQUIRES));
+			if (plugins.length == 0 || !conflict && required.length == 0) {
+				System.out.println("Rules: value missing in " + entry);
+				continue;
+			}
+			Object message = map.get("message");
+			if (message == null) {
+				if (conflict) {
+					message = "only one of " + String.join(", ", plugins)
+							+ " may be enabled";
+				} else {
+					message = "needs one of " + String.join(", ", required);
+				}
+			}
+			rules.add(new Rule(conflict, plugins, required,
+					message.toString()));
+		}
+	}
+
+	/**
+	 * @param conflict
+	 *            true for the conflict rules
+	 * @return the key of the rule list
+	 */
+	private static String conflictName(final boolean conflict) {
+		if (conflict) {
+			return CONFLICTS;
+		}
+		return REQUIRES;
+	}
+
+	/**
+	 * Convert a single prefix or a list of prefixes to an array.
+	 *
+	 * @param value
+	 *            a string, a list of strings or null
+	 * @return the prefixes
+	 */
+	private static String[] toPrefixes(final Object value) {
+		if (value == null) {
+			return new String[0];
+		}
+		if (value instanceof List) {
+			final List<?> list = (List<?>) value;
+			final String[] result = new String[list.size()];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = String.valueOf(list.get(i));
+			}
+			return result;
+		}
+		return new String[] { value.toString() };
+	}
+
+	/**
+	 * Add a plugin to the engine. Plugins have to be added in the order of
+	 * their index and before they are enabled.
+	 *
+	 * @param index
+	 *            the dense plugin index
+	 * @param name
+	 *            the plugin name
+	 */
+	public void addPlugin(final int index, final String name) {
+		final List<Integer> touched = new ArrayList<>();
+		for (int r = 0; r < rules.size(); r++) {
+			final Rule rule = rules.get(r);
+			boolean matches = false;
+			if (matchesAny(name, rule.plugins)) {
+				rule.pluginSet.set(index);
+				matches = true;
+			}
+			if (matchesAny(name, rule.required)) {
+				rule.requiredSet.set(index);
+				matches = true;
+			}
+			if (matches) {
+				touched.add(r);
+			}
+		}
+		while (rulesByPlugin.size() <= index) {
+			rulesByPlugin.add(NO_RULES);
+		}
+		if (!touched.isEmpty()) {
+			final int[] ruleIds = new int[touched.size()];
+			for (int i = 0; i < ruleIds.length; i++) {
+				ruleIds[i] = touched.get(i);
+			}
+			rulesByPlugin.set(index, ruleIds);
+		}
+	}
+
+	/**
+	 * @param name
+	 *            the plugin name
+	 * @param prefixes
+	 *            the prefixes to check
+	 * @return true if the name starts with one of the prefixes
+	 */
+	private static boolean matchesAny(final String name,
+			final String[] prefixes) {
+		for (final String prefix : prefixes) {
+			if (name.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param index
+	 *            the plugin index
+	 * @return the ids of the rules the plugin takes part in
+	 */
+	private int[] getRules(final int index) {
+		if (index < rulesByPlugin.size()) {
+			return rulesByPlugin.get(index);
+		}
+		return NO_RULES;
+	}
+
+	/**
+	 * Update the counters of all rules the changed plugin takes part in.
+	 */
+	@Override
+	public void enabledChanged(final int index, final boolean value) {
+		int delta = -1;
+		if (value) {
+			delta = 1;
+		}
+		for (final int r : getRules(index)) {
+			final Rule rule = rules.get(r);
+			if (rule.pluginSet.get(index)) {
+				rule.pluginCount += delta;
+			}
+			if (rule.requiredSet.get(index)) {
+				rule.requiredCount += delta;
+			}
+			violated.set(r, rule.isViolated());
+		}
+	}
+
+	/**
+	 * @return true if at least one rule is currently violated
+	 */
+	public boolean hasViolations() {
+		return !violated.isEmpty();
+	}
+
+	/**
+	 * @return the messages of all currently violated rules
+	 */
+	public List<String> getViolations() {
+		final List<String> result = new ArrayList<>();
+		for (int r = violated.nextSetBit(0); r >= 0; r =
+				violated.nextSetBit(r + 1)) {
+			result.add(rules.get(r).message);
+		}
+		return result;
+	}
+
+	/**
+	 * Return the messages of the currently violated rules caused by the given
+	 * plugin, i.e. only enabled plugins have violations.
+	 *
+	 * @param index
+	 *            the plugin index
+	 * @param enabled
+	 *            the current state of the plugin
+	 * @return the messages, an empty list if there is no violation
+	 */
+	public List<String> getViolations(final int index,
+			final boolean enabled) {
+		if (!enabled) {
+			return Collections.emptyList();
+		}
+		List<String> result = Collections.emptyList();
+		for (final int r : getRules(index)) {
+			final Rule rule = rules.get(r);
+			if (violated.get(r) && rule.pluginSet.get(index)) {
+				if (result.isEmpty()) {
+					result = new ArrayList<>();
+				}
+				result.add(rule.message);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Check an arbitrary selection, e.g. in batch generation. Only the rules
+	 * touched by the enabled plugins are evaluated, each of them once.
+	 *
+	 * @param selection
+	 *            the selection to check
+	 * @return the messages of the violated rules
+	 */
+	public List<String> check(final BitSet selection) {
+		final List<String> result = new ArrayList<>();
+		final BitSet checked = new BitSet(rules.size());
+		for (int i = selection.nextSetBit(0); i >= 0; i =
+				selection.nextSetBit(i + 1)) {
+			for (final int r : getRules(i)) {
+				if (!checked.get(r)) {
+					checked.set(r);
+					final Rule rule = rules.get(r);
+					if (rule.isViolatedBy(selection)) {
+						result.add(rule.message);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,314 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A persistent cache of the metadata extracted from plugin source files, so
+ * that reopening a source directory only analyzes the files that have
+ * changed. The entries are keyed by the canonical path of a file and are
+ * valid as long as its size and modification time are unchanged. One cache
+ * file holds the entries of all source directories.
+ *
+ * <p>
+ * The cache file is read completely on first use and written after a
+ * directory has been analyzed with changes, to a temporary file with a
+ * unique name that atomically replaces the old one, so concurrent writers
+ * never mix their entries. A cache file that cannot be read is ignored and
+ * rebuilt.
+ */
+public final class ScanCache {
+
+	/**
+	 * The name of the cache file in the home directory of the user, used by
+	 * the user interface if scanCache is not configured.
+	 */
+	public static final String DEFAULT_FILE = ".epwscancache";
+
+	private static final int MAGIC = 0x45505743; // "EPWC"
+	private static final int VERSION = 1;
+
+	private final Path file;
+	private Map<String, Entry> entries = null;
+	private int analyzed = 0;
+
+	/**
+	 * The cached metadata of a file.
+	 */
+	private static final class Entry {
+		private final long size;
+		private final long modified;
+		private final SourceInfo info;
+
+		/**
+		 * @param size
+		 *            the size of the file
+		 * @param modified
+		 *            the modification time of the file
+		 * @param info
+		 *            the metadata of the file
+		 */
+		private Entry(final long size, final long modified,
+				final SourceInfo info) {
+			this.size = size;
+			this.modified = modified;
+			this.info = info;
+		}
+	}
+
+	/**
+	 * @param file
+	 *            the cache file, created when first needed
+	 */
+	public ScanCache(final Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Create the cache configured by scanCache: the file given there, or no
+	 * cache if it is empty or not configured. Commands and builds thus never
+	 * write into the home directory unless told so, see setDefault.
+	 *
+	 * @param configuration
+	 *            the configuration data
+	 * @return the cache or null
+	 */
+	public static ScanCache create(final ConfigurationData configuration) {
+		final Object name =
+				configuration.getConfig(ConfigurationData.SCAN_CACHE);
+		if (name == null || name.toString().isEmpty()) {
+			return null;
+		}
+		return new ScanCache(Paths.get(name.toString()));
+	}
+
+	/**
+	 * Configure DEFAULT_FILE in the home directory of the user as cache if
+	 * scanCache is not configured, done for the user interface only.
+	 *
+	 * @param configuration
+	 *            the configuration data
+	 */
+	public static void setDefault(final ConfigurationData configuration) {
+		if (configuration.getConfig(ConfigurationData.SCAN_CACHE) == null) {
+			configuration.setConfig(ConfigurationData.SCAN_CACHE, Paths
+					.get(System.getProperty("user.home"), DEFAULT_FILE)
+					.toString());
+		}
+	}
+
+	/**
+	 * Analyze source files, all from the same directory. Only files that
+	 * are not in the cache or have changed are analyzed, in parallel.
+	 * Entries of files of the directory that no longer exist are removed.
+	 *
+	 * @param dir
+	 *            the directory containing the files
+	 * @param files
+	 *            the source files
+	 * @return the metadata of each file, the key is the file name
+	 * @throws IOException
+	 *             if the directory has no canonical path or a file cannot be
+	 *             read
+	 */
+	public Map<String, SourceInfo> analyze(final File dir,
+			final List<File> files) throws IOException {
+		return analyze(dir, files, ProgressListener.NONE);
+	}
+
+	/**
+	 * Analyze source files as above and report the progress.
+	 *
+	 * @param dir
+	 *            the directory containing the files
+	 * @param files
+	 *            the source files
+	 * @param progress
+	 *            receives the number of changed files analyzed so far
+	 * @return the metadata of each file, the key is the file name
+	 * @throws IOException
+	 *             if the directory has no canonical path, a file cannot be
+	 *             read or the thread is interrupted; the cache is unchanged
+	 *             then
+	 */
+	public synchronized Map<String, SourceInfo> analyze(final File dir,
+			final List<File> files, final ProgressListener progress)
+			throws IOException {
+		if (entries == null) {
+			entries = read();
+		}
+		final String prefix = dir.getCanonicalPath() + File.separator;
+		final Map<String, SourceInfo> result = new HashMap<>();
+		final List<File> changed = new ArrayList<>();
+		final List<BasicFileAttributes> changedAttributes = new ArrayList<>();
+		final Set<String> paths = new HashSet<>();
+		for (final File source : files) {
+			final String path = prefix + source.getName();
+			paths.add(path);
+			// a single stat for size and modification time
+			final BasicFileAttributes attributes = Files.readAttributes(
+					source.toPath(), BasicFileAttributes.class);
+			final Entry entry = entries.get(path);
+			if (entry != null && entry.size == attributes.size()
+					&& entry.modified == attributes.lastModifiedTime()
+							.toMillis()) {
+				result.put(source.getName(), entry.info);
+			} else {
+				changed.add(source);
+				changedAttributes.add(attributes);
+			}
+		}
+		analyzed = changed.size();
+
+		boolean modified = false;
+		final Map<String, SourceInfo> infos = SourceAnalyzer.analyze(changed,
+				progress);
+		for (int c = 0; c < changed.size(); c++) {
+			final String name = changed.get(c).getName();
+			final BasicFileAttributes attributes = changedAttributes.get(c);
+			final SourceInfo info = infos.get(name);
+			if (info != null) {
+				result.put(name, info);
+				entries.put(prefix + name, new Entry(attributes.size(),
+						attributes.lastModifiedTime().toMillis(), info));
+				modified = true;
+			}
+		}
+		final Iterator<String> keys = entries.keySet().iterator();
+		while (keys.hasNext()) {
+			final String path = keys.next();
+			if (path.startsWith(prefix)
+					&& path.indexOf(File.separatorChar, prefix.length()) < 0
+					&& !paths.contains(path)) {
+				keys.remove();
+				modified = true;
+			}
+		}
+		if (modified) {
+			write();
+		}
+		return result;
+	}
+
+	/**
+	 * @return the number of files analyzed by the last call of analyze, the
+	 *         others were taken from the cache
+	 */
+	public synchronized int getAnalyzedCount() {
+		return analyzed;
+	}
+
+	/**
+	 * @return the entries of the cache file, empty if it does not exist or
+	 *         cannot be read
+	 */
+	private Map<String, Entry> read() {
+		final Map<String, Entry> result = new HashMap<>();
+		if (!Files.exists(file)) {
+			return result;
+		}
+		try (InputStream input = Files.newInputStream(file);
+				DataInputStream in =
+						new DataInputStream(new BufferedInputStream(input))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				System.out.println("Ignoring scan cache " + file);
+				return result;
+			}
+			final int count = in.readInt();
+			for (int e = 0; e < count; e++) {
+				final String path = in.readUTF();
+				final long size = in.readLong();
+				final long modified = in.readLong();
+				final int pluginId = in.readInt();
+				String pluginName = null;
+				if (in.readBoolean()) {
+					pluginName = in.readUTF();
+				}
+				final int includeCount = in.readShort();
+				final List<String> includes = new ArrayList<>(includeCount);
+				for (int i = 0; i < includeCount; i++) {
+					includes.add(in.readUTF());
+				}
+				final long sourceSize = in.readLong();
+				result.put(path, new Entry(size, modified, new SourceInfo(
+						pluginId, pluginName, includes, sourceSize)));
+			}
+		} catch (final IOException e) {
+			System.out.println("Couldn't read scan cache " + file);
+			result.clear();
+		}
+		return result;
+	}
+
+	/**
+	 * Write all entries into the cache file. A cache file that cannot be
+	 * written is reported, the analysis does not depend on it.
+	 */
+	private void write() {
+		Path temp = null;
+		try {
+			temp = AtomicFile.createTemp(file);
+			try (OutputStream output = Files.newOutputStream(temp);
+					DataOutputStream out = new DataOutputStream(
+							new BufferedOutputStream(output))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(entries.size());
+				for (final Map.Entry<String, Entry> e : entries.entrySet()) {
+					final Entry entry = e.getValue();
+					final SourceInfo info = entry.info;
+					out.writeUTF(e.getKey());
+					out.writeLong(entry.size);
+					out.writeLong(entry.modified);
+					out.writeInt(info.getPluginId());
+					out.writeBoolean(info.getPluginName() != null);
+					if (info.getPluginName() != null) {
+						out.writeUTF(info.getPluginName());
+					}
+					out.writeShort(info.getIncludes().size());
+					for (final String include : info.getIncludes()) {
+						out.writeUTF(include);
+					}
+					out.writeLong(info.getSourceSize());
+				}
+			}
+			AtomicFile.replace(temp, file);
+		} catch (final IOException e) {
+			System.out.println("Couldn't write scan cache " + file);
+			deleteQuietly(temp);
+		}
+	}
+
+	/**
+	 * @param temp
+	 *            a temporary file that is no longer needed, or null
+	 */
+	private static void deleteQuietly(final Path temp) {
+		if (temp == null) {
+			return;
+		}
+		try {
+			Files.deleteIfExists(temp);
+		} catch (final IOException e) {
+			System.out.println("Couldn't delete " + temp);
+		}
+	}
+
+}
@@ -0,0 +1,207 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An n-gram index over the searchable text of the plugins. For every
+ * sequence of one, two or three characters the index holds the ascending list
+ * of plugins containing it. A search term of up to three characters is
+ * answered by a single list. For longer terms the lists of their trigrams
+ * are intersected, beginning with the shortest one, and only the remaining
+ * candidates are compared with the term.
+ *
+ * <p>
+ * Plugins can be added to the index at any time, their index has to be
+ * larger than the index of all plugins added before.
+ */
+public class SearchIndex {
+
+	private static final int GRAM = 3;
+	private static final int INITIAL_POSTINGS = 4;
+
+	/**
+	 * The lower case text of each plugin, indexed by the plugin index.
+	 */
+	private final List<String> texts = new ArrayList<>();
+
+	/**
+	 * The plugins containing an n-gram in ascending order. The first entry
+	 * of each array is the number of plugins in the array.
+	 */
+	private final Map<Long, int[]> postings = new HashMap<>();
+
+	/**
+	 * Build the index for all plugins of the model.
+	 *
+	 * @param model
+	 *            the model
+	 * @return the index
+	 */
+	public static SearchIndex of(final Model model) {
+		final PluginCatalog catalog = model.getCatalog();
+		final SearchIndex index = new SearchIndex();
+		for (int i = 0; i < catalog.size(); i++) {
+			index.add(i, searchText(catalog, i));
+		}
+		return index;
+	}
+
+	/**
+	 * @param catalog
+	 *            the catalog of the plugins
+	 * @param plugin
+	 *            the plugin index
+	 * @return the text of the plugin that is searched: the file name, the
+	 *         macro name and the extracted metadata
+	 */
+	public static String searchText(final PluginCatalog catalog,
+			final int plugin) {
+		final StringBuilder sb = new StringBuilder();
+		sb.append(catalog.getName(plugin)).append('\n');
+		sb.append(catalog.getMacroName(plugin));
+		final SourceInfo info = catalog.getSourceInfo(plugin);
+		if (info != null) {
+			if (info.getPluginName() != null) {
+				sb.append('\n').append(info.getPluginName());
+			}
+			for (final String include : info.getIncludes()) {
+				sb.append('\n').append(include);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Add the text of a plugin to the index.
+	 *
+	 * @param index
+	 *            the plugin index, larger than all indexes added before
+	 * @param text
+	 *            the searchable text
+	 */
+	public void add(final int index, final String text) {
+		while (texts.size() < index) {
+			texts.add("");
+		}
+		final String lower = text.toLowerCase(Locale.ROOT);
+		texts.add(lower);
+		for (int n = 1; n <= GRAM; n++) {
+			for (int i = 0; i + n <= lower.length(); i++) {
+				addPosting(gram(lower, i, n), index);
+			}
+		}
+	}
+
+	/**
+	 * @param key
+	 *            the n-gram
+	 * @param index
+	 *            the plugin containing it
+	 */
+	private void addPosting(final Long key, final int index) {
+		int[] list = postings.get(key);
+		if (list == null) {
+			list = new int[INITIAL_POSTINGS];
+		} else if (list[list[0]] == index) {
+			return; // the n-gram occurs several times
+		}
+		if (list[0] + 1 == list.length) {
+			list = Arrays.copyOf(list, list.length * 2);
+		}
+		list[0]++;
+		list[list[0]] = index;
+		postings.put(key, list);
+	}
+
+	/**
+	 * @return the number of plugins in the index
+	 */
+	public int size() {
+		return texts.size();
+	}
+
+	/**
+	 * @param s
+	 *            the string
+	 * @param i
+	 *            the start of the n-gram
+	 * @param n
+	 *            the length of the n-gram, 1 to 3
+	 * @return the characters and the length packed into a single key
+	 */
+	private static Long gram(final String s, final int i, final int n) {
+		long key = n;
+		for (int c = 0; c < n; c++) {
+			key = key << 16 | s.charAt(i + c);
+		}
+		return key;
+	}
+
+	/**
+	 * Search for plugins containing all words of the query, ignoring case.
+	 *
+	 * @param query
+	 *            the words to search for, separated by blanks
+	 * @return the matching plugins, all plugins for an empty query
+	 */
+	public BitSet search(final String query) {
+		final BitSet result = new BitSet(texts.size());
+		result.set(0, texts.size());
+		for (final String word : query.toLowerCase(Locale.ROOT).trim()
+				.split("\\s+")) {
+			if (word.isEmpty()) {
+				continue;
+			}
+			lookup(word, result);
+			if (result.isEmpty()) {
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Keep only the candidates containing the word. The candidates of the
+	 * shortest list are looked up in the other lists with a binary search.
+	 *
+	 * @param word
+	 *            the word
+	 * @param candidates
+	 *            the candidates, updated
+	 */
+	private void lookup(final String word, final BitSet candidates) {
+		final int n = Math.min(word.length(), GRAM);
+		final int[][] lists = new int[word.length() - n + 1][];
+		for (int i = 0; i < lists.length; i++) {
+			lists[i] = postings.get(gram(word, i, n));
+			if (lists[i] == null) {
+				candidates.clear();
+				return;
+			}
+		}
+		Arrays.sort(lists, (l1, l2) -> Integer.compare(l1[0], l2[0]));
+		final BitSet found = new BitSet(texts.size());
+		final int[] shortest = lists[0];
+		for (int p = 1; p <= shortest[0]; p++) {
+			final int plugin = shortest[p];
+			boolean matches = candidates.get(plugin);
+			for (int l = 1; l < lists.length && matches; l++) {
+				matches = Arrays.binarySearch(lists[l], 1, lists[l][0] + 1,
+						plugin) >= 0;
+			}
+			// the trigrams may occur in a different order than in the word
+			if (matches && (n == word.length()
+					|| texts.get(plugin).contains(word))) {
+				found.set(plugin);
+			}
+		}
+		candidates.and(found);
+	}
+
+}
@@ -0,0 +1,82 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * Writes selections of plugins (profiles) in a certain format. An exporter
+ * is created for a model and can write any number of profiles in one pass:
+ * begin is called once, then export for every profile and end at the end.
+ */
+public interface SelectionExporter {
+
+	/**
+	 * The names of the available formats.
+	 */
+	String[] FORMATS = { "header", "pio", "csv", "json", "manifest" };
+
+	/**
+	 * Write what precedes the first profile.
+	 *
+	 * @param out
+	 *            the writer
+	 * @throws IOException
+	 *             if the output cannot be written
+	 */
+	default void begin(final ChannelWriter out) throws IOException {
+	}
+
+	/**
+	 * Write a single profile.
+	 *
+	 * @param out
+	 *            the writer
+	 * @param profile
+	 *            the name of the profile
+	 * @param enabled
+	 *            the enabled plugins, indexed by the dense plugin index
+	 * @throws IOException
+	 *             if the output cannot be written
+	 */
+	void export(ChannelWriter out, String profile, BitSet enabled)
+			throws IOException;
+
+	/**
+	 * Write what follows the last profile.
+	 *
+	 * @param out
+	 *            the writer
+	 * @throws IOException
+	 *             if the output cannot be written
+	 */
+	default void end(final ChannelWriter out) throws IOException {
+	}
+
+	/**
+	 * Create the exporter for a format.
+	 *
+	 * @param format
+	 *            one of FORMATS
+	 * @param model
+	 *            the model containing plugins and memory limits
+	 * @return the exporter or null for an unknown format
+	 */
+	static SelectionExporter forFormat(final String format,
+			final Model model) {
+		switch (format) {
+		case "header":
+			return new HeaderExporter(model);
+		case "pio":
+			return new BuildFlagsExporter(model);
+		case "csv":
+			return new CsvExporter(model);
+		case "json":
+			return new JsonExporter(model);
+		case "manifest":
+			return new ManifestExporter(model);
+		default:
+			return null;
+		}
+	}
+
+}
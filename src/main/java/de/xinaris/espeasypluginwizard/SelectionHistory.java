@@ -0,0 +1,194 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+
+/**
+ * The undo/redo history for the plugin selection. Each entry is an immutable
+ * snapshot that is split into chunks of bits. Consecutive snapshots share all
+ * chunks that did not change, so an entry for a single toggle only costs one
+ * chunk and the chunk table. The number of entries is bounded, the oldest
+ * entries are dropped first.
+ */
+public class SelectionHistory {
+
+	/**
+	 * The default number of undo steps that are kept.
+	 */
+	public static final int DEFAULT_LIMIT = 1000;
+
+	private final int limit;
+	private final Deque<Snapshot> undoStack = new ArrayDeque<>();
+	private final Deque<Snapshot> redoStack = new ArrayDeque<>();
+	private Snapshot current;
+
+	/**
+	 * Create a history starting with the given selection.
+	 *
+	 * @param initial
+	 *            the initial selection
+	 * @param limit
+	 *            the maximum number of undo steps
+	 */
+	public SelectionHistory(final BitSet initial, final int limit) {
+		this.limit = limit;
+		this.current = Snapshot.of(initial, null);
+	}
+
+	/**
+	 * Record a new selection as the current state. Recording a selection that
+	 * is equal to the current one does not create a new undo step.
+	 *
+	 * @param selection
+	 *            the new selection
+	 */
+	public void record(final BitSet selection) {
+		final Snapshot next = Snapshot.of(selection, current);
+		if (next == current) {
+			return;
+		}
+		undoStack.push(current);
+		if (undoStack.size() > limit) {
+			undoStack.removeLast();
+		}
+		redoStack.clear();
+		current = next;
+	}
+
+	/**
+	 * Reset the history, e.g. after a new plugin list has been loaded.
+	 *
+	 * @param selection
+	 *            the new current selection
+	 */
+	public void reset(final BitSet selection) {
+		undoStack.clear();
+		redoStack.clear();
+		current = Snapshot.of(selection, current);
+	}
+
+	/**
+	 * @return true if there is a step that can be undone
+	 */
+	public boolean canUndo() {
+		return !undoStack.isEmpty();
+	}
+
+	/**
+	 * @return true if there is a step that can be redone
+	 */
+	public boolean canRedo() {
+		return !redoStack.isEmpty();
+	}
+
+	/**
+	 * Go back one step.
+	 *
+	 * @return the selection to restore or null if there is nothing to undo
+	 */
+	public BitSet undo() {
+		if (undoStack.isEmpty()) {
+			return null;
+		}
+		redoStack.push(current);
+		current = undoStack.pop();
+		return current.toBitSet();
+	}
+
+	/**
+	 * Go forward one step.
+	 *
+	 * @return the selection to restore or null if there is nothing to redo
+	 */
+	public BitSet redo() {
+		if (redoStack.isEmpty()) {
+			return null;
+		}
+		undoStack.push(current);
+		current = redoStack.pop();
+		return current.toBitSet();
+	}
+
+	/**
+	 * An immutable selection split into chunks of words. Chunks are never
+	 * modified after creation and can therefore be shared between snapshots.
+	 */
+	static final class Snapshot {
+		private static final int CHUNK_WORDS = 8;
+		private static final long[] EMPTY_CHUNK = new long[CHUNK_WORDS];
+
+		private final long[][] chunks;
+
+		/**
+		 * @param chunks
+		 *            the chunks of this snapshot
+		 */
+		private Snapshot(final long[][] chunks) {
+			this.chunks = chunks;
+		}
+
+		/**
+		 * Create a snapshot for the given selection. All chunks that are
+		 * equal to the chunks of the base snapshot are shared with it. If the
+		 * selection is equal to the base, the base itself is returned.
+		 *
+		 * @param selection
+		 *            the selection
+		 * @param base
+		 *            the snapshot to share chunks with, may be null
+		 * @return the snapshot
+		 */
+		static Snapshot of(final BitSet selection, final Snapshot base) {
+			final long[] words = selection.toLongArray();
+			final int numChunks =
+					(words.length + CHUNK_WORDS - 1) / CHUNK_WORDS;
+			final long[][] chunks = new long[numChunks][];
+			boolean sameAsBase =
+					base != null && base.chunks.length == numChunks;
+			for (int c = 0; c < numChunks; c++) {
+				final int from = c * CHUNK_WORDS;
+				final long[] chunk = Arrays.copyOfRange(words, from,
+						from + CHUNK_WORDS); // padded with zeros
+				final long[] baseChunk = base == null ? EMPTY_CHUNK
+						: base.getChunk(c);
+				if (Arrays.equals(chunk, baseChunk)) {
+					chunks[c] = baseChunk;
+				} else {
+					chunks[c] = chunk;
+					sameAsBase = false;
+				}
+			}
+			if (sameAsBase) {
+				return base;
+			}
+			return new Snapshot(chunks);
+		}
+
+		/**
+		 * @param c
+		 *            the chunk number
+		 * @return the chunk or an empty chunk if it does not exist
+		 */
+		private long[] getChunk(final int c) {
+			if (c < chunks.length) {
+				return chunks[c];
+			}
+			return EMPTY_CHUNK;
+		}
+
+		/**
+		 * @return the selection contained in this snapshot
+		 */
+		BitSet toBitSet() {
+			final long[] words = new long[chunks.length * CHUNK_WORDS];
+			for (int c = 0; c < chunks.length; c++) {
+				System.arraycopy(chunks[c], 0, words, c * CHUNK_WORDS,
+						CHUNK_WORDS);
+			}
+			return BitSet.valueOf(words);
+		}
+	}
+
+}
@@ -0,0 +1,596 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Finds the plugins to disable so that a selection fits a board. The
+ * enabled plugins that are not read-only are the candidates. Among all sets
+ * of candidates whose removal brings every memory type under the limit of the
+ * board, a set with the smallest total weight is searched. The weight of a
+ * plugin is its priority, 1 unless configured otherwise, so without
+ * priorities the smallest number of plugins is disabled.
+ *
+ * <p>
+ * A greedy pass first takes the candidate covering most of the remaining
+ * excess per weight until the selection fits, then candidates that are not
+ * needed are dropped again. This result is improved by a depth first
+ * branch and bound search that stops at a time budget. The bound for a
+ * partial solution is the remaining excess of each memory type divided by
+ * the best value per weight of the candidates still available.
+ */
+public class SelectionRepair {
+
+	/**
+	 * The default time budget of the branch and bound search.
+	 */
+	public static final long DEFAULT_BUDGET_MILLIS = 25;
+
+	private static final int MEM_TYPES = SizeTableParser.VALUES;
+	private static final int DEADLINE_CHECK_NODES = 256;
+
+	private final Model model;
+	private final Map<String, Integer> priorities = new LinkedHashMap<>();
+
+	/**
+	 * The weights of the plugins of a catalog, recalculated if the catalog of
+	 * the model changes.
+	 */
+	private PluginCatalog weightCatalog = null;
+	private int[] weights = new int[0];
+
+	/**
+	 * The result of a repair.
+	 */
+	public static final class Result {
+		private final BitSet selection;
+		private final BitSet removed;
+		private final long weight;
+		private final boolean feasible;
+		private final boolean optimal;
+
+		/**
+		 * @param selection
+		 *            the repaired selection
+		 * @param removed
+		 *            the plugins to disable
+		 * @param weight
+		 *            the total weight of the plugins to disable
+		 * @param feasible
+		 *            true if the repaired selection fits the board
+		 * @param optimal
+		 *            true if the search finished within the time budget
+		 */
+		Result(final BitSet selection, final BitSet removed, final long weight,
+				final boolean feasible, final boolean optimal) {
+			this.selection = selection;
+			this.removed = removed;
+			this.weight = weight;
+			this.feasible = feasible;
+			this.optimal = optimal;
+		}
+
+		/**
+		 * @return the selection without the removed plugins
+		 */
+		public BitSet getSelection() {
+			return (BitSet) selection.clone();
+		}
+
+		/**
+		 * @return the plugins to disable, empty if the selection fits
+		 */
+		public BitSet getRemoved() {
+			return (BitSet) removed.clone();
+		}
+
+		/**
+		 * @return the total weight of the plugins to disable
+		 */
+		public long getWeight() {
+			return weight;
+		}
+
+		/**
+		 * @return true if the repaired selection fits the board; if false,
+		 *         even disabling all candidates is not enough and all of
+		 *         them are removed
+		 */
+		public boolean isFeasible() {
+			return feasible;
+		}
+
+		/**
+		 * @return true if no set of smaller weight exists, false if the
+		 *         search has been stopped by the time budget
+		 */
+		public boolean isOptimal() {
+			return optimal;
+		}
+	}
+
+	/**
+	 * Create the repair for a model.
+	 *
+	 * @param model
+	 *            the model containing plugins and memory limits
+	 * @param priorityData
+	 *            the priorities by plugin prefix (e.g. "_C" or "_P001"),
+	 *            may be null; the longest matching prefix is used
+	 */
+	public SelectionRepair(final Model model,
+			final Map<String, Object> priorityData) {
+		this.model = model;
+		if (priorityData == null) {
+			return;
+		}
+		for (final Map.Entry<String, Object> entry : priorityData.entrySet()) {
+			final Object value = entry.getValue();
+			if (value instanceof Integer && (Integer) value > 0) {
+				priorities.put(entry.getKey(), (Integer) value);
+			} else {
+				System.out.println("Priority of '" + entry.getKey()
+						+ "' has to be a positive number");
+			}
+		}
+	}
+
+	/**
+	 * @param index
+	 *            the plugin index
+	 * @return the weight of the plugin
+	 */
+	public int getWeight(final int index) {
+		return weights()[index];
+	}
+
+	/**
+	 * @return the weights of the plugins of the current catalog
+	 */
+	private synchronized int[] weights() {
+		final PluginCatalog catalog = model.getCatalog();
+		if (catalog != weightCatalog) {
+			weights = new int[catalog.size()];
+			for (int i = 0; i < weights.length; i++) {
+				weights[i] = priority(catalog.getName(i));
+			}
+			weightCatalog = catalog;
+		}
+		return weights;
+	}
+
+	/**
+	 * @param name
+	 *            the plugin file name
+	 * @return the priority of the longest matching prefix or 1
+	 */
+	private int priority(final String name) {
+		int length = -1;
+		int result = 1;
+		for (final Map.Entry<String, Integer> entry : priorities.entrySet()) {
+			if (name.startsWith(entry.getKey())
+					&& entry.getKey().length() > length) {
+				length = entry.getKey().length();
+				result = entry.getValue();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Repair a selection with the default time budget.
+	 *
+	 * @param enabled
+	 *            the selection
+	 * @param limit
+	 *            the board to fit
+	 * @return the result
+	 */
+	public Result repair(final BitSet enabled, final MemoryData limit) {
+		return repair(enabled, limit, DEFAULT_BUDGET_MILLIS);
+	}
+
+	/**
+	 * Repair a selection.
+	 *
+	 * @param enabled
+	 *            the selection
+	 * @param limit
+	 *            the board to fit
+	 * @param budgetMillis
+	 *            the time budget of the search, 0 for the greedy result only
+	 * @return the result
+	 */
+	public Result repair(final BitSet enabled, final MemoryData limit,
+			final long budgetMillis) {
+		final PluginCatalog catalog = model.getCatalog();
+		final int[] pluginWeights = weights();
+		final MemoryData usage = model.getMemData("repair", enabled);
+
+		// the memory types exceeded and by how much
+		final int[] types = new int[MEM_TYPES];
+		final long[] excess = new long[MEM_TYPES];
+		int dims = 0;
+		for (int m = 0; m < MEM_TYPES; m++) {
+			final long over = (long) BoardFitIndex.value(usage, m)
+					- BoardFitIndex.value(limit, m);
+			if (over > 0) {
+				types[dims] = m;
+				excess[dims++] = over;
+			}
+		}
+		if (dims == 0) {
+			return new Result((BitSet) enabled.clone(), new BitSet(), 0, true,
+					true);
+		}
+
+		// the candidates reducing at least one exceeded type
+		final List<Integer> found = new ArrayList<>();
+		for (int i = enabled.nextSetBit(0); i >= 0; i =
+				enabled.nextSetBit(i + 1)) {
+			if (i >= catalog.size() || catalog.isReadOnly(i)) {
+				continue;
+			}
+			for (int d = 0; d < dims; d++) {
+				if (catalog.getValue(i, types[d]) > 0) {
+					found.add(i);
+					break;
+				}
+			}
+		}
+		final Search search = new Search(found.size(), dims, excess);
+		for (int c = 0; c < found.size(); c++) {
+			final int index = found.get(c);
+			search.plugins[c] = index;
+			search.weights[c] = pluginWeights[index];
+			for (int d = 0; d < dims; d++) {
+				search.values[c][d] = catalog.getValue(index, types[d]);
+			}
+		}
+
+		final BitSet removed = new BitSet();
+		if (!search.isFeasible()) {
+			long weight = 0;
+			for (int c = 0; c < search.count; c++) {
+				removed.set(search.plugins[c]);
+				weight += search.weights[c];
+			}
+			return result(enabled, removed, weight, false, true);
+		}
+		search.greedy();
+		search.prune();
+		final boolean optimal = search.branchAndBound(budgetMillis);
+		for (int c = 0; c < search.count; c++) {
+			if (search.best[c]) {
+				removed.set(search.plugins[c]);
+			}
+		}
+		return result(enabled, removed, search.bestWeight, true, optimal);
+	}
+
+	/**
+	 * @param enabled
+	 *            the original selection
+	 * @param removed
+	 *            the plugins to disable
+	 * @param weight
+	 *            their total weight
+	 * @param feasible
+	 *            true if the result fits
+	 * @param optimal
+	 *            true if the result is optimal
+	 * @return the result
+	 */
+	private static Result result(final BitSet enabled, final BitSet removed,
+			final long weight, final boolean feasible, final boolean optimal) {
+		final BitSet selection = (BitSet) enabled.clone();
+		selection.andNot(removed);
+		return new Result(selection, removed, weight, feasible, optimal);
+	}
+
+	/**
+	 * Format the plugins of a result for a message.
+	 *
+	 * @param result
+	 *            the result
+	 * @return the macro names of the plugins to disable
+	 */
+	public List<String> describe(final Result result) {
+		final PluginCatalog catalog = model.getCatalog();
+		final List<String> names = new ArrayList<>();
+		final BitSet removed = result.getRemoved();
+		for (int i = removed.nextSetBit(0); i >= 0; i =
+				removed.nextSetBit(i + 1)) {
+			names.add(catalog.getMacroName(i));
+		}
+		Collections.sort(names);
+		return names;
+	}
+
+	/**
+	 * The state of the search for one repair. The candidates are indexed
+	 * densely, their values are those of the exceeded memory types only.
+	 */
+	private static final class Search {
+		private final int count;
+		private final int dims;
+		private final long[] excess;
+		private final int[] plugins;
+		private final int[] weights;
+		private final long[][] values;
+
+		private final boolean[] best;
+		private long bestWeight = Long.MAX_VALUE;
+
+		/**
+		 * The candidates in the order of the branch and bound search and the
+		 * best value per weight of the candidates from a position on.
+		 */
+		private int[] order;
+		private double[][] suffixRatio;
+		private final boolean[] chosen;
+		private long deadline;
+		private long nodes;
+		private boolean stopped;
+
+		/**
+		 * @param count
+		 *            the number of candidates
+		 * @param dims
+		 *            the number of exceeded memory types
+		 * @param excess
+		 *            the excess per exceeded type
+		 */
+		Search(final int count, final int dims, final long[] excess) {
+			this.count = count;
+			this.dims = dims;
+			this.excess = Arrays.copyOf(excess, dims);
+			plugins = new int[count];
+			weights = new int[count];
+			values = new long[count][dims];
+			best = new boolean[count];
+			chosen = new boolean[count];
+		}
+
+		/**
+		 * @return true if removing all candidates is enough
+		 */
+		boolean isFeasible() {
+			for (int d = 0; d < dims; d++) {
+				long sum = 0;
+				for (int c = 0; c < count; c++) {
+					sum += values[c][d];
+				}
+				if (sum < excess[d]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @param c
+		 *            the candidate
+		 * @param remaining
+		 *            the remaining excess
+		 * @return the share of the remaining excess the candidate covers,
+		 *         summed over the types and divided by its weight
+		 */
+		private double score(final int c, final long[] remaining) {
+			double covered = 0;
+			for (int d = 0; d < dims; d++) {
+				if (remaining[d] > 0) {
+					covered += (double) Math.min(values[c][d], remaining[d])
+							/ excess[d];
+				}
+			}
+			return covered / weights[c];
+		}
+
+		/**
+		 * Take the candidate with the best score until the excess is covered.
+		 * The score of a candidate can only decrease when others are taken,
+		 * so scores are recalculated lazily: the candidate on top of the
+		 * queue is taken if its recalculated score is still the best.
+		 */
+		void greedy() {
+			final long[] remaining = excess.clone();
+			final double[] scores = new double[count];
+			final PriorityQueue<Integer> queue = new PriorityQueue<>(
+					Math.max(1, count),
+					(c1, c2) -> Double.compare(scores[c2], scores[c1]));
+			for (int c = 0; c < count; c++) {
+				scores[c] = score(c, remaining);
+				queue.add(c);
+			}
+			long weight = 0;
+			while (!covered(remaining)) {
+				final int c = queue.poll();
+				scores[c] = score(c, remaining);
+				if (!queue.isEmpty() && scores[c] < scores[queue.peek()]) {
+					queue.add(c);
+					continue;
+				}
+				best[c] = true;
+				weight += weights[c];
+				for (int d = 0; d < dims; d++) {
+					remaining[d] -= values[c][d];
+				}
+			}
+			bestWeight = weight;
+		}
+
+		/**
+		 * Drop chosen candidates that are not needed, the heaviest first.
+		 */
+		void prune() {
+			final long[] removedSum = new long[dims];
+			final List<Integer> picked = new ArrayList<>();
+			for (int c = 0; c < count; c++) {
+				if (best[c]) {
+					picked.add(c);
+					for (int d = 0; d < dims; d++) {
+						removedSum[d] += values[c][d];
+					}
+				}
+			}
+			picked.sort((c1, c2) -> Integer.compare(weights[c2], weights[c1]));
+			for (final int c : picked) {
+				boolean needed = false;
+				for (int d = 0; d < dims; d++) {
+					if (removedSum[d] - values[c][d] < excess[d]) {
+						needed = true;
+						break;
+					}
+				}
+				if (!needed) {
+					best[c] = false;
+					bestWeight -= weights[c];
+					for (int d = 0; d < dims; d++) {
+						removedSum[d] -= values[c][d];
+					}
+				}
+			}
+		}
+
+		/**
+		 * Search for a lighter solution until the time budget is used up.
+		 *
+		 * @param budgetMillis
+		 *            the time budget
+		 * @return true if the search space has been exhausted
+		 */
+		boolean branchAndBound(final long budgetMillis) {
+			if (budgetMillis <= 0) {
+				return false;
+			}
+			deadline = System.nanoTime() + budgetMillis * 1_000_000L;
+			final Integer[] sorted = new Integer[count];
+			final double[] initial = new double[count];
+			for (int c = 0; c < count; c++) {
+				sorted[c] = c;
+				initial[c] = score(c, excess);
+			}
+			Arrays.sort(sorted, (c1, c2) -> Double.compare(initial[c2],
+					initial[c1]));
+			order = new int[count];
+			for (int k = 0; k < count; k++) {
+				order[k] = sorted[k];
+			}
+			suffixRatio = new double[dims][count + 1];
+			for (int d = 0; d < dims; d++) {
+				for (int k = count - 1; k >= 0; k--) {
+					final int c = order[k];
+					suffixRatio[d][k] = Math.max(suffixRatio[d][k + 1],
+							(double) values[c][d] / weights[c]);
+				}
+			}
+			search(0, excess.clone(), 0);
+			return !stopped;
+		}
+
+		/**
+		 * Extend the current partial solution with candidates from a position
+		 * of the search order on.
+		 *
+		 * @param from
+		 *            the first position that may be added
+		 * @param remaining
+		 *            the remaining excess
+		 * @param weight
+		 *            the weight of the partial solution
+		 */
+		private void search(final int from, final long[] remaining,
+				final long weight) {
+			if (covered(remaining)) {
+				if (weight < bestWeight) {
+					bestWeight = weight;
+					System.arraycopy(chosen, 0, best, 0, count);
+				}
+				return;
+			}
+			for (int k = from; k < count && !stopped; k++) {
+				if (++nodes % DEADLINE_CHECK_NODES == 0
+						&& System.nanoTime() > deadline) {
+					stopped = true;
+					return;
+				}
+				// the bound only grows with k, no later candidate can help
+				if (weight + lowerBound(remaining, k) >= bestWeight) {
+					return;
+				}
+				final int c = order[k];
+				if (!helps(c, remaining)) {
+					continue;
+				}
+				final long[] next = remaining.clone();
+				for (int d = 0; d < dims; d++) {
+					next[d] -= values[c][d];
+				}
+				chosen[c] = true;
+				search(k + 1, next, weight + weights[c]);
+				chosen[c] = false;
+			}
+		}
+
+		/**
+		 * @param remaining
+		 *            the remaining excess
+		 * @param from
+		 *            the first position still available
+		 * @return the smallest weight needed to cover the remaining excess
+		 *         with the candidates from the position on
+		 */
+		private long lowerBound(final long[] remaining, final int from) {
+			double bound = 0;
+			for (int d = 0; d < dims; d++) {
+				if (remaining[d] > 0) {
+					final double ratio = suffixRatio[d][from];
+					if (ratio <= 0) {
+						return Long.MAX_VALUE / 2;
+					}
+					bound = Math.max(bound, remaining[d] / ratio);
+				}
+			}
+			// weights are integral, a tiny tolerance for rounding errors
+			return (long) Math.ceil(bound - 1e-9);
+		}
+
+		/**
+		 * @param c
+		 *            the candidate
+		 * @param remaining
+		 *            the remaining excess
+		 * @return true if the candidate reduces a type still exceeded
+		 */
+		private boolean helps(final int c, final long[] remaining) {
+			for (int d = 0; d < dims; d++) {
+				if (remaining[d] > 0 && values[c][d] > 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @param remaining
+		 *            the remaining excess
+		 * @return true if no type is exceeded any more
+		 */
+		private static boolean covered(final long[] remaining) {
+			for (final long r : remaining) {
+				if (r > 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,269 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single pass parser for the plugin size table. The rows are tokenized
+ * directly in the character buffer, numbers are parsed without creating
+ * strings, and only the plugin name of a row is materialized. Rows that
+ * cannot be parsed are reported and skipped, so a single malformed row does
+ * not abort reading a large table.
+ *
+ * <p>
+ * Relevant rows start with "src/" and contain the plugin name followed by
+ * the five memory values, separated by "|". Additional columns are ignored,
+ * all other rows (headers, separators) are skipped.
+ */
+public class SizeTableParser {
+
+	/**
+	 * The number of memory values per row.
+	 */
+	public static final int VALUES = 5;
+
+	private static final String ROW_PREFIX = "src/";
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int MAX_REPORTED_ERRORS = 100;
+
+	/**
+	 * Receives the rows of the table.
+	 */
+	@FunctionalInterface
+	public interface RowHandler {
+		/**
+		 * @param name
+		 *            the plugin name without the leading "src/"
+		 * @param values
+		 *            the five memory values, the array is reused for the next
+		 *            row
+		 */
+		void row(String name, int[] values);
+	}
+
+	private final List<String> errors = new ArrayList<>();
+	private int errorCount = 0;
+	private int rowCount = 0;
+	private int lineNumber = 0;
+
+	private char[] buf = new char[BUFFER_SIZE];
+	private final int[] values = new int[VALUES];
+	private int pos;
+
+	/**
+	 * Parse the whole table.
+	 *
+	 * @param reader
+	 *            the reader for the table
+	 * @param handler
+	 *            the handler receiving the rows
+	 * @throws IOException
+	 *             if the table cannot be read
+	 */
+	public void parse(final Reader reader, final RowHandler handler)
+			throws IOException {
+		int filled = 0;
+		boolean eof = false;
+		while (!eof || filled > 0) {
+			if (!eof) {
+				if (filled == buf.length) {
+					// a single line longer than the buffer
+					final char[] bigger = new char[buf.length * 2];
+					System.arraycopy(buf, 0, bigger, 0, filled);
+					buf = bigger;
+				}
+				final int read = reader.read(buf, filled, buf.length - filled);
+				if (read < 0) {
+					eof = true;
+				} else {
+					filled += read;
+				}
+			}
+			// process all complete lines, at the end also the last line
+			int start = 0;
+			for (int i = 0; i < filled; i++) {
+				if (buf[i] == '\n') {
+					parseLine(start, i, handler);
+					start = i + 1;
+				}
+			}
+			if (eof && start < filled) {
+				parseLine(start, filled, handler);
+				start = filled;
+			}
+			System.arraycopy(buf, start, buf, 0, filled - start);
+			filled -= start;
+		}
+	}
+
+	/**
+	 * @return the messages of the first rows that could not be parsed
+	 */
+	public List<String> getErrors() {
+		return errors;
+	}
+
+	/**
+	 * @return the number of rows that could not be parsed
+	 */
+	public int getErrorCount() {
+		return errorCount;
+	}
+
+	/**
+	 * @return the number of rows passed to the handler
+	 */
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Record a row that could not be parsed.
+	 *
+	 * @param message
+	 *            the reason
+	 */
+	private void error(final String message) {
+		errorCount++;
+		if (errors.size() < MAX_REPORTED_ERRORS) {
+			errors.add("line " + lineNumber + ": " + message);
+		}
+	}
+
+	/**
+	 * Parse a single line of the buffer.
+	 *
+	 * @param start
+	 *            the offset of the first character
+	 * @param end
+	 *            the offset behind the last character (the line feed)
+	 * @param handler
+	 *            the handler receiving the row
+	 */
+	private void parseLine(final int start, final int end,
+			final RowHandler handler) {
+		lineNumber++;
+		int last = end;
+		if (last > start && buf[last - 1] == '\r') {
+			last--;
+		}
+		if (!startsWith(start, last, ROW_PREFIX)) {
+			return;
+		}
+		pos = start + ROW_PREFIX.length();
+		final int nameStart = pos;
+		while (pos < last && buf[pos] != '|') {
+			pos++;
+		}
+		final String name = trimmed(nameStart, pos);
+		if (name.isEmpty()) {
+			error("plugin name missing");
+			return;
+		}
+		for (int v = 0; v < VALUES; v++) {
+			if (pos >= last) {
+				error(name + ": " + (VALUES - v) + " value(s) missing");
+				return;
+			}
+			pos++; // the separator
+			if (!parseNumber(last, v)) {
+				error(name + ": invalid value in column " + (v + 2));
+				return;
+			}
+		}
+		rowCount++;
+		handler.row(name, values);
+	}
+
+	/**
+	 * Parse a number surrounded by blanks up to the next separator or the end
+	 * of the line.
+	 *
+	 * @param last
+	 *            the end of the line
+	 * @param v
+	 *            the index of the value to set
+	 * @return true if a valid number was found
+	 */
+	private boolean parseNumber(final int last, final int v) {
+		skipBlanks(last);
+		boolean negative = false;
+		if (pos < last && (buf[pos] == '-' || buf[pos] == '+')) {
+			negative = buf[pos] == '-';
+			pos++;
+		}
+		long value = 0;
+		int digits = 0;
+		while (pos < last && buf[pos] >= '0' && buf[pos] <= '9') {
+			value = value * 10 + buf[pos] - '0';
+			if (value > Integer.MAX_VALUE) {
+				return false;
+			}
+			digits++;
+			pos++;
+		}
+		skipBlanks(last);
+		if (digits == 0 || pos < last && buf[pos] != '|') {
+			return false;
+		}
+		if (negative) {
+			value = -value;
+		}
+		values[v] = (int) value;
+		return true;
+	}
+
+	/**
+	 * @param last
+	 *            the end of the line
+	 */
+	private void skipBlanks(final int last) {
+		while (pos < last && (buf[pos] == ' ' || buf[pos] == '\t')) {
+			pos++;
+		}
+	}
+
+	/**
+	 * @param start
+	 *            the start of the line
+	 * @param last
+	 *            the end of the line
+	 * @param prefix
+	 *            the prefix
+	 * @return true if the line starts with the prefix
+	 */
+	private boolean startsWith(final int start, final int last,
+			final String prefix) {
+		if (last - start < prefix.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (buf[start + i] != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param from
+	 *            the start offset
+	 * @param to
+	 *            the end offset (exclusive)
+	 * @return the text in between without leading and trailing blanks
+	 */
+	private String trimmed(final int from, final int to) {
+		int s = from;
+		int e = to;
+		while (s < e && buf[s] <= ' ') {
+			s++;
+		}
+		while (e > s && buf[e - 1] <= ' ') {
+			e--;
+		}
+		return new String(buf, s, e - s);
+	}
+
+}
@@ -0,0 +1,331 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts metadata from plugin source files: the plugin id, the plugin name
+ * and the included headers. The files are memory mapped and scanned by a
+ * small lexer that only looks at preprocessor directives and skips comments
+ * and string literals. Several files are analyzed in parallel.
+ */
+public final class SourceAnalyzer {
+
+	/**
+	 * Utility class, no instances.
+	 */
+	private SourceAnalyzer() {
+	}
+
+	/**
+	 * Analyze the given files in parallel. Files that cannot be read are
+	 * reported and left out of the result. The files are analyzed by the
+	 * common pool, which does not see the interrupt of the calling thread,
+	 * so each file checks the calling thread first and the remaining files
+	 * are skipped once it has been interrupted.
+	 *
+	 * @param files
+	 *            the source files
+	 * @param progress
+	 *            receives the number of files analyzed so far
+	 * @return the metadata of each file, the key is the file name
+	 * @throws InterruptedIOException
+	 *             if the calling thread has been interrupted, e.g. because
+	 *             the user cancelled the operation
+	 */
+	public static Map<String, SourceInfo> analyze(final List<File> files,
+			final ProgressListener progress) throws InterruptedIOException {
+		final Thread caller = Thread.currentThread();
+		final Map<String, SourceInfo> result = new ConcurrentHashMap<>();
+		final AtomicInteger done = new AtomicInteger();
+		files.parallelStream().forEach(file -> {
+			if (caller.isInterrupted()) {
+				return;
+			}
+			try {
+				result.put(file.getName(), analyze(file));
+			} catch (final IOException e) {
+				System.out.println("Couldn't analyze " + file.getPath());
+			}
+			progress.progress(done.incrementAndGet(), files.size());
+		});
+		if (caller.isInterrupted()) {
+			throw new InterruptedIOException("Cancelled analyzing "
+					+ files.size() + " files");
+		}
+		return result;
+	}
+
+	/**
+	 * Analyze a single source file.
+	 *
+	 * @param file
+	 *            the source file
+	 * @return the metadata of the file
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	public static SourceInfo analyze(final File file) throws IOException {
+		try (FileChannel channel =
+				FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			final long size = channel.size();
+			if (size == 0) {
+				return new SourceInfo(SourceInfo.UNKNOWN_ID, null,
+						Collections.emptyList(), 0);
+			}
+			final MappedByteBuffer buffer =
+					channel.map(MapMode.READ_ONLY, 0, size);
+			return new Lexer(buffer).scan();
+		}
+	}
+
+	/**
+	 * The lexer scanning a single file.
+	 */
+	private static final class Lexer {
+		private final ByteBuffer buf;
+		private final int end;
+		private int pos = 0;
+		private int pluginId = SourceInfo.UNKNOWN_ID;
+		private String pluginName = null;
+		private final List<String> includes = new ArrayList<>();
+
+		/**
+		 * @param buf
+		 *            the content of the file
+		 */
+		Lexer(final ByteBuffer buf) {
+			this.buf = buf;
+			this.end = buf.limit();
+		}
+
+		/**
+		 * @param offset
+		 *            the offset from the current position
+		 * @return the byte at the offset or 0 behind the end
+		 */
+		private int peek(final int offset) {
+			final int p = pos + offset;
+			if (p < end) {
+				return buf.get(p);
+			}
+			return 0;
+		}
+
+		/**
+		 * Scan the whole file.
+		 *
+		 * @return the metadata found
+		 */
+		SourceInfo scan() {
+			boolean lineStart = true;
+			while (pos < end) {
+				final int c = buf.get(pos);
+				if (c == '/' && peek(1) == '/') {
+					skipTo('\n');
+				} else if (c == '/' && peek(1) == '*') {
+					skipComment();
+				} else if (c == '"' || c == '\'') {
+					skipLiteral(c);
+					lineStart = false;
+				} else if (c == '#' && lineStart) {
+					pos++;
+					directive();
+					lineStart = false;
+				} else {
+					if (c == '\n') {
+						lineStart = true;
+					} else if (c != ' ' && c != '\t' && c != '\r') {
+						lineStart = false;
+					}
+					pos++;
+				}
+			}
+			return new SourceInfo(pluginId, pluginName, includes, end);
+		}
+
+		/**
+		 * Skip to the given character, the character itself is not skipped.
+		 *
+		 * @param c
+		 *            the character
+		 */
+		private void skipTo(final int c) {
+			while (pos < end && buf.get(pos) != c) {
+				pos++;
+			}
+		}
+
+		/**
+		 * Skip a block comment.
+		 */
+		private void skipComment() {
+			pos += 2;
+			while (pos < end && !(buf.get(pos) == '*' && peek(1) == '/')) {
+				pos++;
+			}
+			pos += 2;
+		}
+
+		/**
+		 * Skip a string or character literal.
+		 *
+		 * @param quote
+		 *            the quote character
+		 */
+		private void skipLiteral(final int quote) {
+			pos++;
+			while (pos < end) {
+				final int c = buf.get(pos);
+				if (c == '\\') {
+					pos += 2;
+				} else if (c == quote || c == '\n') {
+					pos++;
+					return;
+				} else {
+					pos++;
+				}
+			}
+		}
+
+		/**
+		 * Skip blanks and tabs.
+		 */
+		private void skipBlanks() {
+			while (pos < end && (buf.get(pos) == ' ' || buf.get(pos) == '\t')) {
+				pos++;
+			}
+		}
+
+		/**
+		 * @return the identifier at the current position
+		 */
+		private String identifier() {
+			final int start = pos;
+			while (pos < end && isIdentifierPart(buf.get(pos))) {
+				pos++;
+			}
+			return text(start, pos);
+		}
+
+		/**
+		 * @param c
+		 *            the character
+		 * @return true if the character can be part of an identifier
+		 */
+		private static boolean isIdentifierPart(final int c) {
+			return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z'
+					|| c >= '0' && c <= '9' || c == '_';
+		}
+
+		/**
+		 * @param from
+		 *            the start offset
+		 * @param to
+		 *            the end offset (exclusive)
+		 * @return the text between both offsets
+		 */
+		private String text(final int from, final int to) {
+			final byte[] bytes = new byte[to - from];
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = buf.get(from + i);
+			}
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Read the text up to the closing character on the same line.
+		 *
+		 * @param close
+		 *            the closing character
+		 * @return the text or null if the line ends first
+		 */
+		private String delimited(final int close) {
+			pos++;
+			final int start = pos;
+			while (pos < end && buf.get(pos) != close
+					&& buf.get(pos) != '\n') {
+				pos++;
+			}
+			if (pos < end && buf.get(pos) == close) {
+				pos++;
+				return text(start, pos - 1);
+			}
+			return null;
+		}
+
+		/**
+		 * Handle a preprocessor directive, the # has been consumed.
+		 */
+		private void directive() {
+			skipBlanks();
+			final String name = identifier();
+			skipBlanks();
+			if (name.equals("include")) {
+				final int c = peek(0);
+				String header = null;
+				if (c == '<') {
+					header = delimited('>');
+				} else if (c == '"') {
+					header = delimited('"');
+				}
+				if (header != null) {
+					includes.add(header);
+				}
+			} else if (name.equals("define")) {
+				final String macro = identifier();
+				skipBlanks();
+				if (isMacro(macro, "PLUGIN_ID")
+						&& pluginId == SourceInfo.UNKNOWN_ID) {
+					final int start = pos;
+					final String number = identifier();
+					try {
+						pluginId = Integer.parseInt(number);
+					} catch (final NumberFormatException e) {
+						pos = start;
+					}
+				} else if (isMacro(macro, "PLUGIN_NAME") && pluginName == null
+						&& peek(0) == '"') {
+					pluginName = delimited('"');
+				}
+			}
+		}
+
+		/**
+		 * Check whether the macro has the given name, optionally with a
+		 * prefix for controllers or notifications and a suffix with the
+		 * plugin number (e.g. CPLUGIN_ID_001).
+		 *
+		 * @param macro
+		 *            the macro name found
+		 * @param name
+		 *            the name to look for
+		 * @return true if the macro matches
+		 */
+		private static boolean isMacro(final String macro, final String name) {
+			int start = 0;
+			if (macro.startsWith("C") || macro.startsWith("N")) {
+				start = 1;
+			}
+			if (!macro.startsWith(name, start)) {
+				return false;
+			}
+			final int rest = start + name.length();
+			return macro.length() == rest || macro.charAt(rest) == '_';
+		}
+	}
+
+}
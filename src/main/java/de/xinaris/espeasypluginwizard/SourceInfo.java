@@ -0,0 +1,75 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The metadata extracted from the source file of a plugin. Instances are
+ * immutable.
+ */
+public class SourceInfo {
+
+	/**
+	 * The plugin id used if the source does not define one.
+	 */
+	public static final int UNKNOWN_ID = -1;
+
+	private final int pluginId;
+	private final String pluginName;
+	private final List<String> includes;
+	private final long sourceSize;
+
+	/**
+	 * @param pluginId
+	 *            the value of PLUGIN_ID or UNKNOWN_ID
+	 * @param pluginName
+	 *            the value of PLUGIN_NAME or null
+	 * @param includes
+	 *            the included headers
+	 * @param sourceSize
+	 *            the size of the source file in bytes
+	 */
+	public SourceInfo(final int pluginId, final String pluginName,
+			final List<String> includes, final long sourceSize) {
+		this.pluginId = pluginId;
+		this.pluginName = pluginName;
+		this.includes = Collections.unmodifiableList(includes);
+		this.sourceSize = sourceSize;
+	}
+
+	/**
+	 * @return the value of PLUGIN_ID or UNKNOWN_ID
+	 */
+	public int getPluginId() {
+		return pluginId;
+	}
+
+	/**
+	 * @return the value of PLUGIN_NAME or null
+	 */
+	public String getPluginName() {
+		return pluginName;
+	}
+
+	/**
+	 * @return the included headers
+	 */
+	public List<String> getIncludes() {
+		return includes;
+	}
+
+	/**
+	 * @return the size of the source file in bytes
+	 */
+	public long getSourceSize() {
+		return sourceSize;
+	}
+
+	@Override
+	public String toString() {
+		return "SourceInfo [pluginId=" + pluginId + ", pluginName="
+				+ pluginName + ", includes=" + includes + ", sourceSize="
+				+ sourceSize + "]";
+	}
+
+}
@@ -0,0 +1,454 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An indexed store of the symbols of the compiled plugins, built from the
+ * output of "nm -A -S -C" for the object files of one or more builds. The
+ * text output is converted once into a binary store next to it (suffix
+ * ".idx"), which is rebuilt when the text file is newer.
+ *
+ * <p>
+ * The store consists of a small index and one block of symbols per object
+ * file. Opening the store only reads the index, the symbols of a plugin are
+ * read from its block when they are requested. So the store can hold
+ * millions of symbols of many builds while only the symbols of the plugin
+ * being looked at are in memory.
+ */
+public final class SymbolStore {
+
+	/**
+	 * The names of the sections a symbol can belong to.
+	 */
+	public static final String[] SECTIONS = { "text", "data", "rodata", "bss",
+			"other" };
+
+	/**
+	 * The suffix of the binary store, appended to the name of the text file.
+	 */
+	public static final String STORE_SUFFIX = ".idx";
+
+	private static final int MAGIC = 0x45505753; // "EPWS"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 12;
+
+	/**
+	 * A line of nm: object file, address, size, type and (demangled) name.
+	 * The object file is matched lazily, so colons in archive members and
+	 * demangled names are handled.
+	 */
+	private static final Pattern NM_LINE = Pattern.compile(
+			"^(.*?):[0-9a-fA-F]+\\s+([0-9a-fA-F]+)\\s+(\\S)\\s+(.+)$");
+
+	private final Path storeFile;
+	private final List<String> builds;
+	private final Map<String, Entry> entries;
+	private final Map<String, Entry> byPrefix = new HashMap<>();
+	private final long dataStart;
+
+	/**
+	 * A symbol of a plugin.
+	 */
+	public static final class Symbol {
+		private final String name;
+		private final int section;
+		private final int size;
+		private final String build;
+
+		/**
+		 * @param name
+		 *            the name of the symbol
+		 * @param section
+		 *            the index of the section in SECTIONS
+		 * @param size
+		 *            the size in bytes
+		 * @param build
+		 *            the build the object file belongs to
+		 */
+		Symbol(final String name, final int section, final int size,
+				final String build) {
+			this.name = name;
+			this.section = section;
+			this.size = size;
+			this.build = build;
+		}
+
+		/**
+		 * @return the name of the symbol
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the name of the section, one of SECTIONS
+		 */
+		public String getSection() {
+			return SECTIONS[section];
+		}
+
+		/**
+		 * @return the index of the section in SECTIONS
+		 */
+		public int getSectionIndex() {
+			return section;
+		}
+
+		/**
+		 * @return the size in bytes
+		 */
+		public int getSize() {
+			return size;
+		}
+
+		/**
+		 * @return the build (the directory of the object file)
+		 */
+		public String getBuild() {
+			return build;
+		}
+	}
+
+	/**
+	 * The position of the symbols of an object file in the store.
+	 */
+	private static final class Entry {
+		private final int count;
+		private final long offset;
+		private final int length;
+
+		/**
+		 * @param count
+		 *            the number of symbols
+		 * @param offset
+		 *            the offset of the block relative to the data
+		 * @param length
+		 *            the length of the block in bytes
+		 */
+		private Entry(final int count, final long offset, final int length) {
+			this.count = count;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Read the index of a binary store.
+	 *
+	 * @param storeFile
+	 *            the binary store
+	 * @throws IOException
+	 *             if the store cannot be read or has a wrong format
+	 */
+	private SymbolStore(final Path storeFile) throws IOException {
+		this.storeFile = storeFile;
+		try (DataInputStream in = new DataInputStream(
+				Files.newInputStream(storeFile))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a symbol store: " + storeFile);
+			}
+			final int indexLength = in.readInt();
+			dataStart = HEADER_BYTES + (long) indexLength;
+			final int buildCount = in.readInt();
+			builds = new ArrayList<>(buildCount);
+			for (int b = 0; b < buildCount; b++) {
+				builds.add(in.readUTF());
+			}
+			final int entryCount = in.readInt();
+			entries = new HashMap<>();
+			for (int e = 0; e < entryCount; e++) {
+				final String key = in.readUTF();
+				final Entry entry =
+						new Entry(in.readInt(), in.readLong(), in.readInt());
+				entries.put(key, entry);
+				final String prefix = PluginCatalog.prefix(key);
+				if (prefix != null) {
+					byPrefix.put(prefix, entry);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Open the store for a text file containing the output of nm. The binary
+	 * store is built first if it does not exist or is older than the text
+	 * file.
+	 *
+	 * @param nmOutput
+	 *            the output of "nm -A -S -C" for the object files
+	 * @return the store
+	 * @throws IOException
+	 *             if a file cannot be read or written
+	 */
+	public static SymbolStore open(final Path nmOutput) throws IOException {
+		final Path store = Paths.get(nmOutput.toString() + STORE_SUFFIX);
+		if (!Files.exists(store) || Files.getLastModifiedTime(store)
+				.compareTo(Files.getLastModifiedTime(nmOutput)) < 0) {
+			build(nmOutput, store);
+		}
+		return new SymbolStore(store);
+	}
+
+	/**
+	 * Convert the output of nm into a binary store. The symbols are encoded
+	 * per object file while reading, then the index and the blocks are
+	 * written. The store is written to a temporary file that atomically
+	 * replaces the old store at the end, so a reader never sees a partial
+	 * store.
+	 *
+	 * @param nmOutput
+	 *            the output of "nm -A -S -C"
+	 * @param store
+	 *            the binary store to write
+	 * @throws IOException
+	 *             if a file cannot be read or written
+	 */
+	public static void build(final Path nmOutput, final Path store)
+			throws IOException {
+		final Map<String, Integer> buildIds = new LinkedHashMap<>();
+		final Map<String, ByteArrayOutputStream> blocks = new TreeMap<>();
+		final Map<String, DataOutputStream> outs = new HashMap<>();
+		final Map<String, Integer> counts = new HashMap<>();
+
+		try (BufferedReader reader = Files.newBufferedReader(nmOutput)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final Matcher m = NM_LINE.matcher(line);
+				if (!m.matches()) {
+					continue; // undefined symbols have no size
+				}
+				final String path = m.group(1);
+				final int slash =
+						Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'));
+				final String build = path.substring(0, Math.max(slash, 0));
+				final String key = objectKey(path.substring(slash + 1));
+				Integer buildId = buildIds.get(build);
+				if (buildId == null) {
+					buildId = buildIds.size();
+					buildIds.put(build, buildId);
+				}
+				DataOutputStream out = outs.get(key);
+				if (out == null) {
+					final ByteArrayOutputStream block =
+							new ByteArrayOutputStream();
+					blocks.put(key, block);
+					out = new DataOutputStream(block);
+					outs.put(key, out);
+				}
+				out.writeShort(buildId);
+				out.writeByte(section(m.group(3).charAt(0)));
+				out.writeInt((int) Long.parseLong(m.group(2), 16));
+				out.writeUTF(m.group(4));
+				counts.merge(key, 1, Integer::sum);
+			}
+		}
+
+		final ByteArrayOutputStream index = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(index)) {
+			out.writeInt(buildIds.size());
+			for (final String build : buildIds.keySet()) {
+				out.writeUTF(build);
+			}
+			out.writeInt(blocks.size());
+			long offset = 0;
+			for (final Map.Entry<String, ByteArrayOutputStream> block : blocks
+					.entrySet()) {
+				out.writeUTF(block.getKey());
+				out.writeInt(counts.get(block.getKey()));
+				out.writeLong(offset);
+				out.writeInt(block.getValue().size());
+				offset += block.getValue().size();
+			}
+		}
+
+		final Path temp = AtomicFile.createTemp(store);
+		try (OutputStream file = Files.newOutputStream(temp);
+				DataOutputStream out =
+						new DataOutputStream(new BufferedOutputStream(file))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(index.size());
+			index.writeTo(out);
+			for (final ByteArrayOutputStream block : blocks.values()) {
+				block.writeTo(out);
+			}
+		} catch (final IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		AtomicFile.replace(temp, store);
+	}
+
+	/**
+	 * The key of an object file is the name of its source file, e.g.
+	 * "_P036_FrameOLED.ino" for "_P036_FrameOLED.ino.cpp.o".
+	 *
+	 * @param objectFile
+	 *            the file name of the object file
+	 * @return the key
+	 */
+	static String objectKey(final String objectFile) {
+		String key = objectFile;
+		if (key.endsWith(".o")) {
+			key = key.substring(0, key.length() - 2);
+		}
+		if (key.endsWith(".cpp") && key.indexOf('.') < key.length() - 4) {
+			key = key.substring(0, key.length() - 4);
+		}
+		return key;
+	}
+
+	/**
+	 * Map the nm symbol type to a section.
+	 *
+	 * @param type
+	 *            the symbol type printed by nm
+	 * @return the index of the section in SECTIONS
+	 */
+	static int section(final char type) {
+		switch (Character.toLowerCase(type)) {
+		case 't':
+		case 'w':
+		case 'v':
+			return 0;
+		case 'd':
+		case 'g':
+			return 1;
+		case 'r':
+		case 'n':
+			return 2;
+		case 'b':
+		case 's':
+		case 'c':
+			return 3;
+		default:
+			return SECTIONS.length - 1;
+		}
+	}
+
+	/**
+	 * @return the builds contained in the store
+	 */
+	public List<String> getBuilds() {
+		return Collections.unmodifiableList(builds);
+	}
+
+	/**
+	 * @return the number of object files in the store
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Find the entry for a plugin by its file name, or by the unique prefix
+	 * if the name is truncated or differs.
+	 *
+	 * @param pluginName
+	 *            the file name of the plugin, e.g. "_P036_FrameOLED.ino"
+	 * @return the entry or null
+	 */
+	private Entry find(final String pluginName) {
+		final Entry entry = entries.get(pluginName);
+		if (entry != null) {
+			return entry;
+		}
+		final String prefix = PluginCatalog.prefix(pluginName);
+		if (prefix == null) {
+			return null;
+		}
+		return byPrefix.get(prefix);
+	}
+
+	/**
+	 * @param pluginName
+	 *            the file name of the plugin
+	 * @return the number of symbols of the plugin, without reading them
+	 */
+	public int getSymbolCount(final String pluginName) {
+		final Entry entry = find(pluginName);
+		if (entry == null) {
+			return 0;
+		}
+		return entry.count;
+	}
+
+	/**
+	 * Read the symbols of a plugin from the store.
+	 *
+	 * @param pluginName
+	 *            the file name of the plugin
+	 * @return the symbols of all builds, empty if there are none
+	 * @throws IOException
+	 *             if the store cannot be read
+	 */
+	public List<Symbol> getSymbols(final String pluginName)
+			throws IOException {
+		final Entry entry = find(pluginName);
+		if (entry == null) {
+			return Collections.emptyList();
+		}
+		final ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+		try (FileChannel channel =
+				FileChannel.open(storeFile, StandardOpenOption.READ)) {
+			long position = dataStart + entry.offset;
+			while (buffer.hasRemaining()) {
+				final int read = channel.read(buffer, position);
+				if (read < 0) {
+					throw new IOException(
+							"Symbol store truncated: " + storeFile);
+				}
+				position += read;
+			}
+		}
+		final List<Symbol> symbols = new ArrayList<>(entry.count);
+		try (DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(buffer.array()))) {
+			for (int s = 0; s < entry.count; s++) {
+				final String build = builds.get(in.readUnsignedShort());
+				final int section = in.readByte();
+				final int size = in.readInt();
+				symbols.add(new Symbol(in.readUTF(), section, size, build));
+			}
+		}
+		return symbols;
+	}
+
+	/**
+	 * Sum the sizes of symbols per section.
+	 *
+	 * @param symbols
+	 *            the symbols
+	 * @return the sizes indexed like SECTIONS
+	 */
+	public static long[] sectionTotals(final List<Symbol> symbols) {
+		final long[] totals = new long[SECTIONS.length];
+		for (final Symbol symbol : symbols) {
+			totals[symbol.section] += symbol.size;
+		}
+		return totals;
+	}
+
+}
@@ -0,0 +1,125 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.collections.FXCollections;
+import javafx.geometry.Insets;
+import javafx.scene.Scene;
+import javafx.scene.control.Label;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+import javafx.scene.layout.BorderPane;
+import javafx.stage.Stage;
+import javafx.stage.Window;
+
+/**
+ * The drill-down window showing the symbols of a single plugin: the sizes
+ * per section for every build and a table of all symbols, largest first.
+ */
+public final class SymbolWindow {
+
+	private static final int GAP = 10;
+	private static final double WIDTH = 800;
+	private static final double HEIGHT = 500;
+
+	/**
+	 * Utility class, no instances.
+	 */
+	private SymbolWindow() {
+	}
+
+	/**
+	 * Open the window for a plugin.
+	 *
+	 * @param owner
+	 *            the window opening the drill-down
+	 * @param plugin
+	 *            the plugin
+	 * @param symbols
+	 *            the symbols of the plugin, read from the symbol store
+	 */
+	public static void show(final Window owner, final PluginData plugin,
+			final List<SymbolStore.Symbol> symbols) {
+		final TableView<SymbolStore.Symbol> table = new TableView<>();
+
+		final TableColumn<SymbolStore.Symbol, String> nameCol =
+				new TableColumn<>("Symbol");
+		nameCol.setCellValueFactory(wrapper -> new ReadOnlyStringWrapper(
+				wrapper.getValue().getName()));
+		final TableColumn<SymbolStore.Symbol, String> sectionCol =
+				new TableColumn<>("Section");
+		sectionCol.setCellValueFactory(wrapper -> new ReadOnlyStringWrapper(
+				wrapper.getValue().getSection()));
+		final TableColumn<SymbolStore.Symbol, Integer> sizeCol =
+				new TableColumn<>("Size");
+		sizeCol.setCellValueFactory(wrapper -> new ReadOnlyObjectWrapper<>(
+				wrapper.getValue().getSize()));
+		sizeCol.setSortType(TableColumn.SortType.DESCENDING);
+		final TableColumn<SymbolStore.Symbol, String> buildCol =
+				new TableColumn<>("Build");
+		buildCol.setCellValueFactory(wrapper -> new ReadOnlyStringWrapper(
+				wrapper.getValue().getBuild()));
+
+		table.getColumns().add(nameCol);
+		table.getColumns().add(sectionCol);
+		table.getColumns().add(sizeCol);
+		table.getColumns().add(buildCol);
+		nameCol.prefWidthProperty().bind(table.widthProperty().multiply(0.5));
+		table.setItems(FXCollections.observableArrayList(symbols));
+		table.getSortOrder().add(sizeCol);
+		table.setPlaceholder(new Label("No symbols for this plugin"));
+
+		final Label totals = new Label(formatTotals(symbols));
+		BorderPane.setMargin(totals, new Insets(0, 0, GAP, 0));
+
+		final BorderPane root = new BorderPane(table);
+		root.setTop(totals);
+		root.setPadding(new Insets(GAP));
+
+		final Stage stage = new Stage();
+		stage.initOwner(owner);
+		stage.setTitle("Symbols of " + plugin.getName());
+		stage.setScene(new Scene(root, WIDTH, HEIGHT));
+		stage.show();
+	}
+
+	/**
+	 * Format the sizes per section, one line for every build.
+	 *
+	 * @param symbols
+	 *            the symbols of a plugin
+	 * @return the text
+	 */
+	static String formatTotals(final List<SymbolStore.Symbol> symbols) {
+		final Map<String, List<SymbolStore.Symbol>> byBuild =
+				new LinkedHashMap<>();
+		for (final SymbolStore.Symbol symbol : symbols) {
+			byBuild.computeIfAbsent(symbol.getBuild(), b -> new ArrayList<>())
+					.add(symbol);
+		}
+		final StringBuilder text = new StringBuilder();
+		for (final Map.Entry<String, List<SymbolStore.Symbol>> build : byBuild
+				.entrySet()) {
+			if (text.length() > 0) {
+				text.append(System.lineSeparator());
+			}
+			if (!build.getKey().isEmpty()) {
+				text.append(build.getKey()).append(":");
+			}
+			final long[] totals = SymbolStore.sectionTotals(build.getValue());
+			for (int s = 0; s < totals.length; s++) {
+				text.append(" ").append(SymbolStore.SECTIONS[s]).append(" ")
+						.append(totals[s]);
+			}
+			text.append(" (").append(build.getValue().size())
+					.append(" symbols)");
+		}
+		return text.toString();
+	}
+
+}
@@ -0,0 +1,221 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks reading an inventory and writing the planned builds.
+ */
+public class BuildPlannerTest extends TestCase {
+
+	private static final String HEADER = "plugin |cache IRAM |init RAM "
+			+ "|r.o. RAM |uninit RAM |Flash ROM\n";
+
+	private Path dir;
+	private Model model;
+
+	/**
+	 * Create the test case.
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public BuildPlannerTest(final String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(BuildPlannerTest.class);
+	}
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("planner");
+		final Path table = dir.resolve("sizes.txt");
+		Files.write(table, (HEADER + "src/_P001_A.ino |1 |1 |1 |1 |100\n"
+				+ "src/_P002_B.ino |1 |1 |1 |1 |100\n").getBytes("UTF-8"));
+		model = new Model(Arrays.asList(table.toString()), "_P", ".ino");
+		final List<Map<String, Object>> limits = new ArrayList<>();
+		limits.add(limit("ESP 1MB"));
+		limits.add(limit("ESP-1MB"));
+		limits.add(limit("esp_1mb"));
+		limits.add(limit("Board, large"));
+		model.initMemLimits(limits);
+	}
+
+	@Override
+	protected void tearDown() {
+		delete(dir.toFile());
+	}
+
+	/**
+	 * @param file
+	 *            the file or directory to delete with its content
+	 */
+	private static void delete(final File file) {
+		final File[] children = file.listFiles();
+		if (children != null) {
+			for (final File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Quoted fields can contain commas and quotes.
+	 */
+	public void testSplitFields() {
+		assertEquals(Arrays.asList("a", "b c", ""),
+				BuildPlanner.splitFields(" a , b c ,"));
+		assertEquals(Arrays.asList("dev \"1\"", "Board, large", "P001,P002"),
+				BuildPlanner.splitFields(
+						"\"dev \"\"1\"\"\",\"Board, large\", \"P001,P002\""));
+		assertNull(BuildPlanner.splitFields("dev,\"Board"));
+	}
+
+	/**
+	 * A device needing an unknown plugin is reported and not planned.
+	 *
+	 * @throws IOException
+	 *             if the inventory cannot be written or read
+	 */
+	public void testUnknownPluginSkipsDevice() throws IOException {
+		final Path inventory = dir.resolve("inventory.csv");
+		Files.write(inventory, ("device,board,plugins\n"
+				+ "d1,\"Board, large\",\"P001,P002\"\n"
+				+ "d2,ESP 1MB,P001 P999\n").getBytes("UTF-8"));
+		final BuildPlanner planner = new BuildPlanner(model);
+		final List<BuildPlanner.Device> devices =
+				planner.readInventory(inventory);
+		assertEquals(1, devices.size());
+		assertEquals("d1", devices.get(0).getId());
+		assertEquals("Board, large", devices.get(0).getBoard());
+		assertEquals(2, devices.get(0).getRequired().cardinality());
+		assertEquals(1, planner.getProblems().size());
+		assertTrue(planner.getProblems().get(0).contains("P999"));
+	}
+
+	/**
+	 * Boards that differ only in punctuation or case get different header
+	 * files.
+	 *
+	 * @throws IOException
+	 *             if the inventory cannot be written or read
+	 */
+	public void testFileNamesOfSimilarBoards() throws IOException {
+		final Path inventory = dir.resolve("inventory.csv");
+		Files.write(inventory, ("d1,ESP 1MB,P001\n" + "d2,ESP-1MB,P001\n"
+				+ "d3,esp_1mb,P001\n").getBytes("UTF-8"));
+		final BuildPlanner planner = new BuildPlanner(model);
+		final List<BuildPlanner.Build> builds =
+				planner.plan(planner.readInventory(inventory));
+		assertEquals(3, builds.size());
+		final File output = dir.resolve("out").toFile();
+		assertTrue(planner.writeBuilds(builds, output));
+		assertEquals("ESP_1MB_001.h", builds.get(0).getFileName());
+		assertEquals("ESP_1MB_2_001.h", builds.get(1).getFileName());
+		assertEquals("esp_1mb_3_001.h", builds.get(2).getFileName());
+		for (final BuildPlanner.Build build : builds) {
+			assertTrue(new File(output, build.getFileName()).isFile());
+		}
+	}
+
+	/**
+	 * A build that cannot be written does not stop the others, it is
+	 * reported and no plan is written.
+	 *
+	 * @throws IOException
+	 *             if the inventory cannot be written or read
+	 */
+	public void testFailedBuildReported() throws IOException {
+		final Path inventory = dir.resolve("inventory.csv");
+		Files.write(inventory, ("d1,ESP 1MB,P001\n" + "d2,ESP-1MB,P001\n"
+				+ "d3,esp_1mb,P001\n").getBytes("UTF-8"));
+		final BuildPlanner planner = new BuildPlanner(model);
+		final List<BuildPlanner.Build> builds =
+				planner.plan(planner.readInventory(inventory));
+		final File output = dir.resolve("out").toFile();
+		// a non-empty directory cannot be replaced by the header
+		final File blocked = new File(output, "ESP_1MB_2_001.h");
+		assertTrue(new File(blocked, "content").mkdirs());
+
+		assertFalse(planner.writeBuilds(builds, output));
+		assertTrue(new File(output, "ESP_1MB_001.h").isFile());
+		assertTrue(new File(output, "esp_1mb_3_001.h").isFile());
+		assertFalse(new File(output, "plan.csv").exists());
+		assertEquals(2, planner.getProblems().size());
+		assertTrue(planner.getProblems().get(0).contains("ESP_1MB_2_001.h"));
+	}
+
+	/**
+	 * Every board is planned with the size table of its own target, not with
+	 * the active one.
+	 *
+	 * @throws IOException
+	 *             if the files cannot be written or read
+	 */
+	public void testBoardsOfTwoTargets() throws IOException {
+		final Path small = dir.resolve("small.txt");
+		final Path large = dir.resolve("large.txt");
+		Files.write(small, (HEADER + "src/_P001_A.ino |1 |1 |1 |1 |100\n")
+				.getBytes("UTF-8"));
+		Files.write(large, (HEADER + "src/_P001_A.ino |1 |1 |1 |1 |1000\n")
+				.getBytes("UTF-8"));
+		final Model twoTargets = new Model(
+				Arrays.asList(small.toString(), large.toString()), "_P",
+				".ino");
+		final List<Map<String, Object>> limits = new ArrayList<>();
+		limits.add(limit("small 500"));
+		limits.get(0).put("flashRom", 500);
+		limits.add(limit("large 500"));
+		limits.get(1).put("flashRom", 500);
+		limits.get(1).put(ConfigurationData.PLUGIN_DATA, large.toString());
+		limits.add(limit("large 2000"));
+		limits.get(2).put("flashRom", 2000);
+		limits.get(2).put(ConfigurationData.PLUGIN_DATA, large.toString());
+		twoTargets.initMemLimits(limits);
+		final Path inventory = dir.resolve("inventory.csv");
+		Files.write(inventory, ("d1,small 500,P001\n" + "d2,large 500,P001\n"
+				+ "d3,large 2000,P001\n").getBytes("UTF-8"));
+
+		final BuildPlanner planner = new BuildPlanner(twoTargets);
+		final List<BuildPlanner.Build> builds =
+				planner.plan(planner.readInventory(inventory));
+		assertEquals(2, builds.size());
+		assertEquals("small 500", builds.get(0).getBoard());
+		assertEquals("large 2000", builds.get(1).getBoard());
+		assertEquals(1, planner.getProblems().size());
+		assertTrue(planner.getProblems().get(0).contains("d2"));
+	}
+
+	/**
+	 * @param name
+	 *            the name of the board
+	 * @return the limit definition as read from the configuration
+	 */
+	private static Map<String, Object> limit(final String name) {
+		final Map<String, Object> limit = new HashMap<>();
+		limit.put("name", name);
+		limit.put("cacheIRam", 10_000);
+		limit.put("initRam", 10_000);
+		limit.put("roRam", 10_000);
+		limit.put("uninitRam", 10_000);
+		limit.put("flashRom", 10_000);
+		return limit;
+	}
+}
@@ -0,0 +1,142 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks importing, saving and loading a device registry.
+ */
+public class DeviceRegistryTest extends TestCase {
+
+	private static final String HEADER = "plugin |cache IRAM |init RAM "
+			+ "|r.o. RAM |uninit RAM |Flash ROM\n";
+
+	private Path dir;
+
+	/**
+	 * Create the test case.
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public DeviceRegistryTest(final String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(DeviceRegistryTest.class);
+	}
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("registry");
+	}
+
+	@Override
+	protected void tearDown() {
+		for (final File file : dir.toFile().listFiles()) {
+			file.delete();
+		}
+		dir.toFile().delete();
+	}
+
+	/**
+	 * Devices running an unknown plugin are reported and not imported.
+	 *
+	 * @throws IOException
+	 *             if the files cannot be written or read
+	 */
+	public void testImportRejectsUnknownPlugins() throws IOException {
+		final Model model = createModel("P001", "P002");
+		final Path inventory = dir.resolve("inventory.csv");
+		Files.write(inventory, ("d1,Board,P001 P002\n" + "d2,Board,P001 P999\n"
+				+ "d3,Board,P002\n").getBytes("UTF-8"));
+		final DeviceRegistry registry = new DeviceRegistry(model);
+		assertEquals(2, registry.importInventory(inventory));
+		assertEquals(-1, registry.findDevice("d2"));
+		assertEquals(1, registry.getProblems().size());
+		assertTrue(registry.getProblems().get(0).contains("P999"));
+	}
+
+	/**
+	 * A saved registry is loaded again, devices running plugins the model
+	 * no longer knows are left out, and no temporary file remains.
+	 *
+	 * @throws IOException
+	 *             if the files cannot be written or read
+	 */
+	public void testSaveAndLoad() throws IOException {
+		final Model model = createModel("P001", "P002");
+		final Path inventory = dir.resolve("inventory.csv");
+		Files.write(inventory, ("d1,Board,P001 P002\n" + "d2,Board,P001\n")
+				.getBytes("UTF-8"));
+		final DeviceRegistry registry = new DeviceRegistry(model);
+		registry.importInventory(inventory);
+		final Path file = dir.resolve("fleet.reg");
+		registry.save(file);
+		registry.save(file);
+		assertEquals(Arrays.asList("fleet.reg", "inventory.csv", "sizes.txt"),
+				sortedNames());
+
+		final DeviceRegistry loaded = DeviceRegistry.load(model, file);
+		assertEquals(2, loaded.size());
+		assertTrue(loaded.getProblems().isEmpty());
+
+		final DeviceRegistry reduced =
+				DeviceRegistry.load(createModel("P001"), file);
+		assertEquals(1, reduced.size());
+		assertEquals(0, reduced.findDevice("d2"));
+		assertEquals(2, reduced.getProblems().size());
+	}
+
+	/**
+	 * @return the names of the files in the directory, sorted
+	 */
+	private List<String> sortedNames() {
+		final List<String> names =
+				new ArrayList<>(Arrays.asList(dir.toFile().list()));
+		names.sort(null);
+		return names;
+	}
+
+	/**
+	 * @param plugins
+	 *            the macro names of the plugins in the size table
+	 * @return a model with these plugins and a single board
+	 * @throws IOException
+	 *             if the size table cannot be written or read
+	 */
+	private Model createModel(final String... plugins) throws IOException {
+		final StringBuilder table = new StringBuilder(HEADER);
+		for (final String plugin : plugins) {
+			table.append("src/_" + plugin + "_X.ino |1 |1 |1 |1 |100\n");
+		}
+		final Path sizes = dir.resolve("sizes.txt");
+		Files.write(sizes, table.toString().getBytes("UTF-8"));
+		final Model model =
+				new Model(Arrays.asList(sizes.toString()), "_P", ".ino");
+		final Map<String, Object> limit = new HashMap<>();
+		limit.put("name", "Board");
+		for (final String type : MemoryValues.TYPE_NAMES) {
+			limit.put(type, 10_000);
+		}
+		final List<Map<String, Object>> limits = new ArrayList<>();
+		limits.add(limit);
+		model.initMemLimits(limits);
+		return model;
+	}
+}
@@ -0,0 +1,147 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that the fingerprint of a profile depends on the content of the
+ * size table and the enabled macros, not on their order.
+ */
+public class ManifestExporterTest extends TestCase {
+
+	private static final String HEADER = "plugin |cache IRAM |init RAM "
+			+ "|r.o. RAM |uninit RAM |Flash ROM\n";
+
+	private static final String[] ROWS = {
+			"src/_P001_Switch.ino |1 |2 |3 |4 |500\n",
+			"src/_P002_ADC.ino |5 |6 |7 |8 |600\n",
+			"src/_P003_Pulse.ino |9 |10 |11 |12 |700\n",
+			"src/_C001.ino |13 |14 |15 |16 |800\n" };
+
+	private Path dir;
+
+	/**
+	 * Create the test case.
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public ManifestExporterTest(final String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(ManifestExporterTest.class);
+	}
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("manifest");
+	}
+
+	@Override
+	protected void tearDown() {
+		delete(dir.toFile());
+	}
+
+	/**
+	 * @param file
+	 *            the file or directory to delete with its content
+	 */
+	private static void delete(final File file) {
+		final File[] children = file.listFiles();
+		if (children != null) {
+			for (final File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Permuted size tables give the same fingerprint for the same enabled
+	 * macros, although the plugins get other indexes.
+	 *
+	 * @throws IOException
+	 *             if the size tables cannot be written or read
+	 */
+	public void testPermutedTablesEqual() throws IOException {
+		final PluginCatalog catalog = catalog("a", ROWS[0], ROWS[1],
+				ROWS[2], ROWS[3]);
+		final PluginCatalog permuted = catalog("b", ROWS[3], ROWS[2],
+				ROWS[0], ROWS[1]);
+		assertFalse(catalog.findPlugin("P002") == permuted.findPlugin("P002"));
+		assertEquals(catalog.getContentHash(), permuted.getContentHash());
+		assertEquals(fingerprint(catalog, "P001", "P003"),
+				fingerprint(permuted, "P003", "P001"));
+		assertFalse(fingerprint(catalog, "P001", "P003")
+				.equals(fingerprint(catalog, "P001", "P002")));
+	}
+
+	/**
+	 * A changed size of any plugin, enabled or not, changes the fingerprint.
+	 *
+	 * @throws IOException
+	 *             if the size tables cannot be written or read
+	 */
+	public void testChangedSizeDiffers() throws IOException {
+		final PluginCatalog catalog = catalog("a", ROWS[0], ROWS[1],
+				ROWS[2], ROWS[3]);
+		final PluginCatalog enabledChanged = catalog("b",
+				ROWS[0].replace("|500", "|501"), ROWS[1], ROWS[2], ROWS[3]);
+		final PluginCatalog otherChanged = catalog("c", ROWS[0], ROWS[1],
+				ROWS[2].replace("|9 ", "|19 "), ROWS[3]);
+		final String fingerprint = fingerprint(catalog, "P001");
+		assertFalse(fingerprint.equals(fingerprint(enabledChanged, "P001")));
+		assertFalse(fingerprint.equals(fingerprint(otherChanged, "P001")));
+		assertEquals(fingerprint, fingerprint(
+				catalog("d", ROWS[0], ROWS[1], ROWS[2], ROWS[3]), "P001"));
+	}
+
+	/**
+	 * @param directory
+	 *            the directory of the size table, the file name is the same
+	 *            for all tables
+	 * @param rows
+	 *            the rows of the table
+	 * @return the catalog read from the table
+	 * @throws IOException
+	 *             if the size table cannot be written or read
+	 */
+	private PluginCatalog catalog(final String directory,
+			final String... rows) throws IOException {
+		final Path table = Files.createDirectories(dir.resolve(directory))
+				.resolve("Plugin_sizes.txt");
+		Files.write(table,
+				(HEADER + String.join("", rows)).getBytes("UTF-8"));
+		return new Model(Arrays.asList(table.toString()), "_P", ".ino")
+				.getCatalog();
+	}
+
+	/**
+	 * @param catalog
+	 *            the catalog
+	 * @param prefixes
+	 *            the prefixes of the enabled plugins
+	 * @return the fingerprint
+	 */
+	private static String fingerprint(final PluginCatalog catalog,
+			final String... prefixes) {
+		final BitSet enabled = new BitSet();
+		for (final String prefix : prefixes) {
+			enabled.set(catalog.findPlugin(prefix));
+		}
+		return ManifestExporter.fingerprint(catalog, enabled);
+	}
+}
@@ -0,0 +1,280 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks the memory limits of a model with a size table per architecture.
+ */
+public class ModelTest extends TestCase {
+
+	private static final String HEADER = "plugin |cache IRAM |init RAM "
+			+ "|r.o. RAM |uninit RAM |Flash ROM\n";
+
+	private Path dir;
+
+	/**
+	 * Create the test case.
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public ModelTest(final String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(ModelTest.class);
+	}
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("model");
+	}
+
+	@Override
+	protected void tearDown() {
+		for (final File file : dir.toFile().listFiles()) {
+			file.delete();
+		}
+		dir.toFile().delete();
+	}
+
+	/**
+	 * Every board is measured with the size table of its own target, also
+	 * if another target is active.
+	 *
+	 * @throws IOException
+	 *             if the size tables cannot be written or read
+	 */
+	public void testFittingBoardsPerTarget() throws IOException {
+		final Path small = dir.resolve("small.txt");
+		final Path large = dir.resolve("large.txt");
+		Files.write(small, (HEADER + "src/_P001_A.ino |1 |1 |1 |1 |100\n")
+				.getBytes("UTF-8"));
+		Files.write(large, (HEADER + "src/_P001_A.ino |1 |1 |1 |1 |1000\n")
+				.getBytes("UTF-8"));
+		final Model model = new Model(
+				Arrays.asList(small.toString(), large.toString()), "_P",
+				".ino");
+		final List<Map<String, Object>> limits = new ArrayList<>();
+		limits.add(limit("small 500", null, 500));
+		limits.add(limit("large 500", large.toString(), 500));
+		limits.add(limit("large 2000", large.toString(), 2000));
+		model.initMemLimits(limits);
+
+		final BitSet enabled = new BitSet();
+		enabled.set(model.getCatalog().findPlugin("P001"));
+		final BitSet expected = new BitSet();
+		expected.set(0);
+		expected.set(2);
+		assertEquals(expected, model.getFittingBoards(
+				model.getMemDataPerTarget("test", enabled)));
+		model.setActiveTarget(1);
+		assertEquals(expected, model.getFittingBoards(
+				model.getMemDataPerTarget("test", enabled)));
+		assertEquals(1000,
+				model.getMemDataPerTarget("test", enabled)[1].getFlashRom());
+	}
+
+	/**
+	 * The hash of the size tables covers every target, not only the active
+	 * one, and changes neither with the active target nor with the directory
+	 * of the tables.
+	 *
+	 * @throws IOException
+	 *             if the size tables cannot be written or read
+	 */
+	public void testContentHashCoversAllTargets() throws IOException {
+		final Path small = dir.resolve("small.txt");
+		final Path large = dir.resolve("large.txt");
+		Files.write(small, (HEADER + "src/_P001_A.ino |1 |1 |1 |1 |100\n")
+				.getBytes("UTF-8"));
+		Files.write(large, (HEADER + "src/_P001_A.ino |1 |1 |1 |1 |1000\n")
+				.getBytes("UTF-8"));
+		final List<String> tables =
+				Arrays.asList(small.toString(), large.toString());
+		final Model model = new Model(tables, "_P", ".ino");
+		final String hash = model.getCatalog().getContentHash();
+		model.setActiveTarget(1);
+		assertEquals(hash, model.getCatalog().getContentHash());
+		assertEquals(hash,
+				model.getCatalog().forTarget(0).getContentHash());
+		final Path other = dir.resolve(".");
+		assertEquals(hash, new Model(
+				Arrays.asList(other.resolve("small.txt").toString(),
+						other.resolve("large.txt").toString()),
+				"_P", ".ino").getCatalog().getContentHash());
+
+		Files.write(large, (HEADER + "src/_P001_A.ino |1 |1 |1 |1 |1001\n")
+				.getBytes("UTF-8"));
+		final String changed =
+				new Model(tables, "_P", ".ino").getCatalog().getContentHash();
+		assertFalse(hash.equals(changed));
+	}
+
+	/**
+	 * If the selection fits no board, the disabled plugins have no headroom
+	 * instead of fitting, and they get it back with the first fitting board.
+	 *
+	 * @throws IOException
+	 *             if the size table cannot be written or read
+	 */
+	public void testHeadroomWithoutFittingBoard() throws IOException {
+		final Path table = dir.resolve("sizes.txt");
+		Files.write(table, (HEADER + "src/_P001_A.ino |1 |1 |1 |1 |400\n"
+				+ "src/_P002_B.ino |1 |1 |1 |1 |200\n"
+				+ "src/_P003_C.ino |1 |1 |1 |1 |100\n").getBytes("UTF-8"));
+		final Model model =
+				new Model(Arrays.asList(table.toString()), "_P", ".ino");
+		final List<Map<String, Object>> limits = new ArrayList<>();
+		limits.add(limit("board 500", null, 500));
+		model.initMemLimits(limits);
+		final HeadroomTracker headroom = model.getHeadroom();
+		final PluginData p001 = model.findPlugin("P001");
+		final PluginData p002 = model.findPlugin("P002");
+		final int p003 = model.findPlugin("P003").getIndex();
+
+		model.setEnabled(p001, true);
+		final BitSet fitting = model.getFittingBoards();
+		assertEquals(1, fitting.cardinality());
+		assertEquals(100, headroom.getOverflow(p002.getIndex()));
+		assertEquals(0, headroom.getOverflow(p003));
+
+		model.setEnabled(p002, true);
+		assertSame(fitting, model.getFittingBoards());
+		assertTrue(fitting.isEmpty());
+		assertEquals(HeadroomTracker.NO_FITTING_BOARD,
+				headroom.getOverflow(p003));
+
+		model.setEnabled(p001, false);
+		assertEquals(1, fitting.cardinality());
+		assertEquals(100, headroom.getOverflow(p001.getIndex()));
+		assertEquals(0, headroom.getOverflow(p003));
+	}
+
+	/**
+	 * Loading a header with a read-only macro the size table does not know
+	 * adds and enables the plugin, and the headroom covers it.
+	 *
+	 * @throws IOException
+	 *             if the files cannot be written or read
+	 */
+	public void testLoadUnknownReadOnlyMacro() throws IOException {
+		final Path table = dir.resolve("sizes.txt");
+		Files.write(table, (HEADER + "src/_P001_A.ino |1 |1 |1 |1 |100\n")
+				.getBytes("UTF-8"));
+		final Model model =
+				new Model(Arrays.asList(table.toString()), "_P", ".ino");
+		final List<Map<String, Object>> limits = new ArrayList<>();
+		limits.add(limit("board 500", null, 500));
+		model.initMemLimits(limits);
+		final Path header = dir.resolve("enabled_plugins.h");
+		Files.write(header, "#define P001_A\n#define C099_X\n"
+				.getBytes("UTF-8"));
+
+		assertTrue(model.load(header.toFile(), "_P"));
+		final PluginData added = model.findPlugin("C099");
+		assertNotNull(added);
+		assertTrue(added.isReadOnly());
+		assertTrue(added.isEnabled());
+		assertTrue(model.getPlugin(0).isEnabled());
+		assertEquals(0, model.getHeadroom().getOverflow(added.getIndex()));
+	}
+
+	/**
+	 * Undo and redo across a change adding a read-only plugin keep the new
+	 * plugin enabled, the selections of the history know nothing about it.
+	 *
+	 * @throws IOException
+	 *             if the files cannot be written or read
+	 */
+	public void testUndoKeepsAddedReadOnlyPlugin() throws IOException {
+		final Path table = dir.resolve("sizes.txt");
+		Files.write(table, (HEADER + "src/_P001_A.ino |1 |1 |1 |1 |100\n"
+				+ "src/_P002_B.ino |1 |1 |1 |1 |100\n").getBytes("UTF-8"));
+		final Model model =
+				new Model(Arrays.asList(table.toString()), "_P", ".ino");
+		final PluginData p002 = model.findPlugin("P002");
+		model.setEnabled(p002, true);
+		model.setEnabled(p002, false);
+		final Path header = dir.resolve("enabled_plugins.h");
+		Files.write(header, "#define P001_A\n#define C099_X\n"
+				.getBytes("UTF-8"));
+		assertTrue(model.load(header.toFile(), "_P"));
+		final int added = model.findPlugin("C099").getIndex();
+
+		while (model.canUndo()) {
+			model.undo();
+			assertTrue(model.getSelection().get(added));
+		}
+		while (model.canRedo()) {
+			model.redo();
+			assertTrue(model.getSelection().get(added));
+		}
+	}
+
+	/**
+	 * The problems of the size table and of the source directory go to the
+	 * message handler of the model.
+	 *
+	 * @throws IOException
+	 *             if the size table cannot be written or read
+	 */
+	public void testMessagesToHandler() throws IOException {
+		final Path table = dir.resolve("sizes.txt");
+		Files.write(table, (HEADER + "src/_P001_A.ino |1 |1 |1 |1 |100\n"
+				+ "src/_P002_B.ino |1 |x\n").getBytes("UTF-8"));
+		final List<String> messages = new ArrayList<>();
+		final Model model = new Model(Arrays.asList(table.toString()),
+				new PluginClassifier("_P"), ".ino", messages::add);
+		assertEquals(Arrays.asList(
+				"Plugin Data File: line 3: _P002_B.ino: invalid value in "
+						+ "column 3"),
+				messages);
+
+		messages.clear();
+		model.setSrcDir(dir.resolve("missing").toString());
+		assertEquals(1, messages.size());
+		assertTrue(messages.get(0).startsWith("Couldn't read source"));
+	}
+
+	/**
+	 * @param name
+	 *            the name of the board
+	 * @param pluginData
+	 *            the size table of the board or null
+	 * @param flashRom
+	 *            the flash limit, the other limits are large
+	 * @return the limit definition as read from the configuration
+	 */
+	private static Map<String, Object> limit(final String name,
+			final String pluginData, final int flashRom) {
+		final Map<String, Object> limit = new HashMap<>();
+		limit.put("name", name);
+		if (pluginData != null) {
+			limit.put(ConfigurationData.PLUGIN_DATA, pluginData);
+		}
+		limit.put("cacheIRam", 10_000);
+		limit.put("initRam", 10_000);
+		limit.put("roRam", 10_000);
+		limit.put("uninitRam", 10_000);
+		limit.put("flashRom", flashRom);
+		return limit;
+	}
+}
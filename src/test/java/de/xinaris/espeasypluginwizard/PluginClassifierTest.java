@@ -0,0 +1,96 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that the classifier decides like the regular expression it
+ * replaces: a name is read-only unless the prefix pattern matches at its
+ * start.
+ */
+public class PluginClassifierTest extends TestCase {
+
+	/**
+	 * Prefix patterns with literal alternatives only, with regular
+	 * expressions, mixed and with inline flags.
+	 */
+	private static final List<String> PATTERNS = Arrays.asList("_P", "_P|_N",
+			"_N|_P|_C", "_PN|_P", "", "_[PN]", "_P0[0-4]", "_P\\d+_", "_P|_N.",
+			"_P|(?i)_n", "(?i)_p|_C", "(_P)|_N");
+
+	/**
+	 * Names that are hard for a prefix trie: prefixes only, empty, mixed
+	 * case, doubled underscores and characters outside ASCII.
+	 */
+	private static final List<String> EDGE_CASES = Arrays.asList("", "_",
+			"_P", "_N", "_PN", "_p", "_n001_x.ino", "_p001_Switch.ino",
+			"_P001", "P001_Switch.ino", "__P001_Switch.ino", "_Px.ino",
+			"_P005_Dht.ino", "_C", "_c005.ino", "_N.", "_Pä.ino",
+			"_ß.ino", "_P1", "_P9_");
+
+	/**
+	 * Create the test case.
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public PluginClassifierTest(final String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(PluginClassifierTest.class);
+	}
+
+	/**
+	 * The names of the size table in the repository and the edge cases are
+	 * classified like with the regular expression for every pattern.
+	 *
+	 * @throws IOException
+	 *             if the size table cannot be read
+	 */
+	public void testSameAsRegex() throws IOException {
+		final List<String> names = new ArrayList<>(EDGE_CASES);
+		try (Reader reader =
+				Files.newBufferedReader(Paths.get("Plugin_sizes.txt"))) {
+			new SizeTableParser().parse(reader,
+					(name, values) -> names.add(name));
+		}
+		assertTrue(names.size() > EDGE_CASES.size() + 50);
+		for (final String pattern : PATTERNS) {
+			final PluginClassifier classifier = new PluginClassifier(pattern);
+			final Pattern regex = Pattern.compile(pattern);
+			for (final String name : names) {
+				assertEquals(pattern + " on " + name,
+						!regex.matcher(name).lookingAt(),
+						classifier.isReadOnly(name));
+			}
+		}
+	}
+
+	/**
+	 * The default pattern makes the plugins selectable and the controllers,
+	 * notifications and system files read-only.
+	 */
+	public void testDefaultPattern() {
+		final PluginClassifier classifier = new PluginClassifier("_P");
+		assertFalse(classifier.isReadOnly("_P001_Switch.ino"));
+		assertTrue(classifier.isReadOnly("_C001.ino"));
+		assertTrue(classifier.isReadOnly("_N001_Email.ino"));
+		assertTrue(classifier.isReadOnly("ESPEasy.ino"));
+		assertTrue(classifier.isReadOnly("_p001_Switch.ino"));
+	}
+}
@@ -0,0 +1,176 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks how the profile watcher handles a batch of changes.
+ */
+public class ProfileWatcherTest extends TestCase {
+
+	private static final String HEADER = "plugin |cache IRAM |init RAM "
+			+ "|r.o. RAM |uninit RAM |Flash ROM\n";
+
+	private static final String TABLE = HEADER
+			+ "src/_P001_A.ino |1 |1 |1 |1 |100\n"
+			+ "src/_P002_B.ino |1 |1 |1 |1 |100\n";
+
+	private Path dir;
+
+	/**
+	 * Create the test case.
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public ProfileWatcherTest(final String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(ProfileWatcherTest.class);
+	}
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = Files.createTempDirectory("watcher");
+	}
+
+	@Override
+	protected void tearDown() {
+		delete(dir.toFile());
+	}
+
+	/**
+	 * @param file
+	 *            the file or directory to delete with its content
+	 */
+	private static void delete(final File file) {
+		final File[] children = file.listFiles();
+		if (children != null) {
+			for (final File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * A profile changed together with a size table that cannot be read is
+	 * kept, and its header is written after the next successful rebuild,
+	 * which is tried again with the next change of any file.
+	 *
+	 * @throws IOException
+	 *             if the files cannot be written or read
+	 */
+	public void testProfileKeptWhileRebuildFails() throws IOException {
+		final Path table = dir.resolve("sizes.txt");
+		final Path profiles = dir.resolve("profiles");
+		final Path profile = profiles.resolve("small.profile");
+		final List<String> messages = new ArrayList<>();
+		final ProfileWatcher watcher = createWatcher(messages);
+		watcher.regenerateAll();
+		final Path header = dir.resolve("out").resolve("small")
+				.resolve("enabled_plugins.h");
+		final String before = new String(Files.readAllBytes(header), "UTF-8");
+		assertTrue(before.contains("// #define P002_B"));
+
+		Files.delete(table);
+		Files.write(profile, "P001 P002\n".getBytes("UTF-8"));
+		messages.clear();
+		watcher.process(new HashSet<>(Arrays.asList(table, profile)));
+		assertEquals(2, messages.size());
+		assertTrue(messages.get(0).startsWith("Plugin Data File does not"));
+		assertTrue(messages.get(1).startsWith("Couldn't rebuild the model"));
+		assertEquals(before,
+				new String(Files.readAllBytes(header), "UTF-8"));
+
+		// the size table is readable again, the rebuild is retried with the
+		// next change
+		Files.write(table, TABLE.getBytes("UTF-8"));
+		final Path other = profiles.resolve("other.profile");
+		Files.write(other, "P002\n".getBytes("UTF-8"));
+		watcher.process(new HashSet<>(Arrays.asList(other)));
+		assertTrue(Files.exists(dir.resolve("out").resolve("other")
+				.resolve("enabled_plugins.h")));
+		final String after = new String(Files.readAllBytes(header), "UTF-8");
+		assertFalse(after.contains("// #define P002_B"));
+		assertTrue(after.contains("#define P002_B"));
+	}
+
+	/**
+	 * An empty config file, as left by an editor or a git pull, or one
+	 * without a map at the top level is reported and keeps the previous
+	 * configuration until the file is valid again.
+	 *
+	 * @throws IOException
+	 *             if the files cannot be written or read
+	 */
+	public void testBrokenConfigKept() throws IOException {
+		final Path configFile = dir.resolve("epwconfig.yaml");
+		final Path profile = dir.resolve("profiles").resolve("small.profile");
+		final List<String> messages = new ArrayList<>();
+		final ProfileWatcher watcher = createWatcher(messages);
+		watcher.regenerateAll();
+		final Path header = dir.resolve("out").resolve("small")
+				.resolve("enabled_plugins.h");
+
+		for (final String broken : Arrays.asList("", "- a\n- b\n",
+				"memLimits: none\n")) {
+			Files.write(configFile, broken.getBytes("UTF-8"));
+			messages.clear();
+			watcher.process(new HashSet<>(Arrays.asList(configFile)));
+			assertEquals(broken, 1, messages.size());
+			assertTrue(messages.get(0).startsWith("Couldn't rebuild"));
+		}
+
+		Files.write(configFile, "suffix: .ino\n".getBytes("UTF-8"));
+		Files.write(profile, "P001 P002\n".getBytes("UTF-8"));
+		watcher.process(new HashSet<>(Arrays.asList(profile)));
+		final String after = new String(Files.readAllBytes(header), "UTF-8");
+		assertFalse(after.contains("// #define P002_B"));
+	}
+
+	/**
+	 * Create the size table, the config file, a profile "small" enabling
+	 * P001 and a watcher for them.
+	 *
+	 * @param messages
+	 *            receives the reports of the watcher
+	 * @return the watcher
+	 * @throws IOException
+	 *             if the files cannot be written or read
+	 */
+	private ProfileWatcher createWatcher(final List<String> messages)
+			throws IOException {
+		final Path table = dir.resolve("sizes.txt");
+		final Path configFile = dir.resolve("epwconfig.yaml");
+		final Path src = Files.createDirectories(dir.resolve("src"));
+		final Path profiles = Files.createDirectories(dir.resolve("profiles"));
+		Files.write(table, TABLE.getBytes("UTF-8"));
+		Files.write(configFile, "suffix: .ino\n".getBytes("UTF-8"));
+		Files.write(profiles.resolve("small.profile"),
+				"P001\n".getBytes("UTF-8"));
+		final ConfigurationData config = new ConfigurationData(new String[] {
+				"--" + ConfigurationData.CONFIG_FILE + "=" + configFile,
+				"--" + ConfigurationData.PLUGIN_DATA + "=" + table,
+				"--" + ConfigurationData.SRC_DIRECTORY + "=" + src,
+				"--" + ConfigurationData.PLUGIN_RULES + "="
+						+ dir.resolve("epwrules.yaml") });
+		return new ProfileWatcher(config, App.createModel(config, m -> {
+		}), profiles, dir.resolve("out"), messages::add);
+	}
+}
@@ -0,0 +1,237 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.yaml.snakeyaml.Yaml;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that the counters of the rule engine follow single changes and bulk
+ * restores of a selection and agree with a full check.
+ */
+public class RuleEngineTest extends TestCase {
+
+	private static final String RULES = "requires:\n"
+			+ "  - plugins: _P036\n"
+			+ "    requires: [ _N, _C001 ]\n"
+			+ "conflicts:\n"
+			+ "  - plugins: [ _P01, _P020 ]\n"
+			+ "    message: one display only\n";
+
+	private static final String NEEDS = "needs one of _N, _C001";
+	private static final String DISPLAY = "one display only";
+
+	private static final List<String> NAMES = Arrays.asList(
+			"_P036_FrameOLED.ino", "_N001_Email.ino", "_C001.ino",
+			"_P010_A.ino", "_P011_B.ino", "_P020_C.ino", "_P001_Switch.ino");
+
+	private static final int P036 = 0;
+	private static final int N001 = 1;
+	private static final int C001 = 2;
+	private static final int P010 = 3;
+	private static final int P011 = 4;
+	private static final int P020 = 5;
+	private static final int P001 = 6;
+
+	private PluginSelection selection;
+	private RuleEngine engine;
+
+	/**
+	 * Create the test case.
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public RuleEngineTest(final String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(RuleEngineTest.class);
+	}
+
+	@Override
+	protected void setUp() {
+		selection = new PluginSelection();
+		engine = createEngine(RULES, NAMES);
+		selection.addListener(engine);
+	}
+
+	/**
+	 * A dependency is violated while the plugin is enabled without any of
+	 * the required plugins, and only the plugin itself reports it.
+	 */
+	public void testRequires() {
+		selection.setEnabled(P036, true);
+		assertEquals(Arrays.asList(NEEDS), engine.getViolations());
+		assertEquals(Arrays.asList(NEEDS), engine.getViolations(P036, true));
+		assertTrue(engine.getViolations(P036, false).isEmpty());
+		assertTrue(engine.getViolations(N001, true).isEmpty());
+
+		selection.setEnabled(N001, true);
+		assertFalse(engine.hasViolations());
+		selection.setEnabled(C001, true);
+		selection.setEnabled(N001, false);
+		assertFalse(engine.hasViolations());
+		selection.setEnabled(C001, false);
+		assertEquals(Arrays.asList(NEEDS), engine.getViolations());
+		selection.setEnabled(P036, false);
+		assertFalse(engine.hasViolations());
+	}
+
+	/**
+	 * A conflict matches the plugins by prefix: "_P01" covers P010 and P011
+	 * but not P001.
+	 */
+	public void testConflictsByPrefix() {
+		selection.setEnabled(P010, true);
+		selection.setEnabled(P001, true);
+		assertFalse(engine.hasViolations());
+		selection.setEnabled(P011, true);
+		assertEquals(Arrays.asList(DISPLAY), engine.getViolations());
+		assertEquals(Arrays.asList(DISPLAY), engine.getViolations(P010, true));
+		assertTrue(engine.getViolations(P001, true).isEmpty());
+		selection.setEnabled(P010, false);
+		assertFalse(engine.hasViolations());
+		selection.setEnabled(P020, true);
+		assertEquals(Arrays.asList(DISPLAY), engine.getViolations());
+	}
+
+	/**
+	 * Restoring a whole selection updates the counters like single changes.
+	 */
+	public void testRestore() {
+		selection.restore(bits(P036, P010, P020));
+		assertEquals(Arrays.asList(NEEDS, DISPLAY), engine.getViolations());
+		selection.restore(bits(P036, C001, P010));
+		assertFalse(engine.hasViolations());
+		selection.restore(bits(P036, P011, P020));
+		assertEquals(Arrays.asList(NEEDS, DISPLAY), engine.getViolations());
+		selection.restore(new BitSet());
+		assertFalse(engine.hasViolations());
+	}
+
+	/**
+	 * Checking a selection does not depend on the state of the engine.
+	 */
+	public void testCheck() {
+		selection.setEnabled(P036, true);
+		assertEquals(Arrays.asList(NEEDS, DISPLAY),
+				sorted(engine.check(bits(P036, P010, P011))));
+		assertTrue(engine.check(bits(P036, N001, P010)).isEmpty());
+		assertTrue(engine.check(new BitSet()).isEmpty());
+		assertEquals(Arrays.asList(NEEDS), engine.getViolations());
+	}
+
+	/**
+	 * After random changes and restores the violations known incrementally
+	 * are those of a full check and of a new engine for the same selection.
+	 */
+	public void testRandomChangesMatchFullCheck() {
+		final String rules = "requires:\n"
+				+ "  - plugins: _P00\n    requires: [ _C001, _N01 ]\n"
+				+ "  - plugins: [ _P010, _P011 ]\n    requires: _P003\n"
+				+ "  - plugins: _P\n    requires: _P005\n"
+				+ "conflicts:\n"
+				+ "  - plugins: [ _P002, _P003 ]\n"
+				+ "  - plugins: [ _C00, _N00 ]\n"
+				+ "  - plugins: [ _C010, _C011, _N010 ]\n";
+		final List<String> names = new ArrayList<>();
+		for (final String prefix : Arrays.asList("_P", "_C", "_N")) {
+			for (int i = 0; i < 12; i++) {
+				names.add(String.format("%s%03d_X.ino", prefix, i));
+			}
+		}
+		final PluginSelection randomSelection = new PluginSelection();
+		final RuleEngine incremental = createEngine(rules, names);
+		randomSelection.addListener(incremental);
+		final Random random = new Random(28);
+		List<String> previous = Collections.emptyList();
+		int changes = 0;
+		for (int step = 0; step < 2000; step++) {
+			if (step % 100 == 99) {
+				final BitSet bulk = new BitSet();
+				for (int i = 0; i < names.size(); i++) {
+					bulk.set(i, random.nextInt(8) == 0);
+				}
+				randomSelection.restore(bulk);
+			} else {
+				final int index = random.nextInt(names.size());
+				randomSelection.setEnabled(index, random.nextInt(4) == 0);
+			}
+			final BitSet current = randomSelection.snapshot();
+			final List<String> expected = sorted(incremental.check(current));
+			assertEquals("step " + step, expected,
+					sorted(incremental.getViolations()));
+			if (!expected.equals(previous)) {
+				changes++;
+			}
+			previous = expected;
+
+			final RuleEngine fresh = createEngine(rules, names);
+			for (int i = current.nextSetBit(0); i >= 0; i =
+					current.nextSetBit(i + 1)) {
+				fresh.enabledChanged(i, true);
+			}
+			assertEquals("step " + step, expected,
+					sorted(fresh.getViolations()));
+		}
+		// the changes have to switch rules on and off
+		assertTrue(changes > 100);
+	}
+
+	/**
+	 * @param rules
+	 *            the rules file
+	 * @param names
+	 *            the plugin names in the order of their index
+	 * @return the engine knowing the plugins
+	 */
+	private static RuleEngine createEngine(final String rules,
+			final List<String> names) {
+		@SuppressWarnings("unchecked")
+		final Map<String, Object> data =
+				(Map<String, Object>) new Yaml().load(rules);
+		final RuleEngine result = new RuleEngine(data);
+		for (int i = 0; i < names.size(); i++) {
+			result.addPlugin(i, names.get(i));
+		}
+		return result;
+	}
+
+	/**
+	 * @param messages
+	 *            the messages
+	 * @return a sorted copy
+	 */
+	private static List<String> sorted(final List<String> messages) {
+		final List<String> result = new ArrayList<>(messages);
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * @param indexes
+	 *            the indexes to set
+	 * @return the bit set
+	 */
+	private static BitSet bits(final int... indexes) {
+		final BitSet result = new BitSet();
+		for (final int index : indexes) {
+			result.set(index);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,580 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import junit.extensions.TestSetup;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that the model operations scale roughly linearly with the number of
+ * plugins and stay within time and allocation budgets. Every operation is
+ * measured with a small and a large synthetic catalog; the sizes can be set
+ * with the system properties "scaling.small" and "scaling.large", e.g.
+ * "mvn test -Dscaling.large=100000".
+ *
+ * <p>
+ * The growth of time and allocations from the small to the large catalog
+ * must stay below the size factor times a slack. A quadratic operation grows
+ * by the square of the size factor and fails. The time of an operation is
+ * the minimum of several runs, the allocations are those of the test thread
+ * only, work done by parallel streams in other threads is not counted.
+ */
+public class ScalingTest extends TestCase {
+
+	private static final int SMALL =
+			Integer.getInteger("scaling.small", 2000);
+	private static final int LARGE =
+			Integer.getInteger("scaling.large", 16000);
+
+	/**
+	 * Allowed growth beyond linear for times, which are noisy.
+	 */
+	private static final double TIME_SLACK = 3.0;
+
+	/**
+	 * Allowed growth beyond linear for allocations.
+	 */
+	private static final double ALLOCATION_SLACK = 1.5;
+
+	/**
+	 * Times below this are not compared, timer resolution and noise
+	 * dominate them.
+	 */
+	private static final long MIN_NANOS = 2_000_000L;
+
+	private static final int RUNS = 3;
+	private static final int TOGGLES = 2000;
+	private static final int NEW_PLUGINS = 5;
+	private static final int DEVICES_PER_SIZE = 16;
+	private static final int DEVICES_PER_CONFIGURATION = 128;
+	private static final int QUERIES = 50;
+
+	/**
+	 * The growth of the uninitialized RAM of a plugin in device queries.
+	 */
+	private static final int GROWTH = 4096;
+
+	/**
+	 * The directory of the synthetic files, shared by all tests.
+	 */
+	private static Path dir;
+
+	/**
+	 * Create the test case.
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public ScalingTest(final String testName) {
+		super(testName);
+	}
+
+	/**
+	 * The synthetic files are generated once for all tests of the suite.
+	 *
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSetup(new TestSuite(ScalingTest.class)) {
+			@Override
+			protected void setUp() throws IOException {
+				generate();
+			}
+
+			@Override
+			protected void tearDown() throws IOException {
+				delete();
+			}
+		};
+	}
+
+	/**
+	 * Generate size tables, sources and headers for both sizes.
+	 *
+	 * @throws IOException
+	 *             if the files cannot be written
+	 */
+	private static void generate() throws IOException {
+		dir = Files.createTempDirectory("scaling");
+		for (final int size : new int[] { SMALL, LARGE }) {
+			final SyntheticCatalog synthetic = new SyntheticCatalog(size, size);
+			final Path base = dir.resolve(Integer.toString(size));
+			Files.createDirectories(base);
+			synthetic.writeSizeTable(base.resolve("Plugin_sizes.txt"));
+			synthetic.writeSources(base.resolve("src"), NEW_PLUGINS);
+			synthetic.writeHeader(base.resolve("Custom.h"),
+					synthetic.randomSelection(0.5));
+		}
+	}
+
+	/**
+	 * Delete the synthetic files.
+	 *
+	 * @throws IOException
+	 *             if the directory cannot be read
+	 */
+	private static void delete() throws IOException {
+		try (Stream<Path> paths = Files.walk(dir)) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile)
+					.forEach(File::delete);
+		}
+	}
+
+	/**
+	 * Reading the size table and creating the model.
+	 *
+	 * @throws IOException
+	 *             if the synthetic files cannot be read
+	 */
+	public void testConstruction() throws IOException {
+		final Measurement small = measure(size -> createModel(size), SMALL);
+		final Measurement large = measure(size -> createModel(size), LARGE);
+		check("construction", small, large, 100_000, 8_192);
+	}
+
+	/**
+	 * Analyzing the source directory, completing truncated names.
+	 *
+	 * @throws IOException
+	 *             if the synthetic files cannot be read
+	 */
+	public void testAnalyzeSrcDir() throws IOException {
+		final Operation analyze = size -> {
+			final Model model = createModel(size);
+			final long start = System.nanoTime();
+			final long allocated = allocatedBytes();
+			model.setSrcDir(base(size).resolve("src").toString());
+			final long[] result = { System.nanoTime() - start,
+					allocatedBytes() - allocated };
+			assertEquals(size + SyntheticCatalog.SYSTEM_FILES + NEW_PLUGINS,
+					model.getPluginCount());
+			return result;
+		};
+		check("analyzeSrcDir", measureInner(analyze, SMALL),
+				measureInner(analyze, LARGE), 250_000, 8_192);
+	}
+
+	/**
+	 * Analyzing the source directory again with the scan cache written by a
+	 * previous run, as after a restart; no file has changed.
+	 *
+	 * @throws IOException
+	 *             if the synthetic files cannot be read
+	 */
+	public void testAnalyzeSrcDirCached() throws IOException {
+		final Operation analyze = size -> {
+			final Model model = createModel(size);
+			final ScanCache cache =
+					new ScanCache(base(size).resolve("scancache"));
+			model.setScanCache(cache);
+			final long start = System.nanoTime();
+			final long allocated = allocatedBytes();
+			model.setSrcDir(base(size).resolve("src").toString());
+			final long[] result = { System.nanoTime() - start,
+					allocatedBytes() - allocated };
+			assertEquals(size + SyntheticCatalog.SYSTEM_FILES + NEW_PLUGINS,
+					model.getPluginCount());
+			return result;
+		};
+		// the first run of measureInner writes the cache
+		final Measurement small = measureInner(analyze, SMALL);
+		final Measurement large = measureInner(analyze, LARGE);
+		final ScanCache cache = new ScanCache(base(LARGE).resolve("scancache"));
+		cache.analyze(base(LARGE).resolve("src").toFile(),
+				Arrays.asList(base(LARGE).resolve("src").toFile().listFiles()));
+		assertEquals(0, cache.getAnalyzedCount());
+		check("analyzeCached", small, large, 100_000, 8_192);
+	}
+
+	/**
+	 * Loading a header file after the names have been completed from the
+	 * sources.
+	 *
+	 * @throws IOException
+	 *             if the synthetic files cannot be read
+	 */
+	public void testLoad() throws IOException {
+		final Operation load = size -> {
+			final Model model = createModel(size);
+			model.setSrcDir(base(size).resolve("src").toString());
+			final File header = base(size).resolve("Custom.h").toFile();
+			final long start = System.nanoTime();
+			final long allocated = allocatedBytes();
+			assertTrue(model.load(header, SyntheticCatalog.PREFIX_PATTERN));
+			return new long[] { System.nanoTime() - start,
+					allocatedBytes() - allocated };
+		};
+		check("load", measureInner(load, SMALL), measureInner(load, LARGE),
+				50_000, 8_192);
+	}
+
+	/**
+	 * Saving a header file.
+	 *
+	 * @throws IOException
+	 *             if the synthetic files cannot be read
+	 */
+	public void testSave() throws IOException {
+		final Operation save = size -> {
+			final Model model = createModel(size);
+			final File header = base(size).resolve("Saved.h").toFile();
+			final long start = System.nanoTime();
+			final long allocated = allocatedBytes();
+			assertTrue(model.save(header));
+			return new long[] { System.nanoTime() - start,
+					allocatedBytes() - allocated };
+		};
+		check("save", measureInner(save, SMALL), measureInner(save, LARGE),
+				10_000, 256);
+	}
+
+	/**
+	 * Toggling plugins, which updates totals, rules, history and headroom,
+	 * and reading the totals and fitting boards after every toggle. The
+	 * budgets are per plugin for all toggles together.
+	 *
+	 * @throws IOException
+	 *             if the synthetic files cannot be read
+	 */
+	public void testRecalculation() throws IOException {
+		final Operation toggle = size -> {
+			final Model model = createModel(size);
+			final Random random = new Random(size);
+			final long start = System.nanoTime();
+			final long allocated = allocatedBytes();
+			for (int t = 0; t < TOGGLES; t++) {
+				final PluginData plugin =
+						model.getPlugin(random.nextInt(model.getPluginCount()));
+				if (!plugin.isReadOnly()) {
+					model.setEnabled(plugin, !plugin.isEnabled());
+				}
+				assertNotNull(model.getCurrentMemData());
+				assertNotNull(model.getFittingBoards());
+			}
+			return new long[] { System.nanoTime() - start,
+					allocatedBytes() - allocated };
+		};
+		check("recalculation", measureInner(toggle, SMALL),
+				measureInner(toggle, LARGE), 20_000, 8_192);
+	}
+
+	/**
+	 * Querying a device registry: the users of plugins, the devices sharing
+	 * a configuration and the devices overflowing if a plugin grows. Here the
+	 * size is the number of devices divided by DEVICES_PER_SIZE, the catalog
+	 * is the small one; the budgets are per size for all queries together.
+	 *
+	 * @throws IOException
+	 *             if the synthetic files cannot be read
+	 */
+	public void testDeviceRegistry() throws IOException {
+		final Model model = createModel(SMALL);
+		final DeviceRegistry registry = createRegistry(model, SMALL);
+		createRegistry(model, LARGE);
+		final int pluginCount = model.getPluginCount();
+		final Operation query = size -> {
+			// a new registry, so that no plugin query is answered from cache
+			final DeviceRegistry loaded = DeviceRegistry.load(model,
+					base(size).resolve("devices"));
+			final Random random = new Random(size);
+			final long start = System.nanoTime();
+			final long allocated = allocatedBytes();
+			for (int q = 0; q < QUERIES; q++) {
+				final int plugin = random.nextInt(pluginCount);
+				assertNotNull(loaded.getUsers(plugin));
+				assertNotNull(loaded.getSameConfiguration(
+						random.nextInt(loaded.size())));
+				assertNotNull(loaded.getOverflowing(plugin, 3, GROWTH));
+			}
+			return new long[] { System.nanoTime() - start,
+					allocatedBytes() - allocated };
+		};
+		check("deviceQueries", measureInner(query, SMALL),
+				measureInner(query, LARGE), 5_000, 8_192);
+
+		// the answers are those of checking each device
+		final BitSet base = model.getReadOnlyPlugins();
+		int overflowing = 0;
+		for (int plugin = 0; plugin < pluginCount; plugin += 97) {
+			final DeviceBitmap users = registry.getUsers(plugin);
+			final DeviceBitmap grown =
+					registry.getOverflowing(plugin, 3, GROWTH);
+			overflowing += grown.cardinality();
+			for (int d = 0; d < registry.size(); d++) {
+				final BitSet enabled = registry.getPlugins(d);
+				enabled.or(base);
+				assertEquals(enabled.get(plugin), users.contains(d));
+				final MemoryData usage = model.getMemData("", enabled);
+				final MemoryData after = new MemoryData("",
+						usage.getCacheIRam(), usage.getInitRam(),
+						usage.getRoRam(), usage.getUninitRam() + GROWTH,
+						usage.getFlashRom());
+				final MemoryData limit =
+						model.findMemLimit(registry.getBoard(d));
+				assertEquals(enabled.get(plugin)
+						&& !model.exceedsMemReference(usage, limit)
+						&& model.exceedsMemReference(after, limit),
+						grown.contains(d));
+			}
+		}
+		assertTrue(overflowing > 0);
+		final int device = registry.findDevice("device-7");
+		assertEquals(7, device);
+		registry.getSameConfiguration(device).forEach(d -> {
+			assertEquals(registry.getBoard(device), registry.getBoard(d));
+			assertEquals(registry.getPlugins(device), registry.getPlugins(d));
+		});
+		assertEquals(DEVICES_PER_CONFIGURATION,
+				registry.getSameConfiguration(device).cardinality());
+	}
+
+	/**
+	 * Create a registry of random devices over the plugins of the model and
+	 * save it.
+	 *
+	 * @param model
+	 *            the model
+	 * @param size
+	 *            the number of devices divided by DEVICES_PER_SIZE
+	 * @return the registry
+	 * @throws IOException
+	 *             if the registry cannot be saved
+	 */
+	private static DeviceRegistry createRegistry(final Model model,
+			final int size) throws IOException {
+		final Random random = new Random(size);
+		final BitSet base = model.getReadOnlyPlugins();
+		final int devices = size * DEVICES_PER_SIZE;
+		final BitSet[] configurations =
+				new BitSet[devices / DEVICES_PER_CONFIGURATION];
+		for (int c = 0; c < configurations.length; c++) {
+			// close to the limit of the board "half", some fit and some not
+			final double fraction = 0.45 + random.nextDouble() * 0.07;
+			configurations[c] = new BitSet();
+			for (int p = 0; p < model.getPluginCount(); p++) {
+				if (!base.get(p) && random.nextDouble() < fraction) {
+					configurations[c].set(p);
+				}
+			}
+		}
+		final DeviceRegistry registry = new DeviceRegistry(model);
+		for (int d = 0; d < devices; d++) {
+			final int c = d % configurations.length;
+			String board = "all";
+			if (c % 2 == 0) {
+				board = "half";
+			}
+			registry.addDevice("device-" + d, board, configurations[c]);
+		}
+		registry.save(base(size).resolve("devices"));
+		return registry;
+	}
+
+	/**
+	 * An operation measured with a catalog of the given size, returns the
+	 * time in nanoseconds and the allocated bytes.
+	 */
+	private interface Operation {
+		/**
+		 * @param size
+		 *            the number of synthetic plugins
+		 * @return time and allocated bytes
+		 * @throws IOException
+		 *             if the synthetic files cannot be read
+		 */
+		long[] run(int size) throws IOException;
+	}
+
+	/**
+	 * An operation that is measured as a whole.
+	 */
+	private interface Action {
+		/**
+		 * @param size
+		 *            the number of synthetic plugins
+		 * @throws IOException
+		 *             if the synthetic files cannot be read
+		 */
+		void run(int size) throws IOException;
+	}
+
+	/**
+	 * The best time and the allocations of an operation.
+	 */
+	private static final class Measurement {
+		private final int size;
+		private long nanos = Long.MAX_VALUE;
+		private long bytes = Long.MAX_VALUE;
+
+		/**
+		 * @param size
+		 *            the number of synthetic plugins
+		 */
+		private Measurement(final int size) {
+			this.size = size;
+		}
+	}
+
+	/**
+	 * @param action
+	 *            the operation measured as a whole
+	 * @param size
+	 *            the number of synthetic plugins
+	 * @return the measurement
+	 * @throws IOException
+	 *             if the synthetic files cannot be read
+	 */
+	private Measurement measure(final Action action, final int size)
+			throws IOException {
+		return measureInner(s -> {
+			final long start = System.nanoTime();
+			final long allocated = allocatedBytes();
+			action.run(s);
+			return new long[] { System.nanoTime() - start,
+					allocatedBytes() - allocated };
+		}, size);
+	}
+
+	/**
+	 * Run the operation once to warm up and then RUNS times.
+	 *
+	 * @param operation
+	 *            the operation measuring itself
+	 * @param size
+	 *            the number of synthetic plugins
+	 * @return the measurement
+	 * @throws IOException
+	 *             if the synthetic files cannot be read
+	 */
+	private Measurement measureInner(final Operation operation, final int size)
+			throws IOException {
+		operation.run(size);
+		final Measurement m = new Measurement(size);
+		for (int r = 0; r < RUNS; r++) {
+			final long[] result = operation.run(size);
+			m.nanos = Math.min(m.nanos, result[0]);
+			m.bytes = Math.min(m.bytes, result[1]);
+		}
+		return m;
+	}
+
+	/**
+	 * Check the growth and the budgets of an operation.
+	 *
+	 * @param name
+	 *            the name of the operation
+	 * @param small
+	 *            the measurement with the small catalog
+	 * @param large
+	 *            the measurement with the large catalog
+	 * @param nanosPerPlugin
+	 *            the time budget per plugin of the large catalog
+	 * @param bytesPerPlugin
+	 *            the allocation budget per plugin of the large catalog
+	 */
+	private void check(final String name, final Measurement small,
+			final Measurement large, final long nanosPerPlugin,
+			final long bytesPerPlugin) {
+		final double factor = (double) large.size / small.size;
+		System.out.println(String.format(
+				"%-14s %7d plugins: %8.2f ms %10d bytes, "
+						+ "%7d plugins: %8.2f ms %10d bytes",
+				name, small.size, small.nanos / 1e6, small.bytes, large.size,
+				large.nanos / 1e6, large.bytes));
+
+		if (small.nanos >= MIN_NANOS) {
+			final double growth = (double) large.nanos / small.nanos;
+			assertTrue(name + ": time grows by " + growth + " for factor "
+					+ factor, growth <= factor * TIME_SLACK);
+		}
+		assertTrue(name + ": time " + large.nanos + " ns exceeds budget",
+				large.nanos <= nanosPerPlugin * large.size);
+
+		if (small.bytes > 0) {
+			final double growth = (double) large.bytes / small.bytes;
+			assertTrue(name + ": allocations grow by " + growth
+					+ " for factor " + factor,
+					growth <= factor * ALLOCATION_SLACK);
+			assertTrue(name + ": allocations " + large.bytes
+					+ " bytes exceed budget",
+					large.bytes <= bytesPerPlugin * large.size);
+		}
+	}
+
+	/**
+	 * @param size
+	 *            the number of synthetic plugins
+	 * @return the directory of the synthetic files
+	 */
+	private static Path base(final int size) {
+		return dir.resolve(Integer.toString(size));
+	}
+
+	/**
+	 * Create a model with two boards, one fitting about half of the plugins
+	 * and one fitting all.
+	 *
+	 * @param size
+	 *            the number of synthetic plugins
+	 * @return the model
+	 * @throws IOException
+	 *             if the size table cannot be read
+	 */
+	private Model createModel(final int size) throws IOException {
+		final Model model = new Model(
+				base(size).resolve("Plugin_sizes.txt").toString(),
+				SyntheticCatalog.PREFIX_PATTERN, SyntheticCatalog.SUFFIX);
+		final List<Map<String, Object>> limits = new ArrayList<>();
+		limits.add(limit("half", size / 2));
+		limits.add(limit("all", size));
+		model.initMemLimits(limits);
+		return model;
+	}
+
+	/**
+	 * @param name
+	 *            the name of the board
+	 * @param plugins
+	 *            the number of average plugins fitting
+	 * @return the limit definition as read from the configuration
+	 */
+	private static Map<String, Object> limit(final String name,
+			final int plugins) {
+		final Map<String, Object> limit = new HashMap<>();
+		limit.put("name", name);
+		limit.put("cacheIRam", 32 * plugins + 10_000);
+		limit.put("initRam", 128 * plugins + 10_000);
+		limit.put("roRam", 1024 * plugins + 100_000);
+		limit.put("uninitRam", 256 * plugins + 10_000);
+		limit.put("flashRom", 8192 * plugins + 1_000_000);
+		return limit;
+	}
+
+	/**
+	 * @return the bytes allocated by this thread or 0 if not supported
+	 */
+	private static long allocatedBytes() {
+		final java.lang.management.ThreadMXBean bean =
+				ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,240 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks the plugins the repair disables to fit a board.
+ */
+public class SelectionRepairTest extends TestCase {
+
+	private static final int LARGE = 10_000;
+
+	/**
+	 * Create the test case.
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public SelectionRepairTest(final String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(SelectionRepairTest.class);
+	}
+
+	/**
+	 * A selection that fits is not changed.
+	 */
+	public void testFittingSelectionUnchanged() {
+		final Model model = model(new String[] { "_P001_A", "_P002_B" },
+				new int[] { 300, 200 });
+		final BitSet enabled = all(model);
+		final SelectionRepair.Result result = new SelectionRepair(model, null)
+				.repair(enabled, board(500));
+		assertTrue(result.isFeasible());
+		assertTrue(result.isOptimal());
+		assertTrue(result.getRemoved().isEmpty());
+		assertEquals(enabled, result.getSelection());
+	}
+
+	/**
+	 * Without priorities the smallest number of plugins is disabled, and
+	 * every disabled plugin is needed.
+	 */
+	public void testMinimalRemoval() {
+		final Model model = model(
+				new String[] { "_P001_A", "_P002_B", "_P003_C", "_P004_D" },
+				new int[] { 600, 300, 300, 100 });
+		final MemoryData board = board(1000);
+		final SelectionRepair.Result result = new SelectionRepair(model, null)
+				.repair(all(model), board);
+		assertTrue(result.isFeasible());
+		assertTrue(result.isOptimal());
+		assertEquals(1, result.getRemoved().cardinality());
+		assertEquals(1, result.getWeight());
+		assertMinimal(model, result, board);
+	}
+
+	/**
+	 * A plugin with a high priority is kept if plugins of a smaller total
+	 * priority can be disabled instead.
+	 */
+	public void testPriorityWeighting() {
+		final Model model =
+				model(new String[] { "_P001_A", "_P002_B", "_P003_C" },
+						new int[] { 300, 200, 200 });
+		final MemoryData board = board(400);
+		final SelectionRepair.Result plain = new SelectionRepair(model, null)
+				.repair(all(model), board);
+		assertEquals(bits(0), plain.getRemoved());
+
+		final Map<String, Object> priorities = new HashMap<>();
+		priorities.put("_P", 1);
+		priorities.put("_P001", 5);
+		final SelectionRepair repair = new SelectionRepair(model, priorities);
+		assertEquals(5, repair.getWeight(0));
+		assertEquals(1, repair.getWeight(1));
+		final SelectionRepair.Result weighted =
+				repair.repair(all(model), board);
+		assertEquals(bits(1, 2), weighted.getRemoved());
+		assertEquals(2, weighted.getWeight());
+		assertMinimal(model, weighted, board);
+	}
+
+	/**
+	 * Read-only plugins are never disabled. If disabling all other plugins
+	 * is not enough, the result is not feasible and removes all of them.
+	 */
+	public void testReadOnlyExcluded() {
+		final Model model =
+				model(new String[] { "_C001", "_P001_A", "_P002_B" },
+						new int[] { 1000, 100, 100 });
+		final SelectionRepair repair = new SelectionRepair(model, null);
+		final SelectionRepair.Result result =
+				repair.repair(all(model), board(1150));
+		assertTrue(result.isFeasible());
+		assertEquals(1, result.getRemoved().cardinality());
+		assertFalse(result.getRemoved().get(0));
+
+		final SelectionRepair.Result infeasible =
+				repair.repair(all(model), board(900));
+		assertFalse(infeasible.isFeasible());
+		assertEquals(bits(1, 2), infeasible.getRemoved());
+		assertEquals(bits(0), infeasible.getSelection());
+	}
+
+	/**
+	 * The greedy pass alone disables more than needed, the search finds the
+	 * lighter solution.
+	 */
+	public void testSearchImprovesGreedy() {
+		final Model model = model(
+				new String[] { "_P001_A", "_P002_B", "_P003_C", "_P004_D" },
+				new int[] { 400, 600, 300, 800 });
+		final Map<String, Object> priorities = new HashMap<>();
+		priorities.put("_P002", 2);
+		priorities.put("_P003", 2);
+		priorities.put("_P004", 3);
+		final SelectionRepair repair = new SelectionRepair(model, priorities);
+		final MemoryData board = board(700);
+
+		final SelectionRepair.Result greedy =
+				repair.repair(all(model), board, 0);
+		assertTrue(greedy.isFeasible());
+		assertFalse(greedy.isOptimal());
+		assertEquals(bits(0, 2, 3), greedy.getRemoved());
+		assertEquals(6, greedy.getWeight());
+
+		final SelectionRepair.Result best = repair.repair(all(model), board,
+				SelectionRepair.DEFAULT_BUDGET_MILLIS * 40);
+		assertTrue(best.isOptimal());
+		assertEquals(bits(1, 3), best.getRemoved());
+		assertEquals(5, best.getWeight());
+		assertMinimal(model, best, board);
+	}
+
+	/**
+	 * The repaired selection fits the board and enabling any of the removed
+	 * plugins again exceeds it.
+	 *
+	 * @param model
+	 *            the model
+	 * @param result
+	 *            the result of the repair
+	 * @param board
+	 *            the board
+	 */
+	private static void assertMinimal(final Model model,
+			final SelectionRepair.Result result, final MemoryData board) {
+		final BitSet selection = result.getSelection();
+		assertTrue(fits(model, selection, board));
+		final BitSet removed = result.getRemoved();
+		for (int i = removed.nextSetBit(0); i >= 0; i =
+				removed.nextSetBit(i + 1)) {
+			final BitSet more = (BitSet) selection.clone();
+			more.set(i);
+			assertFalse("removed " + i, fits(model, more, board));
+		}
+	}
+
+	/**
+	 * @param model
+	 *            the model
+	 * @param enabled
+	 *            the selection
+	 * @param board
+	 *            the board
+	 * @return true if the selection fits the board
+	 */
+	private static boolean fits(final Model model, final BitSet enabled,
+			final MemoryData board) {
+		final MemoryData usage = model.getMemData("test", enabled);
+		for (int m = 0; m < SizeTableParser.VALUES; m++) {
+			if (BoardFitIndex.value(usage, m) > BoardFitIndex.value(board,
+					m)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param names
+	 *            the file names without suffix, names not starting with "_P"
+	 *            are read-only
+	 * @param flash
+	 *            the flash sizes, the other memory values are 1
+	 * @return the model with the plugins
+	 */
+	private static Model model(final String[] names, final int[] flash) {
+		final PluginCatalog.Builder builder = PluginCatalog.builder(".ino");
+		for (int i = 0; i < names.length; i++) {
+			builder.add(names[i] + ".ino", new int[] { 1, 1, 1, 1, flash[i] },
+					!names[i].startsWith("_P"), false);
+		}
+		return new Model(builder.build());
+	}
+
+	/**
+	 * @param model
+	 *            the model
+	 * @return all plugins of the model
+	 */
+	private static BitSet all(final Model model) {
+		final BitSet result = new BitSet();
+		result.set(0, model.getCatalog().size());
+		return result;
+	}
+
+	/**
+	 * @param indexes
+	 *            the indexes to set
+	 * @return the bit set
+	 */
+	private static BitSet bits(final int... indexes) {
+		final BitSet result = new BitSet();
+		for (final int index : indexes) {
+			result.set(index);
+		}
+		return result;
+	}
+
+	/**
+	 * @param flashRom
+	 *            the flash limit, the other limits are large
+	 * @return the board
+	 */
+	private static MemoryData board(final int flashRom) {
+		return new MemoryData("board", LARGE, LARGE, LARGE, LARGE, flashRom);
+	}
+}
@@ -0,0 +1,193 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks the rows the size table parser passes on and the rows it reports.
+ */
+public class SizeTableParserTest extends TestCase {
+
+	private static final String HEADER = "plugin |cache IRAM |init RAM "
+			+ "|r.o. RAM |uninit RAM |Flash ROM\n"
+			+ "-------|-----------|---------|---------|-----------|---------\n";
+
+	private SizeTableParser parser;
+	private List<String> rows;
+
+	/**
+	 * Create the test case.
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public SizeTableParserTest(final String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(SizeTableParserTest.class);
+	}
+
+	@Override
+	protected void setUp() {
+		parser = new SizeTableParser();
+		rows = new ArrayList<>();
+	}
+
+	/**
+	 * Blanks around the values are skipped, negative values and additional
+	 * columns are accepted.
+	 *
+	 * @throws IOException
+	 *             never, the table is read from a string
+	 */
+	public void testValues() throws IOException {
+		parse(HEADER + "src/_P001_Switch.ino | 1 |\t2|3 |4 | 5\n"
+				+ "src/_P002_ADC.ino |-16 |+0 |0 |-1 |2147483647\n"
+				+ "src/_P003_Pulse.ino |1 |2 |3 |4 |5 |extra |6\n");
+		assertEquals(Arrays.asList("_P001_Switch.ino 1 2 3 4 5",
+				"_P002_ADC.ino -16 0 0 -1 2147483647",
+				"_P003_Pulse.ino 1 2 3 4 5"), rows);
+		assertEquals(3, parser.getRowCount());
+		assertEquals(0, parser.getErrorCount());
+	}
+
+	/**
+	 * Windows line ends and a last line without a line end are read like
+	 * the other lines.
+	 *
+	 * @throws IOException
+	 *             never, the table is read from a string
+	 */
+	public void testLineEnds() throws IOException {
+		parse(HEADER.replace("\n", "\r\n")
+				+ "src/_P001_Switch.ino |1 |2 |3 |4 |5\r\n"
+				+ "src/_P002_ADC.ino |6 |7 |8 |9 |10");
+		assertEquals(Arrays.asList("_P001_Switch.ino 1 2 3 4 5",
+				"_P002_ADC.ino 6 7 8 9 10"), rows);
+		assertEquals(0, parser.getErrorCount());
+	}
+
+	/**
+	 * Lines longer than the buffer are read completely, also if the reader
+	 * delivers a few characters at a time.
+	 *
+	 * @throws IOException
+	 *             never, the table is read from a string
+	 */
+	public void testLongLines() throws IOException {
+		final char[] filler = new char[200_000];
+		Arrays.fill(filler, ' ');
+		final String table = HEADER + new String(filler) + "\n"
+				+ "src/_P001_Switch.ino |1 |2 |3 |4 |5" + new String(filler)
+				+ "|extra\n" + "src/_P002_ADC.ino |6 |7 |8 |9 |10\n";
+		parser.parse(new ChunkedReader(new StringReader(table), 7000),
+				this::row);
+		assertEquals(Arrays.asList("_P001_Switch.ino 1 2 3 4 5",
+				"_P002_ADC.ino 6 7 8 9 10"), rows);
+		assertEquals(0, parser.getErrorCount());
+	}
+
+	/**
+	 * Rows that cannot be parsed are reported with their line number, and
+	 * the rows after them are still read.
+	 *
+	 * @throws IOException
+	 *             never, the table is read from a string
+	 */
+	public void testErrorsContinue() throws IOException {
+		parse(HEADER + "src/_P001_Switch.ino |1 |2 |3 |4 |5\n"
+				+ "src/ |1 |2 |3 |4 |5\n"
+				+ "src/_P002_ADC.ino |1 |2 |3\n"
+				+ "src/_P003_Pulse.ino |1 |x |3 |4 |5\n"
+				+ "src/_P004_Dallas.ino |1 |2 |3 |4 |99999999999\n"
+				+ "src/_P005_DHT.ino |1 |2 |3 |4 |5\n");
+		assertEquals(Arrays.asList("_P001_Switch.ino 1 2 3 4 5",
+				"_P005_DHT.ino 1 2 3 4 5"), rows);
+		assertEquals(4, parser.getErrorCount());
+		assertEquals(Arrays.asList("line 4: plugin name missing",
+				"line 5: _P002_ADC.ino: 2 value(s) missing",
+				"line 6: _P003_Pulse.ino: invalid value in column 3",
+				"line 7: _P004_Dallas.ino: invalid value in column 6"),
+				parser.getErrors());
+	}
+
+	/**
+	 * Only the first errors are kept, all of them are counted.
+	 *
+	 * @throws IOException
+	 *             never, the table is read from a string
+	 */
+	public void testErrorsLimited() throws IOException {
+		final StringBuilder table = new StringBuilder(HEADER);
+		for (int i = 0; i < 250; i++) {
+			table.append("src/_P").append(i).append("_Bad.ino |1\n");
+		}
+		table.append("src/_P999_Good.ino |1 |2 |3 |4 |5\n");
+		parse(table.toString());
+		assertEquals(250, parser.getErrorCount());
+		assertEquals(100, parser.getErrors().size());
+		assertEquals(Arrays.asList("_P999_Good.ino 1 2 3 4 5"), rows);
+	}
+
+	/**
+	 * @param table
+	 *            the table to parse
+	 * @throws IOException
+	 *             never, the table is read from a string
+	 */
+	private void parse(final String table) throws IOException {
+		parser.parse(new StringReader(table), this::row);
+	}
+
+	/**
+	 * @param name
+	 *            the plugin name
+	 * @param values
+	 *            the memory values
+	 */
+	private void row(final String name, final int[] values) {
+		final StringBuilder row = new StringBuilder(name);
+		for (final int value : values) {
+			row.append(' ').append(value);
+		}
+		rows.add(row.toString());
+	}
+
+	/**
+	 * A reader delivering at most a given number of characters per read.
+	 */
+	private static final class ChunkedReader extends FilterReader {
+		private final int chunk;
+
+		/**
+		 * @param in
+		 *            the reader to read from
+		 * @param chunk
+		 *            the maximum number of characters per read
+		 */
+		ChunkedReader(final Reader in, final int chunk) {
+			super(in);
+			this.chunk = chunk;
+		}
+
+		@Override
+		public int read(final char[] cbuf, final int off, final int len)
+				throws IOException {
+			return super.read(cbuf, off, Math.min(len, chunk));
+		}
+	}
+}
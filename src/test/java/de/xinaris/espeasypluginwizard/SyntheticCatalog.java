@@ -0,0 +1,203 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Generates synthetic input files for tests at any scale: a plugin size
+ * table, a source directory with plugin sources and header files. Every
+ * plugin gets a unique four character prefix (a letter and three base 36
+ * digits), so up to 26 * 36^3 plugins can be generated. The prefix pattern
+ * matching all generated plugins is PREFIX_PATTERN, the system files in the
+ * size table are read-only.
+ */
+public final class SyntheticCatalog {
+
+	/**
+	 * The prefix pattern matching all generated plugins.
+	 */
+	public static final String PREFIX_PATTERN = "_[A-Z]";
+
+	/**
+	 * The suffix of the generated source files.
+	 */
+	public static final String SUFFIX = ".ino";
+
+	/**
+	 * The number of read-only system files in the size table.
+	 */
+	public static final int SYSTEM_FILES = 8;
+
+	private static final String DIGITS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+	private static final int BASE = 36;
+
+	/**
+	 * Every n-th plugin name is truncated in the size table and completed
+	 * when the source directory is analyzed.
+	 */
+	private static final int TRUNCATE_EVERY = 10;
+
+	private final int plugins;
+	private final Random random;
+
+	/**
+	 * @param plugins
+	 *            the number of plugins to generate
+	 * @param seed
+	 *            the seed for the memory values
+	 */
+	public SyntheticCatalog(final int plugins, final long seed) {
+		this.plugins = plugins;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * @param i
+	 *            the number of the plugin
+	 * @return the unique macro prefix of the plugin, e.g. "P0A7"
+	 */
+	public static String prefix(final int i) {
+		final char[] c = new char[4];
+		int rest = i;
+		for (int d = 3; d > 0; d--) {
+			c[d] = DIGITS.charAt(rest % BASE);
+			rest /= BASE;
+		}
+		c[0] = (char) ('A' + rest);
+		return new String(c);
+	}
+
+	/**
+	 * @param i
+	 *            the number of the plugin
+	 * @return the macro name of the plugin
+	 */
+	public static String macroName(final int i) {
+		return prefix(i) + "_Synthetic" + i;
+	}
+
+	/**
+	 * @param i
+	 *            the number of the plugin
+	 * @return the file name of the plugin source
+	 */
+	public static String fileName(final int i) {
+		return "_" + macroName(i) + SUFFIX;
+	}
+
+	/**
+	 * Write the plugin size table with the system files and all plugins.
+	 *
+	 * @param file
+	 *            the file to write
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public void writeSizeTable(final Path file) throws IOException {
+		try (BufferedWriter w = Files.newBufferedWriter(file)) {
+			w.write("plugin |cache IRAM |init RAM |r.o. RAM |uninit RAM "
+					+ "|Flash ROM\n");
+			for (int s = 0; s < SYSTEM_FILES; s++) {
+				w.write("src/System" + s + SUFFIX);
+				writeValues(w, 10);
+			}
+			for (int i = 0; i < plugins; i++) {
+				String name = fileName(i);
+				if (i % TRUNCATE_EVERY == TRUNCATE_EVERY - 1) {
+					name = name.substring(0, name.length() - 6);
+				}
+				w.write("src/" + name);
+				writeValues(w, 1);
+			}
+		}
+	}
+
+	/**
+	 * @param w
+	 *            the writer
+	 * @param scale
+	 *            the factor for the values
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	private void writeValues(final BufferedWriter w, final int scale)
+			throws IOException {
+		w.write(" |" + random.nextInt(64) * scale);
+		w.write(" |" + random.nextInt(256) * scale);
+		w.write(" |" + random.nextInt(2048) * scale);
+		w.write(" |" + random.nextInt(512) * scale);
+		w.write(" |" + random.nextInt(16384) * scale + "\n");
+	}
+
+	/**
+	 * Write a source file for every plugin and some plugins that are not in
+	 * the size table.
+	 *
+	 * @param dir
+	 *            the directory, created if needed
+	 * @param additional
+	 *            the number of plugins not in the size table
+	 * @throws IOException
+	 *             if a file cannot be written
+	 */
+	public void writeSources(final Path dir, final int additional)
+			throws IOException {
+		Files.createDirectories(dir);
+		for (int i = 0; i < plugins + additional; i++) {
+			try (BufferedWriter w =
+					Files.newBufferedWriter(dir.resolve(fileName(i)))) {
+				w.write("#include \"_Plugin_Helper.h\"\n");
+				w.write("#ifdef USES_" + prefix(i) + "\n");
+				w.write("// Synthetic plugin " + i + "\n");
+				w.write("#define PLUGIN_ID_" + i + " " + i + "\n");
+				w.write("#define PLUGIN_NAME_" + i + " \"Synthetic " + i
+						+ "\"\n");
+				w.write("boolean Plugin_" + i
+						+ "(byte function, struct EventStruct *event) {\n");
+				w.write("  return false;\n}\n#endif\n");
+			}
+		}
+	}
+
+	/**
+	 * Write a header file in the format of Model.save.
+	 *
+	 * @param file
+	 *            the file to write
+	 * @param enabled
+	 *            the enabled plugins by their number
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public void writeHeader(final Path file, final BitSet enabled)
+			throws IOException {
+		try (BufferedWriter w = Files.newBufferedWriter(file)) {
+			for (int i = 0; i < plugins; i++) {
+				if (!enabled.get(i)) {
+					w.write("// ");
+				}
+				w.write("#define " + macroName(i) + "\n");
+			}
+		}
+	}
+
+	/**
+	 * @param fraction
+	 *            the probability of a plugin being enabled
+	 * @return a random selection of plugins by their number
+	 */
+	public BitSet randomSelection(final double fraction) {
+		final BitSet enabled = new BitSet(plugins);
+		for (int i = 0; i < plugins; i++) {
+			if (random.nextDouble() < fraction) {
+				enabled.set(i);
+			}
+		}
+		return enabled;
+	}
+
+}
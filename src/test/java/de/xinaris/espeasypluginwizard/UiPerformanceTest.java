@@ -0,0 +1,562 @@
+package de.xinaris.espeasypluginwizard;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import com.sun.javafx.tk.TKPulseListener;
+import com.sun.javafx.tk.Toolkit;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+import javafx.concurrent.Worker;
+import javafx.scene.Parent;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+import junit.extensions.TestSetup;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Replays scripted interactions against the user interface with a large
+ * synthetic catalog and checks their times, allocations and pulses against
+ * budgets: toggling plugins, loading a header, changing the source directory
+ * and sorting the columns. The budgets of the times and allocations are per
+ * plugin of the catalog, as every interaction touches all plugins at least
+ * once.
+ *
+ * <p>
+ * The application runs without a display on the headless Monocle platform,
+ * so the test only runs in the profile "ui-perf", e.g. "mvn test -Pui-perf".
+ * The number of plugins and toggles can be set with the system properties
+ * "ui.plugins" and "ui.toggles".
+ *
+ * <p>
+ * Every interaction is run on the JavaFX thread, followed by the CSS and
+ * layout pass of the next pulse, where the table creates and updates its
+ * cells. The time and the allocations of the JavaFX thread are measured for
+ * both together. Independently, the duration of every pulse is recorded,
+ * from its animation phase, seen by an AnimationTimer, to the end of its CSS
+ * and layout pass, seen by a pulse listener of the toolkit. A long pulse is
+ * a visible freeze, e.g. when the result of a background task is applied.
+ * The intervals between the frames are only reported, they also contain the
+ * time the JavaFX thread spends on the interactions.
+ *
+ * <p>
+ * The budgets are the slowest of several runs with 5000 plugins on a
+ * headless build machine plus a margin of about a third.
+ */
+public class UiPerformanceTest extends TestCase {
+
+	private static final int PLUGINS = Integer.getInteger("ui.plugins", 5000);
+	private static final int TOGGLES = Integer.getInteger("ui.toggles", 200);
+	private static final int NEW_PLUGINS = 5;
+	private static final int WARM_UP = 20;
+	private static final long TIMEOUT_SECONDS = 60;
+
+	/**
+	 * The directory of the synthetic files.
+	 */
+	private static Path dir;
+
+	/**
+	 * The running application.
+	 */
+	private static App app;
+
+	/**
+	 * The id of the JavaFX thread.
+	 */
+	private static volatile long fxThread;
+
+	/**
+	 * The intervals between frames in nanoseconds, written on the JavaFX
+	 * thread.
+	 */
+	private static final List<Long> FRAMES =
+			Collections.synchronizedList(new ArrayList<>());
+
+	/**
+	 * The durations of the pulses in nanoseconds, written on the JavaFX
+	 * thread.
+	 */
+	private static final List<Long> PULSES =
+			Collections.synchronizedList(new ArrayList<>());
+
+	/**
+	 * The start of the current pulse, 0 outside of a pulse.
+	 */
+	private static long pulseStart = 0;
+
+	/**
+	 * Records the end of every pulse. The toolkit only keeps a weak
+	 * reference.
+	 */
+	private static final TKPulseListener PULSE_END = () -> {
+		if (pulseStart != 0) {
+			PULSES.add(System.nanoTime() - pulseStart);
+			pulseStart = 0;
+		}
+	};
+
+	/**
+	 * Create the test case.
+	 *
+	 * @param testName
+	 *            name of the test case
+	 */
+	public UiPerformanceTest(final String testName) {
+		super(testName);
+	}
+
+	/**
+	 * The application is started once for all tests of the suite.
+	 *
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSetup(new TestSuite(UiPerformanceTest.class)) {
+			@Override
+			protected void setUp() throws Exception {
+				start();
+			}
+
+			@Override
+			protected void tearDown() throws IOException {
+				Platform.exit();
+				delete();
+			}
+		};
+	}
+
+	/**
+	 * Generate the synthetic files and launch the application with a model
+	 * created from them.
+	 *
+	 * @throws Exception
+	 *             if the files cannot be written or the application does not
+	 *             start
+	 */
+	private static void start() throws Exception {
+		dir = Files.createTempDirectory("uiperf");
+		final SyntheticCatalog synthetic = new SyntheticCatalog(PLUGINS, 1);
+		synthetic.writeSizeTable(dir.resolve("Plugin_sizes.txt"));
+		synthetic.writeSources(dir.resolve("src"), NEW_PLUGINS);
+		synthetic.writeHeader(dir.resolve("Custom.h"),
+				synthetic.randomSelection(0.5));
+
+		final ConfigurationData config = new ConfigurationData(new String[] {
+				"--configFile=" + dir.resolve("none.yaml"),
+				"--pluginRules=" + dir.resolve("none.yaml"),
+				"--pluginData=" + dir.resolve("Plugin_sizes.txt"),
+				"--srcDirectory=" + dir,
+				"--pluginPrefixPattern=" + SyntheticCatalog.PREFIX_PATTERN,
+				"--scanCache=" + dir.resolve("scancache") });
+		final CompletableFuture<App> started = new CompletableFuture<>();
+		App.setUp(config, App.createModel(config), started::complete);
+		final Thread launcher =
+				new Thread(() -> Application.launch(App.class), "launcher");
+		launcher.setDaemon(true);
+		launcher.start();
+		app = started.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		onFxThread(() -> fxThread = Thread.currentThread().getId());
+
+		onFxThread(() -> {
+			new AnimationTimer() {
+				private long last = 0;
+
+				@Override
+				public void handle(final long now) {
+					pulseStart = System.nanoTime();
+					if (last != 0) {
+						FRAMES.add(now - last);
+					}
+					last = now;
+				}
+			}.start();
+			Toolkit.getToolkit().addPostSceneTkPulseListener(PULSE_END);
+		});
+	}
+
+	/**
+	 * Delete the synthetic files.
+	 *
+	 * @throws IOException
+	 *             if the directory cannot be read
+	 */
+	private static void delete() throws IOException {
+		try (Stream<Path> paths = Files.walk(dir)) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile)
+					.forEach(File::delete);
+		}
+	}
+
+	/**
+	 * Toggling plugins, each with the recalculation of the totals and the
+	 * refresh of the table.
+	 *
+	 * @throws Exception
+	 *             if an interaction fails
+	 */
+	public void testToggle() throws Exception {
+		final Random random = new Random(1);
+		final TableView<PluginData> table = app.getTableView();
+		final Interaction toggle = () -> {
+			final PluginData plugin = table.getItems()
+					.get(random.nextInt(table.getItems().size()));
+			if (!plugin.isReadOnly()) {
+				app.togglePlugin(plugin, !plugin.isEnabled());
+			}
+		};
+		for (int t = 0; t < WARM_UP; t++) {
+			measure(toggle);
+		}
+		check("toggle", measureAll(toggle, TOGGLES), 32_000, 2_400, 130);
+	}
+
+	/**
+	 * Redrawing the memory map after toggling a plugin.
+	 *
+	 * @throws Exception
+	 *             if an interaction fails
+	 */
+	public void testMemoryMap() throws Exception {
+		final Random random = new Random(2);
+		final TableView<PluginData> table = app.getTableView();
+		final MemoryMap map = app.getMemoryMap();
+		final MemoryData board = new MemoryData("board", 1 << 16, 1 << 16,
+				1 << 16, 1 << 16, 1 << 22);
+		onFxThread(() -> map.setBoard(board));
+		final Result result = new Result();
+		for (int t = 0; t < WARM_UP + TOGGLES; t++) {
+			// the toggle and the layout of the table are not measured
+			measure(() -> {
+				final PluginData plugin = table.getItems()
+						.get(random.nextInt(table.getItems().size()));
+				if (!plugin.isReadOnly()) {
+					app.togglePlugin(plugin, !plugin.isEnabled());
+				}
+			});
+			final long[] measurement = measure(map::draw);
+			if (t >= WARM_UP) {
+				result.add(measurement);
+			}
+		}
+		// a redraw has to fit into a frame at 60 fps
+		check("memoryMap", result, 3_000, 120, 130);
+	}
+
+	/**
+	 * Loading a header file.
+	 *
+	 * @throws Exception
+	 *             if an interaction fails
+	 */
+	public void testLoad() throws Exception {
+		final File header = dir.resolve("Custom.h").toFile();
+		measureTask(() -> app.loadFile(header));
+		final Result result = new Result();
+		for (int i = 0; i < 3; i++) {
+			result.add(measureTask(() -> app.loadFile(header)));
+		}
+		check("load", result, 100_000, 3_400, 320);
+	}
+
+	/**
+	 * Changing the source directory, which analyzes the sources again.
+	 *
+	 * @throws Exception
+	 *             if an interaction fails
+	 */
+	public void testChangeDirectory() throws Exception {
+		final File src = dir.resolve("src").toFile();
+		measureTask(() -> app.changeDirectory(src));
+		final Result result = new Result();
+		for (int i = 0; i < 3; i++) {
+			result.add(measureTask(() -> app.changeDirectory(src)));
+		}
+		check("changeDirectory", result, 120_000, 3_400, 280);
+	}
+
+	/**
+	 * Sorting by every column, ascending and descending.
+	 *
+	 * @throws Exception
+	 *             if an interaction fails
+	 */
+	public void testSort() throws Exception {
+		final TableView<PluginData> table = app.getTableView();
+		final List<Interaction> sorts = new ArrayList<>();
+		for (final TableColumn<PluginData, ?> column : table.getColumns()) {
+			if (!column.isSortable()) {
+				continue;
+			}
+			for (final TableColumn.SortType type : TableColumn.SortType
+					.values()) {
+				sorts.add(() -> {
+					column.setSortType(type);
+					table.getSortOrder()
+							.setAll(Collections.singletonList(column));
+				});
+			}
+		}
+		final Result result = new Result();
+		for (final Interaction sort : sorts) {
+			measure(sort);
+			result.add(measure(sort));
+		}
+		onFxThread(() -> table.getSortOrder().clear());
+		// sorting by the checkbox column creates a checkbox per comparison
+		check("sort", result, 136_000, 90_000, 50);
+	}
+
+	/**
+	 * An interaction with the user interface, run on the JavaFX thread.
+	 */
+	private interface Interaction {
+		/**
+		 * Run the interaction.
+		 */
+		void run();
+	}
+
+	/**
+	 * The times and allocations of a series of interactions.
+	 */
+	private static final class Result {
+		private final List<Long> nanos = new ArrayList<>();
+		private long maxBytes = 0;
+
+		/**
+		 * @param measurement
+		 *            the time and the allocated bytes of an interaction
+		 */
+		private void add(final long[] measurement) {
+			nanos.add(measurement[0]);
+			maxBytes = Math.max(maxBytes, measurement[1]);
+		}
+
+		/**
+		 * @param fraction
+		 *            the fraction, 0.5 for the median
+		 * @return the time at the given fraction in milliseconds
+		 */
+		private double percentile(final double fraction) {
+			final List<Long> sorted = new ArrayList<>(nanos);
+			Collections.sort(sorted);
+			return sorted.get((int) Math.min(sorted.size() - 1,
+					Math.floor(fraction * sorted.size()))) / 1e6;
+		}
+	}
+
+	/**
+	 * @param interaction
+	 *            the interaction
+	 * @param count
+	 *            the number of times to run it
+	 * @return the result
+	 * @throws Exception
+	 *             if an interaction fails
+	 */
+	private static Result measureAll(final Interaction interaction,
+			final int count) throws Exception {
+		final Result result = new Result();
+		for (int i = 0; i < count; i++) {
+			result.add(measure(interaction));
+		}
+		return result;
+	}
+
+	/**
+	 * Run an interaction and the following CSS and layout pass on the JavaFX
+	 * thread.
+	 *
+	 * @param interaction
+	 *            the interaction
+	 * @return the time in nanoseconds and the bytes allocated by the JavaFX
+	 *         thread
+	 * @throws Exception
+	 *             if the interaction fails
+	 */
+	private static long[] measure(final Interaction interaction)
+			throws Exception {
+		final CompletableFuture<long[]> result = new CompletableFuture<>();
+		Platform.runLater(() -> {
+			try {
+				final long start = System.nanoTime();
+				final long allocated = allocatedBytes();
+				interaction.run();
+				final Parent root = app.getTableView().getScene().getRoot();
+				root.applyCss();
+				root.layout();
+				result.complete(new long[] { System.nanoTime() - start,
+						allocatedBytes() - allocated });
+			} catch (final Throwable e) {
+				result.completeExceptionally(e);
+			}
+		});
+		return get(result);
+	}
+
+	/**
+	 * Start a background task on the JavaFX thread and wait until its result
+	 * has been applied, followed by the CSS and layout pass. The time is the
+	 * latency seen by the user, the allocations are only those of the JavaFX
+	 * thread.
+	 *
+	 * @param start
+	 *            starts the task
+	 * @return the time in nanoseconds and the bytes allocated by the JavaFX
+	 *         thread
+	 * @throws Exception
+	 *             if the task fails
+	 */
+	private static long[] measureTask(final Supplier<Task<?>> start)
+			throws Exception {
+		final CompletableFuture<Void> applied = new CompletableFuture<>();
+		final long begin = System.nanoTime();
+		final long allocated = allocatedBytes();
+		onFxThread(() -> {
+			final Task<?> task = start.get();
+			task.stateProperty().addListener((observable, oldVal, newVal) -> {
+				if (newVal == Worker.State.SUCCEEDED) {
+					// the application applies the result after this listener
+					Platform.runLater(() -> applied.complete(null));
+				} else if (newVal == Worker.State.FAILED) {
+					applied.completeExceptionally(task.getException());
+				} else if (newVal == Worker.State.CANCELLED) {
+					applied.completeExceptionally(
+							new AssertionError("Cancelled"));
+				}
+			});
+		});
+		get(applied);
+		onFxThread(() -> {
+			final Parent root = app.getTableView().getScene().getRoot();
+			root.applyCss();
+			root.layout();
+		});
+		return new long[] { System.nanoTime() - begin,
+				allocatedBytes() - allocated };
+	}
+
+	/**
+	 * Run an action on the JavaFX thread and wait for it.
+	 *
+	 * @param action
+	 *            the action
+	 * @throws Exception
+	 *             if the action fails
+	 */
+	private static void onFxThread(final Runnable action) throws Exception {
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+		Platform.runLater(() -> {
+			action.run();
+			done.complete(null);
+		});
+		get(done);
+	}
+
+	/**
+	 * @param future
+	 *            the future
+	 * @param <T>
+	 *            the type of the result
+	 * @return the result of the future
+	 * @throws Exception
+	 *             if the future failed or timed out
+	 */
+	private static <T> T get(final CompletableFuture<T> future)
+			throws Exception {
+		try {
+			return future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw new AssertionError(e.getCause());
+		} catch (final TimeoutException e) {
+			throw new AssertionError("The JavaFX thread does not respond");
+		}
+	}
+
+	/**
+	 * @return the bytes allocated by the JavaFX thread so far
+	 */
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean()).getThreadAllocatedBytes(fxThread);
+	}
+
+	/**
+	 * @param values
+	 *            durations recorded on the JavaFX thread, cleared
+	 * @return the longest duration
+	 */
+	private static long takeMax(final List<Long> values) {
+		long max = 0;
+		synchronized (values) {
+			for (final long value : values) {
+				max = Math.max(max, value);
+			}
+			values.clear();
+		}
+		return max;
+	}
+
+	/**
+	 * Report a result with the pulses and frame intervals recorded meanwhile
+	 * and check it against the budgets.
+	 *
+	 * @param name
+	 *            the name of the interaction
+	 * @param result
+	 *            the result
+	 * @param nanosPerPlugin
+	 *            the budget for the 90th percentile of the times
+	 * @param bytesPerPlugin
+	 *            the budget for the allocations of a single interaction
+	 * @param pulseMillis
+	 *            the budget for the longest pulse; a pulse only handles
+	 *            the visible rows, so it does not depend on the number of
+	 *            plugins
+	 */
+	private static void check(final String name, final Result result,
+			final long nanosPerPlugin, final long bytesPerPlugin,
+			final long pulseMillis) {
+		final long maxPulse = takeMax(PULSES);
+		final long maxFrame = takeMax(FRAMES);
+		final double p90 = result.percentile(0.9);
+		System.out.println(String.format(
+				"ui %s: %d plugins, %d runs, median %.2f ms, p90 %.2f ms,"
+						+ " max %.2f ms, max %d KB allocated,"
+						+ " longest pulse %.2f ms, longest frame %.2f ms",
+				name, PLUGINS, result.nanos.size(), result.percentile(0.5),
+				p90, result.percentile(1), result.maxBytes / 1024,
+				maxPulse / 1e6, maxFrame / 1e6));
+		assertTrue(name + ": p90 " + p90 + " ms exceeds budget",
+				p90 * 1e6 <= (double) nanosPerPlugin * PLUGINS);
+		assertTrue(name + ": " + result.maxBytes + " bytes exceed budget",
+				result.maxBytes <= bytesPerPlugin * PLUGINS);
+		assertTrue(name + ": pulse of " + maxPulse / 1e6
+				+ " ms exceeds budget",
+				maxPulse <= pulseMillis * 1_000_000);
+	}
+
+}